@@ -0,0 +1,179 @@
+package com.databend.jdbc;
+
+import com.databend.jdbc.internal.session.DatabendSessionHandle;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.util.concurrent.Executors.newCachedThreadPool;
+
+/**
+ * Uploads the encoded chunks of a PreparedStatement batch to the user stage in the background, so
+ * the caller can keep binding and encoding rows while earlier chunks are transferred.
+ * <p>
+ * Only the transfer of the bytes runs in the background: the PRESIGN statement of each chunk runs on
+ * the caller's thread when the chunk is submitted, so the session state it returns never races the
+ * statements and transactions of the connection.
+ * <p>
+ * All chunks of one batch share a stage directory, which is loaded by a single INSERT once the
+ * batch is executed. At most {@code parallelism} uploads are in flight, {@link #submit} blocks until
+ * one of them finishes and reports its failure, if any. Files that are still queued or uploading
+ * are removed by the caller through {@link #getStageDirectory()} when the batch is abandoned.
+ */
+final class BatchUploader {
+    private static final Logger logger = Logger.getLogger(BatchUploader.class.getPackage().getName());
+    // batches are only split into files of at least this size
+    static final long MIN_SPLIT_BYTES = 16L << 20;
+    private static final ExecutorService executorService = newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("Databend JDBC batch uploader-%s").setDaemon(true).build());
+
+    private final DatabendConnection connection;
+    private final int parallelism;
+    private final String stagePrefix;
+    private final Deque<Future<String>> inFlight = new ArrayDeque<>();
+    private final List<File> pendingFiles = new ArrayList<>();
+    private final List<String> uploadedFiles = new ArrayList<>();
+    private int rowCount;
+
+    BatchUploader(DatabendConnection connection, int parallelism) {
+        this.connection = connection;
+        this.parallelism = Math.max(1, parallelism);
+        this.stagePrefix = newStagePrefix();
+    }
+
+    private static String newStagePrefix() {
+        LocalDateTime now = LocalDateTime.now();
+        String uuid = UUID.randomUUID().toString().replace("-", "");
+        // format %Y/%m/%d/%H/%M/%S/uuid/
+        return String.format("%s/%s/%s/%s/%s/%s/%s/",
+                now.getYear(),
+                now.getMonthValue(),
+                now.getDayOfMonth(),
+                now.getHour(),
+                now.getMinute(),
+                now.getSecond(),
+                uuid);
+    }
+
+    /**
+     * Number of files a chunk of about {@code bytes} is split into, so that large batches are
+     * uploaded over several connections.
+     */
+    int splitCount(long bytes) {
+        return (int) Math.max(1, Math.min(parallelism, bytes / MIN_SPLIT_BYTES));
+    }
+
+    /**
+     * Hands an encoded chunk over to the uploader, the file is deleted once it has been uploaded.
+     */
+    void submit(File file, int rows) throws SQLException {
+        // tracked before waiting, so that abort() also drops it when an earlier upload failed
+        pendingFiles.add(file);
+        while (!inFlight.isEmpty() && (inFlight.size() >= parallelism || inFlight.peekFirst().isDone())) {
+            awaitOldest();
+        }
+        // presigned here rather than on the upload thread, PRESIGN is a statement of the session
+        DatabendSessionHandle.FileUpload upload;
+        try {
+            upload = connection.prepareFileUpload(null, stagePrefix, file.getName());
+        } catch (SQLException e) {
+            abort();
+            throw e;
+        }
+        inFlight.addLast(executorService.submit(() -> upload(upload, file)));
+        rowCount += rows;
+    }
+
+    /**
+     * Waits for every submitted chunk to be uploaded.
+     */
+    void finish() throws SQLException {
+        while (!inFlight.isEmpty()) {
+            awaitOldest();
+        }
+    }
+
+    /**
+     * Cancels the uploads that are still in flight and drops the local files.
+     */
+    void abort() {
+        for (Future<String> future : inFlight) {
+            future.cancel(true);
+        }
+        inFlight.clear();
+        for (File file : pendingFiles) {
+            file.delete();
+        }
+        pendingFiles.clear();
+    }
+
+    int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Whether any chunk may have reached the stage, including uploads that are still running.
+     */
+    boolean hasUploads() {
+        return !uploadedFiles.isEmpty() || !pendingFiles.isEmpty();
+    }
+
+    String getStageDirectory() {
+        return "@~/" + stagePrefix;
+    }
+
+    /**
+     * Stage location covering the uploaded chunks: the file itself when there is only one,
+     * otherwise the directory holding all of them.
+     */
+    String getLocation() {
+        if (uploadedFiles.size() == 1) {
+            return getStageDirectory() + uploadedFiles.get(0);
+        }
+        return getStageDirectory();
+    }
+
+    private String upload(DatabendSessionHandle.FileUpload upload, File file) throws Exception {
+        long start = System.nanoTime();
+        long size = file.length();
+        try {
+            upload.upload(file.toPath());
+        } finally {
+            file.delete();
+        }
+        logger.log(Level.FINE, String.format("uploaded batch file %s%s (%d bytes) in %d ms",
+                stagePrefix, file.getName(), size, (System.nanoTime() - start) / 1_000_000));
+        return file.getName();
+    }
+
+    private void awaitOldest() throws SQLException {
+        Future<String> future = inFlight.removeFirst();
+        try {
+            uploadedFiles.add(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort();
+            throw new SQLException("Interrupted while uploading batch insert data", e);
+        } catch (ExecutionException | CancellationException e) {
+            abort();
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            throw new SQLException("Failed to upload batch insert data: " + cause.getMessage(), cause);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.databend.jdbc;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of {@link DatabendConnectionExtension#loadFilesToTable(String, List)}: the stage location
+ * the files were uploaded to and the status of every file, in the order they were given.
+ */
+public final class BulkLoadResult {
+    private final String location;
+    private final List<FileStatus> files;
+
+    BulkLoadResult(String location, List<FileStatus> files) {
+        this.location = location;
+        this.files = Collections.unmodifiableList(files);
+    }
+
+    /**
+     * @return the stage directory the files were uploaded to, e.g. {@code @~/_databend_load/1700000000000000000/};
+     *         it is removed once the load is over
+     */
+    public String getLocation() {
+        return location;
+    }
+
+    public List<FileStatus> getFiles() {
+        return files;
+    }
+
+    /**
+     * @return the rows loaded from all files
+     */
+    public long getRowsLoaded() {
+        long rows = 0;
+        for (FileStatus file : files) {
+            rows += file.getRowsLoaded();
+        }
+        return rows;
+    }
+
+    /**
+     * @return true when every file was uploaded and loaded without errors
+     */
+    public boolean isSuccessful() {
+        for (FileStatus file : files) {
+            if (!file.isLoaded() || file.getErrorsSeen() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "BulkLoadResult{location=" + location + ", files=" + files + "}";
+    }
+
+    public static final class FileStatus {
+        private final String name;
+        private final SQLException uploadError;
+        private final boolean loaded;
+        private final long rowsLoaded;
+        private final long errorsSeen;
+        private final String firstError;
+
+        FileStatus(String name, SQLException uploadError, boolean loaded, long rowsLoaded, long errorsSeen,
+                String firstError) {
+            this.name = name;
+            this.uploadError = uploadError;
+            this.loaded = loaded;
+            this.rowsLoaded = rowsLoaded;
+            this.errorsSeen = errorsSeen;
+            this.firstError = firstError;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isUploaded() {
+            return uploadError == null;
+        }
+
+        /**
+         * @return why the upload failed, or {@code null} when the file was uploaded
+         */
+        public SQLException getUploadError() {
+            return uploadError;
+        }
+
+        /**
+         * @return true when COPY INTO reported the file, false when it was not uploaded or COPY
+         * skipped it, e.g. because it was already loaded before
+         */
+        public boolean isLoaded() {
+            return loaded;
+        }
+
+        public long getRowsLoaded() {
+            return rowsLoaded;
+        }
+
+        public long getErrorsSeen() {
+            return errorsSeen;
+        }
+
+        /**
+         * @return the first error COPY INTO reported for the file, or {@code null}
+         */
+        public String getFirstError() {
+            return firstError;
+        }
+
+        @Override
+        public String toString() {
+            if (uploadError != null) {
+                return name + ": upload failed: " + uploadError.getMessage();
+            }
+            return name + ": loaded=" + loaded + ", rows=" + rowsLoaded + ", errors=" + errorsSeen
+                    + (firstError == null ? "" : ", firstError=" + firstError);
+        }
+    }
+}
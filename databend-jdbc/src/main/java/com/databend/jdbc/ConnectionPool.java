@@ -0,0 +1,341 @@
+package com.databend.jdbc;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The pool behind {@link DatabendDataSource#getConnection()}.
+ * <p>
+ * Idle sessions sit in a lock-free deque, the most recently returned one is handed out first so that
+ * the others can time out. A semaphore with {@code maxTotal} permits bounds the handles in use and
+ * lets borrowers wait; creating a session reserves a slot of {@code total} with a compare-and-set,
+ * so the pool never holds more than {@code maxTotal} sessions. A borrower that finds no idle session
+ * and no free slot, because the housekeeping is still opening one, waits on a condition until a
+ * session is returned or a slot is freed. A session is only pinged when it was idle for longer than
+ * the validation interval, borrowing a session that was just returned costs no request.
+ */
+final class ConnectionPool implements ConnectionEventListener {
+    private static final Logger logger = Logger.getLogger(ConnectionPool.class.getPackage().getName());
+    private static final long HOUSEKEEPING_INTERVAL_MILLIS = 30_000;
+    private static final ScheduledExecutorService housekeeper = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("Databend JDBC pool-%s").setDaemon(true).build());
+
+    private final DatabendDataSource factory;
+    private final int minIdle;
+    private final int maxIdle;
+    private final int maxTotal;
+    private final long maxWaitMillis;
+    private final long validationIntervalNanos;
+    private final long idleTimeoutNanos;
+
+    private final ConcurrentLinkedDeque<DatabendPooledConnection> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final Semaphore permits;
+    // borrowers with a permit that wait for an idle session or a free slot
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition sessionAvailable = lock.newCondition();
+    private final AtomicInteger waitingForSession = new AtomicInteger();
+    private final ScheduledFuture<?> housekeeping;
+    private volatile boolean closed;
+
+    private final LongAdder created = new LongAdder();
+    private final LongAdder destroyed = new LongAdder();
+    private final LongAdder borrowed = new LongAdder();
+    private final LongAdder acquireNanos = new LongAdder();
+    private final LongAdder acquireTimeouts = new LongAdder();
+    private final LongAdder validationFailures = new LongAdder();
+
+    ConnectionPool(DatabendDataSource factory, int minIdle, int maxIdle, int maxTotal, long maxWaitMillis,
+            long validationIntervalMillis, long idleTimeoutMillis) {
+        this.factory = factory;
+        this.minIdle = minIdle;
+        this.maxIdle = maxIdle;
+        this.maxTotal = maxTotal;
+        this.maxWaitMillis = maxWaitMillis;
+        this.validationIntervalNanos = TimeUnit.MILLISECONDS.toNanos(validationIntervalMillis);
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.permits = new Semaphore(maxTotal, true);
+        this.housekeeping = housekeeper.scheduleWithFixedDelay(this::housekeep,
+                0, Math.min(HOUSEKEEPING_INTERVAL_MILLIS, Math.max(idleTimeoutMillis / 2, 1)), TimeUnit.MILLISECONDS);
+    }
+
+    Connection borrow() throws SQLException {
+        long start = System.nanoTime();
+        checkOpen();
+        boolean acquired;
+        waiting.incrementAndGet();
+        try {
+            acquired = permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a pooled connection", e);
+        } finally {
+            waiting.decrementAndGet();
+        }
+        if (!acquired) {
+            acquireTimeouts.increment();
+            throw new SQLTransientConnectionException(String.format(
+                    "Timed out after %d ms waiting for a pooled connection, %d of %d in use",
+                    maxWaitMillis, getActive(), maxTotal));
+        }
+        try {
+            checkOpen();
+            Connection connection = take(start).getConnection();
+            borrowed.increment();
+            acquireNanos.add(System.nanoTime() - start);
+            return connection;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private DatabendPooledConnection take(long start) throws SQLException {
+        while (true) {
+            DatabendPooledConnection connection = idle.pollFirst();
+            if (connection != null) {
+                idleCount.decrementAndGet();
+                if (isUsable(connection)) {
+                    return connection;
+                }
+                validationFailures.increment();
+                destroy(connection);
+                continue;
+            }
+            if (reserve()) {
+                return create();
+            }
+            // every slot is taken while this borrower holds a permit, so a session is being
+            // returned or created by the housekeeping and shows up in the deque
+            awaitSession(start);
+        }
+    }
+
+    private void awaitSession(long start) throws SQLException {
+        lock.lock();
+        waitingForSession.incrementAndGet();
+        try {
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis) - (System.nanoTime() - start);
+            while (idle.isEmpty() && total.get() >= maxTotal) {
+                checkOpen();
+                if (remainingNanos <= 0) {
+                    acquireTimeouts.increment();
+                    throw new SQLTransientConnectionException(String.format(
+                            "Timed out after %d ms waiting for a pooled connection, %d of %d in use",
+                            maxWaitMillis, getActive(), maxTotal));
+                }
+                remainingNanos = sessionAvailable.awaitNanos(remainingNanos);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a pooled connection", e);
+        } finally {
+            waitingForSession.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    // called after a session went into the deque or a slot was freed
+    private void signalSessionAvailable() {
+        if (waitingForSession.get() == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            sessionAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isUsable(DatabendPooledConnection connection) {
+        DatabendConnection physical = connection.getPhysicalConnection();
+        try {
+            if (physical.isClosed()) {
+                return false;
+            }
+            if (System.nanoTime() - connection.getLastReturnedNanos() > validationIntervalNanos) {
+                physical.pingDatabendServer();
+            }
+            return true;
+        } catch (SQLException e) {
+            logger.log(Level.FINE, "pooled connection failed validation", e);
+            return false;
+        }
+    }
+
+    private boolean reserve() {
+        while (true) {
+            int current = total.get();
+            if (current >= maxTotal) {
+                return false;
+            }
+            if (total.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private DatabendPooledConnection create() throws SQLException {
+        try {
+            DatabendPooledConnection connection = factory.getPooledConnection();
+            connection.addConnectionEventListener(this);
+            created.increment();
+            return connection;
+        } catch (SQLException | RuntimeException e) {
+            total.decrementAndGet();
+            signalSessionAvailable();
+            throw e;
+        }
+    }
+
+    private void destroy(DatabendPooledConnection connection) {
+        total.decrementAndGet();
+        signalSessionAvailable();
+        destroyed.increment();
+        connection.removeConnectionEventListener(this);
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            logger.log(Level.FINE, "failed to close pooled connection", e);
+        }
+    }
+
+    @Override
+    public void connectionClosed(ConnectionEvent event) {
+        DatabendPooledConnection connection = (DatabendPooledConnection) event.getSource();
+        if (closed || idleCount.get() >= maxIdle) {
+            destroy(connection);
+        } else {
+            idle.offerFirst(connection);
+            idleCount.incrementAndGet();
+            // close() may have drained the deque just before the session went in
+            if (closed && idle.removeFirstOccurrence(connection)) {
+                idleCount.decrementAndGet();
+                destroy(connection);
+            }
+            signalSessionAvailable();
+        }
+        permits.release();
+    }
+
+    @Override
+    public void connectionErrorOccurred(ConnectionEvent event) {
+        logger.log(Level.WARNING, "discarding pooled connection after failed reset", event.getSQLException());
+        destroy((DatabendPooledConnection) event.getSource());
+        permits.release();
+    }
+
+    /**
+     * Closes sessions that were idle for too long and opens sessions up to {@code minIdle}.
+     */
+    void housekeep() {
+        if (closed) {
+            return;
+        }
+        long now = System.nanoTime();
+        Iterator<DatabendPooledConnection> oldestFirst = idle.descendingIterator();
+        while (oldestFirst.hasNext() && idleCount.get() > minIdle) {
+            DatabendPooledConnection connection = oldestFirst.next();
+            // a borrower may take the session at the same time, only the one that removes it owns it
+            if (now - connection.getLastReturnedNanos() > idleTimeoutNanos && idle.removeFirstOccurrence(connection)) {
+                idleCount.decrementAndGet();
+                destroy(connection);
+            }
+        }
+        while (!closed && idleCount.get() < minIdle && reserve()) {
+            try {
+                idle.offerLast(create());
+                idleCount.incrementAndGet();
+                signalSessionAvailable();
+            } catch (SQLException | RuntimeException e) {
+                logger.log(Level.WARNING, "failed to open idle pooled connection", e);
+                return;
+            }
+        }
+    }
+
+    void close() {
+        closed = true;
+        housekeeping.cancel(false);
+        DatabendPooledConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            destroy(connection);
+        }
+        // borrowers waiting for a session fail at once
+        lock.lock();
+        try {
+            sessionAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkOpen() throws SQLException {
+        if (closed) {
+            throw new SQLException("Data source is closed");
+        }
+    }
+
+    int getActive() {
+        return maxTotal - permits.availablePermits();
+    }
+
+    int getIdle() {
+        return idleCount.get();
+    }
+
+    int getTotal() {
+        return total.get();
+    }
+
+    int getWaiting() {
+        return waiting.get();
+    }
+
+    long getCreated() {
+        return created.sum();
+    }
+
+    long getDestroyed() {
+        return destroyed.sum();
+    }
+
+    long getBorrowed() {
+        return borrowed.sum();
+    }
+
+    long getAcquireTimeouts() {
+        return acquireTimeouts.sum();
+    }
+
+    long getValidationFailures() {
+        return validationFailures.sum();
+    }
+
+    long getAverageAcquireMicros() {
+        long count = borrowed.sum();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(acquireNanos.sum() / count);
+    }
+}
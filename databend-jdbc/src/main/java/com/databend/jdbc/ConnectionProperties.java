@@ -1,5 +1,9 @@
 package com.databend.jdbc;
 
+import com.databend.jdbc.internal.http.HttpClientConfig;
+import com.databend.jdbc.internal.http.RetryConfig;
+import com.databend.jdbc.internal.http.PresignClientConfig;
+import com.databend.jdbc.internal.session.ConcurrencyLimitConfig;
 import com.databend.jdbc.internal.session.PaginationOptions;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -23,11 +27,13 @@ public final class ConnectionProperties {
     public static final ConnectionProperty<String> SSL_MODE = new SSLMode();
     static final ConnectionProperty<String> TENANT = new Tenant();
     public static final ConnectionProperty<String> DATABASE = new Database();
-    // Deprecated multi-host knobs kept for compatibility to avoid hard failures.
     public static final ConnectionProperty<Integer> MAX_FAILOVER_RETRY = new MaxFailoverRetry();
     public static final ConnectionProperty<String> LOAD_BALANCING_POLICY = new LoadBalancingPolicy();
+    public static final ConnectionProperty<Integer> HEALTH_CHECK_INTERVAL = new HealthCheckInterval();
     public static final ConnectionProperty<Boolean> AUTO_DISCOVERY = new AutoDiscovery();
     public static final ConnectionProperty<Integer> NODE_DISCOVERY_INTERVAL = new NodeDiscoveryInterval();
+    public static final ConnectionProperty<Boolean> LAZY_LOGIN = new LazyLogin();
+    // Deprecated knob kept for compatibility to avoid hard failures.
     public static final ConnectionProperty<Boolean> ENABLE_MOCK = new EnableMock();
     public static final ConnectionProperty<String> ACCESS_TOKEN = new AccessToken();
 
@@ -49,6 +55,44 @@ public final class ConnectionProperties {
 
     public static final ConnectionProperty<String> SESSION_SETTINGS = new SessionSettings();
 
+    public static final ConnectionProperty<Integer> BATCH_FLUSH_ROWS = new BatchFlushRows();
+    public static final ConnectionProperty<Integer> BATCH_FLUSH_BYTES = new BatchFlushBytes();
+    public static final ConnectionProperty<Integer> BATCH_UPLOAD_PARALLELISM = new BatchUploadParallelism();
+    public static final ConnectionProperty<String> BATCH_UPLOAD_FORMAT = new BatchUploadFormatProperty();
+    public static final ConnectionProperty<String> UPLOAD_COMPRESSION = new UploadCompressionProperty();
+    public static final ConnectionProperty<Integer> UPLOAD_COMPRESSION_THREADS = new UploadCompressionThreads();
+    public static final ConnectionProperty<Integer> UPLOAD_PART_SIZE = new UploadPartSize();
+    public static final ConnectionProperty<Integer> UPLOAD_PARALLELISM = new UploadParallelism();
+    public static final ConnectionProperty<Integer> DOWNLOAD_PARALLELISM = new DownloadParallelism();
+    public static final ConnectionProperty<Integer> DOWNLOAD_RANGE_SIZE = new DownloadRangeSize();
+
+    public static final ConnectionProperty<Integer> PRESIGN_MAX_IDLE_CONNECTIONS = new PresignMaxIdleConnections();
+    public static final ConnectionProperty<Integer> PRESIGN_KEEP_ALIVE = new PresignKeepAlive();
+    public static final ConnectionProperty<Boolean> PRESIGN_HTTP2 = new PresignHttp2();
+    public static final ConnectionProperty<Integer> PRESIGN_CONNECTION_TIMEOUT = new PresignConnectionTimeout();
+    public static final ConnectionProperty<Integer> PRESIGN_SOCKET_TIMEOUT = new PresignSocketTimeout();
+    public static final ConnectionProperty<Integer> PRESIGN_CACHE_TTL = new PresignCacheTtl();
+
+    public static final ConnectionProperty<Integer> HTTP_MAX_IDLE_CONNECTIONS = new HttpMaxIdleConnections();
+    public static final ConnectionProperty<Integer> HTTP_KEEP_ALIVE = new HttpKeepAlive();
+    public static final ConnectionProperty<String> HTTP_PROTOCOL = new HttpProtocolProperty();
+    public static final ConnectionProperty<Integer> HTTP_MAX_REQUESTS = new HttpMaxRequests();
+    public static final ConnectionProperty<Integer> HTTP_MAX_REQUESTS_PER_HOST = new HttpMaxRequestsPerHost();
+    public static final ConnectionProperty<Integer> RETRY_MAX_ATTEMPTS = new RetryMaxAttempts();
+    public static final ConnectionProperty<Integer> RETRY_BACKOFF = new RetryBackoff();
+    public static final ConnectionProperty<Integer> RETRY_MAX_BACKOFF = new RetryMaxBackoff();
+    public static final ConnectionProperty<Integer> RETRY_BUDGET = new RetryBudget();
+    public static final ConnectionProperty<Integer> CIRCUIT_BREAKER_THRESHOLD = new CircuitBreakerThreshold();
+    public static final ConnectionProperty<Integer> CIRCUIT_BREAKER_OPEN_TIME = new CircuitBreakerOpenTime();
+    public static final ConnectionProperty<Integer> PAGE_HEDGE_DELAY = new PageHedgeDelay();
+    public static final ConnectionProperty<Integer> PAGE_HEDGE_PERCENTILE = new PageHedgePercentile();
+    public static final ConnectionProperty<Integer> MAX_CONCURRENT_QUERIES = new MaxConcurrentQueries();
+    public static final ConnectionProperty<Integer> QUERY_QUEUE_SIZE = new QueryQueueSize();
+    public static final ConnectionProperty<Integer> QUERY_QUEUE_TIMEOUT = new QueryQueueTimeout();
+    public static final ConnectionProperty<Boolean> ADAPTIVE_CONCURRENCY = new AdaptiveConcurrency();
+    public static final ConnectionProperty<String> QUERY_REQUEST_COMPRESSION = new QueryRequestCompression();
+    public static final ConnectionProperty<String> QUERY_RESPONSE_COMPRESSION = new QueryResponseCompression();
+
     private static final Set<ConnectionProperty<?>> ALL_PROPERTIES = ImmutableSet.<ConnectionProperty<?>>builder()
             .add(USER)
             .add(PASSWORD)
@@ -60,6 +104,12 @@ public final class ConnectionProperties {
             .add(SSL_MODE)
             .add(TENANT)
             .add(DATABASE)
+            .add(MAX_FAILOVER_RETRY)
+            .add(LOAD_BALANCING_POLICY)
+            .add(HEALTH_CHECK_INTERVAL)
+            .add(AUTO_DISCOVERY)
+            .add(NODE_DISCOVERY_INTERVAL)
+            .add(LAZY_LOGIN)
             .add(ACCESS_TOKEN)
             .add(PRESIGNED_URL_DISABLED)
             .add(PRESIGN)
@@ -71,8 +121,43 @@ public final class ConnectionProperties {
             .add(MAX_ROWS_IN_BUFFER)
             .add(MAX_ROWS_PER_PAGE)
             .add(SESSION_SETTINGS)
+            .add(BATCH_FLUSH_ROWS)
+            .add(BATCH_FLUSH_BYTES)
+            .add(BATCH_UPLOAD_PARALLELISM)
+            .add(BATCH_UPLOAD_FORMAT)
+            .add(UPLOAD_COMPRESSION)
+            .add(UPLOAD_COMPRESSION_THREADS)
+            .add(UPLOAD_PART_SIZE)
+            .add(UPLOAD_PARALLELISM)
+            .add(DOWNLOAD_PARALLELISM)
+            .add(DOWNLOAD_RANGE_SIZE)
+            .add(PRESIGN_MAX_IDLE_CONNECTIONS)
+            .add(PRESIGN_KEEP_ALIVE)
+            .add(PRESIGN_HTTP2)
+            .add(PRESIGN_CONNECTION_TIMEOUT)
+            .add(PRESIGN_SOCKET_TIMEOUT)
+            .add(PRESIGN_CACHE_TTL)
+            .add(HTTP_MAX_IDLE_CONNECTIONS)
+            .add(HTTP_KEEP_ALIVE)
+            .add(HTTP_PROTOCOL)
+            .add(HTTP_MAX_REQUESTS)
+            .add(HTTP_MAX_REQUESTS_PER_HOST)
+            .add(RETRY_MAX_ATTEMPTS)
+            .add(RETRY_BACKOFF)
+            .add(RETRY_MAX_BACKOFF)
+            .add(RETRY_BUDGET)
+            .add(CIRCUIT_BREAKER_THRESHOLD)
+            .add(CIRCUIT_BREAKER_OPEN_TIME)
+            .add(PAGE_HEDGE_DELAY)
+            .add(PAGE_HEDGE_PERCENTILE)
+            .add(MAX_CONCURRENT_QUERIES)
+            .add(QUERY_QUEUE_SIZE)
+            .add(QUERY_QUEUE_TIMEOUT)
+            .add(ADAPTIVE_CONCURRENCY)
+            .add(QUERY_REQUEST_COMPRESSION)
+            .add(QUERY_RESPONSE_COMPRESSION)
             .build();
-    // Deprecated multi-host properties are intentionally excluded from ALL_PROPERTIES so we can detect user-specified values.
+    // Deprecated properties are intentionally excluded from ALL_PROPERTIES so we can detect user-specified values.
     private static final Map<String, String> DEFAULTS;
 
     public static Set<ConnectionProperty<?>> allProperties() {
@@ -162,7 +247,30 @@ public final class ConnectionProperties {
     private static class LoadBalancingPolicy
             extends AbstractConnectionProperty<String> {
         public LoadBalancingPolicy() {
-            super("load_balancing_policy", Optional.of("disabled"), NOT_REQUIRED, ALLOWED, STRING_CONVERTER);
+            super("load_balancing_policy", Optional.of("disabled"), NOT_REQUIRED, ALLOWED,
+                    LoadBalancingPolicy::normalizeLoadBalancingPolicy,
+                    new String[]{"disabled", "round_robin", "least_inflight", "random"},
+                    null);
+        }
+
+        private static String normalizeLoadBalancingPolicy(String value) {
+            String normalized = value.trim().replace('-', '_').toLowerCase(Locale.ENGLISH);
+            switch (normalized) {
+                case "disabled":
+                case "round_robin":
+                case "least_inflight":
+                case "random":
+                    return normalized;
+                default:
+                    throw new IllegalArgumentException("Unsupported load balancing policy: " + value);
+            }
+        }
+    }
+
+    // seconds between health checks of the hosts of a multi-host URL
+    private static class HealthCheckInterval extends AbstractConnectionProperty<Integer> {
+        public HealthCheckInterval() {
+            super("health_check_interval", Optional.of("10"), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
         }
     }
 
@@ -172,12 +280,19 @@ public final class ConnectionProperties {
         }
     }
 
+    // milliseconds between refreshes of the node list with auto_discovery
     private static class NodeDiscoveryInterval extends AbstractConnectionProperty<Integer> {
         public NodeDiscoveryInterval() {
             super("node_discovery_interval", Optional.of("300000"), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
         }
     }
 
+    private static class LazyLogin extends AbstractConnectionProperty<Boolean> {
+        public LazyLogin() {
+            super("lazy_login", Optional.of("false"), NOT_REQUIRED, ALLOWED, BOOLEAN_CONVERTER);
+        }
+    }
+
     private static class EnableMock extends AbstractConnectionProperty<Boolean> {
         public EnableMock() {
             super("enable_mock", Optional.of("false"), NOT_REQUIRED, ALLOWED, BOOLEAN_CONVERTER);
@@ -292,6 +407,301 @@ public final class ConnectionProperties {
         }
     }
 
+    private static class BatchFlushRows
+            extends AbstractConnectionProperty<Integer> {
+        public BatchFlushRows() {
+            super("batch_flush_rows", Optional.of("0"), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
+        }
+    }
+
+    private static class BatchFlushBytes
+            extends AbstractConnectionProperty<Integer> {
+        public BatchFlushBytes() {
+            super("batch_flush_bytes", Optional.of("0"), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
+        }
+    }
+
+    private static class BatchUploadParallelism
+            extends AbstractConnectionProperty<Integer> {
+        public BatchUploadParallelism() {
+            super("batch_upload_parallelism", Optional.of("1"), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
+        }
+    }
+
+    private static class BatchUploadFormatProperty
+            extends AbstractConnectionProperty<String> {
+        public BatchUploadFormatProperty() {
+            super("batch_upload_format", Optional.of("csv"), NOT_REQUIRED, ALLOWED,
+                    BatchUploadFormatProperty::normalizeBatchUploadFormat,
+                    new String[]{"csv", "parquet"},
+                    null);
+        }
+
+        private static String normalizeBatchUploadFormat(String value) {
+            String normalized = value.trim().toLowerCase(Locale.ENGLISH);
+            if ("csv".equals(normalized) || "parquet".equals(normalized)) {
+                return normalized;
+            }
+            throw new IllegalArgumentException("Unsupported batch upload format: " + value);
+        }
+    }
+
+    private static class UploadCompressionProperty
+            extends AbstractConnectionProperty<String> {
+        public UploadCompressionProperty() {
+            super("upload_compression", Optional.of("none"), NOT_REQUIRED, ALLOWED,
+                    UploadCompressionProperty::normalizeUploadCompression,
+                    new String[]{"none", "gzip", "zstd"},
+                    null);
+        }
+
+        private static String normalizeUploadCompression(String value) {
+            String normalized = value.trim().toLowerCase(Locale.ENGLISH);
+            if ("none".equals(normalized) || "gzip".equals(normalized) || "zstd".equals(normalized)) {
+                return normalized;
+            }
+            throw new IllegalArgumentException("Unsupported upload compression: " + value);
+        }
+    }
+
+    private static class UploadCompressionThreads
+            extends AbstractConnectionProperty<Integer> {
+        public UploadCompressionThreads() {
+            super("upload_compression_threads", Optional.of("1"), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
+        }
+    }
+
+    private static class UploadPartSize
+            extends AbstractConnectionProperty<Integer> {
+        public UploadPartSize() {
+            super("upload_part_size", Optional.of(String.valueOf(64 << 20)), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
+        }
+    }
+
+    private static class UploadParallelism
+            extends AbstractConnectionProperty<Integer> {
+        public UploadParallelism() {
+            super("upload_parallelism", Optional.of("4"), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
+        }
+    }
+
+    private static class DownloadParallelism
+            extends AbstractConnectionProperty<Integer> {
+        public DownloadParallelism() {
+            super("download_parallelism", Optional.of("1"), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
+        }
+    }
+
+    private static class DownloadRangeSize
+            extends AbstractConnectionProperty<Integer> {
+        public DownloadRangeSize() {
+            super("download_range_size", Optional.of(String.valueOf(16 << 20)), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
+        }
+    }
+
+    private static class PresignMaxIdleConnections
+            extends AbstractConnectionProperty<Integer> {
+        public PresignMaxIdleConnections() {
+            super("presign_max_idle_connections", Optional.of(String.valueOf(PresignClientConfig.DEFAULT_MAX_IDLE_CONNECTIONS)), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
+        }
+    }
+
+    private static class PresignKeepAlive
+            extends AbstractConnectionProperty<Integer> {
+        public PresignKeepAlive() {
+            super("presign_keep_alive", Optional.of(String.valueOf(PresignClientConfig.DEFAULT_KEEP_ALIVE_SECS)), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
+        }
+    }
+
+    private static class PresignHttp2
+            extends AbstractConnectionProperty<Boolean> {
+        public PresignHttp2() {
+            super("presign_http2", Optional.of("false"), NOT_REQUIRED, ALLOWED, BOOLEAN_CONVERTER);
+        }
+    }
+
+    private static class PresignConnectionTimeout
+            extends AbstractConnectionProperty<Integer> {
+        public PresignConnectionTimeout() {
+            super("presign_connection_timeout", Optional.of(String.valueOf(PresignClientConfig.DEFAULT_CONNECT_TIMEOUT_SECS)), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
+        }
+    }
+
+    private static class PresignSocketTimeout
+            extends AbstractConnectionProperty<Integer> {
+        public PresignSocketTimeout() {
+            super("presign_socket_timeout", Optional.of(String.valueOf(PresignClientConfig.DEFAULT_SOCKET_TIMEOUT_SECS)), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
+        }
+    }
+
+    private static class PresignCacheTtl
+            extends AbstractConnectionProperty<Integer> {
+        public PresignCacheTtl() {
+            super("presign_cache_ttl", Optional.of("300"), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
+        }
+    }
+
+    private static class HttpMaxIdleConnections
+            extends AbstractConnectionProperty<Integer> {
+        public HttpMaxIdleConnections() {
+            super("http_max_idle_connections", Optional.of(String.valueOf(HttpClientConfig.DEFAULT_MAX_IDLE_CONNECTIONS)), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
+        }
+    }
+
+    private static class HttpKeepAlive
+            extends AbstractConnectionProperty<Integer> {
+        public HttpKeepAlive() {
+            super("http_keep_alive", Optional.of(String.valueOf(HttpClientConfig.DEFAULT_KEEP_ALIVE_SECS)), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
+        }
+    }
+
+    private static class HttpMaxRequests
+            extends AbstractConnectionProperty<Integer> {
+        public HttpMaxRequests() {
+            super("http_max_requests", Optional.of(String.valueOf(HttpClientConfig.DEFAULT_MAX_REQUESTS)), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
+        }
+    }
+
+    private static class HttpMaxRequestsPerHost
+            extends AbstractConnectionProperty<Integer> {
+        public HttpMaxRequestsPerHost() {
+            super("http_max_requests_per_host", Optional.of(String.valueOf(HttpClientConfig.DEFAULT_MAX_REQUESTS_PER_HOST)), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
+        }
+    }
+
+    private static class HttpProtocolProperty
+            extends AbstractConnectionProperty<String> {
+        public HttpProtocolProperty() {
+            super("http_protocol", Optional.of("h2"), NOT_REQUIRED, ALLOWED,
+                    HttpProtocolProperty::normalizeHttpProtocol,
+                    new String[]{"http1", "h2", "h2c"},
+                    null);
+        }
+
+        private static String normalizeHttpProtocol(String value) {
+            String normalized = value.trim().toLowerCase(Locale.ENGLISH);
+            switch (normalized) {
+                case "http1":
+                case "h2":
+                case "h2c":
+                    return normalized;
+                default:
+                    throw new IllegalArgumentException("Unsupported http protocol: " + value);
+            }
+        }
+    }
+
+    private static class RetryMaxAttempts
+            extends AbstractConnectionProperty<Integer> {
+        public RetryMaxAttempts() {
+            super("retry_max_attempts", Optional.of(String.valueOf(RetryConfig.DEFAULT_MAX_ATTEMPTS)), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
+        }
+    }
+
+    private static class RetryBackoff
+            extends AbstractConnectionProperty<Integer> {
+        public RetryBackoff() {
+            super("retry_backoff", Optional.of(String.valueOf(RetryConfig.DEFAULT_BACKOFF_MILLIS)), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
+        }
+    }
+
+    private static class RetryMaxBackoff
+            extends AbstractConnectionProperty<Integer> {
+        public RetryMaxBackoff() {
+            super("retry_max_backoff", Optional.of(String.valueOf(RetryConfig.DEFAULT_MAX_BACKOFF_MILLIS)), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
+        }
+    }
+
+    private static class RetryBudget
+            extends AbstractConnectionProperty<Integer> {
+        public RetryBudget() {
+            super("retry_budget", Optional.of(String.valueOf(RetryConfig.DEFAULT_RETRY_BUDGET)), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
+        }
+    }
+
+    private static class CircuitBreakerThreshold
+            extends AbstractConnectionProperty<Integer> {
+        public CircuitBreakerThreshold() {
+            super("circuit_breaker_threshold", Optional.of(String.valueOf(RetryConfig.DEFAULT_CIRCUIT_BREAKER_THRESHOLD)), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
+        }
+    }
+
+    private static class CircuitBreakerOpenTime
+            extends AbstractConnectionProperty<Integer> {
+        public CircuitBreakerOpenTime() {
+            super("circuit_breaker_open_time", Optional.of(String.valueOf(RetryConfig.DEFAULT_CIRCUIT_BREAKER_OPEN_MILLIS)), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
+        }
+    }
+
+    private static class PageHedgeDelay
+            extends AbstractConnectionProperty<Integer> {
+        public PageHedgeDelay() {
+            super("page_hedge_delay", Optional.of("0"), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
+        }
+    }
+
+    private static class PageHedgePercentile
+            extends AbstractConnectionProperty<Integer> {
+        public PageHedgePercentile() {
+            super("page_hedge_percentile", Optional.of("0"), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
+        }
+    }
+
+    private static class MaxConcurrentQueries
+            extends AbstractConnectionProperty<Integer> {
+        public MaxConcurrentQueries() {
+            super("max_concurrent_queries", Optional.of("0"), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
+        }
+    }
+
+    private static class QueryQueueSize
+            extends AbstractConnectionProperty<Integer> {
+        public QueryQueueSize() {
+            super("query_queue_size", Optional.of(String.valueOf(ConcurrencyLimitConfig.DEFAULT_QUEUE_SIZE)), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
+        }
+    }
+
+    private static class QueryQueueTimeout
+            extends AbstractConnectionProperty<Integer> {
+        public QueryQueueTimeout() {
+            super("query_queue_timeout", Optional.of(String.valueOf(ConcurrencyLimitConfig.DEFAULT_QUEUE_TIMEOUT_MILLIS)), NOT_REQUIRED, ALLOWED, INTEGER_CONVERTER);
+        }
+    }
+
+    private static class AdaptiveConcurrency
+            extends AbstractConnectionProperty<Boolean> {
+        public AdaptiveConcurrency() {
+            super("adaptive_concurrency", Optional.of("false"), NOT_REQUIRED, ALLOWED, BOOLEAN_CONVERTER);
+        }
+    }
+
+    private static class QueryRequestCompression
+            extends AbstractConnectionProperty<String> {
+        public QueryRequestCompression() {
+            super("query_request_compression", Optional.of("none"), NOT_REQUIRED, ALLOWED,
+                    value -> normalizeHttpCompression("query request", value),
+                    new String[]{"none", "gzip", "zstd"},
+                    null);
+        }
+    }
+
+    private static class QueryResponseCompression
+            extends AbstractConnectionProperty<String> {
+        public QueryResponseCompression() {
+            super("query_response_compression", Optional.of("gzip"), NOT_REQUIRED, ALLOWED,
+                    value -> normalizeHttpCompression("query response", value),
+                    new String[]{"none", "gzip", "zstd"},
+                    null);
+        }
+    }
+
+    private static String normalizeHttpCompression(String what, String value) {
+        String normalized = value.trim().toLowerCase(Locale.ENGLISH);
+        if ("none".equals(normalized) || "gzip".equals(normalized) || "zstd".equals(normalized)) {
+            return normalized;
+        }
+        throw new IllegalArgumentException("Unsupported " + what + " compression: " + value);
+    }
 
     static {
         ImmutableMap.Builder<String, String> defaults = ImmutableMap.builder();
@@ -4,7 +4,11 @@ import com.databend.jdbc.annotation.NotImplemented;
 import com.databend.jdbc.cloud.DatabendCopyParams;
 import com.databend.jdbc.exception.DatabendFailedToPingException;
 import com.databend.jdbc.exception.DatabendSQLException;
+import com.databend.jdbc.internal.DecompressingInputStream;
 import com.databend.jdbc.internal.QueryResultFormat;
+import com.databend.jdbc.internal.BatchUploadFormat;
+import com.databend.jdbc.internal.UploadCompression;
+import com.databend.jdbc.internal.binding.StatementUtil;
 import com.databend.jdbc.internal.query.QueryResultPages;
 import com.databend.jdbc.internal.query.QueryResults;
 import com.databend.jdbc.internal.query.StageAttachment;
@@ -17,8 +21,11 @@ import com.vdurmont.semver4j.Semver;
 import okhttp3.*;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.sql.Array;
 import java.sql.Blob;
 import java.sql.CallableStatement;
@@ -65,6 +72,8 @@ public class DatabendConnection implements Connection, DatabendConnectionExtensi
     private final ConcurrentHashMap<DatabendStatement, Boolean> statements = new ConcurrentHashMap<>();
     private final DatabendDriverUri driverUri;
     private final DatabendSessionHandle sessionHandle;
+    // what statements and metadata return as their connection, the handle of a pool when pooled
+    private volatile Connection facade = this;
 
     private void initializeFileLogHandler() {
         if (this.debug()) {
@@ -99,7 +108,7 @@ public class DatabendConnection implements Connection, DatabendConnectionExtensi
         this.sessionHandle = new DatabendSessionHandle(httpClient, config, this::queryLivenesses);
 
         initializeFileLogHandler();
-        this.sessionHandle.login();
+        this.sessionHandle.open();
         this.sessionHandle.initializePresign(this.driverUri.getPresign(), this.driverUri.presignedUrlDisabled());
     }
 
@@ -190,7 +199,7 @@ public class DatabendConnection implements Connection, DatabendConnectionExtensi
             throws SQLException {
         checkOpen();
         try {
-            this.startQuery("commit");
+            runToEnd(this.startQuery("commit"));
         } catch (SQLException e) {
             throw new SQLException("Failed to commit", e);
         }
@@ -218,7 +227,7 @@ public class DatabendConnection implements Connection, DatabendConnectionExtensi
             throws SQLException {
         checkOpen();
         try {
-            this.startQuery("rollback");
+            runToEnd(this.startQuery("rollback"));
         } catch (SQLException e) {
             throw new SQLException("Failed to rollback", e);
         }
@@ -544,6 +553,31 @@ public class DatabendConnection implements Connection, DatabendConnectionExtensi
         return this.driverUri.binaryFormat();
     }
 
+    int batchFlushRows() {
+        return this.driverUri.getBatchFlushRows();
+    }
+
+    int batchFlushBytes() {
+        return this.driverUri.getBatchFlushBytes();
+    }
+
+    int batchUploadParallelism() {
+        return this.driverUri.getBatchUploadParallelism();
+    }
+
+    DatabendSessionHandle.FileUpload prepareFileUpload(String stageName, String destPrefix, String destFileName)
+            throws SQLException {
+        return this.sessionHandle.prepareFileUpload(stageName, destPrefix, destFileName);
+    }
+
+    BatchUploadFormat batchUploadFormat() {
+        return this.driverUri.getBatchUploadFormat();
+    }
+
+    UploadCompression uploadCompression() {
+        return this.driverUri.getUploadCompression();
+    }
+
     public URI getURI() {
         return this.sessionHandle.getBaseUri();
     }
@@ -558,6 +592,15 @@ public class DatabendConnection implements Connection, DatabendConnectionExtensi
             throw new DatabendFailedToPingException(String.format("failed to ping databend server: %s", e.getMessage()));
         }
     }
+    // the pages of a query that no result set reads, closed once the query finished
+    private static void runToEnd(QueryResultPages queryPages) {
+        try (QueryResultPages pages = queryPages) {
+            while (pages.advance()) {
+                // the statement only changes the session
+            }
+        }
+    }
+
     QueryResultPages startQuery(String sql) throws SQLException {
         return startQuery(sql, null, null);
     }
@@ -610,16 +653,54 @@ public class DatabendConnection implements Connection, DatabendConnectionExtensi
         this.sessionHandle.uploadStream(stageName, destPrefix, inputStream, destFileName, fileSize, compressData);
     }
 
+    @Override
+    public void uploadFile(String stageName, String destPrefix, Path file, String destFileName, boolean compressData)
+            throws SQLException {
+        this.sessionHandle.uploadFile(stageName, destPrefix, file, destFileName, compressData);
+    }
+
+    @Override
+    public String uploadFileInParts(String stageName, String destPrefix, Path file, String destFileName)
+            throws SQLException {
+        return this.sessionHandle.uploadFileInParts(stageName, destPrefix, file, destFileName);
+    }
+
+    @Override
+    public String uploadFileInParts(String stageName, String destPrefix, Path file, String destFileName, Path checkpoint)
+            throws SQLException {
+        return this.sessionHandle.uploadFileInParts(stageName, destPrefix, file, destFileName,
+                requireNonNull(checkpoint, "checkpoint is null"));
+    }
+
     @Override
     public InputStream downloadStream(String stageName, String path)
             throws SQLException {
         return this.sessionHandle.downloadStream(stageName, path);
     }
 
+    @Override
+    public long downloadFile(String stageName, String sourceFileName, FileChannel target)
+            throws SQLException {
+        return this.sessionHandle.downloadFile(stageName, sourceFileName, target);
+    }
+
     @Override
     public InputStream downloadStream(String stageName, String path, boolean decompress)
             throws SQLException {
-        return downloadStream(stageName, path);
+        InputStream inputStream = downloadStream(stageName, path);
+        if (!decompress) {
+            return inputStream;
+        }
+        try {
+            return DecompressingInputStream.open(inputStream);
+        } catch (IOException e) {
+            try {
+                inputStream.close();
+            } catch (IOException closeFailure) {
+                e.addSuppressed(closeFailure);
+            }
+            throw new SQLException("Failed to read download stream of " + path, e);
+        }
     }
 
     @Override
@@ -656,6 +737,95 @@ public class DatabendConnection implements Connection, DatabendConnectionExtensi
         }
     }
 
+    @Override
+    public StreamingLoadWriter openStreamingLoad(String sql) throws SQLException {
+        if (!this.sessionHandle.supportsStreamingLoad()) {
+            throw new SQLException("please upgrade databend-query to >1.2.781 to use openStreamingLoad, current version=" + this.sessionHandle.getServerVersion());
+        }
+        if (!sql.contains("@_databend_load")) {
+            throw new SQLException("invalid sql: must contain @_databend_load when used in openStreamingLoad ");
+        }
+        return new StreamingLoadWriter(this.sessionHandle, qualifyStreamingLoadTarget(sql));
+    }
+
+    @Override
+    public BulkLoadResult loadFilesToTable(String sql, List<UploadFile> files) throws SQLException {
+        requireNonNull(files, "files is null");
+        if (!sql.contains("@_databend_load")) {
+            throw new SQLException("invalid sql: must contain @_databend_load when used in loadFilesToTable ");
+        }
+        if (files.isEmpty()) {
+            throw new SQLException("no files to load");
+        }
+        Set<String> names = new HashSet<>();
+        for (UploadFile file : files) {
+            if (!names.add(file.getName())) {
+                throw new SQLException("duplicate file name in loadFilesToTable: " + file.getName());
+            }
+        }
+
+        Instant now = Instant.now();
+        long nanoTimestamp = now.getEpochSecond() * 1_000_000_000 + now.getNano();
+        String prefix = "_databend_load/" + nanoTimestamp;
+        String location = "@~/" + prefix + "/";
+        List<SQLException> uploadErrors;
+        Map<String, BulkLoadResult.FileStatus> loaded = new HashMap<>();
+        try {
+            uploadErrors = this.sessionHandle.uploadFiles("~", prefix, files);
+            List<String> uploaded = new ArrayList<>();
+            for (int i = 0; i < files.size(); i++) {
+                if (uploadErrors.get(i) == null) {
+                    uploaded.add(files.get(i).getName());
+                }
+            }
+            if (!uploaded.isEmpty()) {
+                try (Statement statement = createStatement()) {
+                    if (statement.execute(bulkLoadSql(sql, location, uploaded))) {
+                        try (ResultSet rs = statement.getResultSet()) {
+                            // File, Rows_loaded, Errors_seen, First_error, First_error_line
+                            while (rs.next()) {
+                                String file = rs.getString(1);
+                                String name = file.substring(file.lastIndexOf('/') + 1);
+                                loaded.put(name, new BulkLoadResult.FileStatus(
+                                        name, null, true, rs.getLong(2), rs.getLong(3), rs.getString(4)));
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            removeStageFiles(location);
+        }
+
+        List<BulkLoadResult.FileStatus> statuses = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            String name = files.get(i).getName();
+            BulkLoadResult.FileStatus status = loaded.get(name);
+            if (status == null) {
+                status = new BulkLoadResult.FileStatus(name, uploadErrors.get(i), false, 0, 0, null);
+            }
+            statuses.add(status);
+        }
+        return new BulkLoadResult(location, statuses);
+    }
+
+    static String bulkLoadSql(String sql, String location, List<String> fileNames) {
+        StringJoiner files = new StringJoiner(", ", " FILES = (", ")");
+        for (String fileName : fileNames) {
+            files.add(StatementUtil.quoteStringLiteral(fileName));
+        }
+        return sql.replace("@_databend_load", location + files);
+    }
+
+    // the files stay in the user stage when this fails, which does not fail the load
+    private void removeStageFiles(String location) {
+        try (Statement statement = createStatement()) {
+            statement.execute("REMOVE " + location);
+        } catch (SQLException e) {
+            logger.warning("Failed to remove " + location + ": " + e.getMessage());
+        }
+    }
+
     private QueryResults executeControlQuery(String sql) throws SQLException {
         QueryResultPages queryPages = startQuery(sql, null, QueryResultFormat.JSON);
         try {
@@ -687,6 +857,36 @@ public class DatabendConnection implements Connection, DatabendConnectionExtensi
         return livenesses;
     }
 
+    /**
+     * The connection that statements and metadata of this connection hand out, so that a caller of
+     * a pool never gets hold of the session itself.
+     */
+    Connection getFacade() {
+        return facade;
+    }
+
+    void setFacade(Connection facade) {
+        this.facade = facade;
+    }
+
+    /**
+     * Closes the statements, rolls back an open transaction and puts the session back to the
+     * state it was opened with, before the connection is handed out again by a pool.
+     */
+    void resetSession() throws SQLException {
+        checkOpen();
+        for (Statement stmt : new ArrayList<>(statements.keySet())) {
+            stmt.close();
+        }
+        SessionState currentSession = this.sessionHandle.getSession();
+        if (currentSession != null && currentSession.inActiveTransaction()) {
+            rollback();
+        }
+        this.sessionHandle.resetSession();
+        this.autoCommit.set(true);
+        this.schema.set(this.driverUri.getDatabase());
+    }
+
     boolean isHeartbeatStopped() {
         return this.sessionHandle.isHeartbeatStopped();
     }
@@ -1,7 +1,10 @@
 package com.databend.jdbc;
 
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.sql.SQLException;
+import java.util.List;
 
 /**
  * The SnowflakeConnection interface contains Snowflake-specific methods.
@@ -51,6 +54,59 @@ public interface DatabendConnectionExtension {
      */
     void uploadStream(InputStream inputStream, String stageName, String destPrefix, String destFileName, long fileSize, boolean compressData) throws SQLException;
 
+    /**
+     * Upload a local file to the databend internal stage as one file with no split. Unlike
+     * {@link #uploadStream(InputStream, String, String, String, long, boolean)}, the file is sent straight
+     * from a file channel and the upload can be retried after transient failures.
+     *
+     * @param stageName the stage which receive uploaded file
+     * @param destPrefix the prefix of the file name in the stage
+     * @param file the local file to upload
+     * @param destFileName the destination file name in the stage
+     * @param compressData whether to compress the data
+     * @throws SQLException failed to upload the file
+     */
+    void uploadFile(String stageName, String destPrefix, Path file, String destFileName, boolean compressData) throws SQLException;
+
+    /**
+     * Upload a large newline-delimited file (e.g. uncompressed CSV, TSV or NDJSON) to the databend internal
+     * stage as several part files that are uploaded in parallel. Every part is cut at a line break, so it holds
+     * whole records; unless {@code destFileName} ends with {@code .tsv}, {@code .ndjson}, {@code .jsonl} or
+     * {@code .json} the line break must lie outside of double quotes, which keeps CSV records with quoted
+     * multi-line fields together. Each part
+     * is loaded as a file of its own, so the file must not have a header row, which {@code skip_header} would
+     * skip in every part. Failed parts are retried on their own. The parts are only kept when all of
+     * them were uploaded, the returned directory can be used as the location of a COPY INTO.
+     * Part size and parallelism are set by the {@code upload_part_size} and {@code upload_parallelism}
+     * connection properties.
+     *
+     * @param stageName the stage which receive uploaded file
+     * @param destPrefix the prefix of the file name in the stage
+     * @param file the local file to upload
+     * @param destFileName the name of the directory holding the parts in the stage
+     * @return the stage location of the directory holding the parts, e.g. {@code @~/prefix/data.csv/}
+     * @throws SQLException failed to upload the file
+     */
+    String uploadFileInParts(String stageName, String destPrefix, Path file, String destFileName) throws SQLException;
+
+    /**
+     * Same as {@link #uploadFileInParts(String, String, Path, String)}, but resumable: every uploaded part is
+     * recorded in the {@code checkpoint} file. When the upload fails, the parts already in the stage are kept
+     * and calling this method again with the same arguments and checkpoint only uploads the missing parts, also
+     * from another process. The checkpoint is discarded when the file changed in between, and deleted once the
+     * upload is complete.
+     *
+     * @param stageName the stage which receive uploaded file
+     * @param destPrefix the prefix of the file name in the stage
+     * @param file the local file to upload
+     * @param destFileName the name of the directory holding the parts in the stage
+     * @param checkpoint the local file recording the uploaded parts
+     * @return the stage location of the directory holding the parts, e.g. {@code @~/prefix/data.csv/}
+     * @throws SQLException failed to upload the file, the progress so far is kept in the checkpoint
+     */
+    String uploadFileInParts(String stageName, String destPrefix, Path file, String destFileName, Path checkpoint)
+            throws SQLException;
+
     /**
      * Download a file from the databend internal stage, the data would be downloaded as one file with no split.
      *
@@ -61,6 +117,34 @@ public interface DatabendConnectionExtension {
      */
     InputStream downloadStream(String stageName, String sourceFileName) throws SQLException;
 
+    /**
+     * Download a file from the databend internal stage, decompressing it on the fly when {@code decompress}
+     * is set. The compression is detected from the first bytes of the file: gzip, zstd and lz4 (frame format)
+     * are supported, other files are returned as they are. Decompression runs on a background thread, so it
+     * overlaps with the download and with the caller reading the stream.
+     *
+     * @param stageName the stage which contains the file
+     * @param sourceFileName the file name in the stage
+     * @param decompress whether to decompress the data
+     * @return the input stream of the file
+     * @throws SQLException failed to download input stream
+     */
+    InputStream downloadStream(String stageName, String sourceFileName, boolean decompress) throws SQLException;
+
+    /**
+     * Download a file from the databend internal stage into a local file channel. The file is fetched with
+     * concurrent range requests, see the {@code download_parallelism} and {@code download_range_size}
+     * connection properties, and written at the current position of the channel, which is moved past
+     * the downloaded data.
+     *
+     * @param stageName the stage which contains the file
+     * @param sourceFileName the file name in the stage
+     * @param target the channel receiving the file content
+     * @return the number of bytes downloaded
+     * @throws SQLException failed to download the file
+     */
+    long downloadFile(String stageName, String sourceFileName, FileChannel target) throws SQLException;
+
     /**
      * Loads data from an input stream directly into a target Databend table using the specified SQL command.
      * Supports two loading strategies via {@link LoadMethod}.
@@ -74,4 +158,34 @@ public interface DatabendConnectionExtension {
      * @throws SQLException If the load operation fails (e.g., invalid SQL, stream errors, or data format issues)
      */
     int loadStreamToTable(String sql, InputStream inputStream, long fileSize, LoadMethod loadMethod) throws SQLException;
+
+    /**
+     * Opens a streaming load whose data is written while it is sent, for producers that generate data on the
+     * fly and do not know its size up front. Writes block while the server falls behind. Either write raw
+     * bytes in the format named by the sql, or CSV rows with {@link StreamingLoadWriter#writeRow(Object...)}.
+     * {@link StreamingLoadWriter#finish()} completes the load and returns the number of rows loaded; closing
+     * the writer without finishing it aborts the load.
+     *
+     * @param sql SQL command with Databend's load syntax:
+     *            {@code INSERT INTO <table> [(<columns>)] FROM @_databend_load [file_format=(...)]}
+     * @return the writer receiving the data to load
+     * @throws SQLException If the server does not support streaming load or the sql is invalid
+     */
+    StreamingLoadWriter openStreamingLoad(String sql) throws SQLException;
+
+    /**
+     * Uploads a set of files to a new directory of the user stage and loads all of them with a single
+     * {@code COPY INTO} statement. Up to {@code upload_parallelism} files are uploaded concurrently and
+     * their presigned requests are prepared in one batch. Files that fail to upload are reported in the
+     * result and left out of the COPY; a failing COPY raises an exception. The stage directory is
+     * removed afterwards, whether the COPY succeeded or not.
+     *
+     * @param sql   COPY command reading from {@code @_databend_load}, which is replaced by the stage
+     *              directory followed by the list of uploaded files, e.g.
+     *              {@code COPY INTO <table> FROM @_databend_load FILE_FORMAT = (type = CSV) ON_ERROR = continue}
+     * @param files the files to upload, their names must be unique
+     * @return the stage directory and the upload and load status of every file
+     * @throws SQLException If the sql is invalid or the COPY fails
+     */
+    BulkLoadResult loadFilesToTable(String sql, List<UploadFile> files) throws SQLException;
 }
@@ -0,0 +1,334 @@
+package com.databend.jdbc;
+
+import javax.sql.ConnectionPoolDataSource;
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A {@link DataSource} that pools Databend sessions, and a {@link ConnectionPoolDataSource} for
+ * application servers that run their own pool.
+ * <p>
+ * {@link #getConnection()} hands out a logged in session from the pool of this data source and only
+ * logs in when no idle session is left, so borrowing a connection usually takes microseconds instead
+ * of a round trip to {@code /v1/session/login}. Closing the connection returns the session: its
+ * statements are closed, an open transaction is rolled back and the database and settings go back to
+ * the ones of the JDBC URL. The pool is started by the first {@link #getConnection()}, the setters
+ * must be called before that.
+ * <pre>{@code
+ * DatabendDataSource dataSource = new DatabendDataSource();
+ * dataSource.setUrl("jdbc:databend://localhost:8000/default");
+ * dataSource.setUser("databend");
+ * dataSource.setPassword("databend");
+ * dataSource.setMaxTotal(20);
+ * try (Connection connection = dataSource.getConnection()) {
+ *     ...
+ * }
+ * }</pre>
+ */
+public class DatabendDataSource implements DataSource, ConnectionPoolDataSource, Closeable {
+    private static final NonRegisteringDatabendDriver driver = new NonRegisteringDatabendDriver();
+
+    private String url;
+    private String user;
+    private String password;
+    private Properties properties = new Properties();
+    private int minIdle;
+    private int maxIdle = 8;
+    private int maxTotal = 8;
+    private long maxWaitMillis = 30_000;
+    private long validationIntervalMillis = 5_000;
+    private long idleTimeoutMillis = 600_000;
+    private int loginTimeout;
+    private PrintWriter logWriter;
+    private volatile ConnectionPool pool;
+
+    public String getUrl() {
+        return url;
+    }
+
+    public void setUrl(String url) {
+        checkNotStarted();
+        this.url = url;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public void setUser(String user) {
+        checkNotStarted();
+        this.user = user;
+    }
+
+    public void setPassword(String password) {
+        checkNotStarted();
+        this.password = password;
+    }
+
+    /**
+     * Connection properties, as given to {@link java.sql.DriverManager#getConnection(String, Properties)}.
+     */
+    public void setProperties(Properties properties) {
+        checkNotStarted();
+        this.properties = new Properties();
+        this.properties.putAll(properties);
+    }
+
+    public int getMinIdle() {
+        return minIdle;
+    }
+
+    /**
+     * Sessions kept logged in while nobody uses them, opened in the background. Default 0.
+     */
+    public void setMinIdle(int minIdle) {
+        checkNotStarted();
+        checkArgument(minIdle >= 0, "minIdle must not be negative");
+        this.minIdle = minIdle;
+    }
+
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    /**
+     * Idle sessions above this are logged out when they are returned. Default 8.
+     */
+    public void setMaxIdle(int maxIdle) {
+        checkNotStarted();
+        checkArgument(maxIdle >= 0, "maxIdle must not be negative");
+        this.maxIdle = maxIdle;
+    }
+
+    public int getMaxTotal() {
+        return maxTotal;
+    }
+
+    /**
+     * Sessions of the pool, in use or idle. Default 8.
+     */
+    public void setMaxTotal(int maxTotal) {
+        checkNotStarted();
+        checkArgument(maxTotal > 0, "maxTotal must be positive");
+        this.maxTotal = maxTotal;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    /**
+     * How long {@link #getConnection()} waits when {@code maxTotal} connections are in use. Default 30 seconds.
+     */
+    public void setMaxWaitMillis(long maxWaitMillis) {
+        checkNotStarted();
+        checkArgument(maxWaitMillis >= 0, "maxWaitMillis must not be negative");
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    public long getValidationIntervalMillis() {
+        return validationIntervalMillis;
+    }
+
+    /**
+     * A session that was idle for longer than this is checked with {@code select 1} before it is
+     * handed out. Default 5 seconds.
+     */
+    public void setValidationIntervalMillis(long validationIntervalMillis) {
+        checkNotStarted();
+        checkArgument(validationIntervalMillis >= 0, "validationIntervalMillis must not be negative");
+        this.validationIntervalMillis = validationIntervalMillis;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * Idle sessions above {@code minIdle} are logged out after this. Default 10 minutes.
+     */
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        checkNotStarted();
+        checkArgument(idleTimeoutMillis > 0, "idleTimeoutMillis must be positive");
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Borrows a connection from the pool, closing it returns it.
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        return pool().borrow();
+    }
+
+    /**
+     * Opens a connection outside of the pool, the pool only holds sessions of the configured user.
+     */
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return connect(username, password);
+    }
+
+    /**
+     * Logs in a new session that is not part of the pool of this data source.
+     */
+    @Override
+    public DatabendPooledConnection getPooledConnection() throws SQLException {
+        return new DatabendPooledConnection(connect(user, password));
+    }
+
+    @Override
+    public DatabendPooledConnection getPooledConnection(String user, String password) throws SQLException {
+        return new DatabendPooledConnection(connect(user, password));
+    }
+
+    private DatabendConnection connect(String user, String password) throws SQLException {
+        if (url == null) {
+            throw new SQLException("url of the data source is not set");
+        }
+        Properties info = new Properties();
+        info.putAll(properties);
+        if (user != null) {
+            info.setProperty("user", user);
+        }
+        if (password != null) {
+            info.setProperty("password", password);
+        }
+        Connection connection = driver.connect(url, info);
+        if (connection == null) {
+            throw new SQLException("Invalid Databend JDBC URL: " + url);
+        }
+        return (DatabendConnection) connection;
+    }
+
+    private ConnectionPool pool() {
+        ConnectionPool current = pool;
+        if (current == null) {
+            synchronized (this) {
+                current = pool;
+                if (current == null) {
+                    current = new ConnectionPool(this, minIdle, Math.max(maxIdle, minIdle), maxTotal, maxWaitMillis,
+                            validationIntervalMillis, idleTimeoutMillis);
+                    pool = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Logs out the idle sessions, connections in use are logged out when they are closed.
+     */
+    @Override
+    public synchronized void close() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    /**
+     * Connections handed out and not closed yet.
+     */
+    public int getActiveConnections() {
+        return pool == null ? 0 : pool.getActive();
+    }
+
+    public int getIdleConnections() {
+        return pool == null ? 0 : pool.getIdle();
+    }
+
+    /**
+     * Logged in sessions of the pool, in use or idle.
+     */
+    public int getTotalConnections() {
+        return pool == null ? 0 : pool.getTotal();
+    }
+
+    public int getThreadsAwaitingConnection() {
+        return pool == null ? 0 : pool.getWaiting();
+    }
+
+    public long getCreatedConnections() {
+        return pool == null ? 0 : pool.getCreated();
+    }
+
+    public long getDestroyedConnections() {
+        return pool == null ? 0 : pool.getDestroyed();
+    }
+
+    public long getBorrowCount() {
+        return pool == null ? 0 : pool.getBorrowed();
+    }
+
+    /**
+     * Calls of {@link #getConnection()} that gave up after {@code maxWaitMillis}.
+     */
+    public long getAcquireTimeouts() {
+        return pool == null ? 0 : pool.getAcquireTimeouts();
+    }
+
+    /**
+     * Idle sessions that were closed or failed {@code select 1} when they were about to be handed out.
+     */
+    public long getValidationFailures() {
+        return pool == null ? 0 : pool.getValidationFailures();
+    }
+
+    /**
+     * Mean time {@link #getConnection()} took, including waits and logins.
+     */
+    public long getAverageAcquireMicros() {
+        return pool == null ? 0 : pool.getAverageAcquireMicros();
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return logWriter;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+        this.logWriter = out;
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+        this.loginTimeout = seconds;
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return loginTimeout;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return Logger.getLogger(DatabendDataSource.class.getPackage().getName());
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("Cannot unwrap to " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+
+    private void checkNotStarted() {
+        checkState(pool == null, "the pool of the data source is already started");
+    }
+}
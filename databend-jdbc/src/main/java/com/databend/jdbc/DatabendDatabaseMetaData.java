@@ -1308,7 +1308,7 @@ public class DatabendDatabaseMetaData implements DatabaseMetaData {
     @Override
     public Connection getConnection()
             throws SQLException {
-        return connection;
+        return connection.getFacade();
     }
 
     @Override
@@ -1,11 +1,21 @@
 package com.databend.jdbc;
 
 import com.databend.jdbc.internal.QueryResultFormat;
+import com.databend.jdbc.internal.BatchUploadFormat;
+import com.databend.jdbc.internal.UploadCompression;
+import com.databend.jdbc.internal.http.HttpClientConfig;
+import com.databend.jdbc.internal.http.ParallelRangeDownloader;
+import com.databend.jdbc.internal.http.PresignClientConfig;
+import com.databend.jdbc.internal.http.RetryConfig;
+import com.databend.jdbc.internal.query.PageHedging;
+import com.databend.jdbc.internal.session.ConcurrencyLimitConfig;
 import com.databend.jdbc.internal.session.DatabendSessionCookieJar;
+import com.databend.jdbc.internal.session.LoadBalancingPolicy;
 import com.databend.jdbc.internal.session.SessionHandleConfig;
 import com.databend.jdbc.internal.session.SessionState;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
 import com.google.common.net.HostAndPort;
 import okhttp3.Cookie;
 import okhttp3.OkHttpClient;
@@ -15,7 +25,7 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
 import java.sql.SQLException;
-import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -47,6 +57,7 @@ final class DatabendDriverUri {
     private static final Logger logger = Logger.getLogger(DatabendDriverUri.class.getPackage().getName());
     private final Properties properties;
     private final URI uri;
+    private final List<URI> nodes;
     private final boolean useSecureConnection;
     private final boolean useVerify;
     private final boolean debug;
@@ -67,6 +78,31 @@ final class DatabendDriverUri {
     private final Integer waitTimeSecs;
     private final Integer maxRowsInBuffer;
     private final Integer maxRowsPerPage;
+    private final int batchFlushRows;
+    private final int batchFlushBytes;
+    private final int batchUploadParallelism;
+    private final BatchUploadFormat batchUploadFormat;
+    private final UploadCompression uploadCompression;
+    private final int uploadCompressionThreads;
+    private final int uploadPartSize;
+    private final int uploadParallelism;
+    private final int downloadParallelism;
+    private final int downloadRangeSize;
+    private final PresignClientConfig presignClientConfig;
+    private final int presignCacheTtl;
+    private final HttpClientConfig httpClientConfig;
+    private final RetryConfig retryConfig;
+    private final PageHedging pageHedging;
+    private final ConcurrencyLimitConfig concurrencyLimitConfig;
+    private final UploadCompression queryRequestCompression;
+    private final UploadCompression queryResponseCompression;
+    private final LoadBalancingPolicy loadBalancingPolicy;
+    private final int maxFailoverRetry;
+    private final int healthCheckInterval;
+    private final boolean autoDiscovery;
+    private final int nodeDiscoveryInterval;
+    private final boolean lazyLogin;
+    private final String principal;
 
     private final Map<String, String> sessionSettings;
 
@@ -74,9 +110,9 @@ final class DatabendDriverUri {
 
     private DatabendDriverUri(String url, Properties driverProperties)
             throws SQLException {
-        Map.Entry<URI, Map<String, String>> uriAndProperties = parse(url);
-        URI rawUri = uriAndProperties.getKey();
-        this.properties = mergeProperties(rawUri, uriAndProperties.getValue(), driverProperties);
+        ParsedUrl parsedUrl = parse(url);
+        URI rawUri = parsedUrl.uri;
+        this.properties = mergeProperties(rawUri, parsedUrl.uriProperties, driverProperties);
         this.useSecureConnection = SSL.getValue(properties).orElse(false);
         this.useVerify = USE_VERIFY.getValue(properties).orElse(false);
         this.debug = DEBUG.getValue(properties).orElse(false);
@@ -85,6 +121,7 @@ final class DatabendDriverUri {
         this.sslmode = SSL_MODE.getValue(properties).orElse("disable");
         this.tenant = TENANT.getValue(properties).orElse("");
         this.uri = canonicalizeUri(rawUri, this.useSecureConnection, this.sslmode);
+        this.nodes = canonicalizeNodes(this.uri, rawUri, parsedUrl.otherHosts, this.useSecureConnection, this.sslmode);
         this.database = DATABASE.getValue(properties).orElse("default");
         this.presignedUrlDisabled = PRESIGNED_URL_DISABLED.getRequiredValue(properties);
         this.presign = PRESIGN.getValue(properties).orElse("");
@@ -97,6 +134,112 @@ final class DatabendDriverUri {
         this.queryTimeout = QUERY_TIMEOUT.getRequiredValue(properties);
         this.maxRowsInBuffer = ConnectionProperties.MAX_ROWS_IN_BUFFER.getRequiredValue(properties);
         this.maxRowsPerPage = ConnectionProperties.MAX_ROWS_PER_PAGE.getRequiredValue(properties);
+        this.batchFlushRows = ConnectionProperties.BATCH_FLUSH_ROWS.getRequiredValue(properties);
+        this.batchFlushBytes = ConnectionProperties.BATCH_FLUSH_BYTES.getRequiredValue(properties);
+        this.batchUploadParallelism = ConnectionProperties.BATCH_UPLOAD_PARALLELISM.getRequiredValue(properties);
+        if (this.batchUploadParallelism < 1) {
+            throw new SQLException("batch_upload_parallelism must be positive: " + this.batchUploadParallelism);
+        }
+        this.batchUploadFormat = BatchUploadFormat.fromValue(ConnectionProperties.BATCH_UPLOAD_FORMAT.getRequiredValue(properties));
+        this.uploadCompression = UploadCompression.fromValue(ConnectionProperties.UPLOAD_COMPRESSION.getRequiredValue(properties));
+        this.uploadCompressionThreads = ConnectionProperties.UPLOAD_COMPRESSION_THREADS.getRequiredValue(properties);
+        if (this.uploadCompressionThreads < 1) {
+            throw new SQLException("upload_compression_threads must be positive: " + this.uploadCompressionThreads);
+        }
+        this.uploadPartSize = ConnectionProperties.UPLOAD_PART_SIZE.getRequiredValue(properties);
+        if (this.uploadPartSize < 1) {
+            throw new SQLException("upload_part_size must be positive: " + this.uploadPartSize);
+        }
+        this.uploadParallelism = ConnectionProperties.UPLOAD_PARALLELISM.getRequiredValue(properties);
+        if (this.uploadParallelism < 1) {
+            throw new SQLException("upload_parallelism must be positive: " + this.uploadParallelism);
+        }
+        this.downloadParallelism = ConnectionProperties.DOWNLOAD_PARALLELISM.getRequiredValue(properties);
+        if (this.downloadParallelism < 1) {
+            throw new SQLException("download_parallelism must be positive: " + this.downloadParallelism);
+        }
+        this.downloadRangeSize = ConnectionProperties.DOWNLOAD_RANGE_SIZE.getRequiredValue(properties);
+        if (this.downloadRangeSize < 1 || this.downloadRangeSize > ParallelRangeDownloader.MAX_RANGE_SIZE) {
+            throw new SQLException("download_range_size must be between 1 and " + ParallelRangeDownloader.MAX_RANGE_SIZE
+                    + ": " + this.downloadRangeSize);
+        }
+        try {
+            this.presignClientConfig = PresignClientConfig.builder()
+                    .setMaxIdleConnections(ConnectionProperties.PRESIGN_MAX_IDLE_CONNECTIONS.getRequiredValue(properties))
+                    .setKeepAliveSecs(ConnectionProperties.PRESIGN_KEEP_ALIVE.getRequiredValue(properties))
+                    .setHttp2(ConnectionProperties.PRESIGN_HTTP2.getRequiredValue(properties))
+                    .setConnectTimeoutSecs(ConnectionProperties.PRESIGN_CONNECTION_TIMEOUT.getRequiredValue(properties))
+                    .setSocketTimeoutSecs(ConnectionProperties.PRESIGN_SOCKET_TIMEOUT.getRequiredValue(properties))
+                    .build();
+        } catch (IllegalArgumentException e) {
+            throw new SQLException("Invalid presign client settings: " + e.getMessage(), e);
+        }
+        this.presignCacheTtl = ConnectionProperties.PRESIGN_CACHE_TTL.getRequiredValue(properties);
+        if (this.presignCacheTtl < 0) {
+            throw new SQLException("presign_cache_ttl must not be negative: " + this.presignCacheTtl);
+        }
+        try {
+            this.httpClientConfig = HttpClientConfig.builder()
+                    .setMaxIdleConnections(ConnectionProperties.HTTP_MAX_IDLE_CONNECTIONS.getRequiredValue(properties))
+                    .setKeepAliveSecs(ConnectionProperties.HTTP_KEEP_ALIVE.getRequiredValue(properties))
+                    .setProtocol(HttpClientConfig.HttpProtocol.fromValue(ConnectionProperties.HTTP_PROTOCOL.getRequiredValue(properties)))
+                    .setMaxRequests(ConnectionProperties.HTTP_MAX_REQUESTS.getRequiredValue(properties))
+                    .setMaxRequestsPerHost(ConnectionProperties.HTTP_MAX_REQUESTS_PER_HOST.getRequiredValue(properties))
+                    .build();
+        } catch (IllegalArgumentException e) {
+            throw new SQLException("Invalid http client settings: " + e.getMessage(), e);
+        }
+        if (this.httpClientConfig.getProtocol() == HttpClientConfig.HttpProtocol.H2C
+                && (this.useSecureConnection || ENABLE_STR.equals(this.sslmode))) {
+            throw new SQLException("http_protocol=h2c is HTTP/2 without TLS and cannot be used with ssl");
+        }
+        try {
+            this.retryConfig = RetryConfig.builder()
+                    .setMaxAttempts(ConnectionProperties.RETRY_MAX_ATTEMPTS.getRequiredValue(properties))
+                    .setBackoffMillis(ConnectionProperties.RETRY_BACKOFF.getRequiredValue(properties))
+                    .setMaxBackoffMillis(ConnectionProperties.RETRY_MAX_BACKOFF.getRequiredValue(properties))
+                    .setRetryBudget(ConnectionProperties.RETRY_BUDGET.getRequiredValue(properties))
+                    .setCircuitBreakerThreshold(ConnectionProperties.CIRCUIT_BREAKER_THRESHOLD.getRequiredValue(properties))
+                    .setCircuitBreakerOpenMillis(ConnectionProperties.CIRCUIT_BREAKER_OPEN_TIME.getRequiredValue(properties))
+                    .build();
+        } catch (IllegalArgumentException e) {
+            throw new SQLException("Invalid retry settings: " + e.getMessage(), e);
+        }
+        try {
+            this.pageHedging = new PageHedging(
+                    ConnectionProperties.PAGE_HEDGE_DELAY.getRequiredValue(properties),
+                    ConnectionProperties.PAGE_HEDGE_PERCENTILE.getRequiredValue(properties));
+        } catch (IllegalArgumentException e) {
+            throw new SQLException("Invalid page hedging settings: " + e.getMessage(), e);
+        }
+        try {
+            this.concurrencyLimitConfig = ConcurrencyLimitConfig.builder()
+                    .setMaxConcurrentQueries(ConnectionProperties.MAX_CONCURRENT_QUERIES.getRequiredValue(properties))
+                    .setQueueSize(ConnectionProperties.QUERY_QUEUE_SIZE.getRequiredValue(properties))
+                    .setQueueTimeoutMillis(ConnectionProperties.QUERY_QUEUE_TIMEOUT.getRequiredValue(properties))
+                    .setAdaptive(ConnectionProperties.ADAPTIVE_CONCURRENCY.getRequiredValue(properties))
+                    .build();
+        } catch (IllegalArgumentException e) {
+            throw new SQLException("Invalid concurrency limit settings: " + e.getMessage(), e);
+        }
+        this.queryRequestCompression = UploadCompression.fromValue(ConnectionProperties.QUERY_REQUEST_COMPRESSION.getRequiredValue(properties));
+        this.queryResponseCompression = UploadCompression.fromValue(ConnectionProperties.QUERY_RESPONSE_COMPRESSION.getRequiredValue(properties));
+        this.loadBalancingPolicy = LoadBalancingPolicy.fromValue(LOAD_BALANCING_POLICY.getRequiredValue(properties));
+        this.maxFailoverRetry = MAX_FAILOVER_RETRY.getRequiredValue(properties);
+        if (this.maxFailoverRetry < 0) {
+            throw new SQLException("max_failover_retry must not be negative: " + this.maxFailoverRetry);
+        }
+        this.healthCheckInterval = HEALTH_CHECK_INTERVAL.getRequiredValue(properties);
+        if (this.healthCheckInterval < 1) {
+            throw new SQLException("health_check_interval must be positive: " + this.healthCheckInterval);
+        }
+        this.autoDiscovery = AUTO_DISCOVERY.getRequiredValue(properties);
+        this.nodeDiscoveryInterval = NODE_DISCOVERY_INTERVAL.getRequiredValue(properties);
+        if (this.nodeDiscoveryInterval < 1) {
+            throw new SQLException("node_discovery_interval must be positive: " + this.nodeDiscoveryInterval);
+        }
+        this.lazyLogin = LAZY_LOGIN.getRequiredValue(properties);
+        this.principal = principal(properties);
         Integer socketTimeout = SOCKET_TIMEOUT.getRequiredValue(properties);
         if (socketTimeout <= this.waitTimeSecs + 10) {
             this.socketTimeout = this.waitTimeSecs + 10;
@@ -107,7 +250,7 @@ final class DatabendDriverUri {
         String settingsStr = SESSION_SETTINGS.getValue(properties).orElse("");
         this.sessionSettings = parseSessionSettings(settingsStr);
 
-        warnDeprecatedMultiHostProperties(this.properties);
+        warnDeprecatedProperties(this.properties);
 
     }
 
@@ -177,6 +320,26 @@ final class DatabendDriverUri {
         }
     }
 
+    private static List<URI> canonicalizeNodes(URI first, URI rawUri, List<String> otherHosts, boolean isSSLSecured,
+            String sslmode) throws SQLException {
+        List<URI> nodes = new ArrayList<>();
+        nodes.add(first);
+        for (String host : otherHosts) {
+            try {
+                URI hostUri = parseSingleUri(host);
+                if (isNullOrEmpty(hostUri.getHost())) {
+                    throw new SQLException("Invalid host " + host);
+                }
+                URI node = new URI(rawUri.getScheme(), null, hostUri.getHost(), hostUri.getPort(), rawUri.getPath(),
+                        rawUri.getQuery(), rawUri.getFragment());
+                nodes.add(canonicalizeUri(node, isSSLSecured, sslmode));
+            } catch (URISyntaxException e) {
+                throw new SQLException("Invalid host " + host, e);
+            }
+        }
+        return nodes;
+    }
+
     private static String tryParseUriUserPassword(String url, Map<String, String> properties) {
         int atPos = url.lastIndexOf('@');
         if (atPos > 0) {
@@ -223,7 +386,7 @@ final class DatabendDriverUri {
     }
 
     // needs to parse possible host, port, username, password, tenant, warehouse, database, etc.
-    private static Map.Entry<URI, Map<String, String>> parse(String url)
+    private static ParsedUrl parse(String url)
             throws SQLException {
         if (url == null) {
             throw new SQLException("URL is null");
@@ -236,7 +399,8 @@ final class DatabendDriverUri {
         Map<String, String> uriProperties = new LinkedHashMap<>();
         String raw = url.substring(pos + JDBC_URL_START.length());
         raw = tryParseUriUserPassword(raw, uriProperties);
-        ensureSingleHostAuthority(raw, url);
+        List<String> otherHosts = new ArrayList<>();
+        raw = splitHosts(raw, otherHosts, url);
 
         try {
             URI uri = parseSingleUri(raw);
@@ -253,7 +417,7 @@ final class DatabendDriverUri {
             }
 
             initDatabase(uri, uriProperties);
-            return new AbstractMap.SimpleImmutableEntry<>(uri, uriProperties);
+            return new ParsedUrl(uri, uriProperties, otherHosts);
         } catch (URISyntaxException e) {
             throw new SQLException("Invalid URI: " + raw, e);
         }
@@ -266,23 +430,44 @@ final class DatabendDriverUri {
         return new URI(fullUri);
     }
 
-    private static void ensureSingleHostAuthority(String raw, String originalUrl) throws SQLException {
+    // host1:port1,host2:port2/db keeps the first host in the returned url, the others go to otherHosts
+    private static String splitHosts(String raw, List<String> otherHosts, String originalUrl) throws SQLException {
+        int startOfAuthority = raw.startsWith("http://") ? "http://".length()
+                : raw.startsWith("https://") ? "https://".length() : 0;
         int endOfAuthority = raw.length();
-        int slashIndex = raw.indexOf('/');
+        int slashIndex = raw.indexOf('/', startOfAuthority);
         if (slashIndex != -1 && slashIndex < endOfAuthority) {
             endOfAuthority = slashIndex;
         }
-        int questionIndex = raw.indexOf('?');
+        int questionIndex = raw.indexOf('?', startOfAuthority);
         if (questionIndex != -1 && questionIndex < endOfAuthority) {
             endOfAuthority = questionIndex;
         }
-        int fragmentIndex = raw.indexOf('#');
+        int fragmentIndex = raw.indexOf('#', startOfAuthority);
         if (fragmentIndex != -1 && fragmentIndex < endOfAuthority) {
             endOfAuthority = fragmentIndex;
         }
-        String authoritySection = raw.substring(0, endOfAuthority);
-        if (authoritySection.contains(",")) {
-            throw new SQLException("Multiple hosts in JDBC URL are not supported: " + originalUrl);
+        String authoritySection = raw.substring(startOfAuthority, endOfAuthority);
+        if (!authoritySection.contains(",")) {
+            return raw;
+        }
+        List<String> hosts = Splitter.on(',').trimResults().splitToList(authoritySection);
+        if (hosts.contains("")) {
+            throw new SQLException("Empty host in JDBC URL: " + originalUrl);
+        }
+        otherHosts.addAll(hosts.subList(1, hosts.size()));
+        return raw.substring(0, startOfAuthority) + hosts.get(0) + raw.substring(endOfAuthority);
+    }
+
+    private static final class ParsedUrl {
+        private final URI uri;
+        private final Map<String, String> uriProperties;
+        private final List<String> otherHosts;
+
+        private ParsedUrl(URI uri, Map<String, String> uriProperties, List<String> otherHosts) {
+            this.uri = uri;
+            this.uriProperties = uriProperties;
+            this.otherHosts = otherHosts;
         }
     }
 
@@ -314,6 +499,34 @@ final class DatabendDriverUri {
         return uri;
     }
 
+    public List<URI> getNodes() {
+        return nodes;
+    }
+
+    public LoadBalancingPolicy getLoadBalancingPolicy() {
+        return loadBalancingPolicy;
+    }
+
+    public int getMaxFailoverRetry() {
+        return maxFailoverRetry;
+    }
+
+    public int getHealthCheckInterval() {
+        return healthCheckInterval;
+    }
+
+    public boolean getAutoDiscovery() {
+        return autoDiscovery;
+    }
+
+    public int getNodeDiscoveryInterval() {
+        return nodeDiscoveryInterval;
+    }
+
+    public boolean getLazyLogin() {
+        return lazyLogin;
+    }
+
     public String getDatabase() {
         return database;
     }
@@ -390,6 +603,81 @@ final class DatabendDriverUri {
         return maxRowsPerPage;
     }
 
+    public int getBatchFlushRows() {
+        return batchFlushRows;
+    }
+
+    public int getBatchFlushBytes() {
+        return batchFlushBytes;
+    }
+
+    public int getBatchUploadParallelism() {
+        return batchUploadParallelism;
+    }
+
+    public BatchUploadFormat getBatchUploadFormat() {
+        return batchUploadFormat;
+    }
+
+    public UploadCompression getUploadCompression() {
+        return uploadCompression;
+    }
+
+    public int getUploadCompressionThreads() {
+        return uploadCompressionThreads;
+    }
+
+    public int getUploadPartSize() {
+        return uploadPartSize;
+    }
+
+    public int getUploadParallelism() {
+        return uploadParallelism;
+    }
+
+    public int getDownloadParallelism() {
+        return downloadParallelism;
+    }
+
+    public int getDownloadRangeSize() {
+        return downloadRangeSize;
+    }
+
+    public PresignClientConfig getPresignClientConfig() {
+        return presignClientConfig;
+    }
+
+    public int getPresignCacheTtl() {
+        return presignCacheTtl;
+    }
+
+    /**
+     * Settings of the HTTP client to the query nodes, connections with equal settings share one client.
+     */
+    public HttpClientConfig getHttpClientConfig() {
+        return httpClientConfig;
+    }
+
+    public RetryConfig getRetryConfig() {
+        return retryConfig;
+    }
+
+    public PageHedging getPageHedging() {
+        return pageHedging;
+    }
+
+    public ConcurrencyLimitConfig getConcurrencyLimitConfig() {
+        return concurrencyLimitConfig;
+    }
+
+    public UploadCompression getQueryRequestCompression() {
+        return queryRequestCompression;
+    }
+
+    public UploadCompression getQueryResponseCompression() {
+        return queryResponseCompression;
+    }
+
     public Map<String, String> getSessionSettings() {
         return sessionSettings;
     }
@@ -411,10 +699,38 @@ final class DatabendDriverUri {
                 .setWarehouse(this.warehouse)
                 .setTenant(this.tenant)
                 .setDebug(this.debug)
+                .setUploadCompressionThreads(this.uploadCompressionThreads)
+                .setUploadPartSize(this.uploadPartSize)
+                .setUploadParallelism(this.uploadParallelism)
+                .setDownloadParallelism(this.downloadParallelism)
+                .setDownloadRangeSize(this.downloadRangeSize)
+                .setPresignClientConfig(this.presignClientConfig)
+                .setPresignCacheTtlSecs(this.presignCacheTtl)
+                .setNodes(this.nodes)
+                .setLoadBalancingPolicy(this.loadBalancingPolicy)
+                .setMaxFailoverRetry(this.maxFailoverRetry)
+                .setHealthCheckIntervalSecs(this.healthCheckInterval)
+                .setAutoDiscovery(this.autoDiscovery)
+                .setLazyLogin(this.lazyLogin)
+                .setPrincipal(this.principal)
+                .setRetryConfig(this.retryConfig)
+                .setPageHedging(this.pageHedging)
+                .setConcurrencyLimitConfig(this.concurrencyLimitConfig)
+                .setQueryRequestCompression(this.queryRequestCompression)
+                .setQueryResponseCompression(this.queryResponseCompression)
+                .setNodeDiscoveryIntervalMillis(this.nodeDiscoveryInterval)
                 .setInitialSession(initialSession)
                 .build();
     }
 
+    // a digest of the credentials, so that connections can tell whether they authenticate alike
+    private static String principal(Properties properties) throws SQLException {
+        String credentials = USER.getValue(properties).orElse("") + '\0'
+                + PASSWORD.getValue(properties).orElse("") + '\0'
+                + ACCESS_TOKEN.getValue(properties).orElse("");
+        return Hashing.sha256().hashString(credentials, StandardCharsets.UTF_8).toString();
+    }
+
     public Properties getProperties() {
         return properties;
     }
@@ -447,17 +763,13 @@ final class DatabendDriverUri {
         }
     }
 
-    private void warnDeprecatedMultiHostProperties(Properties mergedProperties) {
-        warnDeprecatedProperty(mergedProperties, LOAD_BALANCING_POLICY);
-        warnDeprecatedProperty(mergedProperties, MAX_FAILOVER_RETRY);
-        warnDeprecatedProperty(mergedProperties, AUTO_DISCOVERY);
-        warnDeprecatedProperty(mergedProperties, NODE_DISCOVERY_INTERVAL);
+    private void warnDeprecatedProperties(Properties mergedProperties) {
         warnDeprecatedProperty(mergedProperties, ENABLE_MOCK);
     }
 
     private void warnDeprecatedProperty(Properties mergedProperties, ConnectionProperty<?> property) {
         if (mergedProperties.containsKey(property.getKey())) {
-            logger.warning("Connection property '" + property.getKey() + "' is deprecated and ignored because multi-host features were removed.");
+            logger.warning("Connection property '" + property.getKey() + "' is deprecated and ignored.");
         }
     }
 }
@@ -0,0 +1,191 @@
+package com.databend.jdbc;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.PooledConnection;
+import javax.sql.StatementEventListener;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A logged in Databend session that a pool hands out again and again, returned by
+ * {@link DatabendDataSource#getPooledConnection()}.
+ * <p>
+ * {@link #getConnection()} returns a handle on the session. Closing the handle does not log out: it
+ * closes the statements, rolls back an open transaction, puts the session back to the state it was
+ * opened with and tells the listeners that the session can be reused. When the reset fails the
+ * listeners are told that the session is broken instead.
+ * <p>
+ * Statements, metadata and {@code unwrap} give out the handle as their connection, never the
+ * session, so that closing what they return cannot log out a session the pool still holds.
+ */
+public class DatabendPooledConnection implements PooledConnection {
+    private static final Class<?>[] HANDLE_INTERFACES = {
+            Connection.class, DatabendConnectionExtension.class, FileTransferAPI.class};
+
+    private final DatabendConnection connection;
+    private final List<ConnectionEventListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile Handle handle;
+    private volatile long lastReturnedNanos = System.nanoTime();
+
+    DatabendPooledConnection(DatabendConnection connection) {
+        this.connection = requireNonNull(connection, "connection is null");
+    }
+
+    /**
+     * Returns a new handle on the session, a handle that is still open is closed first.
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (connection.isClosed()) {
+            throw new SQLException("Pooled connection is closed");
+        }
+        Handle previous = handle;
+        if (previous != null) {
+            previous.close(false);
+        }
+        Handle next = new Handle();
+        handle = next;
+        Connection proxy = (Connection) Proxy.newProxyInstance(DatabendPooledConnection.class.getClassLoader(), HANDLE_INTERFACES, next);
+        connection.setFacade(proxy);
+        return proxy;
+    }
+
+    /**
+     * Logs out the session.
+     */
+    @Override
+    public void close() throws SQLException {
+        Handle current = handle;
+        if (current != null) {
+            current.closed.set(true);
+        }
+        connection.close();
+    }
+
+    @Override
+    public void addConnectionEventListener(ConnectionEventListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeConnectionEventListener(ConnectionEventListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Statements are not pooled, statement listeners are never called.
+     */
+    @Override
+    public void addStatementEventListener(StatementEventListener listener) {
+    }
+
+    @Override
+    public void removeStatementEventListener(StatementEventListener listener) {
+    }
+
+    DatabendConnection getPhysicalConnection() {
+        return connection;
+    }
+
+    /**
+     * @return the pooled connection behind a handle returned by {@link #getConnection()}, or
+     * {@code null} for any other connection
+     */
+    static DatabendPooledConnection of(Connection connection) {
+        if (connection == null || !Proxy.isProxyClass(connection.getClass())) {
+            return null;
+        }
+        InvocationHandler handler = Proxy.getInvocationHandler(connection);
+        return handler instanceof Handle ? ((Handle) handler).pooledConnection() : null;
+    }
+
+    /**
+     * {@link System#nanoTime()} when the last handle was closed, or when the session was opened.
+     */
+    long getLastReturnedNanos() {
+        return lastReturnedNanos;
+    }
+
+    private void handleClosed(boolean notify) {
+        lastReturnedNanos = System.nanoTime();
+        SQLException failure = null;
+        try {
+            connection.resetSession();
+        } catch (SQLException e) {
+            failure = e;
+        }
+        if (!notify) {
+            return;
+        }
+        ConnectionEvent event = new ConnectionEvent(this, failure);
+        for (ConnectionEventListener listener : listeners) {
+            if (failure == null) {
+                listener.connectionClosed(event);
+            } else {
+                listener.connectionErrorOccurred(event);
+            }
+        }
+    }
+
+    private final class Handle implements InvocationHandler {
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private DatabendPooledConnection pooledConnection() {
+            return DatabendPooledConnection.this;
+        }
+
+        private void close(boolean notify) {
+            if (closed.compareAndSet(false, true)) {
+                handleClosed(notify);
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    close(true);
+                    return null;
+                case "isClosed":
+                    return closed.get() || connection.isClosed();
+                case "isValid":
+                    if (closed.get()) {
+                        return false;
+                    }
+                    break;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "pooled " + connection;
+                case "isWrapperFor":
+                    return ((Class<?>) args[0]).isInstance(proxy);
+                case "unwrap":
+                    if (((Class<?>) args[0]).isInstance(proxy)) {
+                        return proxy;
+                    }
+                    throw new SQLException("A pooled connection cannot be unwrapped to " + ((Class<?>) args[0]).getName());
+                default:
+                    if (closed.get()) {
+                        throw new SQLException("Connection is closed");
+                    }
+            }
+            try {
+                return method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
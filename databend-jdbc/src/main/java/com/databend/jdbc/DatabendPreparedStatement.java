@@ -1,5 +1,7 @@
 package com.databend.jdbc;
 
+import com.databend.jdbc.internal.BatchUploadFormat;
+import com.databend.jdbc.internal.UploadCompression;
 import com.databend.jdbc.internal.data.DatabendRawType;
 import com.databend.jdbc.internal.data.IntervalCodec;
 import com.databend.jdbc.internal.binding.BatchInsertContext;
@@ -52,16 +54,13 @@ public class DatabendPreparedStatement extends DatabendStatement implements Prep
             .append(ISO_LOCAL_TIME)
             .appendOffset("+HH:mm", "+00:00")
             .toFormatter();
-    private final List<String[]> batchValues;
-    private final List<String[]> batchValuesCSV;
     private final BatchInsertContext batchInsertContext;
+    private BatchUploader batchUploader;
 
     private static final ObjectMapper objectMapper = new ObjectMapper();
 
     DatabendPreparedStatement(DatabendConnection connection, Consumer<DatabendStatement> onClose, String sql) throws SQLException {
         super(connection, onClose);
-        this.batchValues = new ArrayList<>();
-        this.batchValuesCSV = new ArrayList<>();
         this.batchInsertContext = new BatchInsertContext(sql);
         this.rawStatement = StatementUtil.parseToRawStatementWrapper(sql);
         if(this.rawStatement.getSubStatements().size() > 1) {
@@ -81,34 +80,6 @@ public class DatabendPreparedStatement extends DatabendStatement implements Prep
         return params;
     }
 
-    private static String formatBooleanLiteral(boolean x) {
-        return Boolean.toString(x);
-    }
-
-    private static String formatByteLiteral(byte x) {
-        return Byte.toString(x);
-    }
-
-    private static String formatShortLiteral(short x) {
-        return Short.toString(x);
-    }
-
-    private static String formatIntLiteral(int x) {
-        return Integer.toString(x);
-    }
-
-    private static String formatLongLiteral(long x) {
-        return Long.toString(x);
-    }
-
-    private static String formatFloatLiteral(float x) {
-        return Float.toString(x);
-    }
-
-    private static String formatDoubleLiteral(double x) {
-        return Double.toString(x);
-    }
-
     private static String formatBigDecimalLiteral(BigDecimal x) {
         return x.toString();
     }
@@ -125,41 +96,76 @@ public class DatabendPreparedStatement extends DatabendStatement implements Prep
     @Override
     public void close()
             throws SQLException {
+        abortBatchUpload();
         super.close();
     }
 
-    private StageAttachment uploadBatches() throws SQLException {
-        if (this.batchValuesCSV == null || this.batchValuesCSV.size() == 0) {
-            return null;
-        }
-        File saved = batchInsertContext.saveBatchToCSV(batchValuesCSV);
-        try (FileInputStream fis = new FileInputStream(saved)) {
-            Connection c = getConnection();
-            String uuid = UUID.randomUUID().toString().replace("-", "");
-            // format %Y/%m/%d/%H/%M/%S/fileName.csv
-            String stagePrefix = String.format("%s/%s/%s/%s/%s/%s/%s/",
-                    LocalDateTime.now().getYear(),
-                    LocalDateTime.now().getMonthValue(),
-                    LocalDateTime.now().getDayOfMonth(),
-                    LocalDateTime.now().getHour(),
-                    LocalDateTime.now().getMinute(),
-                    LocalDateTime.now().getSecond(),
-                    uuid);
-            String fileName = saved.getName();
-            // upload to stage
-            c.unwrap(DatabendConnection.class).uploadStream(null, stagePrefix, fis, fileName, saved.length(), false);
-            String stagePath = "@~/" + stagePrefix + fileName;
-            return buildStateAttachment((DatabendConnection) c, stagePath);
-        } catch (Exception e) {
-            throw new SQLException(e);
-        } finally {
-            try {
-                if (saved != null) {
-                    saved.delete();
+    /**
+     * Encodes the buffered batch rows and hands them to the background uploader. Large chunks are
+     * split into several files so they can be uploaded in parallel.
+     */
+    private void flushBatch() throws SQLException {
+        int rows = batchInsertContext.getBatchSize();
+        if (rows == 0) {
+            return;
+        }
+        if (batchUploader == null) {
+            batchUploader = new BatchUploader(connection(), connection().batchUploadParallelism());
+        }
+        int files = batchUploader.splitCount(batchInsertContext.getEstimatedBatchBytes());
+        BatchUploadFormat format = batchUploadFormat();
+        try {
+            for (int i = 0; i < files; i++) {
+                int from = (int) ((long) rows * i / files);
+                int to = (int) ((long) rows * (i + 1) / files);
+                File chunk;
+                try {
+                    chunk = format == BatchUploadFormat.PARQUET
+                            ? batchInsertContext.saveBatchToParquet(from, to, connection().uploadCompression())
+                            : batchInsertContext.saveBatchToCSV(from, to, connection().uploadCompression());
+                } catch (RuntimeException e) {
+                    throw new SQLException(e);
                 }
-            } catch (Exception e) {
-                // ignore
+                batchUploader.submit(chunk, to - from);
             }
+        } catch (SQLException e) {
+            // rows of the failed chunk are gone, discard the whole batch
+            abortBatchUpload();
+            throw e;
+        } finally {
+            batchInsertContext.clearBatch();
+        }
+    }
+
+    /**
+     * Parquet columns are matched to the table by name, so only an INSERT that lists its columns with
+     * one placeholder each is uploaded as Parquet, any other batch stays CSV.
+     */
+    private BatchUploadFormat batchUploadFormat() throws SQLException {
+        if (connection().batchUploadFormat() == BatchUploadFormat.PARQUET
+                && batchInsertContext.getColumnNames().isPresent()) {
+            return BatchUploadFormat.PARQUET;
+        }
+        return BatchUploadFormat.CSV;
+    }
+
+    private boolean shouldFlushBatch() throws SQLException {
+        int flushRows = connection().batchFlushRows();
+        int flushBytes = connection().batchFlushBytes();
+        return (flushRows > 0 && batchInsertContext.getBatchSize() >= flushRows)
+                || (flushBytes > 0 && batchInsertContext.getEstimatedBatchBytes() >= flushBytes);
+    }
+
+    private void abortBatchUpload() {
+        BatchUploader uploader = batchUploader;
+        batchUploader = null;
+        if (uploader == null) {
+            return;
+        }
+        boolean uploaded = uploader.hasUploads();
+        uploader.abort();
+        if (uploaded) {
+            dropStageFiles(uploader.getStageDirectory());
         }
     }
 
@@ -180,12 +186,31 @@ public class DatabendPreparedStatement extends DatabendStatement implements Prep
      * @return A StageAttachment object which contains the details of the stage.
      */
     static StageAttachment buildStateAttachment(Connection conn, String stagePath) {
+        return buildStateAttachment(conn, stagePath, BatchUploadFormat.CSV);
+    }
+
+    /**
+     * Same as {@link #buildStateAttachment(Connection, String)} for files of the given format. Parquet
+     * pages carry their own compression and nulls, so only the file type and PURGE apply to them.
+     */
+    static StageAttachment buildStateAttachment(Connection conn, String stagePath, BatchUploadFormat format) {
         DatabendConnection connection = (DatabendConnection) conn;
 
+        if (format == BatchUploadFormat.PARQUET) {
+            Map<String, String> fileFormatOptions = new HashMap<>();
+            fileFormatOptions.put("type", format.fileFormatValue());
+            Map<String, String> copyOptions = new HashMap<>();
+            copyOptions.put("PURGE", String.valueOf(connection.copyPurge()));
+            return new StageAttachment(stagePath, fileFormatOptions, copyOptions);
+        }
+
         Map<String, String> fileFormatOptions = new HashMap<>();
         if (!Objects.equals(connection.binaryFormat(), "")) {
             fileFormatOptions.put("binary_format", String.valueOf(connection.binaryFormat()));
         }
+        if (connection.uploadCompression() != UploadCompression.NONE) {
+            fileFormatOptions.put("compression", connection.uploadCompression().fileFormatValue());
+        }
         Map<String, String> copyOptions = new HashMap<>();
         copyOptions.put("PURGE", String.valueOf(connection.copyPurge()));
         copyOptions.put("NULL_DISPLAY", String.valueOf(connection.nullDisplay()));
@@ -204,7 +229,11 @@ public class DatabendPreparedStatement extends DatabendStatement implements Prep
         if (attachment == null) {
             return true;
         }
-        String sql = String.format("REMOVE %s", attachment.getLocation());
+        return dropStageFiles(attachment.getLocation());
+    }
+
+    private boolean dropStageFiles(String location) {
+        String sql = String.format("REMOVE %s", location);
         try {
             execute(sql);
             return true;
@@ -214,15 +243,15 @@ public class DatabendPreparedStatement extends DatabendStatement implements Prep
     }
 
     int[] executeBatchByAttachment() throws SQLException {
-        int[] batchUpdateCounts = new int[batchValues.size()];
-        if (batchValues.isEmpty()) {
-            return batchUpdateCounts;
-        }
-        StageAttachment attachment = uploadBatches();
-        if (attachment == null) {
-            return batchUpdateCounts;
-        }
+        StageAttachment attachment = null;
         try {
+            flushBatch();
+            if (batchUploader == null) {
+                return new int[0];
+            }
+            batchUploader.finish();
+            int[] batchUpdateCounts = new int[batchUploader.getRowCount()];
+            attachment = buildStateAttachment(connection(), batchUploader.getLocation(), batchUploadFormat());
             logger.fine(String.format("use batch insert instead of normal insert, attachment: %s, sql: %s", attachment,
                     batchInsertContext.getSql()));
             super.internalExecute(batchInsertContext.getSql(), attachment);
@@ -233,7 +262,12 @@ public class DatabendPreparedStatement extends DatabendStatement implements Prep
             Arrays.fill(batchUpdateCounts, 1);
             return batchUpdateCounts;
         } finally {
-            dropStageAttachment(attachment);
+            if (attachment != null) {
+                batchUploader = null;
+                dropStageAttachment(attachment);
+            } else {
+                abortBatchUpload();
+            }
             clearBatch();
         }
     }
@@ -264,13 +298,9 @@ public class DatabendPreparedStatement extends DatabendStatement implements Prep
         if (batchInsertContext.isBatchInsert()) {
             return executeBatchByAttachment();
         } else {
-            int[] batchUpdateCounts = new int[batchValues.size()];
-            for (int i = 0; i < batchValues.size(); i++) {
-                String [] values = batchValues.get(i);
-                Map<Integer, String> m = new HashMap<>();
-                for (int j = 0; j< values.length; j++){
-                    m.put(j + 1, values[j]);
-                }
+            int[] batchUpdateCounts = new int[batchInsertContext.getBatchSize()];
+            for (int i = 0; i < batchUpdateCounts.length; i++) {
+                Map<Integer, String> m = batchInsertContext.getBatchParams(i);
                 String sql = replaceParameterMarksWithValues(m, this.rawStatement).get(0).getSql();
                 this.execute(sql);
                 batchUpdateCounts[i]= getUpdateCount();
@@ -280,19 +310,15 @@ public class DatabendPreparedStatement extends DatabendStatement implements Prep
     }
 
     private void setValueStringNoQuote(int index, String value) {
-        batchInsertContext.setPlaceHolderValue(index, value, value);
+        batchInsertContext.setRaw(index, value);
     }
 
     private void setValueString(int index, String value) {
-        batchInsertContext.setPlaceHolderValue(index, String.format("'%s'", value), value);
+        batchInsertContext.setQuoted(index, value);
     }
 
     private void setValueNull(int index) {
-        setValue(index, "null", "\\N");
-    }
-
-    private void setValue(int index, String value, String csvValue) {
-        batchInsertContext.setPlaceHolderValue(index, value, csvValue);
+        batchInsertContext.setNull(index);
     }
 
     @Override
@@ -306,49 +332,49 @@ public class DatabendPreparedStatement extends DatabendStatement implements Prep
     public void setBoolean(int i, boolean b)
             throws SQLException {
         checkOpen();
-        setValueStringNoQuote(i, formatBooleanLiteral(b));
+        batchInsertContext.setBoolean(i, b);
     }
 
     @Override
     public void setByte(int i, byte b)
             throws SQLException {
         checkOpen();
-        setValueStringNoQuote(i, formatByteLiteral(b));
+        batchInsertContext.setLong(i, b);
     }
 
     @Override
     public void setShort(int i, short i1)
             throws SQLException {
         checkOpen();
-        setValueStringNoQuote(i, formatShortLiteral(i1));
+        batchInsertContext.setLong(i, i1);
     }
 
     @Override
     public void setInt(int i, int i1)
             throws SQLException {
         checkOpen();
-        setValueStringNoQuote(i, formatIntLiteral(i1));
+        batchInsertContext.setLong(i, i1);
     }
 
     @Override
     public void setLong(int i, long l)
             throws SQLException {
         checkOpen();
-        setValueStringNoQuote(i, formatLongLiteral(l));
+        batchInsertContext.setLong(i, l);
     }
 
     @Override
     public void setFloat(int i, float v)
             throws SQLException {
         checkOpen();
-        setValueStringNoQuote(i, formatFloatLiteral(v));
+        batchInsertContext.setFloat(i, v);
     }
 
     @Override
     public void setDouble(int i, double v)
             throws SQLException {
         checkOpen();
-        setValueStringNoQuote(i, formatDoubleLiteral(v));
+        batchInsertContext.setDouble(i, v);
     }
 
     @Override
@@ -366,17 +392,11 @@ public class DatabendPreparedStatement extends DatabendStatement implements Prep
     public void setString(int i, String s)
             throws SQLException {
         checkOpen();
-        String quoted = s;
         if (s == null) {
             setValueNull(i);
             return;
         }
-        if (s.contains("'")) {
-            quoted = s.replace("'", "\\'");
-        }
-        quoted = String.format("'%s'", quoted);
-
-        setValue(i, quoted, s);
+        batchInsertContext.setString(i, s);
     }
 
     @Override
@@ -393,7 +413,7 @@ public class DatabendPreparedStatement extends DatabendStatement implements Prep
         if (date == null) {
             setValueNull(i);
         } else {
-            setValueString(i, date.toString());
+            batchInsertContext.setDate(i, date.toLocalDate().toEpochDay());
         }
     }
 
@@ -415,7 +435,7 @@ public class DatabendPreparedStatement extends DatabendStatement implements Prep
         if (v == null) {
             setValueNull(i);
         } else {
-            setValueString(i, v.toInstant().toString());
+            batchInsertContext.setTimestamp(i, v.toInstant());
         }
     }
 
@@ -559,7 +579,7 @@ public class DatabendPreparedStatement extends DatabendStatement implements Prep
         } else if (x instanceof OffsetTime) {
             setString(parameterIndex, toTimeWithTimeZoneLiteral(x));
         } else if (x instanceof Instant) {
-            setValueString(parameterIndex, x.toString());
+            batchInsertContext.setTimestamp(parameterIndex, (Instant) x);
         } else if (x instanceof LocalDateTime) {
             setValueString(parameterIndex, x.toString());
         } else if (x instanceof Timestamp) {
@@ -620,20 +640,17 @@ public class DatabendPreparedStatement extends DatabendStatement implements Prep
             throws SQLException {
         checkOpen();
 
-        String[] val = batchInsertContext.getValues();
-        batchValues.add(val);
-
-        val = batchInsertContext.getValuesCSV();
-        batchValuesCSV.add(val);
-
-        batchInsertContext.clean();
+        batchInsertContext.addBatch();
+        if (batchInsertContext.isBatchInsert() && shouldFlushBatch()) {
+            flushBatch();
+        }
     }
 
     @Override
     public void clearBatch() throws SQLException {
         checkOpen();
-        batchValues.clear();
-        batchValuesCSV.clear();
+        abortBatchUpload();
+        batchInsertContext.clearBatch();
         batchInsertContext.clean();
     }
 
@@ -379,7 +379,7 @@ public class DatabendStatement implements Statement {
     @Override
     public Connection getConnection()
             throws SQLException {
-        return connection();
+        return connection().getFacade();
     }
 
     @Override
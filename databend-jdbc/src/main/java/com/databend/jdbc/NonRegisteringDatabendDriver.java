@@ -1,5 +1,6 @@
 package com.databend.jdbc;
 
+import com.databend.jdbc.internal.http.HttpClientConfig;
 import okhttp3.OkHttpClient;
 
 import java.io.Closeable;
@@ -9,6 +10,8 @@ import java.sql.DriverPropertyInfo;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
 import static com.databend.jdbc.internal.http.OkHttpUtils.userAgentInterceptor;
@@ -16,6 +19,8 @@ import static com.databend.jdbc.DriverInfo.*;
 
 class NonRegisteringDatabendDriver implements Driver, Closeable {
     private final OkHttpClient httpClient = newHttpClient();
+    // one client per distinct http_* settings, each with its own connection pool and dispatcher
+    private final ConcurrentMap<HttpClientConfig, OkHttpClient> sharedClients = new ConcurrentHashMap<>();
 
     private static Properties urlProperties(String url, Properties info) {
         try {
@@ -31,10 +36,21 @@ class NonRegisteringDatabendDriver implements Driver, Closeable {
         return builder.build();
     }
 
+    /**
+     * The client whose connection pool is shared by the connections of this driver with equal settings.
+     */
+    OkHttpClient sharedClient(HttpClientConfig config) {
+        return sharedClients.computeIfAbsent(config, c -> c.configure(httpClient.newBuilder()).build());
+    }
+
     @Override
     public void close() {
         httpClient.dispatcher().executorService().shutdown();
         httpClient.connectionPool().evictAll();
+        for (OkHttpClient client : sharedClients.values()) {
+            client.dispatcher().executorService().shutdown();
+            client.connectionPool().evictAll();
+        }
     }
 
     @Override
@@ -55,7 +71,7 @@ class NonRegisteringDatabendDriver implements Driver, Closeable {
 
         DatabendDriverUri uri = DatabendDriverUri.create(url, info);
 
-        OkHttpClient.Builder builder = httpClient.newBuilder();
+        OkHttpClient.Builder builder = sharedClient(uri.getHttpClientConfig()).newBuilder();
         uri.setupClient(builder);
         DatabendConnection connection = new DatabendConnection(uri, builder.build());
         // ping the server host
@@ -0,0 +1,181 @@
+package com.databend.jdbc;
+
+import com.databend.jdbc.internal.session.DatabendSessionHandle;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Pipe;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static java.util.concurrent.Executors.newCachedThreadPool;
+
+/**
+ * Data of a streaming load that is written while it is sent, returned by
+ * {@link DatabendConnectionExtension#openStreamingLoad(String)}.
+ * <p>
+ * Bytes written to this stream go through a bounded in-memory pipe into the chunked body of the
+ * {@code /v1/streaming_load} request, so writes block while the server falls behind. The data is
+ * either written as raw bytes in the format named by the {@code file_format} of the sql, or row by
+ * row with {@link #writeRow(Object...)}, which encodes CSV. Call {@link #finish()} to complete the
+ * load; closing the stream before that aborts it, so nothing is loaded when the producer fails.
+ * <p>
+ * The load runs with the session state of the connection when it was opened, and does not change
+ * it, so statements may be executed on the connection while the data is written.
+ */
+public final class StreamingLoadWriter extends OutputStream {
+    private static final long PIPE_BUFFER_SIZE = 1L << 20;
+    private static final String CSV_NULL = "\\N";
+    private static final ExecutorService executorService = newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("Databend JDBC streaming load-%s").setDaemon(true).build());
+
+    private final Pipe pipe = new Pipe(PIPE_BUFFER_SIZE);
+    private final BufferedSink sink = Okio.buffer(pipe.sink());
+    private final Future<Integer> load;
+    private final StringBuilder line = new StringBuilder();
+    private boolean finished;
+    private boolean closed;
+
+    StreamingLoadWriter(DatabendSessionHandle sessionHandle, String sql) {
+        // prepared on the caller's thread, the load uses the session as it is now and leaves it alone
+        Callable<Integer> request = sessionHandle.prepareStreamingLoad(sql, pipe.source());
+        this.load = executorService.submit(() -> {
+            try {
+                return request.call();
+            } finally {
+                // nobody reads the pipe anymore, writers blocked on a full pipe fail instead of hanging
+                pipe.cancel();
+            }
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkOpen();
+        sink.writeByte(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkOpen();
+        sink.write(b, off, len);
+    }
+
+    /**
+     * Writes one CSV row, for sql with {@code file_format = (type = CSV)}. {@code null} is written as
+     * {@code \N}, fields holding a comma, a quote or a line break are quoted.
+     */
+    public void writeRow(Object... values) throws IOException {
+        checkOpen();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            appendCsv(values[i], line);
+        }
+        line.append('\n');
+        sink.writeUtf8(line.toString());
+        line.setLength(0);
+    }
+
+    private static void appendCsv(Object value, StringBuilder sb) {
+        if (value == null) {
+            sb.append(CSV_NULL);
+            return;
+        }
+        String text = value instanceof byte[] ? new String((byte[]) value, StandardCharsets.UTF_8) : value.toString();
+        boolean quote = false;
+        for (int i = 0; i < text.length() && !quote; i++) {
+            char c = text.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            sb.append(text);
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                sb.append('"');
+            }
+            sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    @Override
+    public void flush() throws IOException {
+        checkOpen();
+        sink.flush();
+    }
+
+    /**
+     * Ends the data and waits for the server to load it.
+     *
+     * @return the number of rows loaded
+     * @throws SQLException the load failed
+     */
+    public int finish() throws SQLException {
+        if (closed) {
+            throw new SQLException("streaming load is already " + (finished ? "finished" : "aborted"));
+        }
+        finished = true;
+        closed = true;
+        try {
+            sink.close();
+        } catch (IOException e) {
+            // the pipe is canceled when the request ended early, its outcome tells why
+            if (!load.isDone()) {
+                abort();
+                throw new SQLException("Failed to send streaming load data", e);
+            }
+        }
+        try {
+            return load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pipe.cancel();
+            throw new SQLException("Interrupted while waiting for streaming load", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException("Streaming load failed: " + e.getCause(), e.getCause());
+        } catch (CancellationException e) {
+            throw new SQLException("Streaming load was canceled", e);
+        }
+    }
+
+    /**
+     * Aborts the load: the request body fails, so the server does not load anything.
+     */
+    public void abort() {
+        closed = true;
+        pipe.cancel();
+    }
+
+    /**
+     * Aborts the load unless {@link #finish()} was called.
+     */
+    @Override
+    public void close() {
+        if (!finished) {
+            abort();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("streaming load is " + (finished ? "finished" : "aborted"));
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.databend.jdbc;
+
+import java.io.InputStream;
+import java.nio.file.Path;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A file to be uploaded to a stage by
+ * {@link DatabendConnectionExtension#loadFilesToTable(String, java.util.List)}, read either from a
+ * local path or from a stream of known size.
+ */
+public final class UploadFile {
+    private final String name;
+    private final Path path;
+    private final InputStream inputStream;
+    private final long size;
+
+    private UploadFile(String name, Path path, InputStream inputStream, long size) {
+        this.name = requireNonNull(name, "name is null");
+        if (name.isEmpty() || name.contains("/")) {
+            throw new IllegalArgumentException("invalid stage file name: " + name);
+        }
+        this.path = path;
+        this.inputStream = inputStream;
+        this.size = size;
+    }
+
+    /**
+     * A local file, staged under its own file name.
+     */
+    public static UploadFile of(Path path) {
+        requireNonNull(path, "path is null");
+        return new UploadFile(path.getFileName().toString(), path, null, -1);
+    }
+
+    /**
+     * A local file, staged as {@code name}.
+     */
+    public static UploadFile of(Path path, String name) {
+        return new UploadFile(name, requireNonNull(path, "path is null"), null, -1);
+    }
+
+    /**
+     * A stream of {@code size} bytes, staged as {@code name}. The caller closes the stream after the load.
+     */
+    public static UploadFile of(String name, InputStream inputStream, long size) {
+        return new UploadFile(name, null, requireNonNull(inputStream, "inputStream is null"), size);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the local file, or {@code null} for a stream
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return the stream, or {@code null} for a local file
+     */
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    /**
+     * @return the stream size, or -1 for a local file
+     */
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return path != null ? name + " (" + path + ")" : name;
+    }
+}
@@ -0,0 +1,30 @@
+package com.databend.jdbc.internal;
+
+import java.util.Locale;
+
+/**
+ * File format of the batches a PreparedStatement uploads to a stage. The value of
+ * {@link #fileFormatValue()} is the matching {@code TYPE} file format option.
+ */
+public enum BatchUploadFormat {
+    CSV(".csv"),
+    PARQUET(".parquet");
+
+    private final String fileExtension;
+
+    BatchUploadFormat(String fileExtension) {
+        this.fileExtension = fileExtension;
+    }
+
+    public static BatchUploadFormat fromValue(String value) {
+        return BatchUploadFormat.valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+    }
+
+    public String fileFormatValue() {
+        return name();
+    }
+
+    public String fileExtension() {
+        return fileExtension;
+    }
+}
@@ -0,0 +1,222 @@
+package com.databend.jdbc.internal;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PushbackInputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+
+/**
+ * Decompresses a stream on a background thread, so that reading from the network and inflating
+ * overlap with the caller consuming the data.
+ * <p>
+ * The format is told by the magic bytes at the start of the stream: gzip, zstd or the lz4 frame
+ * format. The decoder fills two buffers in turn and hands each one over once it is full; it waits
+ * while the caller still holds the other one, which keeps memory bounded whatever the file size.
+ */
+public final class DecompressingInputStream extends InputStream {
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int BUFFERS = 2;
+    private static final int MAGIC_LENGTH = 4;
+    private static final ExecutorService executorService = newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("Databend JDBC decompress-%s").setDaemon(true).build());
+
+    enum Format {
+        GZIP,
+        ZSTD,
+        LZ4;
+
+        InputStream open(InputStream in) throws IOException {
+            switch (this) {
+                case GZIP:
+                    // reads all members of concatenated gzip files
+                    return new GZIPInputStream(in, CHUNK_SIZE);
+                case ZSTD:
+                    // zstd-jni comes with arrow-compression
+                    return new ZstdInputStream(in);
+                default:
+                    // commons-compress comes with arrow-compression
+                    return new FramedLZ4CompressorInputStream(in, true);
+            }
+        }
+    }
+
+    private final InputStream compressed;
+    private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(BUFFERS);
+    // one slot more than buffers, so the end of the stream or a failure never waits
+    private final BlockingQueue<Chunk> filled = new ArrayBlockingQueue<>(BUFFERS + 1);
+    private final Future<?> decoder;
+    private Chunk current;
+    private int position;
+    private boolean finished;
+    private volatile boolean closed;
+
+    private DecompressingInputStream(InputStream compressed, Format format) {
+        this.compressed = compressed;
+        for (int i = 0; i < BUFFERS; i++) {
+            free.add(new byte[CHUNK_SIZE]);
+        }
+        this.decoder = executorService.submit(() -> decode(format));
+    }
+
+    /**
+     * Returns a stream of the decompressed content of {@code in}, or {@code in} itself when it does
+     * not start with the magic bytes of a supported format. Closing the returned stream closes
+     * {@code in}.
+     */
+    public static InputStream open(InputStream in) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(requireNonNull(in, "in is null"), MAGIC_LENGTH);
+        byte[] magic = new byte[MAGIC_LENGTH];
+        int n = 0;
+        while (n < magic.length) {
+            int read = pushback.read(magic, n, magic.length - n);
+            if (read == -1) {
+                break;
+            }
+            n += read;
+        }
+        pushback.unread(magic, 0, n);
+        Format format = detect(magic, n);
+        if (format == null) {
+            return pushback;
+        }
+        return new DecompressingInputStream(pushback, format);
+    }
+
+    static Format detect(byte[] magic, int length) {
+        if (length >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+            return Format.GZIP;
+        }
+        if (length >= 4 && (magic[0] & 0xff) == 0x28 && (magic[1] & 0xff) == 0xb5
+                && (magic[2] & 0xff) == 0x2f && (magic[3] & 0xff) == 0xfd) {
+            return Format.ZSTD;
+        }
+        if (length >= 4 && (magic[0] & 0xff) == 0x04 && (magic[1] & 0xff) == 0x22
+                && (magic[2] & 0xff) == 0x4d && (magic[3] & 0xff) == 0x18) {
+            return Format.LZ4;
+        }
+        return null;
+    }
+
+    private void decode(Format format) {
+        try (InputStream decoded = format.open(compressed)) {
+            while (true) {
+                byte[] buffer = free.take();
+                int length = 0;
+                int n;
+                while (length < buffer.length && (n = decoded.read(buffer, length, buffer.length - length)) != -1) {
+                    length += n;
+                }
+                if (length > 0) {
+                    filled.put(new Chunk(buffer, length, null));
+                }
+                if (length < buffer.length) {
+                    filled.put(new Chunk(null, -1, null));
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed by the reader
+        } catch (IOException | RuntimeException e) {
+            if (!closed) {
+                filled.offer(new Chunk(null, -1, e));
+            }
+        }
+    }
+
+    private boolean ensureData() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (current == null || position == current.length) {
+            if (current != null) {
+                free.offer(current.data);
+                current = null;
+            }
+            if (finished) {
+                return false;
+            }
+            Chunk next;
+            try {
+                next = filled.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                InterruptedIOException exception = new InterruptedIOException("Decompression was interrupted");
+                exception.initCause(e);
+                throw exception;
+            }
+            if (next.failure != null) {
+                finished = true;
+                throw new IOException("Failed to decompress stream: " + next.failure.getMessage(), next.failure);
+            }
+            if (next.data == null) {
+                finished = true;
+                return false;
+            }
+            current = next;
+            position = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureData()) {
+            return -1;
+        }
+        return current.data[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureData()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current.data, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return closed || current == null ? 0 : current.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        decoder.cancel(true);
+        current = null;
+        compressed.close();
+    }
+
+    private static final class Chunk {
+        private final byte[] data;
+        private final int length;
+        private final Exception failure;
+
+        private Chunk(byte[] data, int length, Exception failure) {
+            this.data = data;
+            this.length = length;
+            this.failure = failure;
+        }
+    }
+}
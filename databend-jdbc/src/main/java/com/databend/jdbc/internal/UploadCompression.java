@@ -0,0 +1,73 @@
+package com.databend.jdbc.internal;
+
+import com.github.luben.zstd.ZstdOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression applied to data uploaded to a stage. The value of {@link #fileFormatValue()} is the
+ * matching {@code COMPRESSION} file format option. The bodies of query requests and responses use
+ * the same codecs, named by {@link #value()} in their {@code Content-Encoding}.
+ */
+public enum UploadCompression {
+    NONE(""),
+    GZIP(".gz"),
+    ZSTD(".zst");
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String fileExtension;
+
+    UploadCompression(String fileExtension) {
+        this.fileExtension = fileExtension;
+    }
+
+    public static UploadCompression fromValue(String value) {
+        return UploadCompression.valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+    }
+
+    public String value() {
+        return name().toLowerCase(Locale.ENGLISH);
+    }
+
+    public String fileFormatValue() {
+        return name();
+    }
+
+    public String fileExtension() {
+        return fileExtension;
+    }
+
+    /**
+     * Wraps {@code out} so that everything written to the returned stream is compressed; closing it
+     * finishes the compressed stream and closes {@code out}.
+     */
+    public OutputStream wrap(OutputStream out) throws IOException {
+        return wrap(out, 1);
+    }
+
+    /**
+     * Same as {@link #wrap(OutputStream)}, compressing on up to {@code threads} threads. Parallel
+     * gzip output is still a single gzip member, zstd uses the multi-threaded mode of the library.
+     */
+    public OutputStream wrap(OutputStream out, int threads) throws IOException {
+        switch (this) {
+            case GZIP:
+                if (threads > 1) {
+                    return new ParallelGzipOutputStream(out, threads);
+                }
+                return new GZIPOutputStream(out, BUFFER_SIZE);
+            case ZSTD:
+                ZstdOutputStream zstd = new ZstdOutputStream(out);
+                if (threads > 1) {
+                    zstd.setWorkers(threads);
+                }
+                return zstd;
+            default:
+                return out;
+        }
+    }
+}
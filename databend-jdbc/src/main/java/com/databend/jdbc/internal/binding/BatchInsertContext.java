@@ -1,30 +1,60 @@
 package com.databend.jdbc.internal.binding;
 
-import de.siegmar.fastcsv.writer.CsvWriter;
-import de.siegmar.fastcsv.writer.LineDelimiter;
+import com.databend.jdbc.internal.BatchUploadFormat;
+import com.databend.jdbc.internal.UploadCompression;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.TreeMap;
 import java.util.UUID;
 
+/**
+ * Parameters of a PreparedStatement, both the row currently being bound and the rows added by
+ * {@code addBatch()}.
+ * <p>
+ * Values are kept typed (see {@link ParameterKind}) and batch rows are stored column by column in
+ * {@link ColumnBuffer}s, so SQL literals and CSV fields are only formatted when the statement is
+ * executed or the batch is encoded for upload.
+ */
 public class BatchInsertContext {
     private final String sql;
     private final DatabendSqlClassifier.Classification sqlClassification;
-    // prepareValues[i] is null if the i-th value is a placeholder
+    private final Optional<List<String>> columnNames;
 
-    private final TreeMap<Integer, String> placeHolderEntries;
-    private final TreeMap<Integer, String> placeHolderEntriesCSV;
+    // parameters of the row being bound, indexed by parameter index - 1
+    private ParameterKind[] rowKinds;
+    private long[] rowValues;
+    private int[] rowNanos;
+    private String[] rowTexts;
+    private int rowWidth;
+
+    private final List<ColumnBuffer> columns;
+    private int batchSize;
+    // rough size of the batch rows once encoded as CSV
+    private long batchBytes;
 
     public BatchInsertContext(String sql) {
         this.sql = sql;
         this.sqlClassification = DatabendSqlClassifier.classify(sql);
-        // sort key in ascending order
-        this.placeHolderEntries = new TreeMap<>();
-        this.placeHolderEntriesCSV = new TreeMap<>();
+        this.columnNames = DatabendSqlClassifier.insertTargetColumnNames(sql);
+        this.rowKinds = new ParameterKind[8];
+        this.rowValues = new long[8];
+        this.rowNanos = new int[8];
+        this.rowTexts = new String[8];
+        this.columns = new ArrayList<>();
     }
 
 
@@ -34,8 +64,11 @@ public class BatchInsertContext {
 
     public Map<Integer, String> getProvideParams() {
         Map<Integer, String> m = new TreeMap<>();
-        for (Map.Entry<Integer, String> elem : placeHolderEntries.entrySet()) {
-            m.put(elem.getKey() + 1, elem.getValue());
+        for (int i = 0; i < rowWidth; i++) {
+            ParameterKind kind = rowKinds[i];
+            if (kind != null) {
+                m.put(i + 1, kind.toLiteral(rowValues[i], rowNanos[i], rowTexts[i]));
+            }
         }
         return m;
     }
@@ -44,71 +77,262 @@ public class BatchInsertContext {
         return sqlClassification.isBatchInsert();
     }
 
-    public void setPlaceHolderValue(int index, String value, String valueCSV) throws IllegalArgumentException {
-        int i = index - 1;
+    /**
+     * Names of the columns the parameters are inserted into, present when the statement lists them
+     * and binds each one to a single placeholder.
+     */
+    public Optional<List<String>> getColumnNames() {
+        return columnNames;
+    }
+
+    public void setNull(int index) {
+        set(index, ParameterKind.NULL, 0, 0, null);
+    }
+
+    public void setBoolean(int index, boolean value) {
+        set(index, ParameterKind.BOOLEAN, value ? 1 : 0, 0, null);
+    }
+
+    public void setLong(int index, long value) {
+        set(index, ParameterKind.LONG, value, 0, null);
+    }
+
+    public void setFloat(int index, float value) {
+        set(index, ParameterKind.FLOAT, Float.floatToRawIntBits(value), 0, null);
+    }
+
+    public void setDouble(int index, double value) {
+        set(index, ParameterKind.DOUBLE, Double.doubleToRawLongBits(value), 0, null);
+    }
+
+    public void setDate(int index, long epochDay) {
+        set(index, ParameterKind.DATE, epochDay, 0, null);
+    }
 
-        placeHolderEntries.put(i, value);
-        placeHolderEntriesCSV.put(i, valueCSV);
+    public void setTimestamp(int index, Instant value) {
+        set(index, ParameterKind.TIMESTAMP, value.getEpochSecond(), value.getNano(), null);
     }
 
-    // get the sql with placeholder replaced by value
-    public String[] getValues() {
-        if (placeHolderEntries.isEmpty()) {
-            return null;
+    /**
+     * Binds text that is used verbatim both in SQL and in CSV, e.g. a formatted number.
+     */
+    public void setRaw(int index, String value) {
+        set(index, ParameterKind.RAW, 0, 0, value);
+    }
+
+    /**
+     * Binds text that is quoted in SQL without escaping, e.g. a formatted date or time.
+     */
+    public void setQuoted(int index, String value) {
+        set(index, ParameterKind.QUOTED, 0, 0, value);
+    }
+
+    /**
+     * Binds a user supplied string, quoted and escaped in SQL.
+     */
+    public void setString(int index, String value) {
+        set(index, ParameterKind.STRING, 0, 0, value);
+    }
+
+    private void set(int index, ParameterKind kind, long bits, int nanos, String text) {
+        if (index < 1) {
+            throw new IllegalArgumentException("Parameter index out of range: " + index);
         }
-        String[] values = new String[placeHolderEntries.lastKey() + 1];
-        for (Map.Entry<Integer, String> elem : placeHolderEntries.entrySet()) {
-            values[elem.getKey()] = elem.getValue();
+        int i = index - 1;
+        if (i >= rowKinds.length) {
+            int capacity = Math.max(rowKinds.length << 1, i + 1);
+            rowKinds = Arrays.copyOf(rowKinds, capacity);
+            rowValues = Arrays.copyOf(rowValues, capacity);
+            rowNanos = Arrays.copyOf(rowNanos, capacity);
+            rowTexts = Arrays.copyOf(rowTexts, capacity);
         }
-        return values;
+        // null text is a NULL value, so it lands in the null bitmap of the column like setNull
+        rowKinds[i] = text == null && kind.hasText() ? ParameterKind.NULL : kind;
+        rowValues[i] = bits;
+        rowNanos[i] = nanos;
+        rowTexts[i] = text;
+        rowWidth = Math.max(rowWidth, i + 1);
     }
-    public String[] getValuesCSV() {
-        if (placeHolderEntriesCSV.isEmpty()) {
-            return null;
+
+    /**
+     * Appends the parameters bound so far as a batch row and clears them.
+     */
+    public void addBatch() {
+        while (columns.size() < rowWidth) {
+            ColumnBuffer column = new ColumnBuffer();
+            for (int r = 0; r < batchSize; r++) {
+                column.append(ParameterKind.UNSET, 0, 0, null);
+            }
+            columns.add(column);
         }
-        String[] values = new String[placeHolderEntriesCSV.lastKey() + 1];
-        for (Map.Entry<Integer, String> elem : placeHolderEntriesCSV.entrySet()) {
-            String value = elem.getValue();
-            if (value == null) {
-                value = "\\N";
+        for (int i = 0; i < columns.size(); i++) {
+            ParameterKind kind = i < rowWidth && rowKinds[i] != null ? rowKinds[i] : ParameterKind.UNSET;
+            if (kind == ParameterKind.UNSET) {
+                columns.get(i).append(kind, 0, 0, null);
+            } else {
+                columns.get(i).append(kind, rowValues[i], rowNanos[i], rowTexts[i]);
             }
-            values[elem.getKey()] = value;
+            batchBytes += estimateCsvBytes(kind, rowTexts[i]) + 1;
         }
-        return values;
+        batchSize++;
+        clean();
     }
 
+    public int getBatchSize() {
+        return batchSize;
+    }
 
-    public File saveBatchToCSV(List<String[]> values) {
-        // get a temporary directory
-        String id = UUID.randomUUID().toString().replace("-","");
-        File tempDir = new File(System.getProperty("java.io.tmpdir"));
-        File tempFile = new File(tempDir, "databend_batch_insert_" + id + ".csv");
-        return saveBatchToCSV(values, tempFile);
+    public long getEstimatedBatchBytes() {
+        return batchBytes;
     }
 
+    private static int estimateCsvBytes(ParameterKind kind, String text) {
+        switch (kind) {
+            case UNSET:
+                return 0;
+            case NULL:
+                return 2;
+            case BOOLEAN:
+                return 5;
+            case DATE:
+                return 10;
+            case TIMESTAMP:
+                return 24;
+            case LONG:
+            case FLOAT:
+            case DOUBLE:
+                return 12;
+            default:
+                return text.length();
+        }
+    }
 
-    public File saveBatchToCSV(List<String[]> values, File file) {
-        for (String[] row : values) {
-            if (row != null) {
-                break;
+    /**
+     * SQL literals of a batch row keyed by parameter index, unset parameters are left out.
+     */
+    public Map<Integer, String> getBatchParams(int row) {
+        Map<Integer, String> m = new TreeMap<>();
+        for (int i = 0; i < columns.size(); i++) {
+            String literal = columns.get(i).literalAt(row);
+            if (literal != null) {
+                m.put(i + 1, literal);
             }
-            throw new RuntimeException("batch values is empty");
         }
-        // save values to csv file
-        try (FileWriter pw = new FileWriter(file)) {
-            CsvWriter w = CsvWriter.builder().quoteCharacter('"').lineDelimiter(LineDelimiter.LF).build(pw);
-            for (String[] row : values) {
-                w.writeRow(row);
+        return m;
+    }
+
+    /**
+     * Writes the batch rows as CSV, null values are written as {@code \N}. Rows are encoded straight
+     * from the column buffers, so typed values are never materialized as Strings.
+     */
+    public void writeBatchCSV(Writer writer) throws IOException {
+        writeBatchCSV(writer, 0, batchSize);
+    }
+
+    /**
+     * Writes the batch rows in {@code [fromRow, toRow)} as CSV.
+     */
+    public void writeBatchCSV(Writer writer, int fromRow, int toRow) throws IOException {
+        if (fromRow < 0 || toRow > batchSize || fromRow > toRow) {
+            throw new IndexOutOfBoundsException("rows [" + fromRow + ", " + toRow + ") out of batch size " + batchSize);
+        }
+        int width = columns.size();
+        StringBuilder line = new StringBuilder(64 * Math.max(width, 1));
+        for (int r = fromRow; r < toRow; r++) {
+            // keep rows as wide as their last bound parameter
+            int last = width;
+            while (last > 0 && columns.get(last - 1).kindAt(r) == ParameterKind.UNSET) {
+                last--;
             }
-//            logger.log(Level.FINE, "save batch insert to csv file: " + file.getAbsolutePath() + "rows: " + values.size() + " columns: " + rowSize);
-            return file;
+            for (int i = 0; i < last; i++) {
+                if (i > 0) {
+                    line.append(',');
+                }
+                columns.get(i).appendCsv(r, line);
+            }
+            line.append('\n');
+            writer.append(line);
+            line.setLength(0);
+        }
+        writer.flush();
+    }
+
+    public File saveBatchToCSV() {
+        return saveBatchToCSV(0, batchSize);
+    }
+
+    public File saveBatchToCSV(int fromRow, int toRow) {
+        return saveBatchToCSV(fromRow, toRow, UploadCompression.NONE);
+    }
+
+    /**
+     * Saves the batch rows in {@code [fromRow, toRow)} to a temporary CSV file, compressed while it is
+     * written. The file name carries the extension of the compression.
+     */
+    public File saveBatchToCSV(int fromRow, int toRow, UploadCompression compression) {
+        if (fromRow >= toRow) {
+            throw new RuntimeException("batch values is empty");
+        }
+        File tempFile = newBatchFile(BatchUploadFormat.CSV.fileExtension() + compression.fileExtension());
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(
+                compression.wrap(new FileOutputStream(tempFile)), StandardCharsets.UTF_8), 1 << 16)) {
+            writeBatchCSV(w, fromRow, toRow);
+            return tempFile;
         } catch (IOException e) {
+            tempFile.delete();
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Saves the batch rows in {@code [fromRow, toRow)} to a temporary Parquet file whose columns are
+     * named by {@link #getColumnNames()}, with pages compressed by {@code compression}.
+     */
+    public File saveBatchToParquet(int fromRow, int toRow, UploadCompression compression) {
+        if (fromRow >= toRow) {
+            throw new RuntimeException("batch values is empty");
+        }
+        if (fromRow < 0 || toRow > batchSize) {
+            throw new IndexOutOfBoundsException("rows [" + fromRow + ", " + toRow + ") out of batch size " + batchSize);
+        }
+        if (!columnNames.isPresent()) {
+            throw new IllegalStateException("Parquet batches need the target columns listed in the INSERT: " + sql);
+        }
+        File tempFile = newBatchFile(BatchUploadFormat.PARQUET.fileExtension());
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16)) {
+            ParquetBatchWriter.write(out, columns, columnNames.get(), fromRow, toRow, compression);
+            return tempFile;
+        } catch (IOException e) {
+            tempFile.delete();
+            throw new RuntimeException(e);
+        } catch (RuntimeException e) {
+            tempFile.delete();
+            throw e;
+        }
+    }
+
+    private static File newBatchFile(String extension) {
+        // get a temporary directory
+        String id = UUID.randomUUID().toString().replace("-", "");
+        File tempDir = new File(System.getProperty("java.io.tmpdir"));
+        return new File(tempDir, "databend_batch_insert_" + id + extension);
+    }
+
+    /**
+     * Clears the parameters bound to the current row.
+     */
     public void clean() {
-        placeHolderEntries.clear();
-        placeHolderEntriesCSV.clear();
+        Arrays.fill(rowKinds, 0, rowWidth, null);
+        Arrays.fill(rowTexts, 0, rowWidth, null);
+        rowWidth = 0;
+    }
+
+    /**
+     * Drops all batch rows.
+     */
+    public void clearBatch() {
+        columns.clear();
+        batchSize = 0;
+        batchBytes = 0;
     }
 }
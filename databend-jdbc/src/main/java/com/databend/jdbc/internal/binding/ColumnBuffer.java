@@ -0,0 +1,188 @@
+package com.databend.jdbc.internal.binding;
+
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+
+/**
+ * Growable storage for the values bound to one parameter position across the rows of a batch.
+ * <p>
+ * Primitive values live in a {@code long[]} (floating point values as their raw bits), text values
+ * in a {@code String[]}, and nulls in a bitmap. Most columns only ever see a single kind of value, so
+ * the per-row kind array is only allocated once a column receives values of different kinds.
+ */
+final class ColumnBuffer {
+    private static final int INITIAL_CAPACITY = 16;
+
+    // kind shared by every non-null row, null until the first non-null value is appended
+    private ParameterKind kind;
+    // per-row kind ordinals, only allocated when the column holds mixed kinds
+    private byte[] kinds;
+    private long[] nulls;
+    private long[] values;
+    private int[] nanos;
+    private String[] texts;
+    private int capacity;
+    private int size;
+
+    ColumnBuffer() {
+        reset();
+    }
+
+    int size() {
+        return size;
+    }
+
+    void append(ParameterKind k, long bits, int nano, String text) {
+        if (size == capacity) {
+            grow();
+        }
+        int row = size++;
+        if (k == ParameterKind.NULL) {
+            nulls[row >>> 6] |= 1L << row;
+            return;
+        }
+        if (kind == null) {
+            kind = k;
+        } else if (kinds == null && kind != k) {
+            kinds = new byte[capacity];
+            Arrays.fill(kinds, 0, row, (byte) kind.ordinal());
+        }
+        if (kinds != null) {
+            kinds[row] = (byte) k.ordinal();
+        }
+        if (k.hasText()) {
+            if (texts == null) {
+                texts = new String[capacity];
+            }
+            texts[row] = text;
+        } else {
+            if (values == null) {
+                values = new long[capacity];
+            }
+            values[row] = bits;
+            if (k == ParameterKind.TIMESTAMP) {
+                if (nanos == null) {
+                    nanos = new int[capacity];
+                }
+                nanos[row] = nano;
+            }
+        }
+    }
+
+    ParameterKind kindAt(int row) {
+        if ((nulls[row >>> 6] & (1L << row)) != 0) {
+            return ParameterKind.NULL;
+        }
+        return kinds == null ? kind : ParameterKind.of(kinds[row]);
+    }
+
+    String literalAt(int row) {
+        ParameterKind k = kindAt(row);
+        return k.toLiteral(bitsAt(k, row), nanosAt(k, row), textAt(k, row));
+    }
+
+    /**
+     * Appends the CSV field of a row. Numbers, booleans, dates and timestamps never need quoting
+     * and are written without going through an intermediate String.
+     */
+    void appendCsv(int row, StringBuilder sb) {
+        ParameterKind k = kindAt(row);
+        switch (k) {
+            case UNSET:
+                return;
+            case BOOLEAN:
+                sb.append(values[row] != 0);
+                return;
+            case LONG:
+                sb.append(values[row]);
+                return;
+            case FLOAT:
+                sb.append(Float.intBitsToFloat((int) values[row]));
+                return;
+            case DOUBLE:
+                sb.append(Double.longBitsToDouble(values[row]));
+                return;
+            case TIMESTAMP:
+                DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochSecond(values[row], nanos[row]), sb);
+                return;
+            case RAW:
+            case QUOTED:
+            case STRING:
+                appendCsvText(texts[row], sb);
+                return;
+            default:
+                sb.append(k.toCsv(bitsAt(k, row), 0, null));
+        }
+    }
+
+    // same quoting rules as the FastCSV writer used before: quote fields containing the separator,
+    // the quote character or line breaks, and leave empty fields unquoted
+    private static void appendCsvText(String text, StringBuilder sb) {
+        boolean quote = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                quote = true;
+                break;
+            }
+        }
+        if (!quote) {
+            sb.append(text);
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                sb.append('"');
+            }
+            sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    long bitsAt(ParameterKind k, int row) {
+        return k.hasText() || values == null ? 0 : values[row];
+    }
+
+    int nanosAt(ParameterKind k, int row) {
+        return k == ParameterKind.TIMESTAMP ? nanos[row] : 0;
+    }
+
+    String textAt(ParameterKind k, int row) {
+        return k.hasText() ? texts[row] : null;
+    }
+
+    private void reset() {
+        kind = null;
+        kinds = null;
+        values = null;
+        nanos = null;
+        texts = null;
+        capacity = INITIAL_CAPACITY;
+        nulls = new long[bitmapWords(capacity)];
+        size = 0;
+    }
+
+    private void grow() {
+        capacity = capacity << 1;
+        nulls = Arrays.copyOf(nulls, bitmapWords(capacity));
+        if (kinds != null) {
+            kinds = Arrays.copyOf(kinds, capacity);
+        }
+        if (values != null) {
+            values = Arrays.copyOf(values, capacity);
+        }
+        if (nanos != null) {
+            nanos = Arrays.copyOf(nanos, capacity);
+        }
+        if (texts != null) {
+            texts = Arrays.copyOf(texts, capacity);
+        }
+    }
+
+    private static int bitmapWords(int capacity) {
+        return (capacity + 63) >>> 6;
+    }
+}
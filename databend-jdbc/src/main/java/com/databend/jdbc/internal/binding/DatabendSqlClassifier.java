@@ -1,5 +1,8 @@
 package com.databend.jdbc.internal.binding;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Optional;
 
 public final class DatabendSqlClassifier {
@@ -69,10 +72,32 @@ public final class DatabendSqlClassifier {
 
         TokenCursor cursor = new TokenCursor(sql);
         Token first = cursor.next();
-        if (first == null) {
+        if (first == null || !openInsertTargetColumns(first, cursor)) {
             return Optional.empty();
         }
-        return countInsertTargetColumns(first, cursor);
+        return cursor.countCommaSeparatedItemsAfterOpen();
+    }
+
+    /**
+     * Names of the target columns of an INSERT or REPLACE whose VALUES hold exactly one placeholder
+     * per column, so the parameters of a batch row map to the columns by position. Unquoted names are
+     * lower-cased as the server does.
+     */
+    public static Optional<List<String>> insertTargetColumnNames(String sql) {
+        if (sql == null || sql.trim().isEmpty()) {
+            return Optional.empty();
+        }
+
+        TokenCursor cursor = new TokenCursor(sql);
+        Token first = cursor.next();
+        if (first == null || !openInsertTargetColumns(first, cursor)) {
+            return Optional.empty();
+        }
+        Optional<List<String>> names = cursor.readNamesAfterOpen();
+        if (!names.isPresent() || !cursor.valuesArePlaceholders(names.get().size())) {
+            return Optional.empty();
+        }
+        return names;
     }
 
     private static Classification classifyStatement(Token first, TokenCursor cursor) {
@@ -101,30 +126,31 @@ public final class DatabendSqlClassifier {
         return OTHER;
     }
 
-    private static Optional<Integer> countInsertTargetColumns(Token first, TokenCursor cursor) {
+    // moves the cursor past the opening parenthesis of the target column list
+    private static boolean openInsertTargetColumns(Token first, TokenCursor cursor) {
         if (first.matches("SETTINGS")) {
             Token next = cursor.next();
             if (next != null && next.isSymbol("(")) {
                 if (!cursor.skipBalancedAfterOpen()) {
-                    return Optional.empty();
+                    return false;
                 }
                 next = cursor.next();
             }
-            return next == null ? Optional.<Integer>empty() : countInsertTargetColumns(next, cursor);
+            return next != null && openInsertTargetColumns(next, cursor);
         }
 
         if (first.matches("WITH")) {
             Token statementToken = cursor.findTopLevelStatementAfterWith();
-            return statementToken == null ? Optional.<Integer>empty() : countInsertTargetColumns(statementToken, cursor);
+            return statementToken != null && openInsertTargetColumns(statementToken, cursor);
         }
 
         if (first.matches("INSERT")) {
-            return countInsertColumns(cursor);
+            return openInsertColumns(cursor);
         }
         if (first.matches("REPLACE")) {
-            return countReplaceColumns(cursor);
+            return openReplaceColumns(cursor);
         }
-        return Optional.empty();
+        return false;
     }
 
     private static boolean isQueryStatement(Token first, TokenCursor cursor) {
@@ -152,13 +178,13 @@ public final class DatabendSqlClassifier {
                 || first.matches("CALL");
     }
 
-    private static Optional<Integer> countInsertColumns(TokenCursor cursor) {
+    private static boolean openInsertColumns(TokenCursor cursor) {
         Token token = cursor.next();
         if (token != null && token.matches("OVERWRITE")) {
             token = cursor.next();
         }
         if (token == null || !token.matches("INTO")) {
-            return Optional.empty();
+            return false;
         }
 
         token = cursor.next();
@@ -166,30 +192,24 @@ public final class DatabendSqlClassifier {
             token = cursor.next();
         }
         if (!cursor.skipQualifiedName(token)) {
-            return Optional.empty();
+            return false;
         }
 
         token = cursor.next();
-        if (token == null || !token.isSymbol("(")) {
-            return Optional.empty();
-        }
-        return cursor.countCommaSeparatedItemsAfterOpen();
+        return token != null && token.isSymbol("(");
     }
 
-    private static Optional<Integer> countReplaceColumns(TokenCursor cursor) {
+    private static boolean openReplaceColumns(TokenCursor cursor) {
         Token token = cursor.next();
         if (token != null && token.matches("INTO")) {
             token = cursor.next();
         }
         if (!cursor.skipQualifiedName(token)) {
-            return Optional.empty();
+            return false;
         }
 
         token = cursor.next();
-        if (token == null || !token.isSymbol("(")) {
-            return Optional.empty();
-        }
-        return cursor.countCommaSeparatedItemsAfterOpen();
+        return token != null && token.isSymbol("(");
     }
 
     private static Classification classifyInsert(TokenCursor cursor) {
@@ -383,6 +403,57 @@ public final class DatabendSqlClassifier {
             return null;
         }
 
+        private Optional<List<String>> readNamesAfterOpen() {
+            List<String> names = new ArrayList<>();
+            while (true) {
+                Token name = next();
+                if (!isIdentifierToken(name)) {
+                    return Optional.empty();
+                }
+                names.add(name.kind == TokenKind.WORD ? name.text.toLowerCase(Locale.ENGLISH) : name.text);
+                Token separator = next();
+                if (separator == null) {
+                    return Optional.empty();
+                }
+                if (separator.isSymbol(")")) {
+                    return Optional.of(names);
+                }
+                if (!separator.isSymbol(",")) {
+                    return Optional.empty();
+                }
+            }
+        }
+
+        // skips to the top level VALUES keyword, which must be followed by a single row of
+        // count placeholders
+        private boolean valuesArePlaceholders(int count) {
+            int depth = 0;
+            Token token;
+            while ((token = next()) != null && !(depth == 0 && token.matches("VALUES"))) {
+                if (token.isSymbol("(")) {
+                    depth++;
+                } else if (token.isSymbol(")")) {
+                    depth--;
+                }
+            }
+            token = next();
+            if (token == null || !token.isSymbol("(")) {
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                token = next();
+                if (token == null || !token.isSymbol("?")) {
+                    return false;
+                }
+                token = next();
+                if (token == null || !token.isSymbol(i == count - 1 ? ")" : ",")) {
+                    return false;
+                }
+            }
+            token = next();
+            return token == null || (token.isSymbol(";") && onlyEndRemains());
+        }
+
         private boolean skipQualifiedName(Token first) {
             if (!isIdentifierToken(first)) {
                 return false;
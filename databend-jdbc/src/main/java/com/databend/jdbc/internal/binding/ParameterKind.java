@@ -0,0 +1,78 @@
+package com.databend.jdbc.internal.binding;
+
+import java.time.Instant;
+import java.time.LocalDate;
+
+/**
+ * Kind of a bound PreparedStatement parameter. Values are kept in their primitive form and only
+ * rendered as SQL literal or CSV field when a statement or batch is encoded.
+ */
+enum ParameterKind {
+    UNSET,
+    NULL,
+    BOOLEAN,
+    LONG,
+    FLOAT,
+    DOUBLE,
+    // days since epoch
+    DATE,
+    // seconds since epoch, nanos are kept separately
+    TIMESTAMP,
+    // text used as is, e.g. numbers that are already formatted
+    RAW,
+    // text wrapped in single quotes without escaping
+    QUOTED,
+    // text wrapped in single quotes with single quotes escaped
+    STRING;
+
+    static final String CSV_NULL = "\\N";
+    private static final ParameterKind[] VALUES = values();
+
+    static ParameterKind of(int ordinal) {
+        return VALUES[ordinal];
+    }
+
+    boolean hasText() {
+        return this == RAW || this == QUOTED || this == STRING;
+    }
+
+    String toLiteral(long bits, int nanos, String text) {
+        switch (this) {
+            case UNSET:
+                return null;
+            case NULL:
+                return "null";
+            case QUOTED:
+            case DATE:
+            case TIMESTAMP:
+                return "'" + toCsv(bits, nanos, text) + "'";
+            case STRING:
+                return StatementUtil.quoteStringLiteral(text);
+            default:
+                return toCsv(bits, nanos, text);
+        }
+    }
+
+    String toCsv(long bits, int nanos, String text) {
+        switch (this) {
+            case UNSET:
+                return null;
+            case NULL:
+                return CSV_NULL;
+            case BOOLEAN:
+                return Boolean.toString(bits != 0);
+            case LONG:
+                return Long.toString(bits);
+            case FLOAT:
+                return Float.toString(Float.intBitsToFloat((int) bits));
+            case DOUBLE:
+                return Double.toString(Double.longBitsToDouble(bits));
+            case DATE:
+                return LocalDate.ofEpochDay(bits).toString();
+            case TIMESTAMP:
+                return Instant.ofEpochSecond(bits, nanos).toString();
+            default:
+                return text;
+        }
+    }
+}
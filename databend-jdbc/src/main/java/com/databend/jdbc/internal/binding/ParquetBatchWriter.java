@@ -0,0 +1,410 @@
+package com.databend.jdbc.internal.binding;
+
+import com.databend.jdbc.internal.UploadCompression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Writes batch rows as a Parquet file: one row group, one PLAIN encoded data page per column and
+ * every column optional. Columns whose rows all hold the same kind of value get the matching
+ * physical type, {@code INT64} for longs, {@code DATE} and {@code TIMESTAMP_MICROS} for dates and
+ * timestamps and so on; any other column is written as UTF-8 text, which the server casts to the
+ * type of the target column as it does for CSV.
+ * <p>
+ * Only the small subset of the format needed here is implemented, the metadata is written with the
+ * Thrift compact protocol straight from this class.
+ */
+final class ParquetBatchWriter {
+    private static final byte[] MAGIC = {'P', 'A', 'R', '1'};
+    private static final String CREATED_BY = "databend-jdbc";
+
+    // parquet.thrift Type
+    private static final int TYPE_BOOLEAN = 0;
+    private static final int TYPE_INT32 = 1;
+    private static final int TYPE_INT64 = 2;
+    private static final int TYPE_FLOAT = 4;
+    private static final int TYPE_DOUBLE = 5;
+    private static final int TYPE_BYTE_ARRAY = 6;
+    // parquet.thrift ConvertedType
+    private static final int CONVERTED_UTF8 = 0;
+    private static final int CONVERTED_DATE = 6;
+    private static final int CONVERTED_TIMESTAMP_MICROS = 10;
+    private static final int REPETITION_OPTIONAL = 1;
+    private static final int ENCODING_PLAIN = 0;
+    private static final int ENCODING_RLE = 3;
+    private static final int PAGE_DATA = 0;
+
+    private ParquetBatchWriter() {
+    }
+
+    /**
+     * Writes rows {@code [fromRow, toRow)} of {@code columns}, named by {@code names} in the same
+     * order, to {@code out}. Pages are compressed with {@code compression}.
+     */
+    static void write(OutputStream out, List<ColumnBuffer> columns, List<String> names, int fromRow, int toRow,
+            UploadCompression compression) throws IOException {
+        if (columns.size() > names.size()) {
+            throw new IllegalArgumentException("batch binds " + columns.size() + " parameters but only "
+                    + names.size() + " columns are named");
+        }
+        int rows = toRow - fromRow;
+        int width = columns.size();
+        ParameterKind[] kinds = new ParameterKind[width];
+        int[] types = new int[width];
+        long[] offsets = new long[width];
+        long[] uncompressedSizes = new long[width];
+        long[] compressedSizes = new long[width];
+
+        out.write(MAGIC);
+        long offset = MAGIC.length;
+        for (int i = 0; i < width; i++) {
+            ColumnBuffer column = columns.get(i);
+            ParameterKind kind = typedKind(column, fromRow, toRow);
+            kinds[i] = kind;
+            types[i] = physicalType(kind);
+
+            ByteArrayOutputStream page = new ByteArrayOutputStream();
+            writeDefinitionLevels(page, column, fromRow, toRow);
+            writeValues(page, column, kind, fromRow, toRow);
+            byte[] data = page.toByteArray();
+            byte[] compressed = compress(data, compression);
+            byte[] header = pageHeader(data.length, compressed.length, rows);
+            out.write(header);
+            out.write(compressed);
+
+            offsets[i] = offset;
+            uncompressedSizes[i] = header.length + data.length;
+            compressedSizes[i] = header.length + compressed.length;
+            offset += compressedSizes[i];
+        }
+
+        CompactWriter footer = new CompactWriter();
+        footer.writeI32(1, 1);
+        footer.beginList(2, CompactWriter.STRUCT, width + 1);
+        footer.beginElement();
+        footer.writeString(4, "schema");
+        footer.writeI32(5, width);
+        footer.endStruct();
+        for (int i = 0; i < width; i++) {
+            footer.beginElement();
+            footer.writeI32(1, types[i]);
+            footer.writeI32(3, REPETITION_OPTIONAL);
+            footer.writeString(4, names.get(i));
+            int convertedType = convertedType(kinds[i]);
+            if (convertedType >= 0) {
+                footer.writeI32(6, convertedType);
+            }
+            footer.endStruct();
+        }
+        footer.writeI64(3, rows);
+        footer.beginList(4, CompactWriter.STRUCT, 1);
+        footer.beginElement();
+        footer.beginList(1, CompactWriter.STRUCT, width);
+        long totalBytes = 0;
+        for (int i = 0; i < width; i++) {
+            footer.beginElement();
+            footer.writeI64(2, offsets[i]);
+            footer.beginStruct(3);
+            footer.writeI32(1, types[i]);
+            footer.beginList(2, CompactWriter.I32, 2);
+            footer.writeListI32(ENCODING_PLAIN);
+            footer.writeListI32(ENCODING_RLE);
+            footer.beginList(3, CompactWriter.BINARY, 1);
+            footer.writeListString(names.get(i));
+            footer.writeI32(4, codec(compression));
+            footer.writeI64(5, rows);
+            footer.writeI64(6, uncompressedSizes[i]);
+            footer.writeI64(7, compressedSizes[i]);
+            footer.writeI64(9, offsets[i]);
+            footer.endStruct();
+            footer.endStruct();
+            totalBytes += uncompressedSizes[i];
+        }
+        footer.writeI64(2, totalBytes);
+        footer.writeI64(3, rows);
+        footer.endStruct();
+        footer.writeString(6, CREATED_BY);
+        footer.endStruct();
+
+        byte[] metadata = footer.toByteArray();
+        out.write(metadata);
+        writeIntLE(out, metadata.length);
+        out.write(MAGIC);
+        out.flush();
+    }
+
+    // the kind shared by all non-null rows when it has a typed Parquet representation, null otherwise
+    private static ParameterKind typedKind(ColumnBuffer column, int fromRow, int toRow) {
+        ParameterKind typed = null;
+        for (int r = fromRow; r < toRow; r++) {
+            ParameterKind k = column.kindAt(r);
+            if (k == ParameterKind.NULL || k == ParameterKind.UNSET) {
+                continue;
+            }
+            if (k.hasText() || (typed != null && typed != k)) {
+                return null;
+            }
+            typed = k;
+        }
+        return typed;
+    }
+
+    private static int physicalType(ParameterKind kind) {
+        if (kind == null) {
+            return TYPE_BYTE_ARRAY;
+        }
+        switch (kind) {
+            case BOOLEAN:
+                return TYPE_BOOLEAN;
+            case FLOAT:
+                return TYPE_FLOAT;
+            case DOUBLE:
+                return TYPE_DOUBLE;
+            case DATE:
+                return TYPE_INT32;
+            default:
+                return TYPE_INT64;
+        }
+    }
+
+    private static int convertedType(ParameterKind kind) {
+        if (kind == null) {
+            return CONVERTED_UTF8;
+        }
+        switch (kind) {
+            case DATE:
+                return CONVERTED_DATE;
+            case TIMESTAMP:
+                return CONVERTED_TIMESTAMP_MICROS;
+            default:
+                return -1;
+        }
+    }
+
+    private static int codec(UploadCompression compression) {
+        switch (compression) {
+            case GZIP:
+                return 2;
+            case ZSTD:
+                return 6;
+            default:
+                return 0;
+        }
+    }
+
+    private static boolean isNull(ColumnBuffer column, int row) {
+        ParameterKind k = column.kindAt(row);
+        return k == ParameterKind.NULL || k == ParameterKind.UNSET;
+    }
+
+    // RLE/bit-packed hybrid levels of a data page v1, as bit-packed runs of bit width 1
+    private static void writeDefinitionLevels(ByteArrayOutputStream page, ColumnBuffer column, int fromRow, int toRow)
+            throws IOException {
+        int groups = (toRow - fromRow + 7) / 8;
+        ByteArrayOutputStream levels = new ByteArrayOutputStream(groups + 5);
+        writeVarint(levels, ((long) groups << 1) | 1);
+        int bits = 0;
+        int count = 0;
+        for (int r = fromRow; r < toRow; r++) {
+            if (!isNull(column, r)) {
+                bits |= 1 << count;
+            }
+            if (++count == 8) {
+                levels.write(bits);
+                bits = 0;
+                count = 0;
+            }
+        }
+        if (count > 0) {
+            levels.write(bits);
+        }
+        writeIntLE(page, levels.size());
+        levels.writeTo(page);
+    }
+
+    private static void writeValues(ByteArrayOutputStream page, ColumnBuffer column, ParameterKind kind,
+            int fromRow, int toRow) throws IOException {
+        if (kind == ParameterKind.BOOLEAN) {
+            int bits = 0;
+            int count = 0;
+            for (int r = fromRow; r < toRow; r++) {
+                if (isNull(column, r)) {
+                    continue;
+                }
+                if (column.bitsAt(kind, r) != 0) {
+                    bits |= 1 << count;
+                }
+                if (++count == 8) {
+                    page.write(bits);
+                    bits = 0;
+                    count = 0;
+                }
+            }
+            if (count > 0) {
+                page.write(bits);
+            }
+            return;
+        }
+        for (int r = fromRow; r < toRow; r++) {
+            if (isNull(column, r)) {
+                continue;
+            }
+            if (kind == null) {
+                ParameterKind k = column.kindAt(r);
+                byte[] text = k.toCsv(column.bitsAt(k, r), column.nanosAt(k, r), column.textAt(k, r))
+                        .getBytes(StandardCharsets.UTF_8);
+                writeIntLE(page, text.length);
+                page.write(text);
+                continue;
+            }
+            long bits = column.bitsAt(kind, r);
+            switch (kind) {
+                case FLOAT:
+                case DATE:
+                    writeIntLE(page, (int) bits);
+                    break;
+                case TIMESTAMP:
+                    writeLongLE(page, Math.addExact(Math.multiplyExact(bits, 1_000_000L), column.nanosAt(kind, r) / 1000));
+                    break;
+                default:
+                    writeLongLE(page, bits);
+            }
+        }
+    }
+
+    private static byte[] compress(byte[] data, UploadCompression compression) throws IOException {
+        if (compression == UploadCompression.NONE) {
+            return data;
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+        try (OutputStream out = compression.wrap(compressed)) {
+            out.write(data);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static byte[] pageHeader(int uncompressedSize, int compressedSize, int rows) {
+        CompactWriter header = new CompactWriter();
+        header.writeI32(1, PAGE_DATA);
+        header.writeI32(2, uncompressedSize);
+        header.writeI32(3, compressedSize);
+        header.beginStruct(5);
+        header.writeI32(1, rows);
+        header.writeI32(2, ENCODING_PLAIN);
+        header.writeI32(3, ENCODING_RLE);
+        header.writeI32(4, ENCODING_RLE);
+        header.endStruct();
+        header.endStruct();
+        return header.toByteArray();
+    }
+
+    private static void writeIntLE(OutputStream out, int v) throws IOException {
+        out.write(v);
+        out.write(v >>> 8);
+        out.write(v >>> 16);
+        out.write(v >>> 24);
+    }
+
+    private static void writeLongLE(OutputStream out, long v) throws IOException {
+        writeIntLE(out, (int) v);
+        writeIntLE(out, (int) (v >>> 32));
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    /**
+     * Thrift compact protocol output of the few field types the Parquet metadata needs. The top level
+     * struct is open from the start and closed by the last {@link #endStruct()}.
+     */
+    private static final class CompactWriter {
+        static final int I32 = 5;
+        static final int I64 = 6;
+        static final int BINARY = 8;
+        static final int LIST = 9;
+        static final int STRUCT = 12;
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final Deque<Integer> lastFieldIds = new ArrayDeque<>();
+        private int lastFieldId;
+
+        void writeI32(int id, int v) {
+            fieldHeader(id, I32);
+            writeListI32(v);
+        }
+
+        void writeI64(int id, long v) {
+            fieldHeader(id, I64);
+            writeVarint(out, (v << 1) ^ (v >> 63));
+        }
+
+        void writeString(int id, String v) {
+            fieldHeader(id, BINARY);
+            writeListString(v);
+        }
+
+        void beginStruct(int id) {
+            fieldHeader(id, STRUCT);
+            beginElement();
+        }
+
+        /**
+         * Starts a struct that is an element of a list, so it has no field header.
+         */
+        void beginElement() {
+            lastFieldIds.push(lastFieldId);
+            lastFieldId = 0;
+        }
+
+        void endStruct() {
+            out.write(0);
+            lastFieldId = lastFieldIds.isEmpty() ? 0 : lastFieldIds.pop();
+        }
+
+        void beginList(int id, int elementType, int size) {
+            fieldHeader(id, LIST);
+            if (size < 15) {
+                out.write((size << 4) | elementType);
+            } else {
+                out.write(0xF0 | elementType);
+                writeVarint(out, size);
+            }
+        }
+
+        void writeListI32(int v) {
+            writeVarint(out, ((v << 1) ^ (v >> 31)) & 0xFFFFFFFFL);
+        }
+
+        void writeListString(String v) {
+            byte[] bytes = v.getBytes(StandardCharsets.UTF_8);
+            writeVarint(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+
+        private void fieldHeader(int id, int type) {
+            int delta = id - lastFieldId;
+            if (delta > 0 && delta <= 15) {
+                out.write((delta << 4) | type);
+            } else {
+                out.write(type);
+                writeVarint(out, (id << 1) ^ (id >> 31));
+            }
+            lastFieldId = id;
+        }
+    }
+}
@@ -32,6 +32,14 @@ public final class StatementUtil {
         return DatabendSqlClassifier.isQuery(cleanSql);
     }
 
+    /**
+     * Quotes {@code text} as a SQL string literal the way string parameters are bound, escaping
+     * single quotes with a backslash.
+     */
+    public static String quoteStringLiteral(String text) {
+        return "'" + (text.contains("'") ? text.replace("'", "\\'") : text) + "'";
+    }
+
     public static int getParameterCount(String sql) {
         return getParameterCount(sql, parseToRawStatementWrapper(sql));
     }
@@ -0,0 +1,13 @@
+package com.databend.jdbc.internal.http;
+
+import java.net.ConnectException;
+
+/**
+ * A request that was not sent because the circuit breaker of its endpoint is open. Like a refused
+ * connection it never reached the server, so it may go to another node.
+ */
+public final class CircuitBreakerOpenException extends ConnectException {
+    public CircuitBreakerOpenException(String message) {
+        super(message);
+    }
+}
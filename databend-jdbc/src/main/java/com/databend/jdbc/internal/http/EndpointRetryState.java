@@ -0,0 +1,248 @@
+package com.databend.jdbc.internal.http;
+
+import com.google.common.base.Ticker;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * The retry budget and the circuit breaker of one endpoint, that is one node or gateway and the
+ * tenant and warehouse behind it, shared by all requests of the JVM to it, so that the clients back
+ * off together during an outage instead of multiplying its load.
+ * <p>
+ * The retry budget is a token bucket as in gRPC retry throttling: every failed attempt takes a
+ * token, every successful one gives back a tenth of a token, and retries are only made while more
+ * than half of the tokens are left. A healthy endpoint retries its occasional failures, an
+ * unhealthy one gets about one request per request of the application. Hedged requests take a token
+ * when they are sent and are throttled the same way, so at most about one in ten requests is hedged
+ * for long.
+ * <p>
+ * The circuit breaker is off unless {@link RetryConfig#getCircuitBreakerThreshold()} is set. It
+ * opens after that many attempts in a row that could not reach the endpoint: connect failures and
+ * 502 responses. A busy warehouse answering 429 or 503, or a long poll timing out, only takes from
+ * the retry budget. While it is open the requests fail at once without being sent. After
+ * {@link RetryConfig#getCircuitBreakerOpenMillis()} one request is let through, and another one each
+ * time that long passes while the first is still in flight; when a request gets an answer the
+ * breaker closes, otherwise it opens again.
+ */
+public final class EndpointRetryState {
+    private static final Logger logger = Logger.getLogger(EndpointRetryState.class.getPackage().getName());
+    private static final double TOKENS_PER_SUCCESS = 0.1;
+
+    public enum CircuitState {
+        CLOSED,
+        OPEN,
+        // one request is on its way to find out whether the endpoint recovered
+        HALF_OPEN
+    }
+
+    private final String endpoint;
+    private final Ticker ticker;
+    // guarded by this
+    private double tokens = -1;
+    private int retryBudget;
+    private int consecutiveFailures;
+    private CircuitState circuitState = CircuitState.CLOSED;
+    private long openedAtNanos;
+    private long probeStartedNanos;
+    // a probe ended without an outcome, the next request probes again
+    private boolean probeDue;
+    private long retries;
+    private long throttledRetries;
+    private long hedges;
+    private long throttledHedges;
+    private long rejectedRequests;
+    private long circuitOpenings;
+
+    EndpointRetryState(String endpoint, Ticker ticker) {
+        this.endpoint = endpoint;
+        this.ticker = ticker;
+    }
+
+    /**
+     * @return whether a request may be sent, false while the circuit breaker is open
+     */
+    synchronized boolean tryAcquire(RetryConfig config) {
+        if (config.getCircuitBreakerThreshold() == 0) {
+            return true;
+        }
+        switch (circuitState) {
+            case OPEN:
+                if (probeDue || ticker.read() - openedAtNanos >= TimeUnit.MILLISECONDS.toNanos(config.getCircuitBreakerOpenMillis())) {
+                    circuitState = CircuitState.HALF_OPEN;
+                    probeDue = false;
+                    probeStartedNanos = ticker.read();
+                    return true;
+                }
+                rejectedRequests++;
+                return false;
+            case HALF_OPEN:
+                // the probe may be a long poll, so the requests wait at most one open time for it
+                if (ticker.read() - probeStartedNanos >= TimeUnit.MILLISECONDS.toNanos(config.getCircuitBreakerOpenMillis())) {
+                    probeStartedNanos = ticker.read();
+                    return true;
+                }
+                rejectedRequests++;
+                return false;
+            case CLOSED:
+            default:
+                return true;
+        }
+    }
+
+    synchronized void onSuccess(RetryConfig config) {
+        capTokens(config);
+        tokens = Math.min(config.getRetryBudget(), tokens + TOKENS_PER_SUCCESS);
+        onReachable();
+    }
+
+    /**
+     * @param unreachable whether the attempt could not reach the endpoint, rather than being turned
+     *                    down or timed out by a busy one
+     */
+    synchronized void onFailure(RetryConfig config, boolean unreachable) {
+        capTokens(config);
+        tokens = Math.max(0, tokens - 1);
+        if (!unreachable) {
+            onReachable();
+            return;
+        }
+        consecutiveFailures++;
+        if (config.getCircuitBreakerThreshold() == 0) {
+            return;
+        }
+        if (circuitState == CircuitState.HALF_OPEN
+                || (circuitState == CircuitState.CLOSED && consecutiveFailures >= config.getCircuitBreakerThreshold())) {
+            logger.warning("circuit breaker of " + endpoint + " opened after " + consecutiveFailures + " failures");
+            circuitState = CircuitState.OPEN;
+            openedAtNanos = ticker.read();
+            circuitOpenings++;
+        }
+    }
+
+    private void onReachable() {
+        consecutiveFailures = 0;
+        if (circuitState != CircuitState.CLOSED) {
+            logger.info("circuit breaker of " + endpoint + " closed");
+            circuitState = CircuitState.CLOSED;
+        }
+    }
+
+    /**
+     * Ends a request whose outcome tells nothing about the endpoint, e.g. one that was interrupted.
+     */
+    synchronized void release() {
+        if (circuitState == CircuitState.HALF_OPEN) {
+            circuitState = CircuitState.OPEN;
+            probeDue = true;
+        }
+    }
+
+    /**
+     * @return whether the budget allows another attempt after a failed one
+     */
+    synchronized boolean tryRetry(RetryConfig config) {
+        capTokens(config);
+        if (config.getRetryBudget() > 0 && tokens <= config.getRetryBudget() / 2.0) {
+            throttledRetries++;
+            return false;
+        }
+        retries++;
+        return true;
+    }
+
+    /**
+     * @return whether the budget allows a hedged request, a duplicate of a request still in flight,
+     *         which takes a token like a failed attempt
+     */
+    synchronized boolean tryHedge(RetryConfig config) {
+        capTokens(config);
+        if (config.getRetryBudget() > 0 && tokens <= config.getRetryBudget() / 2.0) {
+            throttledHedges++;
+            return false;
+        }
+        tokens = Math.max(0, tokens - 1);
+        hedges++;
+        return true;
+    }
+
+    // the bucket starts full, and shrinks when a connection with a smaller budget uses the endpoint
+    private void capTokens(RetryConfig config) {
+        retryBudget = config.getRetryBudget();
+        if (tokens < 0 || tokens > retryBudget) {
+            tokens = retryBudget;
+        }
+    }
+
+    /**
+     * @return whether the endpoint is as good as new: its bucket is full and its circuit breaker
+     *         closed, so the state can be dropped and created again when needed
+     */
+    synchronized boolean isIdle() {
+        return circuitState == CircuitState.CLOSED && consecutiveFailures == 0
+                && (tokens < 0 || tokens >= retryBudget);
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public synchronized CircuitState getCircuitState() {
+        return circuitState;
+    }
+
+    public synchronized double getRetryTokens() {
+        return Math.max(tokens, 0);
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * @return the retries made after failed attempts
+     */
+    public synchronized long getRetries() {
+        return retries;
+    }
+
+    /**
+     * @return the retries the budget did not allow
+     */
+    public synchronized long getThrottledRetries() {
+        return throttledRetries;
+    }
+
+    /**
+     * @return the hedged requests sent while another request for the same data was in flight
+     */
+    public synchronized long getHedges() {
+        return hedges;
+    }
+
+    /**
+     * @return the hedged requests the budget did not allow
+     */
+    public synchronized long getThrottledHedges() {
+        return throttledHedges;
+    }
+
+    /**
+     * @return the requests that failed without being sent because the circuit breaker was open
+     */
+    public synchronized long getRejectedRequests() {
+        return rejectedRequests;
+    }
+
+    public synchronized long getCircuitOpenings() {
+        return circuitOpenings;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return endpoint + "{circuit=" + circuitState + ", retryTokens=" + getRetryTokens()
+                + ", retries=" + retries + ", throttledRetries=" + throttledRetries
+                + ", hedges=" + hedges + ", throttledHedges=" + throttledHedges
+                + ", rejectedRequests=" + rejectedRequests + ", circuitOpenings=" + circuitOpenings + "}";
+    }
+}
@@ -0,0 +1,56 @@
+package com.databend.jdbc.internal.http;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Request body sending {@code count} bytes of a file starting at {@code position}. The bytes are
+ * read with positional {@link FileChannel#transferTo} calls, so the body can be written again when a
+ * request is retried and several bodies can share one channel.
+ */
+public final class FileRangeRequestBody extends RequestBody {
+    private static final MediaType OCTET_STREAM = MediaType.parse("application/octet-stream");
+
+    private final FileChannel channel;
+    private final long position;
+    private final long count;
+
+    public FileRangeRequestBody(FileChannel channel, long position, long count) {
+        this.channel = requireNonNull(channel, "channel is null");
+        this.position = position;
+        this.count = count;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return OCTET_STREAM;
+    }
+
+    @Override
+    public long contentLength() {
+        return count;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        long written = 0;
+        while (written < count) {
+            long n = channel.transferTo(position + written, count - written, sink);
+            if (n <= 0) {
+                if (position + written >= channel.size()) {
+                    throw new EOFException("File ended at " + (position + written) + ", expected "
+                            + (position + count) + " bytes");
+                }
+                continue;
+            }
+            written += n;
+        }
+    }
+}
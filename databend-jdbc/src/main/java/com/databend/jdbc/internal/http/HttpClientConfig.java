@@ -0,0 +1,193 @@
+package com.databend.jdbc.internal.http;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+
+/**
+ * Settings of the HTTP client that talks to the query nodes. The driver keeps one client per
+ * distinct settings, so all connections with equal settings share its connection pool.
+ */
+public final class HttpClientConfig {
+    // the defaults of OkHttp, which the driver used before these settings existed
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+    public static final int DEFAULT_KEEP_ALIVE_SECS = 300;
+    public static final int DEFAULT_MAX_REQUESTS = 64;
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 5;
+
+    private final int maxIdleConnections;
+    private final int keepAliveSecs;
+    private final HttpProtocol protocol;
+    private final int maxRequests;
+    private final int maxRequestsPerHost;
+
+    private HttpClientConfig(Builder builder) {
+        this.maxIdleConnections = builder.maxIdleConnections;
+        this.keepAliveSecs = builder.keepAliveSecs;
+        this.protocol = builder.protocol;
+        this.maxRequests = builder.maxRequests;
+        this.maxRequestsPerHost = builder.maxRequestsPerHost;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static HttpClientConfig defaults() {
+        return builder().build();
+    }
+
+    public int getMaxIdleConnections() {
+        return maxIdleConnections;
+    }
+
+    public int getKeepAliveSecs() {
+        return keepAliveSecs;
+    }
+
+    public HttpProtocol getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * @return the asynchronous requests, e.g. heartbeats, that run at the same time, more wait in the
+     *         queue of the dispatcher
+     */
+    public int getMaxRequests() {
+        return maxRequests;
+    }
+
+    /**
+     * @return the asynchronous requests to one host that run at the same time
+     */
+    public int getMaxRequestsPerHost() {
+        return maxRequestsPerHost;
+    }
+
+    /**
+     * Applies the settings to {@code builder}, which gets a connection pool and a dispatcher of its own.
+     */
+    public OkHttpClient.Builder configure(OkHttpClient.Builder builder) {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(maxRequests);
+        dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+        return builder
+                .connectionPool(new ConnectionPool(maxIdleConnections, keepAliveSecs, TimeUnit.SECONDS))
+                .dispatcher(dispatcher)
+                .protocols(protocol.protocols);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof HttpClientConfig)) {
+            return false;
+        }
+        HttpClientConfig that = (HttpClientConfig) o;
+        return maxIdleConnections == that.maxIdleConnections
+                && keepAliveSecs == that.keepAliveSecs
+                && protocol == that.protocol
+                && maxRequests == that.maxRequests
+                && maxRequestsPerHost == that.maxRequestsPerHost;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(maxIdleConnections, keepAliveSecs, protocol, maxRequests, maxRequestsPerHost);
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("maxIdleConnections", maxIdleConnections)
+                .add("keepAliveSecs", keepAliveSecs)
+                .add("protocol", protocol.value())
+                .add("maxRequests", maxRequests)
+                .add("maxRequestsPerHost", maxRequestsPerHost)
+                .toString();
+    }
+
+    public enum HttpProtocol {
+        // HTTP/1.1 only
+        HTTP1(Collections.singletonList(Protocol.HTTP_1_1)),
+        // HTTP/2 when a TLS server offers it, HTTP/1.1 otherwise
+        H2(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)),
+        // HTTP/2 without TLS, the server must speak it without an upgrade
+        H2C(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+
+        private final List<Protocol> protocols;
+
+        HttpProtocol(List<Protocol> protocols) {
+            this.protocols = protocols;
+        }
+
+        public static HttpProtocol fromValue(String value) {
+            return HttpProtocol.valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+        }
+
+        public String value() {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    public static final class Builder {
+        private int maxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+        private int keepAliveSecs = DEFAULT_KEEP_ALIVE_SECS;
+        private HttpProtocol protocol = HttpProtocol.H2;
+        private int maxRequests = DEFAULT_MAX_REQUESTS;
+        private int maxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+
+        public Builder setMaxIdleConnections(int maxIdleConnections) {
+            this.maxIdleConnections = maxIdleConnections;
+            return this;
+        }
+
+        public Builder setKeepAliveSecs(int keepAliveSecs) {
+            this.keepAliveSecs = keepAliveSecs;
+            return this;
+        }
+
+        public Builder setProtocol(HttpProtocol protocol) {
+            this.protocol = protocol;
+            return this;
+        }
+
+        public Builder setMaxRequests(int maxRequests) {
+            this.maxRequests = maxRequests;
+            return this;
+        }
+
+        public Builder setMaxRequestsPerHost(int maxRequestsPerHost) {
+            this.maxRequestsPerHost = maxRequestsPerHost;
+            return this;
+        }
+
+        public HttpClientConfig build() {
+            if (maxIdleConnections < 0) {
+                throw new IllegalArgumentException("maxIdleConnections must not be negative: " + maxIdleConnections);
+            }
+            if (keepAliveSecs <= 0) {
+                throw new IllegalArgumentException("keepAliveSecs must be positive: " + keepAliveSecs);
+            }
+            if (maxRequests <= 0) {
+                throw new IllegalArgumentException("maxRequests must be positive: " + maxRequests);
+            }
+            if (maxRequestsPerHost <= 0) {
+                throw new IllegalArgumentException("maxRequestsPerHost must be positive: " + maxRequestsPerHost);
+            }
+            return new HttpClientConfig(this);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.databend.jdbc.internal.http;
+
+import com.databend.jdbc.internal.UploadCompression;
+import com.github.luben.zstd.ZstdInputStream;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compression of the bodies of the query requests and their responses, negotiated with the
+ * {@code Content-Encoding} and {@code Accept-Encoding} headers.
+ * <p>
+ * OkHttp asks for gzip and inflates it on its own unless a request sets {@code Accept-Encoding};
+ * requests that ask for zstd, or for no compression, set the header themselves, and their responses
+ * are decoded by {@link #readBody(Response)}.
+ */
+public final class HttpCompression {
+    public static final String CONTENT_ENCODING = "Content-Encoding";
+    public static final String ACCEPT_ENCODING = "Accept-Encoding";
+    // smaller bodies are sent as they are, compressing them saves less than a packet
+    static final int MIN_COMPRESSED_SIZE = 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private HttpCompression() {
+    }
+
+    /**
+     * Sets {@code content} as the POST body of {@code builder}, compressed with {@code compression}
+     * when it is large enough to be worth it.
+     */
+    public static Request.Builder post(Request.Builder builder, MediaType mediaType, String content, UploadCompression compression)
+            throws IOException {
+        byte[] body = content.getBytes(StandardCharsets.UTF_8);
+        if (compression == null || compression == UploadCompression.NONE || body.length < MIN_COMPRESSED_SIZE) {
+            return builder.post(RequestBody.create(mediaType, body));
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4);
+        try (OutputStream out = compression.wrap(compressed)) {
+            out.write(body);
+        }
+        return builder.header(CONTENT_ENCODING, compression.value())
+                .post(RequestBody.create(mediaType, compressed.toByteArray()));
+    }
+
+    /**
+     * Asks for responses compressed with {@code preferred}; gzip is what OkHttp asks for anyway.
+     */
+    public static Request.Builder acceptEncoding(Request.Builder builder, UploadCompression preferred) {
+        if (preferred == UploadCompression.ZSTD) {
+            return builder.header(ACCEPT_ENCODING, "zstd, gzip");
+        }
+        if (preferred == UploadCompression.NONE) {
+            return builder.header(ACCEPT_ENCODING, "identity");
+        }
+        return builder;
+    }
+
+    /**
+     * @return the body of {@code response}, decoded when the server compressed it
+     */
+    public static byte[] readBody(Response response) throws IOException {
+        ResponseBody body = response.body();
+        if (body == null) {
+            return new byte[0];
+        }
+        return decode(response.header(CONTENT_ENCODING), body.bytes());
+    }
+
+    static byte[] decode(String contentEncoding, byte[] body) throws IOException {
+        if (contentEncoding == null || body.length == 0) {
+            return body;
+        }
+        String encoding = contentEncoding.trim().toLowerCase(Locale.ENGLISH);
+        InputStream in;
+        switch (encoding) {
+            case "":
+            case "identity":
+                return body;
+            case "gzip":
+                in = new GZIPInputStream(new ByteArrayInputStream(body), BUFFER_SIZE);
+                break;
+            case "zstd":
+                in = new ZstdInputStream(new ByteArrayInputStream(body));
+                break;
+            default:
+                throw new IOException("Unsupported Content-Encoding of response: " + contentEncoding);
+        }
+        try (InputStream decoded = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 4);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = decoded.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+}
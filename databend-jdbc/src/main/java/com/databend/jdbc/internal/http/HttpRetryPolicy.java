@@ -1,25 +1,43 @@
 package com.databend.jdbc.internal.http;
 
 import com.databend.jdbc.internal.error.CloudErrors;
+import com.databend.jdbc.internal.session.QueryRequestConfig;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import okhttp3.Call;
 import okhttp3.Headers;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.ConnectException;
+import java.net.NoRouteToHostException;
 import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
-import java.util.Arrays;
-import java.util.List;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
+/**
+ * Sends a request and retries it after transient failures. Retries wait with decorrelated jitter,
+ * or as long as a {@code Retry-After} header asks, and are limited by the retry budget and the
+ * circuit breaker of the endpoint, see {@link EndpointRetryState}.
+ */
 public class HttpRetryPolicy {
     private static final Logger logger = Logger.getLogger(HttpRetryPolicy.class.getPackage().getName());
 
@@ -43,23 +61,50 @@ public class HttpRetryPolicy {
         }
     }
 
-    private static final Random RANDOM = new Random();
-    private static final int MAX_ATTEMPTS = 3;
-    private static final long INITIAL_INTERVAL = 1000;
-    private static final double MULTIPLIER = 4.0;
-    private static final long MAX_INTERVAL = 30000;
-    private static final List<String> ERROR_KEYWORDS = Arrays.asList(
-            "unexpected end of stream",
-            "timeout",
-            "connection refused"
-    );
+    // beyond this many endpoints, the ones with a full retry budget and a closed circuit breaker are dropped
+    @VisibleForTesting
+    static final int MAX_ENDPOINT_STATES = 1000;
+    private static final ConcurrentMap<String, EndpointRetryState> endpointStates = new ConcurrentHashMap<>();
 
     private final boolean ignore404;
     private final boolean retry503;
+    private final boolean retryConnectFailure;
+    private final RetryConfig retryConfig;
+    private final Ticker ticker;
+    private final Sleeper sleeper;
 
     public HttpRetryPolicy(boolean ignore404, boolean retry503) {
+        this(ignore404, retry503, true);
+    }
+
+    /**
+     * @param retryConnectFailure false to give up at once when the server cannot be reached, e.g.
+     *                            when another node can take the request instead
+     */
+    public HttpRetryPolicy(boolean ignore404, boolean retry503, boolean retryConnectFailure) {
+        this(ignore404, retry503, retryConnectFailure, RetryConfig.defaults());
+    }
+
+    public HttpRetryPolicy(boolean ignore404, boolean retry503, boolean retryConnectFailure, RetryConfig retryConfig) {
+        this(ignore404, retry503, retryConnectFailure, retryConfig, Ticker.systemTicker(), MILLISECONDS::sleep);
+    }
+
+    @VisibleForTesting
+    HttpRetryPolicy(boolean ignore404, boolean retry503, boolean retryConnectFailure, RetryConfig retryConfig,
+            Ticker ticker, Sleeper sleeper) {
         this.ignore404 = ignore404;
         this.retry503 = retry503;
+        this.retryConnectFailure = retryConnectFailure;
+        this.retryConfig = retryConfig;
+        this.ticker = ticker;
+        this.sleeper = sleeper;
+    }
+
+    /**
+     * @return the retry budgets and circuit breakers of the endpoints the driver sent requests to
+     */
+    public static Collection<EndpointRetryState> endpointStates() {
+        return new ArrayList<>(endpointStates.values());
     }
 
     public boolean shouldIgnore(int code) {
@@ -71,7 +116,7 @@ public class HttpRetryPolicy {
     }
 
     public boolean shouldRetry(int code, String body) {
-        if (retry503 && isRetryableHttpStatus(code)) {
+        if (retry503 && (isRetryableHttpStatus(code) || code == 429)) {
             return true;
         }
         CloudErrors errors = CloudErrors.tryParse(body);
@@ -88,68 +133,290 @@ public class HttpRetryPolicy {
         if (e instanceof SocketTimeoutException) {
             return true;
         }
-        if (e.getCause() instanceof ConnectException) {
+        if (e instanceof ConnectException || e.getCause() instanceof ConnectException) {
             return true;
         }
-        String msg = e.getMessage();
-        if (msg == null) {
-            return false;
+        // "unexpected end of stream": the server closed a pooled connection before it answered
+        return e instanceof EOFException || e.getCause() instanceof EOFException;
+    }
+
+    /**
+     * Whether {@code e} or one of its causes shows that a request never reached the server, so that
+     * it can be sent to another node without running twice.
+     */
+    public static boolean isConnectFailure(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException
+                    || cause instanceof NoRouteToHostException
+                    || cause instanceof UnknownHostException) {
+                return true;
+            }
+            if (cause instanceof SocketTimeoutException && "connect timed out".equals(cause.getMessage())) {
+                return true;
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether a request failed because the server is too busy to answer it in time
+     */
+    public static boolean isOverloadFailure(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException && !"connect timed out".equals(cause.getMessage())) {
+                return true;
+            }
+            if (cause instanceof RetryableHttpStatusException) {
+                int code = ((RetryableHttpStatusException) cause).getStatusCode();
+                if (code == 429 || code == 503) {
+                    return true;
+                }
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
         }
-        return ERROR_KEYWORDS.stream().anyMatch(msg::contains);
+        return false;
     }
 
     public boolean shouldRetry(IOException e) {
+        if (!retryConnectFailure && isConnectFailure(e)) {
+            return false;
+        }
         return isRetryableIOException(e);
     }
 
-    private static long calculateBackoffInterval(int attempts) {
-        long baseInterval = (long) (INITIAL_INTERVAL * Math.pow(MULTIPLIER, attempts - 2));
-        baseInterval = Math.min(baseInterval, MAX_INTERVAL);
-        double jitter = 1.0 - RANDOM.nextDouble() * 0.3;
-        return (long) (baseInterval * jitter);
+    /**
+     * The pause before the next attempt with decorrelated jitter: random between the shortest
+     * pause and three times the previous one, so that clients failing together spread out.
+     */
+    static long nextBackoff(long previousMillis, RetryConfig config, Random random) {
+        long base = config.getBackoffMillis();
+        long upper = Math.max(base, Math.min(config.getMaxBackoffMillis(), previousMillis * 3));
+        return upper == base ? base : base + (long) (random.nextDouble() * (upper - base));
+    }
+
+    /**
+     * @return the pause a 429 or 503 response asks for in its {@code Retry-After} header, in seconds
+     *         or as an HTTP date, or -1 without a valid header
+     */
+    static long retryAfterMillis(String value, long nowMillis) {
+        if (value == null || value.trim().isEmpty()) {
+            return -1;
+        }
+        String trimmed = value.trim();
+        try {
+            long seconds = Long.parseLong(trimmed);
+            return seconds < 0 ? -1 : seconds * 1000;
+        } catch (NumberFormatException e) {
+            // an HTTP date
+        }
+        try {
+            long at = ZonedDateTime.parse(trimmed, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            return Math.max(0, at - nowMillis);
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    // a gateway serves many tenants and warehouses, one busy warehouse must not hold up the others
+    private static String endpointOf(Request request) {
+        StringBuilder endpoint = new StringBuilder()
+                .append(request.url().scheme()).append("://").append(request.url().host()).append(":").append(request.url().port());
+        String tenant = request.header(QueryRequestConfig.DATABEND_TENANT_HEADER);
+        if (tenant != null) {
+            endpoint.append(" tenant=").append(tenant);
+        }
+        String warehouse = request.header(QueryRequestConfig.DATABEND_WAREHOUSE_HEADER);
+        if (warehouse != null) {
+            endpoint.append(" warehouse=").append(warehouse);
+        }
+        return endpoint.toString();
+    }
+
+    @VisibleForTesting
+    EndpointRetryState stateOf(String endpoint) {
+        EndpointRetryState state = endpointStates.get(endpoint);
+        if (state != null) {
+            return state;
+        }
+        if (endpointStates.size() >= MAX_ENDPOINT_STATES) {
+            endpointStates.values().removeIf(EndpointRetryState::isIdle);
+        }
+        return endpointStates.computeIfAbsent(endpoint, key -> new EndpointRetryState(key, ticker));
+    }
+
+    /**
+     * @return whether the retry budget of the endpoint of {@code request} allows to send a duplicate
+     *         of it while it is in flight; a hedged request takes a token of the budget
+     */
+    public boolean tryHedge(Request request) {
+        return stateOf(endpointOf(request)).tryHedge(retryConfig);
+    }
+
+    /**
+     * Sends {@code call} once, its outcome counts for the retry state of the endpoint like an attempt
+     * of {@link #sendRequestWithRetry}. A call that was cancelled leaves the state alone.
+     *
+     * @throws IOException the request failed or was answered with another status than 200
+     */
+    public ResponseWithBody execute(Call call) throws IOException {
+        String endpoint = endpointOf(call.request());
+        EndpointRetryState state = stateOf(endpoint);
+        if (!state.tryAcquire(retryConfig)) {
+            throw new CircuitBreakerOpenException("circuit breaker of " + endpoint + " is open");
+        }
+        boolean done = false;
+        try (Response response = call.execute()) {
+            int code = response.code();
+            byte[] body = HttpCompression.readBody(response);
+            if (code == 200) {
+                state.onSuccess(retryConfig);
+                done = true;
+                return new ResponseWithBody(response, body);
+            }
+            String text = new String(body, StandardCharsets.UTF_8);
+            String failReason = String.format("status_code = %s, body = %s", code, text);
+            if (shouldRetry(code, text)) {
+                state.onFailure(retryConfig, code == 502);
+                done = true;
+                throw new RetryableHttpStatusException(code, failReason);
+            }
+            state.onSuccess(retryConfig);
+            done = true;
+            throw new NonRetryableHttpStatusException(code, failReason);
+        } catch (IOException e) {
+            if (!done && !call.isCanceled() && (isRetryableIOException(e) || isConnectFailure(e))) {
+                state.onFailure(retryConfig, isConnectFailure(e));
+                done = true;
+            }
+            throw e;
+        } finally {
+            if (!done) {
+                state.release();
+            }
+        }
     }
 
     public ResponseWithBody sendRequestWithRetry(OkHttpClient httpClient, Request request) throws SQLException {
-        String failReason = null;
-        Throwable cause = null;
-        int attempts = 1;
+        return sendRequestWithRetry(httpClient, request, 0, null);
+    }
+
+    /**
+     * Goes on with a request that was already sent {@code attemptsMade} times with
+     * {@link #execute(Call)}, the last time failing with {@code lastFailure}. Those attempts count
+     * against the max attempts, so the request is sent at most that often in all.
+     */
+    public ResponseWithBody sendRequestWithRetry(OkHttpClient httpClient, Request request, int attemptsMade,
+            IOException lastFailure) throws SQLException {
+        String endpoint = endpointOf(request);
+        EndpointRetryState state = stateOf(endpoint);
+        int maxAttempts = retryConfig.getMaxAttempts();
+        String failReason = lastFailure == null ? null : lastFailure.getMessage();
+        Throwable cause = lastFailure;
+        int attempts = attemptsMade + 1;
         long start = System.currentTimeMillis();
-        for (; attempts <= MAX_ATTEMPTS; attempts++) {
+        long backoff = retryConfig.getBackoffMillis();
+        // a one-shot body is consumed by the first attempt
+        boolean replayable = request.body() == null || !request.body().isOneShot();
+        if (lastFailure != null) {
+            if (!replayable || !shouldRetry(lastFailure) || attemptsMade >= maxAttempts) {
+                attempts = attemptsMade;
+            } else if (!state.tryRetry(retryConfig)) {
+                failReason += ", retry budget of " + endpoint + " exhausted";
+                attempts = attemptsMade;
+            }
+        }
+        for (; attempts > attemptsMade && attempts <= maxAttempts; attempts++) {
             if (attempts > 1) {
                 try {
-                    long interval = calculateBackoffInterval(attempts);
-                    logger.log(Level.INFO, "Execute attempt #" + attempts + ", after " + interval + "ms");
-                    MILLISECONDS.sleep(interval);
+                    logger.log(Level.INFO, "Execute attempt #" + attempts + ", after " + backoff + "ms");
+                    sleeper.sleep(backoff);
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                     throw new SQLException("Thread Interrupted");
                 }
             }
+            if (!state.tryAcquire(retryConfig)) {
+                cause = new CircuitBreakerOpenException("circuit breaker of " + endpoint + " is open");
+                failReason = cause.getMessage();
+                break;
+            }
+            boolean done = false;
             try (Response response = httpClient.newCall(request).execute()) {
                 int code = response.code();
                 if (code != 200) {
                     if (shouldIgnore(code)) {
+                        state.onSuccess(retryConfig);
+                        done = true;
                         return new ResponseWithBody(response, new byte[0]);
                     }
-                    String body = response.body().string();
-                    if (!shouldRetry(code, body) || attempts == MAX_ATTEMPTS) {
-                        failReason = String.format("status_code = %s, body = %s", code, body);
+                    String body = new String(HttpCompression.readBody(response), StandardCharsets.UTF_8);
+                    boolean retryable = shouldRetry(code, body);
+                    if (retryable) {
+                        // 502 is the gateway not reaching the node, a busy warehouse answers 429 or 503
+                        state.onFailure(retryConfig, code == 502);
+                    } else {
+                        // the server answered, whatever it thinks of the request
+                        state.onSuccess(retryConfig);
+                    }
+                    done = true;
+                    failReason = String.format("status_code = %s, body = %s", code, body);
+                    cause = retryable
+                            ? new RetryableHttpStatusException(code, failReason)
+                            : new NonRetryableHttpStatusException(code, failReason);
+                    if (!replayable || !retryable || attempts == maxAttempts) {
                         break;
                     }
+                    backoff = nextBackoff(backoff, retryConfig, ThreadLocalRandom.current());
+                    long retryAfter = retryAfterMillis(response.header("Retry-After"), System.currentTimeMillis());
+                    if (retryAfter > retryConfig.getMaxBackoffMillis()) {
+                        failReason += ", Retry-After " + response.header("Retry-After") + " is longer than the max backoff";
+                        break;
+                    }
+                    backoff = Math.max(backoff, retryAfter);
                 } else {
-                    byte[] body = response.body().bytes();
+                    byte[] body = HttpCompression.readBody(response);
+                    state.onSuccess(retryConfig);
+                    done = true;
                     return new ResponseWithBody(response, body);
                 }
             } catch (IOException e) {
+                if (!done) {
+                    if (isRetryableIOException(e) || isConnectFailure(e)) {
+                        // a read timeout may be a long poll of a busy warehouse
+                        state.onFailure(retryConfig, isConnectFailure(e));
+                    } else {
+                        state.release();
+                    }
+                    done = true;
+                }
                 failReason = e.getMessage();
                 cause = e;
-                if (!shouldRetry(e) || attempts == MAX_ATTEMPTS) {
+                if (!replayable || !shouldRetry(e) || attempts == maxAttempts) {
                     break;
                 }
+                backoff = nextBackoff(backoff, retryConfig, ThreadLocalRandom.current());
+            } finally {
+                if (!done) {
+                    state.release();
+                }
+            }
+            if (!state.tryRetry(retryConfig)) {
+                failReason += ", retry budget of " + endpoint + " exhausted";
+                break;
             }
         }
         long elapsed = System.currentTimeMillis() - start;
-        String msg = String.format("Error accessing %s: %s after %s attempts (totally %s msecs)", request.url(), failReason, attempts, elapsed);
+        String msg = String.format("Error accessing %s: %s after %s attempts (totally %s msecs)", request.url(), failReason, Math.min(attempts, maxAttempts), elapsed);
         throw new SQLException(msg, cause);
     }
+
+    @VisibleForTesting
+    interface Sleeper {
+        void sleep(long millis) throws InterruptedException;
+    }
 }
@@ -0,0 +1,414 @@
+package com.databend.jdbc.internal.http;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import okhttp3.Headers;
+import okhttp3.Response;
+import okio.BufferedSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Downloads a presigned object with concurrent HTTP range requests.
+ * <p>
+ * The first range is requested right away and its {@code Content-Range} header tells the object
+ * size; the remaining ranges are fetched by up to {@code parallelism} workers. A range that fails
+ * is requested again from the first missing byte, at most three times; these
+ * requests are sent once by the {@link PresignClient}, so that its own retries do not add up with
+ * the ones of the range. When the object store ignores the {@code Range} header the object is read
+ * from that single response.
+ * <p>
+ * All ranges after the first are requested with {@code If-Match} and the {@code ETag} of the first
+ * response, so an object replaced during the download fails it instead of mixing two versions.
+ */
+public final class ParallelRangeDownloader {
+    private static final Logger logger = Logger.getLogger(ParallelRangeDownloader.class.getPackage().getName());
+    private static final int RANGE_ATTEMPTS = 3;
+    public static final int MAX_RANGE_SIZE = Integer.MAX_VALUE - 8;
+    // a range of a stream is held in one array, up to parallelism + 1 of them at a time
+    static final int MAX_STREAM_RANGE_SIZE = 4 << 20;
+    private static final ExecutorService executorService = newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("Databend JDBC range download-%s").setDaemon(true).build());
+
+    private final PresignClient client;
+    private final Headers headers;
+    private final String url;
+    private final int rangeSize;
+    private final int streamRangeSize;
+    private final int parallelism;
+
+    public ParallelRangeDownloader(PresignClient client, Headers headers, String url, int rangeSize, int parallelism) {
+        this.client = requireNonNull(client, "client is null");
+        this.headers = requireNonNull(headers, "headers is null");
+        this.url = requireNonNull(url, "url is null");
+        if (rangeSize <= 0 || rangeSize > MAX_RANGE_SIZE) {
+            throw new IllegalArgumentException("rangeSize must be between 1 and " + MAX_RANGE_SIZE + ": " + rangeSize);
+        }
+        this.rangeSize = rangeSize;
+        this.streamRangeSize = Math.min(rangeSize, MAX_STREAM_RANGE_SIZE);
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Writes the object to {@code target} starting at its current position: every worker transfers
+     * its ranges from the response into the channel at their offset. The channel position is moved
+     * past the object afterwards.
+     *
+     * @return the object size
+     */
+    public long downloadTo(FileChannel target) throws IOException {
+        long base = target.position();
+        long total;
+        String etag;
+        Response first = client.presignRangeDownload(headers, url, 0, rangeSize - 1);
+        try {
+            if (first.code() == 416) {
+                return 0;
+            }
+            if (first.code() != 206) {
+                long size = writeRange(first.body().source(), target, base, Long.MAX_VALUE);
+                target.position(base + size);
+                return size;
+            }
+            total = objectSize(first);
+            etag = etagOf(first);
+            if (total > 0) {
+                // transferFrom writes nothing at an offset past the end of the file
+                target.write(ByteBuffer.wrap(new byte[1]), base + total - 1);
+            }
+            copyRange(first, etag, target, base, 0, Math.min(rangeSize, total));
+        } finally {
+            first.close();
+        }
+
+        List<long[]> ranges = new ArrayList<>();
+        for (long start = rangeSize; start < total; start += rangeSize) {
+            ranges.add(new long[] {start, Math.min(start + rangeSize, total)});
+        }
+        AtomicLong nextRange = new AtomicLong();
+        AtomicBoolean failed = new AtomicBoolean();
+        List<Future<Void>> workers = new ArrayList<>();
+        for (int i = 0; i < Math.min(parallelism, ranges.size()); i++) {
+            workers.add(executorService.submit(() -> {
+                int index;
+                while (!failed.get() && (index = (int) nextRange.getAndIncrement()) < ranges.size()) {
+                    long[] range = ranges.get(index);
+                    try {
+                        copyRange(null, etag, target, base, range[0], range[1]);
+                    } catch (IOException | RuntimeException e) {
+                        failed.set(true);
+                        throw e;
+                    }
+                }
+                return null;
+            }));
+        }
+        IOException failure = null;
+        for (Future<Void> worker : workers) {
+            try {
+                await(worker);
+            } catch (IOException e) {
+                failed.set(true);
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        target.position(base + total);
+        return total;
+    }
+
+    /**
+     * Returns a stream of the object. Ranges are fetched ahead by the workers and handed out in
+     * order; at most {@code parallelism} ranges besides the one being read are held in memory, each
+     * of them at most 4 MiB whatever the range size.
+     */
+    public InputStream openStream() throws IOException {
+        Response first = client.presignRangeDownload(headers, url, 0, streamRangeSize - 1);
+        if (first.code() == 416) {
+            first.close();
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        if (first.code() != 206) {
+            return first.body().byteStream();
+        }
+        long total;
+        String etag;
+        byte[] firstRange;
+        try {
+            total = objectSize(first);
+            etag = etagOf(first);
+            firstRange = readRange(first, etag, 0, Math.min(streamRangeSize, total), new AtomicBoolean());
+        } finally {
+            first.close();
+        }
+        return new ReorderingInputStream(firstRange, total, etag);
+    }
+
+    private void copyRange(Response initial, String etag, FileChannel target, long base, long start, long end)
+            throws IOException {
+        long done = 0;
+        for (int attempt = 1; ; attempt++) {
+            Response response = null;
+            try {
+                response = attempt == 1 && initial != null
+                        ? initial
+                        : client.presignRangeDownload(headers, url, start + done, end - 1, etag);
+                checkPartial(response, start + done);
+                done += writeRange(response.body().source(), target, base + start + done, end - start - done);
+                if (start + done < end) {
+                    throw new EOFException("Range " + start + "-" + (end - 1) + " ended after " + done + " bytes");
+                }
+                return;
+            } catch (IOException e) {
+                retryOrThrow(e, attempt, start, end);
+            } finally {
+                if (response != null) {
+                    response.close();
+                }
+            }
+        }
+    }
+
+    // end - start is at most streamRangeSize
+    private byte[] readRange(Response initial, String etag, long start, long end, AtomicBoolean cancelled)
+            throws IOException {
+        byte[] data = new byte[(int) (end - start)];
+        int done = 0;
+        for (int attempt = 1; ; attempt++) {
+            checkCancelled(cancelled);
+            Response response = null;
+            try {
+                response = attempt == 1 && initial != null
+                        ? initial
+                        : client.presignRangeDownload(headers, url, start + done, end - 1, etag);
+                checkPartial(response, start + done);
+                BufferedSource source = response.body().source();
+                while (done < data.length) {
+                    checkCancelled(cancelled);
+                    int n = source.read(data, done, data.length - done);
+                    if (n == -1) {
+                        throw new EOFException("Range " + start + "-" + (end - 1) + " ended after " + done + " bytes");
+                    }
+                    done += n;
+                }
+                return data;
+            } catch (IOException e) {
+                retryOrThrow(e, attempt, start, end);
+            } finally {
+                if (response != null) {
+                    response.close();
+                }
+            }
+        }
+    }
+
+    private void retryOrThrow(IOException e, int attempt, long start, long end) throws IOException {
+        if (e instanceof NonRetryableHttpStatusException || attempt >= RANGE_ATTEMPTS) {
+            throw e;
+        }
+        logger.info("retry range " + start + "-" + (end - 1) + " #" + attempt + " due to: " + e);
+        try {
+            MILLISECONDS.sleep(200L * attempt);
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException exception = new InterruptedIOException("Range download was interrupted");
+            exception.initCause(interrupted);
+            throw exception;
+        }
+    }
+
+    // stops short of count only at the end of the body
+    private static long writeRange(BufferedSource source, FileChannel target, long position, long count)
+            throws IOException {
+        long written = 0;
+        while (written < count) {
+            long n = target.transferFrom(source, position + written, count - written);
+            if (n == 0) {
+                break;
+            }
+            written += n;
+        }
+        return written;
+    }
+
+    private static void checkCancelled(AtomicBoolean cancelled) throws InterruptedIOException {
+        if (cancelled.get()) {
+            throw new InterruptedIOException("Range download was cancelled");
+        }
+    }
+
+    private static void checkPartial(Response response, long start) throws IOException {
+        if (response.code() != 206) {
+            throw new NonRetryableHttpStatusException("Presign request failed: range request from " + start
+                    + " answered with " + response.code() + " " + response.message());
+        }
+    }
+
+    // a weak ETag cannot be used with If-Match
+    private static String etagOf(Response response) {
+        String etag = response.header("ETag");
+        if (etag == null || etag.startsWith("W/")) {
+            return null;
+        }
+        return etag;
+    }
+
+    static long objectSize(Response response) throws IOException {
+        // bytes <first>-<last>/<size>
+        String contentRange = response.header("Content-Range");
+        int slash = contentRange == null ? -1 : contentRange.lastIndexOf('/');
+        if (slash < 0 || "*".equals(contentRange.substring(slash + 1).trim())) {
+            throw new IOException("Presign request failed: missing object size in Content-Range: " + contentRange);
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Presign request failed: invalid Content-Range: " + contentRange, e);
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException exception = new InterruptedIOException("Range download was interrupted");
+            exception.initCause(e);
+            throw exception;
+        } catch (ExecutionException | CancellationException e) {
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Range download failed: " + cause.getMessage(), cause);
+        }
+    }
+
+    private final class ReorderingInputStream extends InputStream {
+        private final long total;
+        private final String etag;
+        private final Deque<Future<byte[]>> ahead = new ArrayDeque<>();
+        // stops the reads ahead that already started
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private long nextStart;
+        private byte[] current;
+        private int position;
+        private boolean closed;
+        private IOException failure;
+
+        private ReorderingInputStream(byte[] firstRange, long total, String etag) {
+            this.current = firstRange;
+            this.total = total;
+            this.etag = etag;
+            this.nextStart = firstRange.length;
+            while (ahead.size() < parallelism && scheduleNext()) {
+                // fill the read-ahead window
+            }
+        }
+
+        private boolean scheduleNext() {
+            if (nextStart >= total) {
+                return false;
+            }
+            long start = nextStart;
+            long end = Math.min(start + streamRangeSize, total);
+            ahead.addLast(executorService.submit(() -> readRange(null, etag, start, end, cancelled)));
+            nextStart = end;
+            return true;
+        }
+
+        private boolean ensureData() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            while (position == current.length) {
+                Future<byte[]> next = ahead.pollFirst();
+                if (next == null) {
+                    return false;
+                }
+                try {
+                    current = await(next);
+                } catch (IOException e) {
+                    // the ranges after a missing one are of no use
+                    failure = e;
+                    cancelAhead();
+                    throw e;
+                }
+                position = 0;
+                scheduleNext();
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!ensureData()) {
+                return -1;
+            }
+            return current[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!ensureData()) {
+                return -1;
+            }
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return closed ? 0 : current.length - position;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            cancelAhead();
+            current = new byte[0];
+            position = 0;
+        }
+
+        private void cancelAhead() {
+            cancelled.set(true);
+            for (Future<byte[]> future : ahead) {
+                future.cancel(true);
+            }
+            ahead.clear();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.databend.jdbc.internal.http;
 
+import okhttp3.ConnectionPool;
 import okhttp3.Headers;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
@@ -19,6 +20,8 @@ import java.io.InterruptedIOException;
 import java.nio.file.Files;
 import java.time.Duration;
 import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -32,21 +35,53 @@ public class PresignClient {
 
     private static final int MaxRetryAttempts = 5;
     private static final int MAX_ERROR_BODY_LENGTH = 1024;
-    private final OkHttpClient client;
     private static final Logger logger = Logger.getLogger(PresignClient.class.getPackage().getName());
+    // presigned transfers share the dispatcher of this client, connection pools are per config
+    private static final OkHttpClient BASE_CLIENT = new OkHttpClient.Builder()
+            .retryOnConnectionFailure(true)
+            .build();
+    private static final ConcurrentMap<PresignClientConfig, PresignClient> SHARED_CLIENTS = new ConcurrentHashMap<>();
+
+    private final OkHttpClient client;
 
+    /**
+     * @deprecated use {@link #shared(PresignClientConfig)}, which reuses pooled connections across transfers
+     */
+    @Deprecated
     public PresignClient()
+    {
+        this(PresignClientConfig.defaults());
+    }
+
+    private PresignClient(PresignClientConfig config)
     {
         Logger.getLogger(OkHttpClient.class.getName()).setLevel(Level.FINEST);
-        this.client = new OkHttpClient.Builder()
-                .connectTimeout(30, TimeUnit.SECONDS)
-                .writeTimeout(300, TimeUnit.SECONDS)
-                .readTimeout(300, TimeUnit.SECONDS)
-                .retryOnConnectionFailure(true)
-                .protocols(Arrays.asList(Protocol.HTTP_1_1))
+        this.client = BASE_CLIENT.newBuilder()
+                .connectionPool(new ConnectionPool(config.getMaxIdleConnections(), config.getKeepAliveSecs(), TimeUnit.SECONDS))
+                .connectTimeout(config.getConnectTimeoutSecs(), TimeUnit.SECONDS)
+                .writeTimeout(config.getSocketTimeoutSecs(), TimeUnit.SECONDS)
+                .readTimeout(config.getSocketTimeoutSecs(), TimeUnit.SECONDS)
+                .protocols(config.isHttp2()
+                        ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)
+                        : Arrays.asList(Protocol.HTTP_1_1))
                 .build();
     }
 
+    /**
+     * Driver-wide client for the given settings. Its connection pool is kept across transfers and
+     * connections, so repeated uploads to the object store reuse warm TCP/TLS connections.
+     */
+    public static PresignClient shared(PresignClientConfig config)
+    {
+        requireNonNull(config, "config is null");
+        return SHARED_CLIENTS.computeIfAbsent(config, PresignClient::new);
+    }
+
+    OkHttpClient getHttpClient()
+    {
+        return client;
+    }
+
     private void uploadFromStream(InputStream inputStream, Headers headers, String presignedUrl, long fileSize)
             throws IOException
     {
@@ -65,6 +100,18 @@ public class PresignClient {
 
     private ResponseBody executeInternal(Request request, boolean shouldClose)
             throws IOException
+    {
+        return execute(request, shouldClose).body();
+    }
+
+    private Response execute(Request request, boolean shouldClose)
+            throws IOException
+    {
+        return execute(request, shouldClose, MaxRetryAttempts);
+    }
+
+    private Response execute(Request request, boolean shouldClose, int maxRetries)
+            throws IOException
     {
         requireNonNull(request, "request is null");
         long start = System.nanoTime();
@@ -74,8 +121,9 @@ public class PresignClient {
             Response response = null;
             try {
                 response = client.newCall(request).execute();
-                if (response.isSuccessful()) {
-                    return response.body();
+                // an unsatisfiable range means the object is shorter than the range, e.g. empty
+                if (response.isSuccessful() || (response.code() == 416 && request.header("Range") != null)) {
+                    return response;
                 }
                 String responseBody = readErrorBody(response);
                 if (response.code() == 401) {
@@ -83,12 +131,17 @@ public class PresignClient {
                             formatFailureMessage("Unauthorized user: " + response.code() + " " + response.message())
                                     + formatErrorBody(responseBody));
                 }
+                else if (response.code() == 412 && request.header("If-Match") != null) {
+                    throw new NonRetryableHttpStatusException(response.code(),
+                            formatFailureMessage("object changed during the download: " + response.code() + " "
+                                    + response.message()));
+                }
                 else if (isRetryablePresignStatus(response.code())) {
                     throw new RetryableHttpStatusException(formatFailureMessage(
                             "service unavailable: " + response.code() + " " + response.message()));
                 }
                 else if (response.code() >= 400) {
-                    throw new NonRetryableHttpStatusException(
+                    throw new NonRetryableHttpStatusException(response.code(),
                             formatFailureMessage("configuration error: " + response.code() + " " + response.message())
                                     + formatErrorBody(responseBody));
                 }
@@ -99,7 +152,7 @@ public class PresignClient {
                 }
             }
             catch (IOException e) {
-                if (!HttpRetryPolicy.isRetryableIOException(e)) {
+                if (!HttpRetryPolicy.isRetryableIOException(e) || maxRetries == 0) {
                     throw e;
                 }
                 if (request.body() != null && request.body().isOneShot()) {
@@ -107,7 +160,7 @@ public class PresignClient {
                     throw retryAbortedIOException(e);
                 }
                 logger.info(format("%s #%s due to: %s", "retry presign request", attempts, e));
-                if (attempts > MaxRetryAttempts) {
+                if (attempts > maxRetries) {
                     Duration sinceStart = Duration.ofNanos(System.nanoTime() - start);
                     logger.warning(formatFailureMessage("error is: " + e));
                     throw new PresignRequestFailedException(
@@ -189,6 +242,21 @@ public class PresignClient {
         }
     }
 
+    /**
+     * Uploads a replayable body, e.g. a {@link FileRangeRequestBody}. Unlike stream uploads, failed
+     * attempts are retried.
+     */
+    public void presignUpload(RequestBody body, Headers headers, String presignedUrl)
+            throws IOException
+    {
+        Request r = new Request.Builder()
+                .url(presignedUrl)
+                .put(body)
+                .headers(headers)
+                .build();
+        executeInternal(r, true);
+    }
+
     public void presignDownload(String destFileName, Headers headers, String presignedUrl)
             throws IOException
     {
@@ -207,6 +275,41 @@ public class PresignClient {
         return responseBody.byteStream();
     }
 
+    /**
+     * GET of the bytes {@code [start, endInclusive]}. Servers that ignore the range answer with
+     * status 200 and the whole object, callers have to check {@link Response#code()}.
+     */
+    Response presignRangeDownload(Headers headers, String presignedUrl, long start, long endInclusive)
+            throws IOException
+    {
+        return execute(rangeRequest(headers, presignedUrl, start, endInclusive, null), false);
+    }
+
+    /**
+     * Like {@link #presignRangeDownload(Headers, String, long, long)}, but fails with a
+     * {@link NonRetryableHttpStatusException} when the object no longer has the ETag {@code ifMatch}.
+     * The request is sent once, failures are left to the caller, which retries the range itself.
+     */
+    Response presignRangeDownload(Headers headers, String presignedUrl, long start, long endInclusive, String ifMatch)
+            throws IOException
+    {
+        return execute(rangeRequest(headers, presignedUrl, start, endInclusive, ifMatch), false, 0);
+    }
+
+    private static Request rangeRequest(Headers headers, String presignedUrl, long start, long endInclusive,
+            String ifMatch)
+    {
+        Request.Builder builder = new Request.Builder()
+                .headers(headers)
+                .header("Range", "bytes=" + start + "-" + endInclusive)
+                .url(presignedUrl)
+                .get();
+        if (ifMatch != null) {
+            builder.header("If-Match", ifMatch);
+        }
+        return builder.build();
+    }
+
     private Request getRequest(Headers headers, String url)
     {
         return new Request.Builder().headers(headers).url(url).get().build();
@@ -0,0 +1,133 @@
+package com.databend.jdbc.internal.http;
+
+import java.util.Objects;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+
+/**
+ * Settings of the HTTP client used for presigned transfers to the object store. Connections that
+ * use equal settings share one client, see {@link PresignClient#shared(PresignClientConfig)}.
+ */
+public final class PresignClientConfig {
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 16;
+    public static final int DEFAULT_KEEP_ALIVE_SECS = 300;
+    public static final int DEFAULT_CONNECT_TIMEOUT_SECS = 30;
+    public static final int DEFAULT_SOCKET_TIMEOUT_SECS = 300;
+
+    private final int maxIdleConnections;
+    private final int keepAliveSecs;
+    private final boolean http2;
+    private final int connectTimeoutSecs;
+    private final int socketTimeoutSecs;
+
+    private PresignClientConfig(Builder builder) {
+        this.maxIdleConnections = builder.maxIdleConnections;
+        this.keepAliveSecs = builder.keepAliveSecs;
+        this.http2 = builder.http2;
+        this.connectTimeoutSecs = builder.connectTimeoutSecs;
+        this.socketTimeoutSecs = builder.socketTimeoutSecs;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static PresignClientConfig defaults() {
+        return builder().build();
+    }
+
+    public int getMaxIdleConnections() {
+        return maxIdleConnections;
+    }
+
+    public int getKeepAliveSecs() {
+        return keepAliveSecs;
+    }
+
+    public boolean isHttp2() {
+        return http2;
+    }
+
+    public int getConnectTimeoutSecs() {
+        return connectTimeoutSecs;
+    }
+
+    public int getSocketTimeoutSecs() {
+        return socketTimeoutSecs;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PresignClientConfig)) {
+            return false;
+        }
+        PresignClientConfig that = (PresignClientConfig) o;
+        return maxIdleConnections == that.maxIdleConnections
+                && keepAliveSecs == that.keepAliveSecs
+                && http2 == that.http2
+                && connectTimeoutSecs == that.connectTimeoutSecs
+                && socketTimeoutSecs == that.socketTimeoutSecs;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(maxIdleConnections, keepAliveSecs, http2, connectTimeoutSecs, socketTimeoutSecs);
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("maxIdleConnections", maxIdleConnections)
+                .add("keepAliveSecs", keepAliveSecs)
+                .add("http2", http2)
+                .add("connectTimeoutSecs", connectTimeoutSecs)
+                .add("socketTimeoutSecs", socketTimeoutSecs)
+                .toString();
+    }
+
+    public static final class Builder {
+        private int maxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+        private int keepAliveSecs = DEFAULT_KEEP_ALIVE_SECS;
+        private boolean http2;
+        private int connectTimeoutSecs = DEFAULT_CONNECT_TIMEOUT_SECS;
+        private int socketTimeoutSecs = DEFAULT_SOCKET_TIMEOUT_SECS;
+
+        public Builder setMaxIdleConnections(int maxIdleConnections) {
+            this.maxIdleConnections = maxIdleConnections;
+            return this;
+        }
+
+        public Builder setKeepAliveSecs(int keepAliveSecs) {
+            this.keepAliveSecs = keepAliveSecs;
+            return this;
+        }
+
+        public Builder setHttp2(boolean http2) {
+            this.http2 = http2;
+            return this;
+        }
+
+        public Builder setConnectTimeoutSecs(int connectTimeoutSecs) {
+            this.connectTimeoutSecs = connectTimeoutSecs;
+            return this;
+        }
+
+        public Builder setSocketTimeoutSecs(int socketTimeoutSecs) {
+            this.socketTimeoutSecs = socketTimeoutSecs;
+            return this;
+        }
+
+        public PresignClientConfig build() {
+            if (maxIdleConnections < 0) {
+                throw new IllegalArgumentException("maxIdleConnections must not be negative: " + maxIdleConnections);
+            }
+            if (keepAliveSecs <= 0) {
+                throw new IllegalArgumentException("keepAliveSecs must be positive: " + keepAliveSecs);
+            }
+            return new PresignClientConfig(this);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.databend.jdbc.internal.http;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+
+/**
+ * How {@link HttpRetryPolicy} retries the requests to the query nodes. The retry budget and the
+ * circuit breaker are kept per endpoint and shared by all connections of the JVM, see
+ * {@link EndpointRetryState}.
+ */
+public final class RetryConfig {
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final int DEFAULT_BACKOFF_MILLIS = 1000;
+    public static final int DEFAULT_MAX_BACKOFF_MILLIS = 30000;
+    public static final int DEFAULT_RETRY_BUDGET = 20;
+    public static final int DEFAULT_CIRCUIT_BREAKER_THRESHOLD = 0;
+    public static final int DEFAULT_CIRCUIT_BREAKER_OPEN_MILLIS = 10000;
+
+    private final int maxAttempts;
+    private final int backoffMillis;
+    private final int maxBackoffMillis;
+    private final int retryBudget;
+    private final int circuitBreakerThreshold;
+    private final int circuitBreakerOpenMillis;
+
+    private RetryConfig(Builder builder) {
+        this.maxAttempts = builder.maxAttempts;
+        this.backoffMillis = builder.backoffMillis;
+        this.maxBackoffMillis = builder.maxBackoffMillis;
+        this.retryBudget = builder.retryBudget;
+        this.circuitBreakerThreshold = builder.circuitBreakerThreshold;
+        this.circuitBreakerOpenMillis = builder.circuitBreakerOpenMillis;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static RetryConfig defaults() {
+        return builder().build();
+    }
+
+    /**
+     * @return the same settings without a circuit breaker, for the requests of queries that already
+     *         run, which must not fail because other requests to the endpoint did
+     */
+    public RetryConfig withoutCircuitBreaker() {
+        if (circuitBreakerThreshold == 0) {
+            return this;
+        }
+        return builder()
+                .setMaxAttempts(maxAttempts)
+                .setBackoffMillis(backoffMillis)
+                .setMaxBackoffMillis(maxBackoffMillis)
+                .setRetryBudget(retryBudget)
+                .setCircuitBreakerThreshold(0)
+                .setCircuitBreakerOpenMillis(circuitBreakerOpenMillis)
+                .build();
+    }
+
+    /**
+     * @return the attempts of a request, including the first one
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @return the shortest pause before a retry, the pauses grow with decorrelated jitter from here
+     */
+    public int getBackoffMillis() {
+        return backoffMillis;
+    }
+
+    public int getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+
+    /**
+     * @return the tokens of the retry budget of an endpoint, 0 to retry without a budget
+     */
+    public int getRetryBudget() {
+        return retryBudget;
+    }
+
+    /**
+     * @return the requests in a row that could not reach the endpoint after which the circuit breaker
+     *         opens, 0 (the default) to disable it
+     */
+    public int getCircuitBreakerThreshold() {
+        return circuitBreakerThreshold;
+    }
+
+    public int getCircuitBreakerOpenMillis() {
+        return circuitBreakerOpenMillis;
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("maxAttempts", maxAttempts)
+                .add("backoffMillis", backoffMillis)
+                .add("maxBackoffMillis", maxBackoffMillis)
+                .add("retryBudget", retryBudget)
+                .add("circuitBreakerThreshold", circuitBreakerThreshold)
+                .add("circuitBreakerOpenMillis", circuitBreakerOpenMillis)
+                .toString();
+    }
+
+    public static final class Builder {
+        private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+        private int backoffMillis = DEFAULT_BACKOFF_MILLIS;
+        private int maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+        private int retryBudget = DEFAULT_RETRY_BUDGET;
+        private int circuitBreakerThreshold = DEFAULT_CIRCUIT_BREAKER_THRESHOLD;
+        private int circuitBreakerOpenMillis = DEFAULT_CIRCUIT_BREAKER_OPEN_MILLIS;
+
+        public Builder setMaxAttempts(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        public Builder setBackoffMillis(int backoffMillis) {
+            this.backoffMillis = backoffMillis;
+            return this;
+        }
+
+        public Builder setMaxBackoffMillis(int maxBackoffMillis) {
+            this.maxBackoffMillis = maxBackoffMillis;
+            return this;
+        }
+
+        public Builder setRetryBudget(int retryBudget) {
+            this.retryBudget = retryBudget;
+            return this;
+        }
+
+        public Builder setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+            this.circuitBreakerThreshold = circuitBreakerThreshold;
+            return this;
+        }
+
+        public Builder setCircuitBreakerOpenMillis(int circuitBreakerOpenMillis) {
+            this.circuitBreakerOpenMillis = circuitBreakerOpenMillis;
+            return this;
+        }
+
+        public RetryConfig build() {
+            if (maxAttempts <= 0) {
+                throw new IllegalArgumentException("maxAttempts must be positive: " + maxAttempts);
+            }
+            if (backoffMillis <= 0) {
+                throw new IllegalArgumentException("backoffMillis must be positive: " + backoffMillis);
+            }
+            if (maxBackoffMillis < backoffMillis) {
+                throw new IllegalArgumentException("maxBackoffMillis must not be less than backoffMillis: " + maxBackoffMillis);
+            }
+            if (retryBudget < 0) {
+                throw new IllegalArgumentException("retryBudget must not be negative: " + retryBudget);
+            }
+            if (circuitBreakerThreshold < 0) {
+                throw new IllegalArgumentException("circuitBreakerThreshold must not be negative: " + circuitBreakerThreshold);
+            }
+            if (circuitBreakerOpenMillis <= 0) {
+                throw new IllegalArgumentException("circuitBreakerOpenMillis must be positive: " + circuitBreakerOpenMillis);
+            }
+            return new RetryConfig(this);
+        }
+    }
+}
@@ -3,7 +3,21 @@ package com.databend.jdbc.internal.http;
 import java.io.IOException;
 
 public final class RetryableHttpStatusException extends IOException {
+    private final int statusCode;
+
     public RetryableHttpStatusException(String message) {
+        this(-1, message);
+    }
+
+    public RetryableHttpStatusException(int statusCode, String message) {
         super(message);
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * @return the HTTP status of the response, -1 when it is not known
+     */
+    public int getStatusCode() {
+        return statusCode;
     }
 }
@@ -0,0 +1,148 @@
+package com.databend.jdbc.internal.query;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+
+/**
+ * When a result page is fetched a second time because the first request is slow. A page of a
+ * finished query is already buffered on the server, so a request that takes much longer than the
+ * others is usually held up by a GC pause or a slow proxy hop, and a duplicate request often
+ * returns first.
+ * <p>
+ * The delay before the duplicate is the {@code percentile} of the latest page fetches from the
+ * same host, but at least {@code delayMillis}; with a percentile of 0, or before enough fetches
+ * were seen, it is {@code delayMillis}. The counters of all queries of the JVM are returned by the
+ * static getters.
+ */
+public final class PageHedging {
+    private static final PageHedging DISABLED = new PageHedging(0, 0);
+    // fetches a percentile is computed from, per host
+    private static final int WINDOW_SIZE = 256;
+    private static final int MIN_SAMPLES = 20;
+    private static final ConcurrentMap<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+    private static final LongAdder pageFetches = new LongAdder();
+    private static final LongAdder hedgedFetches = new LongAdder();
+    private static final LongAdder hedgeWins = new LongAdder();
+
+    private final int delayMillis;
+    private final int percentile;
+
+    public PageHedging(int delayMillis, int percentile) {
+        if (delayMillis < 0) {
+            throw new IllegalArgumentException("delayMillis must not be negative: " + delayMillis);
+        }
+        if (percentile < 0 || percentile >= 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 99: " + percentile);
+        }
+        this.delayMillis = delayMillis;
+        this.percentile = percentile;
+    }
+
+    public static PageHedging disabled() {
+        return DISABLED;
+    }
+
+    public boolean isEnabled() {
+        return delayMillis > 0 || percentile > 0;
+    }
+
+    public int getDelayMillis() {
+        return delayMillis;
+    }
+
+    public int getPercentile() {
+        return percentile;
+    }
+
+    /**
+     * @return how long to wait for a page of {@code host} before sending the duplicate, 0 to not hedge
+     */
+    long hedgeDelayMillis(String host) {
+        if (percentile > 0) {
+            LatencyWindow window = latencies.get(host);
+            long observed = window == null ? -1 : window.percentile(percentile);
+            if (observed >= 0) {
+                return Math.max(delayMillis, Math.max(observed, 1));
+            }
+        }
+        return delayMillis;
+    }
+
+    static void recordFetch(String host, long latencyMillis, boolean hedged, boolean hedgeWon) {
+        latencies.computeIfAbsent(host, key -> new LatencyWindow()).add(latencyMillis);
+        pageFetches.increment();
+        if (hedged) {
+            hedgedFetches.increment();
+        }
+        if (hedgeWon) {
+            hedgeWins.increment();
+        }
+    }
+
+    /**
+     * @return the page fetches of queries with hedging enabled
+     */
+    public static long getPageFetches() {
+        return pageFetches.sum();
+    }
+
+    /**
+     * @return the page fetches that sent a duplicate request
+     */
+    public static long getHedgedFetches() {
+        return hedgedFetches.sum();
+    }
+
+    /**
+     * @return the page fetches whose duplicate request returned first
+     */
+    public static long getHedgeWins() {
+        return hedgeWins.sum();
+    }
+
+    /**
+     * @return the share of page fetches that sent a duplicate request
+     */
+    public static double getHedgeRate() {
+        long fetches = getPageFetches();
+        return fetches == 0 ? 0 : (double) getHedgedFetches() / fetches;
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("delayMillis", delayMillis)
+                .add("percentile", percentile)
+                .toString();
+    }
+
+    private static final class LatencyWindow {
+        // guarded by this
+        private final long[] samples = new long[WINDOW_SIZE];
+        private int count;
+        private int next;
+
+        private synchronized void add(long latencyMillis) {
+            samples[next] = latencyMillis;
+            next = (next + 1) % WINDOW_SIZE;
+            count = Math.min(count + 1, WINDOW_SIZE);
+        }
+
+        private long percentile(int percentile) {
+            long[] sorted;
+            synchronized (this) {
+                if (count < MIN_SAMPLES) {
+                    return -1;
+                }
+                sorted = Arrays.copyOf(samples, count);
+            }
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+        }
+    }
+}
@@ -1,19 +1,24 @@
 package com.databend.jdbc.internal.query;
 
 import com.databend.jdbc.internal.QueryResultFormat;
+import com.databend.jdbc.internal.UploadCompression;
 import com.databend.jdbc.internal.error.QueryError;
 import com.databend.jdbc.internal.exception.DatabendQueryException;
+import com.databend.jdbc.internal.http.HttpCompression;
 import com.databend.jdbc.internal.http.HttpRetryPolicy;
 import com.databend.jdbc.internal.http.JsonCodec;
 import com.databend.jdbc.internal.http.JsonResponse;
 import com.databend.jdbc.internal.session.QueryRequestConfig;
 import com.databend.jdbc.internal.session.SessionState;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import okhttp3.Call;
 import okhttp3.Headers;
 import okhttp3.HttpUrl;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
+import okhttp3.Response;
 import org.apache.arrow.compression.CommonsCompressionFactory;
 import org.apache.arrow.memory.BufferAllocator;
 import org.apache.arrow.memory.RootAllocator;
@@ -28,15 +33,28 @@ import java.io.IOException;
 import java.net.URI;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
 import static com.databend.jdbc.internal.http.JsonCodec.jsonCodec;
 import static java.net.HttpURLConnection.HTTP_OK;
 import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 @ThreadSafe
 public class RestQueryResultPages implements QueryResultPages {
@@ -45,6 +63,11 @@ public class RestQueryResultPages implements QueryResultPages {
     public static final MediaType MEDIA_TYPE_ARROW = MediaType.parse("application/vnd.apache.arrow.stream");
     public static final JsonCodec<QueryResults> QUERY_RESULTS_CODEC = jsonCodec(QueryResults.class);
     public static final String QUERY_PATH = "/v1/query";
+    // threads of hedged page fetches, a fetch that finds none free is not hedged
+    private static final int MAX_PAGE_FETCH_THREADS = 64;
+    private static final ExecutorService pageFetchExecutor = new ThreadPoolExecutor(
+            0, MAX_PAGE_FETCH_THREADS, 60, SECONDS, new SynchronousQueue<>(),
+            new ThreadFactoryBuilder().setNameFormat("Databend JDBC page fetch-%s").setDaemon(true).build());
 
     private final AtomicReference<Boolean> finished = new AtomicReference<>(false);
     private final OkHttpClient httpClient;
@@ -76,7 +99,7 @@ public class RestQueryResultPages implements QueryResultPages {
         this.nodeID = lastNodeID.get();
 
         Request request = buildQueryRequest(query, requestConfig);
-        boolean completed = executeInternal(request);
+        boolean completed = executeInternal(request, new HttpRetryPolicy(false, true, requestConfig.isRetryConnectFailure(), requestConfig.getRetryConfig()));
         if (!completed) {
             throw new DatabendQueryException("Query failed to complete");
         }
@@ -84,10 +107,20 @@ public class RestQueryResultPages implements QueryResultPages {
     }
 
     public static Request.Builder prepareRequest(HttpUrl url, Map<String, String> additionalHeaders, QueryResultFormat queryResultFormat) {
+        return prepareRequest(url, additionalHeaders, queryResultFormat, UploadCompression.GZIP);
+    }
+
+    /**
+     * Same as {@link #prepareRequest(HttpUrl, Map, QueryResultFormat)}, asking for responses
+     * compressed with {@code responseCompression}.
+     */
+    public static Request.Builder prepareRequest(HttpUrl url, Map<String, String> additionalHeaders, QueryResultFormat queryResultFormat,
+            UploadCompression responseCompression) {
         Request.Builder builder = new Request.Builder()
                 .url(url)
                 .header("Accept", queryResultFormat == QueryResultFormat.ARROW ? MEDIA_TYPE_ARROW.toString() : "application/json")
                 .header("Content-Type", "application/json");
+        HttpCompression.acceptEncoding(builder, responseCompression);
         if (additionalHeaders != null) {
             additionalHeaders.forEach(builder::addHeader);
         }
@@ -113,12 +146,16 @@ public class RestQueryResultPages implements QueryResultPages {
             throw new IllegalArgumentException("Invalid request: " + req);
         }
         url = url.newBuilder().encodedPath(QUERY_PATH).build();
-        Request.Builder builder = prepareRequest(url, this.additionalHeaders, currentFormat);
+        Request.Builder builder = prepareRequest(url, this.additionalHeaders, currentFormat, requestConfig.getResponseCompression());
         SessionState session = databendSession.get();
         if (session != null && session.getNeedSticky()) {
             builder.addHeader(QueryRequestConfig.X_DATABEND_STICKY_NODE, nodeID);
         }
-        return builder.post(RequestBody.create(MEDIA_TYPE_JSON, reqString)).build();
+        try {
+            return HttpCompression.post(builder, MEDIA_TYPE_JSON, reqString, requestConfig.getRequestCompression()).build();
+        } catch (IOException e) {
+            throw new DatabendQueryException("Failed to compress query request", e);
+        }
     }
 
     @Override
@@ -131,11 +168,28 @@ public class RestQueryResultPages implements QueryResultPages {
         return executeInternal(request);
     }
 
+    // the pages of a query that already runs are fetched whatever state the circuit breaker is in
     private boolean executeInternal(Request request) {
+        return executeInternal(request, new HttpRetryPolicy(false, true, true, requestConfig.getRetryConfig().withoutCircuitBreaker()));
+    }
+
+    private boolean executeInternal(Request request, HttpRetryPolicy retryPolicy) {
+        return executeInternal(request, retryPolicy, 0, null);
+    }
+
+    private boolean executeInternal(Request request, HttpRetryPolicy retryPolicy, int attemptsMade, IOException lastFailure) {
         requireNonNull(request, "request is null");
+        HttpRetryPolicy.ResponseWithBody resp;
+        try {
+            resp = retryPolicy.sendRequestWithRetry(httpClient, request, attemptsMade, lastFailure);
+        } catch (SQLException e) {
+            throw new DatabendQueryException("Failed to execute query request", e);
+        }
+        return handleResponse(resp);
+    }
+
+    private boolean handleResponse(HttpRetryPolicy.ResponseWithBody resp) {
         try {
-            HttpRetryPolicy retryPolicy = new HttpRetryPolicy(false, true);
-            HttpRetryPolicy.ResponseWithBody resp = retryPolicy.sendRequestWithRetry(httpClient, request);
             ResponsePayload payload = decodeResponse(resp);
             if (payload.statusCode == HTTP_OK && payload.results != null) {
                 QueryError error = payload.results.getError();
@@ -242,12 +296,144 @@ public class RestQueryResultPages implements QueryResultPages {
         String nextUriPath = this.currentResults.get().getNextUri().toString();
         HttpUrl url = HttpUrl.get(this.host);
         url = url.newBuilder().encodedPath(nextUriPath).build();
-        Request.Builder builder = prepareRequest(url, this.additionalHeaders, this.queryResultFormat.get());
+        Request.Builder builder = prepareRequest(url, this.additionalHeaders, this.queryResultFormat.get(), requestConfig.getResponseCompression());
         builder.addHeader(QueryRequestConfig.X_DATABEND_STICKY_NODE, this.nodeID);
         Request request = builder.get().build();
+        PageHedging hedging = requestConfig.getPageHedging();
+        // only the pages of a finished query are buffered on the server and can be fetched twice;
+        // the pages of a running query wait for data, which a duplicate request would not speed up
+        if (hedging.isEnabled() && "Succeeded".equalsIgnoreCase(this.currentResults.get().getState())) {
+            return fetchPage(request, hedging.hedgeDelayMillis(this.host));
+        }
         return executeInternal(request);
     }
 
+    /**
+     * Fetches a page and sends a duplicate request when the first one did not return within
+     * {@code hedgeDelayMillis}; the first successful response is taken and the other request is
+     * cancelled. When neither succeeds the retry policy goes on from there, counting the requests
+     * already sent as its first attempts.
+     * <p>
+     * Both requests are blocking calls on threads of their own, started at once or not at all, so
+     * the delay only measures the request and not a wait for a free thread. The duplicate is only
+     * sent while the retry budget of the endpoint allows it, and takes from it.
+     */
+    private boolean fetchPage(Request request, long hedgeDelayMillis) {
+        long start = System.nanoTime();
+        if (hedgeDelayMillis <= 0) {
+            boolean fetched = executeInternal(request);
+            PageHedging.recordFetch(this.host, NANOSECONDS.toMillis(System.nanoTime() - start), false, false);
+            return fetched;
+        }
+
+        HttpRetryPolicy policy = new HttpRetryPolicy(false, true, true, requestConfig.getRetryConfig().withoutCircuitBreaker());
+        Call primary = httpClient.newCall(request);
+        CompletableFuture<HttpRetryPolicy.ResponseWithBody> primaryResponse = fetchAsync(policy, primary);
+        if (primaryResponse == null) {
+            // every fetch thread is busy, fetch it here without a duplicate
+            return executeInternal(request);
+        }
+        CompletableFuture<HttpRetryPolicy.ResponseWithBody> duplicateResponse = null;
+        HttpRetryPolicy.ResponseWithBody response;
+        try {
+            response = primaryResponse.get(hedgeDelayMillis, MILLISECONDS);
+        } catch (TimeoutException e) {
+            Call duplicate = null;
+            if (policy.tryHedge(request)) {
+                duplicate = httpClient.newCall(request);
+                duplicateResponse = fetchAsync(policy, duplicate);
+            }
+            response = firstSuccessful(primary, primaryResponse, duplicateResponse == null ? null : duplicate,
+                    duplicateResponse);
+        } catch (ExecutionException e) {
+            response = null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            primary.cancel();
+            throw new DatabendQueryException("Interrupted while fetching the next page", e);
+        }
+        if (response == null) {
+            int attemptsMade = duplicateResponse == null ? 1 : 2;
+            return executeInternal(request, policy, attemptsMade, lastFailure(primaryResponse, duplicateResponse));
+        }
+        boolean hedged = duplicateResponse != null;
+        boolean hedgeWon = hedged && response == duplicateResponse.getNow(null);
+        PageHedging.recordFetch(this.host, NANOSECONDS.toMillis(System.nanoTime() - start), hedged, hedgeWon);
+        return handleResponse(response);
+    }
+
+    /**
+     * @return the first successful response of the candidates that are not null, or null when all
+     *         failed; the calls still running when it returns or throws are cancelled
+     */
+    private HttpRetryPolicy.ResponseWithBody firstSuccessful(
+            Call first, CompletableFuture<HttpRetryPolicy.ResponseWithBody> firstResponse,
+            Call second, CompletableFuture<HttpRetryPolicy.ResponseWithBody> secondResponse) {
+        CompletableFuture<HttpRetryPolicy.ResponseWithBody> winner = new CompletableFuture<>();
+        List<CompletableFuture<HttpRetryPolicy.ResponseWithBody>> candidates = new ArrayList<>();
+        for (CompletableFuture<HttpRetryPolicy.ResponseWithBody> candidate : Arrays.asList(firstResponse, secondResponse)) {
+            if (candidate != null) {
+                candidates.add(candidate);
+            }
+        }
+        AtomicInteger pending = new AtomicInteger(candidates.size());
+        for (CompletableFuture<HttpRetryPolicy.ResponseWithBody> candidate : candidates) {
+            candidate.whenComplete((response, failure) -> {
+                if (failure == null) {
+                    winner.complete(response);
+                } else if (pending.decrementAndGet() == 0) {
+                    winner.complete(null);
+                }
+            });
+        }
+        try {
+            return winner.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DatabendQueryException("Interrupted while fetching the next page", e);
+        } catch (ExecutionException e) {
+            return null;
+        } finally {
+            // a call that already returned is not affected
+            first.cancel();
+            if (second != null) {
+                second.cancel();
+            }
+        }
+    }
+
+    // the failure the retry policy goes on from, the one of the duplicate when there was one
+    private static IOException lastFailure(CompletableFuture<HttpRetryPolicy.ResponseWithBody> primaryResponse,
+            CompletableFuture<HttpRetryPolicy.ResponseWithBody> duplicateResponse) {
+        CompletableFuture<HttpRetryPolicy.ResponseWithBody> failed = duplicateResponse == null ? primaryResponse : duplicateResponse;
+        try {
+            failed.getNow(null);
+            return new IOException("Page fetch failed");
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            return cause instanceof IOException ? (IOException) cause : new IOException("Page fetch failed", cause);
+        }
+    }
+
+    /**
+     * @return the response of {@code call} sent on a page fetch thread, or null when none is free
+     */
+    private static CompletableFuture<HttpRetryPolicy.ResponseWithBody> fetchAsync(HttpRetryPolicy policy, Call call) {
+        CompletableFuture<HttpRetryPolicy.ResponseWithBody> future = new CompletableFuture<>();
+        try {
+            pageFetchExecutor.execute(() -> {
+                try {
+                    future.complete(policy.execute(call));
+                } catch (IOException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+        return future;
+    }
+
     @Override
     public boolean hasNext() {
         return !finished.get();
@@ -22,7 +22,7 @@ public class StageAttachment {
             @JsonProperty("copy_options") Map<String, String> copyOptions) {
         this.location = location;
         this.fileFormatOptions = fileFormatOptions == null ? new HashMap<>() : fileFormatOptions;
-        this.fileFormatOptions.put("type", DEFAULT_FILE_FORMAT);
+        this.fileFormatOptions.putIfAbsent("type", DEFAULT_FILE_FORMAT);
         this.copyOptions = copyOptions;
     }
 
@@ -0,0 +1,338 @@
+package com.databend.jdbc.internal.session;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * The query nodes of a JDBC URL with several hosts, shared by all connections of the driver to the
+ * same hosts with the same credentials so that they spread over the nodes together and agree on
+ * which nodes are down. The health checks and discovery requests are sent with the HTTP client of
+ * the first of these connections, so they never carry the credentials of another user.
+ * <p>
+ * A node is ejected when a request to it cannot connect or when its health check fails, and it is
+ * only picked again once a health check succeeds. Health checks run every
+ * {@code health_check_interval} seconds while a connection uses the nodes, probing all nodes at
+ * once so that unreachable nodes do not delay each other.
+ * <p>
+ * With {@code auto_discovery} the node list is refreshed from the cluster every
+ * {@code node_discovery_interval} milliseconds and swapped as a whole. New sessions only go to the
+ * current nodes; sessions on a removed node keep it until they can move without losing state.
+ */
+final class ClusterNodes {
+    static final String HEALTH_PATH = "/v1/health";
+    static final String DISCOVERY_PATH = "/v1/discovery_nodes";
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final Logger logger = Logger.getLogger(ClusterNodes.class.getPackage().getName());
+    private static final int PROBE_TIMEOUT_SECS = 5;
+    private static final Map<String, ClusterNodes> clusters = new HashMap<>();
+    private static final ScheduledExecutorService executor = Executors.newScheduledThreadPool(1,
+            new ThreadFactoryBuilder().setNameFormat("Databend JDBC cluster-%s").setDaemon(true).build());
+    private static final ExecutorService probeExecutor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("Databend JDBC cluster probe-%s").setDaemon(true).build());
+
+    private final String key;
+    // the first node of the URL, discovered addresses get its scheme, path and query
+    private final URI template;
+    private volatile List<Node> nodes;
+    private final LoadBalancingPolicy policy;
+    private final OkHttpClient probeClient;
+    private final AtomicInteger nextNode = new AtomicInteger();
+    // guarded by clusters
+    private int references;
+    private ScheduledFuture<?> healthCheck;
+    private ScheduledFuture<?> discovery;
+
+    private ClusterNodes(String key, List<URI> uris, LoadBalancingPolicy policy, OkHttpClient httpClient) {
+        this.key = key;
+        this.template = uris.get(0);
+        List<Node> nodes = new ArrayList<>();
+        for (URI uri : uris) {
+            nodes.add(new Node(uri));
+        }
+        this.nodes = Collections.unmodifiableList(nodes);
+        this.policy = policy;
+        this.probeClient = httpClient.newBuilder()
+                .connectTimeout(PROBE_TIMEOUT_SECS, TimeUnit.SECONDS)
+                .readTimeout(PROBE_TIMEOUT_SECS, TimeUnit.SECONDS)
+                .retryOnConnectionFailure(false)
+                .build();
+    }
+
+    /**
+     * Returns the shared state of {@code uris}, to be given back with {@link #release()} when the
+     * connection closes.
+     */
+    static ClusterNodes acquire(List<URI> uris, LoadBalancingPolicy policy, int healthCheckIntervalSecs,
+            OkHttpClient httpClient) {
+        return acquire(uris, policy, healthCheckIntervalSecs, 0, null, httpClient);
+    }
+
+    /**
+     * @param discoveryIntervalMillis how often the node list is refreshed from the cluster, 0 keeps
+     *                                the nodes of the URL
+     * @param principal               the digest of the credentials of the connection, connections
+     *                                with other credentials get nodes of their own
+     */
+    static ClusterNodes acquire(List<URI> uris, LoadBalancingPolicy policy, int healthCheckIntervalSecs,
+            long discoveryIntervalMillis, String principal, OkHttpClient httpClient) {
+        String key = policy.value() + "," + healthCheckIntervalSecs + "," + discoveryIntervalMillis + "," + uris
+                + "," + (principal == null ? "" : principal);
+        synchronized (clusters) {
+            ClusterNodes cluster = clusters.get(key);
+            if (cluster == null) {
+                cluster = new ClusterNodes(key, uris, policy, httpClient);
+                clusters.put(key, cluster);
+            }
+            if (cluster.references++ == 0 && healthCheckIntervalSecs > 0) {
+                cluster.healthCheck = executor.scheduleWithFixedDelay(cluster::checkHealth,
+                        healthCheckIntervalSecs, healthCheckIntervalSecs, TimeUnit.SECONDS);
+            }
+            if (cluster.references == 1 && discoveryIntervalMillis > 0) {
+                // the first refresh runs right away, so that new sessions spread over the whole cluster
+                cluster.discovery = executor.scheduleWithFixedDelay(cluster::discover,
+                        0, discoveryIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+            return cluster;
+        }
+    }
+
+    void release() {
+        synchronized (clusters) {
+            if (--references > 0) {
+                return;
+            }
+            clusters.remove(key);
+            if (healthCheck != null) {
+                healthCheck.cancel(false);
+                healthCheck = null;
+            }
+            if (discovery != null) {
+                discovery.cancel(false);
+                discovery = null;
+            }
+        }
+    }
+
+    List<Node> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Picks a node for a new session, or {@code null} when every node is in {@code exclude}. When
+     * all remaining nodes are ejected one of them is still returned, a request to a node that came
+     * back is better than failing without trying.
+     */
+    Node select(Collection<Node> exclude) {
+        List<Node> candidates = new ArrayList<>();
+        List<Node> ejected = new ArrayList<>();
+        for (Node node : nodes) {
+            if (!exclude.contains(node)) {
+                (node.healthy ? candidates : ejected).add(node);
+            }
+        }
+        if (candidates.isEmpty()) {
+            candidates = ejected;
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        switch (policy) {
+            case ROUND_ROBIN:
+                return candidates.get(Math.floorMod(nextNode.getAndIncrement(), candidates.size()));
+            case LEAST_INFLIGHT:
+                Node least = candidates.get(0);
+                for (Node node : candidates) {
+                    if (node.sessions.get() < least.sessions.get()) {
+                        least = node;
+                    }
+                }
+                return least;
+            case RANDOM:
+                return candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+            case DISABLED:
+            default:
+                return candidates.get(0);
+        }
+    }
+
+    void eject(Node node, Throwable cause) {
+        if (node.healthy) {
+            node.healthy = false;
+            logger.warning("query node " + node.uri + " is ejected until its health check succeeds: " + cause);
+        }
+    }
+
+    /**
+     * Replaces the nodes by the ones the cluster reports. Nodes that are still there keep their
+     * state, removed nodes are marked so that their sessions move away. The nodes stay as they are
+     * when the cluster cannot be asked or reports no node.
+     */
+    synchronized void discover() {
+        List<URI> discovered;
+        try {
+            discovered = fetchNodes();
+        } catch (IOException | RuntimeException e) {
+            logger.warning("failed to discover the nodes of " + template + ", keeping " + nodes + ": " + e);
+            return;
+        }
+        if (discovered.isEmpty()) {
+            return;
+        }
+        List<Node> current = nodes;
+        Map<String, Node> byAddress = new HashMap<>();
+        for (Node node : current) {
+            byAddress.put(node.uri.getAuthority(), node);
+        }
+        List<Node> next = new ArrayList<>();
+        List<Node> added = new ArrayList<>();
+        for (URI uri : discovered) {
+            Node node = byAddress.remove(uri.getAuthority());
+            if (node == null) {
+                node = new Node(uri);
+                added.add(node);
+            }
+            next.add(node);
+        }
+        if (added.isEmpty() && byAddress.isEmpty()) {
+            return;
+        }
+        for (Node removed : byAddress.values()) {
+            removed.removed = true;
+        }
+        nodes = Collections.unmodifiableList(next);
+        logger.info("nodes of " + template + " changed, added " + added + ", removed " + byAddress.values());
+    }
+
+    private List<URI> fetchNodes() throws IOException {
+        HttpUrl url = HttpUrl.get(template.toString()).newBuilder().encodedPath(DISCOVERY_PATH).query(null).build();
+        JsonNode json;
+        try (Response response = probeClient.newCall(new Request.Builder().url(url).get().build()).execute()) {
+            if (response.code() != 200) {
+                throw new IOException("unexpected response " + response.code() + " " + response.message());
+            }
+            json = objectMapper.readTree(response.body().string());
+        }
+        // [{"address": "host:port"}, ...]
+        JsonNode list = json.isArray() ? json : json.path("nodes");
+        List<URI> uris = new ArrayList<>();
+        for (JsonNode node : list) {
+            String address = node.path("address").asText("");
+            if (address.isEmpty()) {
+                continue;
+            }
+            try {
+                URI hostAndPort = new URI("http://" + address);
+                uris.add(new URI(template.getScheme(), null, hostAndPort.getHost(), hostAndPort.getPort(),
+                        template.getPath(), template.getQuery(), template.getFragment()));
+            } catch (URISyntaxException e) {
+                throw new IOException("invalid node address " + address, e);
+            }
+        }
+        return uris;
+    }
+
+    /**
+     * Probes every node and ejects or re-admits it by the outcome.
+     */
+    void checkHealth() {
+        List<Node> current = nodes;
+        List<Future<Boolean>> probes = new ArrayList<>();
+        for (Node node : current) {
+            probes.add(probeExecutor.submit(() -> probe(node)));
+        }
+        for (int i = 0; i < current.size(); i++) {
+            Node node = current.get(i);
+            boolean healthy;
+            try {
+                healthy = probes.get(i).get();
+            } catch (ExecutionException e) {
+                healthy = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (healthy != node.healthy) {
+                logger.info("query node " + node.uri + (healthy ? " is healthy again" : " failed its health check"));
+                node.healthy = healthy;
+            }
+        }
+    }
+
+    private boolean probe(Node node) {
+        HttpUrl url = HttpUrl.get(node.uri.toString()).newBuilder().encodedPath(HEALTH_PATH).build();
+        try (Response response = probeClient.newCall(new Request.Builder().url(url).get().build()).execute()) {
+            // servers without the health endpoint answer 404, which still shows that the node is up
+            return response.code() < 500;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    static final class Node {
+        private final URI uri;
+        private final AtomicInteger sessions = new AtomicInteger();
+        private volatile boolean healthy = true;
+        private volatile boolean removed;
+
+        private Node(URI uri) {
+            this.uri = uri;
+        }
+
+        URI getUri() {
+            return uri;
+        }
+
+        boolean isHealthy() {
+            return healthy;
+        }
+
+        /**
+         * Whether discovery dropped the node from the cluster.
+         */
+        boolean isRemoved() {
+            return removed;
+        }
+
+        int getSessions() {
+            return sessions.get();
+        }
+
+        void bind() {
+            sessions.incrementAndGet();
+        }
+
+        void unbind() {
+            sessions.decrementAndGet();
+        }
+
+        @Override
+        public String toString() {
+            return uri.toString();
+        }
+    }
+}
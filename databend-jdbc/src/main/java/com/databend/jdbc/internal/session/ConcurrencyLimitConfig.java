@@ -0,0 +1,111 @@
+package com.databend.jdbc.internal.session;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+
+/**
+ * How many queries the connections of the JVM start at the same time against one endpoint and
+ * warehouse, see {@link QueryConcurrencyLimiter}.
+ */
+public final class ConcurrencyLimitConfig {
+    public static final int DEFAULT_QUEUE_SIZE = 100;
+    public static final int DEFAULT_QUEUE_TIMEOUT_MILLIS = 30000;
+
+    private final int maxConcurrentQueries;
+    private final int queueSize;
+    private final int queueTimeoutMillis;
+    private final boolean adaptive;
+
+    private ConcurrencyLimitConfig(Builder builder) {
+        this.maxConcurrentQueries = builder.maxConcurrentQueries;
+        this.queueSize = builder.queueSize;
+        this.queueTimeoutMillis = builder.queueTimeoutMillis;
+        this.adaptive = builder.adaptive;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static ConcurrencyLimitConfig disabled() {
+        return builder().build();
+    }
+
+    public boolean isEnabled() {
+        return maxConcurrentQueries > 0;
+    }
+
+    /**
+     * @return the queries started at the same time, the upper bound of the adaptive limit, 0 for no limit
+     */
+    public int getMaxConcurrentQueries() {
+        return maxConcurrentQueries;
+    }
+
+    /**
+     * @return the queries that may wait for a running one to start, 0 to fail at once
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public int getQueueTimeoutMillis() {
+        return queueTimeoutMillis;
+    }
+
+    /**
+     * @return whether the limit follows the latency of the starts, up to {@link #getMaxConcurrentQueries()}
+     */
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("maxConcurrentQueries", maxConcurrentQueries)
+                .add("queueSize", queueSize)
+                .add("queueTimeoutMillis", queueTimeoutMillis)
+                .add("adaptive", adaptive)
+                .toString();
+    }
+
+    public static final class Builder {
+        private int maxConcurrentQueries;
+        private int queueSize = DEFAULT_QUEUE_SIZE;
+        private int queueTimeoutMillis = DEFAULT_QUEUE_TIMEOUT_MILLIS;
+        private boolean adaptive;
+
+        public Builder setMaxConcurrentQueries(int maxConcurrentQueries) {
+            this.maxConcurrentQueries = maxConcurrentQueries;
+            return this;
+        }
+
+        public Builder setQueueSize(int queueSize) {
+            this.queueSize = queueSize;
+            return this;
+        }
+
+        public Builder setQueueTimeoutMillis(int queueTimeoutMillis) {
+            this.queueTimeoutMillis = queueTimeoutMillis;
+            return this;
+        }
+
+        public Builder setAdaptive(boolean adaptive) {
+            this.adaptive = adaptive;
+            return this;
+        }
+
+        public ConcurrencyLimitConfig build() {
+            if (maxConcurrentQueries < 0) {
+                throw new IllegalArgumentException("maxConcurrentQueries must not be negative: " + maxConcurrentQueries);
+            }
+            if (queueSize < 0) {
+                throw new IllegalArgumentException("queueSize must not be negative: " + queueSize);
+            }
+            if (queueTimeoutMillis < 0) {
+                throw new IllegalArgumentException("queueTimeoutMillis must not be negative: " + queueTimeoutMillis);
+            }
+            return new ConcurrencyLimitConfig(this);
+        }
+    }
+}
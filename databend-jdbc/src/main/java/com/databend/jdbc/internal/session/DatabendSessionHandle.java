@@ -1,12 +1,16 @@
 package com.databend.jdbc.internal.session;
 
+import com.databend.jdbc.UploadFile;
 import com.databend.jdbc.internal.QueryResultFormat;
+import com.databend.jdbc.internal.UploadCompression;
 import com.databend.jdbc.internal.exception.DatabendPresignException;
 import com.databend.jdbc.internal.exception.DatabendQueryException;
 import com.databend.jdbc.internal.exception.DatabendSessionException;
 import com.databend.jdbc.internal.exception.DatabendStageUploadException;
 import com.databend.jdbc.internal.exception.DatabendStreamingLoadException;
+import com.databend.jdbc.internal.http.FileRangeRequestBody;
 import com.databend.jdbc.internal.http.NonRetryableHttpStatusException;
+import com.databend.jdbc.internal.http.ParallelRangeDownloader;
 import com.databend.jdbc.internal.http.PresignClient;
 import com.databend.jdbc.internal.http.HttpRetryPolicy;
 import com.databend.jdbc.internal.http.JsonCodec;
@@ -18,7 +22,9 @@ import com.databend.jdbc.internal.query.StageAttachment;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.vdurmont.semver4j.Semver;
+import okhttp3.Call;
 import okhttp3.Headers;
 import okhttp3.HttpUrl;
 import okhttp3.MediaType;
@@ -32,30 +38,38 @@ import okio.BufferedSink;
 import okio.Okio;
 import okio.Source;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.sql.SQLException;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.logging.Logger;
-import java.util.zip.GZIPOutputStream;
 
 import static com.databend.jdbc.internal.http.JsonCodec.jsonCodec;
 import static java.util.Objects.requireNonNull;
@@ -75,19 +89,34 @@ public class DatabendSessionHandle implements Consumer<SessionState> {
     private static final Semver HEARTBEAT_MIN_VERSION = new Semver("1.2.709");
     private static final int MIN_ARROW_RESULT_VERSION = 3;
     private static final int MAX_STAGE_UPLOAD_RETRY_ATTEMPTS = 5;
+    // compressed uploads larger than this are spilled to a temporary file before a presigned PUT
+    private static final int COMPRESSED_UPLOAD_MEMORY_LIMIT = 8 << 20;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
 
-    private static volatile ExecutorService heartbeatScheduler = null;
+    private static final ExecutorService loginExecutor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("Databend JDBC login-%s").setDaemon(true).build());
 
     private final OkHttpClient httpClient;
     private final SessionHandleConfig config;
     private final AtomicReference<SessionState> session;
     private final AtomicReference<String> lastNodeID = new AtomicReference<>();
     private final Supplier<List<QueryLiveness>> queryLivenessSupplier;
-    private final HeartbeatManager heartbeatManager = new HeartbeatManager();
     private volatile String routeHint;
     private volatile Semver serverVersion;
     private volatile Integer serverMaxArrowResultVersion;
     private volatile boolean presignDisabled;
+    // presign=detect with lazy_login probes at the first transfer
+    private volatile boolean presignDetectPending;
+    // the background login of lazy_login, until a caller needed its outcome
+    private volatile Future<?> pendingLogin;
+    // the session as open() found it, what resetSession() goes back to
+    private volatile SessionState openedSession;
+    private final PresignCache presignCache;
+    // set when the JDBC URL lists several hosts or the nodes are discovered
+    private final ClusterNodes cluster;
+    private final AtomicBoolean clusterReleased = new AtomicBoolean();
+    private volatile ClusterNodes.Node node;
+    private volatile URI baseUri;
 
     public DatabendSessionHandle(
             OkHttpClient httpClient,
@@ -98,10 +127,100 @@ public class DatabendSessionHandle implements Consumer<SessionState> {
         this.session = new AtomicReference<>(requireNonNull(config.getInitialSession(), "config.initialSession is null"));
         this.queryLivenessSupplier = queryLivenessSupplier != null ? queryLivenessSupplier : java.util.Collections::emptyList;
         this.routeHint = "";
+        this.presignCache = new PresignCache(config.getPresignCacheTtlSecs() * 1000L, System::currentTimeMillis);
+        this.baseUri = config.getBaseUri();
+        List<URI> nodes = config.getNodes();
+        this.cluster = nodes.size() > 1 || config.isAutoDiscovery()
+                ? ClusterNodes.acquire(nodes, config.getLoadBalancingPolicy(), config.getHealthCheckIntervalSecs(),
+                        config.isAutoDiscovery() ? config.getNodeDiscoveryIntervalMillis() : 0, config.getPrincipal(),
+                        httpClient)
+                : null;
     }
 
+    /**
+     * Logs in, or with {@code lazy_login} takes what an earlier connection learned about the server
+     * and otherwise logs in on a background thread while the first query already runs: queries
+     * authenticate on every request, the login response only tells the version and the result
+     * formats of the server. Calls that depend on those wait for the background login.
+     */
+    public void open() throws SQLException {
+        this.openedSession = this.session.get().copy();
+        if (!config.isLazyLogin()) {
+            login();
+            return;
+        }
+        if (cluster != null) {
+            bind(cluster.select(Collections.emptyList()));
+        }
+        ServerInfoCache.ServerInfo info = ServerInfoCache.get(serverKey());
+        if (info != null && info.isLoggedIn()) {
+            this.serverVersion = info.getVersion();
+            this.serverMaxArrowResultVersion = info.getMaxArrowResultVersion();
+            return;
+        }
+        this.pendingLogin = loginExecutor.submit(() -> {
+            try {
+                login(newRetryPolicy(true, true));
+            } catch (SQLException | RuntimeException e) {
+                // the first query reports wrong credentials or an unreachable server by itself
+                logger.warning("background login to " + this.baseUri + " failed: " + e.getMessage());
+            }
+        });
+    }
+
+    private void awaitLogin() {
+        Future<?> login = this.pendingLogin;
+        if (login == null) {
+            return;
+        }
+        try {
+            login.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            // logged by the login task
+        }
+        this.pendingLogin = null;
+    }
+
+    private String serverKey() {
+        return ServerInfoCache.loginKey(this.baseUri, this.config.getTenant(), this.config.getWarehouse(),
+                this.config.getPrincipal(), this.config.getInitialSession().getDatabase());
+    }
+
+    /**
+     * Opens the session. With several hosts in the JDBC URL this is where the session picks its node
+     * by the load balancing policy, and fails over to another one when the node cannot be reached.
+     */
     public void login() throws SQLException {
-        HttpRetryPolicy retryPolicy = new HttpRetryPolicy(true, true);
+        if (cluster == null) {
+            login(newRetryPolicy(true, true));
+            return;
+        }
+        List<ClusterNodes.Node> failed = new ArrayList<>();
+        while (true) {
+            bind(cluster.select(failed));
+            boolean canFailOver = canFailOver(failed);
+            try {
+                // a node that cannot be reached is not retried when another one can take over
+                login(newRetryPolicy(true, true, !canFailOver));
+                return;
+            } catch (SQLException e) {
+                if (!HttpRetryPolicy.isConnectFailure(e)) {
+                    throw e;
+                }
+                cluster.eject(this.node, e);
+                if (!canFailOver) {
+                    throw e;
+                }
+                logger.info("login to " + this.node + " failed, failing over to another node");
+                failed.add(this.node);
+            }
+        }
+    }
+
+    private void login(HttpRetryPolicy retryPolicy) throws SQLException {
         Map<String, String> headers = new HashMap<>();
         headers.put("Accept", "application/json");
         headers.put("Content-Type", "application/json");
@@ -129,6 +248,7 @@ public class DatabendSessionHandle implements Consumer<SessionState> {
                     if (serverMaxArrowResultVersionNode != null && !serverMaxArrowResultVersionNode.isNull()) {
                         this.serverMaxArrowResultVersion = serverMaxArrowResultVersionNode.asInt();
                     }
+                    ServerInfoCache.putLogin(serverKey(), this.serverVersion, this.serverMaxArrowResultVersion);
                 } catch (IOException | IllegalArgumentException e) {
                     throw new DatabendSessionException("Failed to decode login response", e);
                 }
@@ -146,19 +266,20 @@ public class DatabendSessionHandle implements Consumer<SessionState> {
 
         switch (presign.toLowerCase(Locale.US)) {
             case "auto":
-                String host = this.config.getBaseUri().getHost();
+                String host = this.baseUri.getHost();
                 this.presignDisabled = host == null
                         || (!host.endsWith(".databend.com")
                         && !host.endsWith(".databend.cn")
                         && !host.endsWith(".tidbcloud.com"));
                 break;
             case "detect":
-                try {
-                    getPresignedRequest(PresignMethod.UPLOAD, "~", ".databend-jdbc/check");
-                    this.presignDisabled = false;
-                } catch (Exception e) {
-                    logger.warning("presign off: detect failed: " + e.getMessage());
-                    this.presignDisabled = true;
+                ServerInfoCache.ServerInfo info = ServerInfoCache.get(serverKey());
+                if (info != null && info.getPresignDisabled() != null) {
+                    this.presignDisabled = info.getPresignDisabled();
+                } else if (this.config.isLazyLogin()) {
+                    this.presignDetectPending = true;
+                } else {
+                    detectPresign();
                 }
                 break;
             case "on":
@@ -175,13 +296,71 @@ public class DatabendSessionHandle implements Consumer<SessionState> {
 
         if (this.config.isDebug()) {
             logger.info("presign disabled: " + this.presignDisabled
-                    + " (presign=" + presign + ", host=" + this.config.getBaseUri().getHost() + ")");
+                    + " (presign=" + presign + ", host=" + this.baseUri.getHost() + ")");
         }
     }
 
+    private void detectPresign() {
+        try {
+            getPresignedRequest(PresignMethod.UPLOAD, "~", ".databend-jdbc/check");
+            this.presignDisabled = false;
+        } catch (Exception e) {
+            logger.warning("presign off: detect failed: " + e.getMessage());
+            this.presignDisabled = true;
+        }
+        ServerInfoCache.putPresign(serverKey(), this.presignDisabled);
+    }
+
     public void close() throws SQLException {
-        heartbeatManager.stop();
-        logout();
+        HeartbeatService.shared().unregister(this);
+        try {
+            logout();
+        } finally {
+            if (cluster != null && clusterReleased.compareAndSet(false, true)) {
+                if (this.node != null) {
+                    this.node.unbind();
+                }
+                cluster.release();
+            }
+        }
+    }
+
+    private boolean canFailOver(List<ClusterNodes.Node> failed) {
+        return failed.size() < this.config.getMaxFailoverRetry() && cluster.select(failedAndCurrent(failed)) != null;
+    }
+
+    private List<ClusterNodes.Node> failedAndCurrent(List<ClusterNodes.Node> failed) {
+        List<ClusterNodes.Node> nodes = new ArrayList<>(failed);
+        nodes.add(this.node);
+        return nodes;
+    }
+
+    private void bind(ClusterNodes.Node next) {
+        ClusterNodes.Node previous = this.node;
+        if (previous == next) {
+            return;
+        }
+        next.bind();
+        if (previous != null) {
+            previous.unbind();
+        }
+        this.node = next;
+        this.baseUri = next.getUri();
+        // node ids are only known to the node that issued them
+        this.lastNodeID.set(null);
+    }
+
+    /**
+     * Whether the session can move to another node: not while a transaction, a query or anything
+     * else keeps state on the current one.
+     */
+    private boolean isMovable() {
+        SessionState currentSession = this.session.get();
+        if (currentSession != null
+                && (currentSession.inActiveTransaction() || Boolean.TRUE.equals(currentSession.getNeedSticky()))) {
+            return false;
+        }
+        return queryLivenessSupplier.get().isEmpty();
     }
 
     public QueryResultPages startQuery(String sql) throws SQLException {
@@ -198,41 +377,150 @@ public class DatabendSessionHandle implements Consumer<SessionState> {
     }
 
     public QueryResultPages startQuery(String queryId, String sql, StageAttachment attach, QueryResultFormat queryResultFormatOverride) throws SQLException {
-        SessionState currentSession = this.session.get();
-        if (currentSession == null || !currentSession.inActiveTransaction()) {
-            this.routeHint = uriRouteHint(this.config.getBaseUri().toString());
+        ConcurrencyLimitConfig limitConfig = this.config.getConcurrencyLimitConfig();
+        if (!limitConfig.isEnabled()) {
+            return sendQuery(queryId, sql, attach, queryResultFormatOverride);
         }
-        QueryRequestConfig.Builder builder = makeRequestConfig(queryId, this.config.getBaseUri().toString(), queryResultFormatOverride);
-        if (attach != null) {
-            builder.setStageAttachment(attach);
-        }
-        QueryRequestConfig requestConfig = builder.build();
+        QueryConcurrencyLimiter limiter = QueryConcurrencyLimiter.of(concurrencyLimitKey());
+        limiter.acquire(limitConfig);
+        long start = System.nanoTime();
+        QueryResultPages pages;
         try {
-            QueryResultPages pages = new RestQueryResultPages(httpClient, sql, requestConfig, this, lastNodeID);
-            Long timeout = pages.getResults().getResultTimeoutSecs();
-            if (timeout != null && timeout != 0) {
-                heartbeatManager.onStartQuery(timeout);
-            }
-            return pages;
+            pages = sendQuery(queryId, sql, attach, queryResultFormatOverride);
         } catch (RuntimeException e) {
-            String message = e.getMessage() == null ? e.toString() : e.getMessage();
-            throw new DatabendQueryException("Failed to start query: " + message, e);
+            limiter.release(limitConfig, -1, HttpRetryPolicy.isOverloadFailure(e));
+            throw e;
         }
+        // the query keeps its permit until it finished or its pages are closed
+        return new LimitedQueryResultPages(pages, limiter, limitConfig,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Queries of all connections with equal keys share one concurrency limit.
+     */
+    String concurrencyLimitKey() {
+        String warehouse = newAdditionalHeaders().get(QueryRequestConfig.DATABEND_WAREHOUSE_HEADER);
+        return ServerInfoCache.key(this.baseUri, this.config.getTenant(), warehouse);
+    }
+
+    private QueryResultPages sendQuery(String queryId, String sql, StageAttachment attach, QueryResultFormat queryResultFormatOverride) {
+        ClusterNodes.Node current = this.node;
+        if (current != null && current.isRemoved() && isMovable()) {
+            // the node left the cluster, move while nothing is running on it
+            ClusterNodes.Node next = cluster.select(Collections.emptyList());
+            logger.info("query node " + current + " was removed from the cluster, moving the session to " + next);
+            bind(next);
+        }
+        List<ClusterNodes.Node> failed = new ArrayList<>();
+        while (true) {
+            SessionState currentSession = this.session.get();
+            if (currentSession == null || !currentSession.inActiveTransaction()) {
+                this.routeHint = uriRouteHint(this.baseUri.toString());
+            }
+            QueryRequestConfig.Builder builder = makeRequestConfig(queryId, this.baseUri.toString(), queryResultFormatOverride);
+            // a node that cannot be reached is not retried when another one can take over
+            builder.setRetryConnectFailure(cluster == null || !canFailOver(failed) || !isMovable());
+            if (attach != null) {
+                builder.setStageAttachment(attach);
+            }
+            QueryRequestConfig requestConfig = builder.build();
+            try {
+                QueryResultPages pages = new RestQueryResultPages(httpClient, sql, requestConfig, this, lastNodeID);
+                Long timeout = pages.getResults().getResultTimeoutSecs();
+                if (timeout != null && timeout != 0) {
+                    startHeartbeat(timeout);
+                }
+                return pages;
+            } catch (RuntimeException e) {
+                if (!failOverQuery(e, failed)) {
+                    String message = e.getMessage() == null ? e.toString() : e.getMessage();
+                    throw new DatabendQueryException("Failed to start query: " + message, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the session to another node after the first request of a query could not reach the
+     * current one; the query never started there, so it is safe to send it again.
+     */
+    private boolean failOverQuery(RuntimeException e, List<ClusterNodes.Node> failed) {
+        if (cluster == null || this.node == null || !HttpRetryPolicy.isConnectFailure(e)) {
+            return false;
+        }
+        cluster.eject(this.node, e);
+        if (!canFailOver(failed) || !isMovable()) {
+            return false;
+        }
+        ClusterNodes.Node next = cluster.select(failedAndCurrent(failed));
+        failed.add(this.node);
+        logger.info("query node " + this.node + " cannot be reached, failing over to " + next);
+        bind(next);
+        return true;
     }
 
     public int streamingLoad(String sql, InputStream inputStream, long fileSize) throws SQLException {
-        HttpRetryPolicy retryPolicy = new HttpRetryPolicy(true, true);
+        return streamingLoad(sql, buildMultipartBody(inputStream, fileSize));
+    }
+
+    /**
+     * Prepares a streaming load of the data read from {@code source} until it is exhausted, e.g. the
+     * reading end of a pipe filled by another thread. The body is sent chunked, so its size does not
+     * need to be known up front, and as it cannot be sent twice the request is not retried.
+     * <p>
+     * The returned load may run on another thread while the connection executes statements: it is
+     * sent with the session state of this call, and the state the server returns for it is dropped
+     * instead of overwriting the USE, SET or transaction changes made in the meantime.
+     */
+    public Callable<Integer> prepareStreamingLoad(String sql, Source source) {
+        RequestBody body = new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return MediaType.parse("application/octet-stream");
+            }
+
+            @Override
+            public boolean isOneShot() {
+                return true;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                try {
+                    // pass on whatever the producer flushed instead of waiting for full segments
+                    while (source.read(sink.getBuffer(), 8192) != -1) {
+                        sink.flush();
+                    }
+                } catch (IOException e) {
+                    throw new StreamingLoadRequestEncodingFailure("Failed to encode streaming load request body", e);
+                }
+            }
+        };
+        RequestBody requestBody = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM)
+                .addFormDataPart("upload", "java.io.InputStream", body)
+                .build();
+        SessionState currentSession = this.session.get();
+        return () -> streamingLoad(sql, requestBody, currentSession, false);
+    }
+
+    private int streamingLoad(String sql, RequestBody requestBody) throws SQLException {
+        return streamingLoad(sql, requestBody, this.session.get(), true);
+    }
+
+    private int streamingLoad(String sql, RequestBody requestBody, SessionState currentSession, boolean updateSession)
+            throws SQLException {
+        HttpRetryPolicy retryPolicy = newRetryPolicy(true, true);
 
         try {
             Map<String, String> headers = new HashMap<>();
-            SessionState currentSession = this.session.get();
             if (currentSession != null) {
                 String sessionString = objectMapper.writeValueAsString(currentSession);
                 headers.put(QueryRequestConfig.DATABEND_QUERY_CONTEXT_HEADER, sessionString);
             }
             headers.put(QueryRequestConfig.DATABEND_SQL_HEADER, sql);
             headers.put("Accept", "application/json");
-            RequestBody requestBody = buildMultipartBody(inputStream, fileSize);
             HttpRetryPolicy.ResponseWithBody response =
                     requestHelper(STREAMING_LOAD_PATH, HttpMethod.PUT, requestBody, headers, retryPolicy);
             try {
@@ -245,7 +533,7 @@ public class DatabendSessionHandle implements Consumer<SessionState> {
                 }
 
                 String encodedSession = response.headers.get(QueryRequestConfig.DATABEND_QUERY_CONTEXT_HEADER);
-                if (encodedSession != null) {
+                if (updateSession && encodedSession != null) {
                     byte[] bytes = Base64.getUrlDecoder().decode(encodedSession);
                     String sessionJson = new String(bytes);
                     SessionState updatedSession = SESSION_JSON_CODEC.fromJson(sessionJson);
@@ -288,39 +576,16 @@ public class DatabendSessionHandle implements Consumer<SessionState> {
         String destination = normalizedPrefix + "/" + destFileName;
 
         try {
-            InputStream dataStream = inputStream;
             if (compressData) {
-                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-                try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(buffer)) {
-                    byte[] bytes = new byte[1024];
-                    int len;
-                    while ((len = inputStream.read(bytes)) != -1) {
-                        gzipOutputStream.write(bytes, 0, len);
-                    }
-                }
-                dataStream = new ByteArrayInputStream(buffer.toByteArray());
-                fileSize = buffer.size();
-            }
-
-            if (this.presignDisabled) {
-                uploadToStage(normalizedStage, normalizedPrefix + "/", destFileName, dataStream, fileSize);
+                uploadCompressed(normalizedStage, normalizedPrefix, destFileName, inputStream);
                 return;
             }
 
-            PresignedRequestContext presigned;
-            try {
-                presigned = getPresignedRequest(PresignMethod.UPLOAD, normalizedStage, destination);
-            } catch (RuntimeException e) {
-                throw new SQLException("Failed to prepare presigned upload request", e);
-            }
-            PresignClient client = new PresignClient();
-            try {
-                client.presignUpload(null, dataStream, presigned.headers, presigned.url, fileSize, true);
-            } catch (RuntimeException | IOException e) {
-                throw new SQLException(
-                        "Failed to upload stream",
-                        new DatabendPresignException("Failed to upload via presigned request", e));
+            if (isPresignDisabled()) {
+                uploadToStage(normalizedStage, normalizedPrefix + "/", destFileName, inputStream, fileSize);
+                return;
             }
+            presignedUpload(normalizedStage, destination, null, inputStream, fileSize, null);
         } catch (DatabendStageUploadException e) {
             logger.warning("failed to upload input stream, file size is:" + fileSize / 1024.0 + e.getMessage());
             throw new SQLException("Failed to upload stream", e);
@@ -333,15 +598,95 @@ public class DatabendSessionHandle implements Consumer<SessionState> {
         }
     }
 
+    /**
+     * Compresses the stream with gzip while it is uploaded, whatever {@code upload_compression} says:
+     * callers of {@code compressData=true} name their files {@code *.gz} and copy them as gzip. The
+     * upload_to_stage endpoint takes a chunked body, so the compressed bytes go straight to the
+     * socket; presigned PUTs need the length up front, so the compressed data is first written to a
+     * buffer that spills to a temporary file.
+     */
+    private void uploadCompressed(
+            String stageName,
+            String prefix,
+            String fileName,
+            InputStream inputStream) throws SQLException, IOException {
+        UploadCompression compression = UploadCompression.GZIP;
+        int threads = this.config.getUploadCompressionThreads();
+        if (isPresignDisabled()) {
+            uploadToStage(stageName, prefix + "/", fileName,
+                    new CompressingRequestBody(inputStream, compression, threads));
+            return;
+        }
+
+        SpillOutputStream spill = new SpillOutputStream(COMPRESSED_UPLOAD_MEMORY_LIMIT);
+        try {
+            try (OutputStream compressed = compression.wrap(spill, threads)) {
+                copy(inputStream, compressed);
+            }
+            try (InputStream data = spill.newInputStream()) {
+                presignedUpload(stageName, prefix + "/" + fileName, spill.getFile(), data, spill.size(), null);
+            }
+        } finally {
+            spill.delete();
+        }
+    }
+
+    private void presignedUpload(
+            String stageName,
+            String destination,
+            File srcFile,
+            InputStream inputStream,
+            long fileSize,
+            PresignedRequestContext presignedUpload) throws SQLException {
+        PresignedRequestContext presigned = presignedUpload;
+        if (presigned == null) {
+            try {
+                presigned = getPresignedRequest(PresignMethod.UPLOAD, stageName, destination);
+            } catch (RuntimeException e) {
+                throw new SQLException("Failed to prepare presigned upload request", e);
+            }
+        }
+        PresignClient client = PresignClient.shared(this.config.getPresignClientConfig());
+        try {
+            if (srcFile != null) {
+                try (FileChannel channel = FileChannel.open(srcFile.toPath(), StandardOpenOption.READ)) {
+                    client.presignUpload(new FileRangeRequestBody(channel, 0, fileSize), presigned.headers, presigned.url);
+                }
+            } else {
+                client.presignUpload(null, inputStream, presigned.headers, presigned.url, fileSize, true);
+            }
+        } catch (RuntimeException | IOException e) {
+            throw new SQLException(
+                    "Failed to upload stream",
+                    new DatabendPresignException("Failed to upload via presigned request", e));
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+    }
+
     private void uploadToStage(
             String stageName,
             String relativePath,
             String fileName,
             InputStream inputStream,
             long fileSize) throws IOException {
+        uploadToStage(stageName, relativePath, fileName, new StageUploadRequestBody(inputStream, fileSize));
+    }
+
+    private void uploadToStage(
+            String stageName,
+            String relativePath,
+            String fileName,
+            RequestBody fileBody) throws IOException {
         RequestBody requestBody = new MultipartBody.Builder()
                 .setType(MultipartBody.FORM)
-                .addFormDataPart("upload", fileName, new StageUploadRequestBody(inputStream, fileSize))
+                .addFormDataPart("upload", fileName, fileBody)
                 .build();
 
         Request.Builder builder = new Request.Builder()
@@ -356,17 +701,169 @@ public class DatabendSessionHandle implements Consumer<SessionState> {
         executeStageUpload(builder.build());
     }
 
-    public InputStream downloadStream(String stageName, String path) throws SQLException {
-        String normalizedStage = stageName.replaceAll("/$", "");
-        PresignClient client = new PresignClient();
-        PresignedRequestContext presigned;
+    /**
+     * Uploads {@code fileSize} bytes of {@code inputStream} as {@code directory + fileName}, with
+     * {@code presignedUpload} when it is given.
+     */
+    void uploadStream(String stageName, String directory, String fileName, InputStream inputStream, long fileSize,
+            PresignedRequestContext presignedUpload) throws SQLException {
+        if (isPresignDisabled()) {
+            try {
+                uploadToStage(stageName, directory, fileName, inputStream, fileSize);
+            } catch (IOException e) {
+                throw new SQLException("Failed to upload " + directory + fileName, e);
+            }
+            return;
+        }
+        presignedUpload(stageName, directory + fileName, null, inputStream, fileSize, presignedUpload);
+    }
+
+    /**
+     * Uploads several files to one stage directory concurrently, see {@link FileSetUploader}.
+     *
+     * @return the upload failure of every file, {@code null} for the files that were uploaded
+     */
+    public List<SQLException> uploadFiles(String stageName, String destPrefix, List<UploadFile> files)
+            throws SQLException {
+        String normalizedStage = stageName == null ? "~" : stageName.replaceAll("/$", "");
+        String normalizedPrefix = destPrefix.replaceAll("^/", "").replaceAll("/$", "");
+        return new FileSetUploader(this, this.config.getUploadParallelism())
+                .upload(normalizedStage, normalizedPrefix + "/", files);
+    }
+
+    /**
+     * Uploads a local file as one stage file. Uncompressed files are sent from a {@link FileChannel}
+     * without copying through heap buffers, and since the body can be written again, transient
+     * failures are retried by the HTTP layer.
+     */
+    public void uploadFile(String stageName, String destPrefix, Path file, String destFileName, boolean compressData)
+            throws SQLException {
+        String normalizedStage = stageName == null ? "~" : stageName.replaceAll("/$", "");
+        String normalizedPrefix = destPrefix.replaceAll("^/", "").replaceAll("/$", "");
+        if (compressData) {
+            try (InputStream inputStream = Files.newInputStream(file)) {
+                uploadCompressed(normalizedStage, normalizedPrefix, destFileName, inputStream);
+            } catch (IOException e) {
+                throw new SQLException("Failed to upload " + file, e);
+            }
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            uploadFileRange(normalizedStage, normalizedPrefix + "/", destFileName, channel, 0, channel.size(), null);
+        } catch (IOException e) {
+            throw new SQLException("Failed to read upload file " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Prepares the upload of a local file as one stage file. The PRESIGN statement it needs runs on
+     * the calling thread, so that it is ordered with the other statements of the session; the
+     * returned upload only transfers the bytes and can run on any thread.
+     */
+    public FileUpload prepareFileUpload(String stageName, String destPrefix, String destFileName)
+            throws SQLException {
+        String normalizedStage = stageName == null ? "~" : stageName.replaceAll("/$", "");
+        String directory = destPrefix.replaceAll("^/", "").replaceAll("/$", "") + "/";
+        PresignedRequestContext presignedUpload = isPresignDisabled()
+                ? null
+                : presignUpload(normalizedStage, directory + destFileName);
+        return file -> {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                uploadFileRange(normalizedStage, directory, destFileName, channel, 0, channel.size(), presignedUpload);
+            } catch (IOException e) {
+                throw new SQLException("Failed to read upload file " + file + ": " + e.getMessage(), e);
+            }
+        };
+    }
+
+    /**
+     * Uploads a large newline-delimited file as several parts transferred in parallel, see
+     * {@link MultipartUploader}. Returns the stage location of the directory holding the parts.
+     */
+    public String uploadFileInParts(String stageName, String destPrefix, Path file, String destFileName)
+            throws SQLException {
+        return uploadFileInParts(stageName, destPrefix, file, destFileName, null);
+    }
+
+    /**
+     * Same as {@link #uploadFileInParts(String, String, Path, String)}, recording the uploaded parts
+     * in {@code checkpoint} so that a failed or interrupted upload can be resumed, see
+     * {@link UploadCheckpoint}.
+     */
+    public String uploadFileInParts(String stageName, String destPrefix, Path file, String destFileName,
+            Path checkpoint) throws SQLException {
+        String normalizedStage = stageName == null ? "~" : stageName.replaceAll("/$", "");
+        String normalizedPrefix = destPrefix.replaceAll("^/", "").replaceAll("/$", "");
+        MultipartUploader uploader = new MultipartUploader(
+                this, this.config.getUploadPartSize(), this.config.getUploadParallelism());
+        return uploader.upload(normalizedStage, normalizedPrefix, file, destFileName, checkpoint);
+    }
+
+    /**
+     * Uploads {@code count} bytes of {@code channel} from {@code position} as one stage file. The
+     * body is replayable, so transient failures are retried by the HTTP layer.
+     */
+    void uploadFileRange(String stageName, String directory, String fileName, FileChannel channel,
+            long position, long count, PresignedRequestContext presignedUpload) throws SQLException {
+        RequestBody body = new FileRangeRequestBody(channel, position, count);
+        if (isPresignDisabled()) {
+            try {
+                uploadToStage(stageName, directory, fileName, body);
+            } catch (IOException e) {
+                throw new SQLException("Failed to upload " + directory + fileName, e);
+            }
+            return;
+        }
+        PresignedRequestContext presigned = presignedUpload;
+        if (presigned == null) {
+            try {
+                presigned = getPresignedRequest(PresignMethod.UPLOAD, stageName, directory + fileName);
+            } catch (RuntimeException e) {
+                throw new SQLException("Failed to prepare presigned upload request", e);
+            }
+        }
         try {
-            presigned = getPresignedRequest(PresignMethod.DOWNLOAD, normalizedStage, path);
-        } catch (RuntimeException e) {
-            throw new SQLException("Failed to prepare presigned download request", e);
+            PresignClient.shared(this.config.getPresignClientConfig()).presignUpload(body, presigned.headers, presigned.url);
+        } catch (RuntimeException | IOException e) {
+            throw new SQLException(
+                    "Failed to upload " + directory + fileName,
+                    new DatabendPresignException("Failed to upload via presigned request", e));
+        }
+    }
+
+    /**
+     * Best-effort removal of stage files, failures are only logged.
+     */
+    void removeStageFiles(String location) {
+        try {
+            QueryResultPages pages = startQuery("REMOVE " + location);
+            try {
+                while (pages.hasNext()) {
+                    QueryResults results = pages.getResults();
+                    if (results != null && results.getError() != null) {
+                        logger.warning("failed to remove stage files " + location + ": " + results.getError());
+                        return;
+                    }
+                    pages.advance();
+                }
+            } finally {
+                pages.close();
+            }
+        } catch (SQLException | RuntimeException e) {
+            logger.warning("failed to remove stage files " + location + ": " + e.getMessage());
         }
+    }
+
+    public InputStream downloadStream(String stageName, String path) throws SQLException {
+        String normalizedStage = stageName.replaceAll("/$", "");
+        PresignClient client = PresignClient.shared(this.config.getPresignClientConfig());
         try {
-            return client.presignDownloadStream(presigned.headers, presigned.url);
+            return withPresignedDownload(normalizedStage, path, presigned -> {
+                if (this.config.getDownloadParallelism() > 1) {
+                    return newRangeDownloader(client, presigned).openStream();
+                }
+                return client.presignDownloadStream(presigned.headers, presigned.url);
+            });
         } catch (IOException e) {
             throw new SQLException(
                     "Failed to open presigned download stream",
@@ -374,6 +871,70 @@ public class DatabendSessionHandle implements Consumer<SessionState> {
         }
     }
 
+    /**
+     * Downloads a stage file into {@code target} with parallel range requests.
+     *
+     * @return the number of bytes written
+     */
+    public long downloadFile(String stageName, String path, FileChannel target) throws SQLException {
+        String normalizedStage = stageName.replaceAll("/$", "");
+        PresignClient client = PresignClient.shared(this.config.getPresignClientConfig());
+        try {
+            return withPresignedDownload(normalizedStage, path,
+                    presigned -> newRangeDownloader(client, presigned).downloadTo(target));
+        } catch (IOException e) {
+            throw new SQLException(
+                    "Failed to download " + path,
+                    new DatabendPresignException("Failed to download via presigned request", e));
+        }
+    }
+
+    /**
+     * Runs {@code transfer} with a presigned download request, taken from the presign cache when
+     * possible. A cached request that fails is dropped and the transfer is tried once more with a
+     * freshly presigned one, as the URL may have been revoked early.
+     */
+    private <T> T withPresignedDownload(String stageName, String path, PresignedTransfer<T> transfer)
+            throws SQLException, IOException {
+        String key = stageName + "/" + path;
+        PresignedRequestContext cached = presignCache.get(key);
+        if (cached != null) {
+            try {
+                return transfer.apply(cached);
+            } catch (IOException e) {
+                presignCache.invalidate(key);
+                logger.fine("cached presigned download of " + key + " failed, presigning again: " + e);
+            }
+        }
+        PresignedRequestContext presigned = presignDownload(stageName, path);
+        presignCache.put(key, presigned);
+        return transfer.apply(presigned);
+    }
+
+    private PresignedRequestContext presignDownload(String stageName, String path) throws SQLException {
+        try {
+            return getPresignedRequest(PresignMethod.DOWNLOAD, stageName, path);
+        } catch (RuntimeException e) {
+            throw new SQLException("Failed to prepare presigned download request", e);
+        }
+    }
+
+    /**
+     * Presigns the upload of one stage file.
+     */
+    PresignedRequestContext presignUpload(String stageName, String path) throws SQLException {
+        try {
+            return getPresignedRequest(PresignMethod.UPLOAD, stageName, path);
+        } catch (RuntimeException e) {
+            throw new SQLException("Failed to prepare presigned upload request", e);
+        }
+    }
+
+    private ParallelRangeDownloader newRangeDownloader(PresignClient client, PresignedRequestContext presigned) {
+        return new ParallelRangeDownloader(client, presigned.headers, presigned.url,
+                this.config.getDownloadRangeSize(), this.config.getDownloadParallelism());
+    }
+
     public PaginationOptions getPaginationOptions() {
         PaginationOptions.Builder builder = PaginationOptions.builder();
         builder.setWaitTimeSecs(this.config.getWaitTimeSecs());
@@ -408,28 +969,84 @@ public class DatabendSessionHandle implements Consumer<SessionState> {
         return this.session.get();
     }
 
+    /**
+     * Puts the session back to a copy of the state it was opened with, database, settings and the
+     * rest such as the role, for a connection that goes back to a pool. The caller ends an open
+     * transaction first.
+     */
+    public void resetSession() {
+        SessionState opened = this.openedSession;
+        this.session.set((opened != null ? opened : config.getInitialSession()).copy());
+    }
+
     public Semver getServerVersion() {
+        awaitLogin();
         return this.serverVersion;
     }
 
     public boolean supportsStreamingLoad() {
-        return this.serverVersion != null && this.serverVersion.isGreaterThan(STREAMING_LOAD_MIN_VERSION);
+        Semver version = getServerVersion();
+        return version != null && version.isGreaterThan(STREAMING_LOAD_MIN_VERSION);
     }
 
     public boolean supportsHeartBeat() {
-        return this.serverVersion != null && this.serverVersion.isGreaterThan(HEARTBEAT_MIN_VERSION);
+        Semver version = getServerVersion();
+        return version != null && version.isGreaterThan(HEARTBEAT_MIN_VERSION);
     }
 
+    /**
+     * The node the session runs on.
+     */
     public URI getBaseUri() {
-        return this.config.getBaseUri();
+        return this.baseUri;
     }
 
     public boolean isPresignDisabled() {
+        if (this.presignDetectPending) {
+            synchronized (this) {
+                if (this.presignDetectPending) {
+                    detectPresign();
+                    this.presignDetectPending = false;
+                }
+            }
+        }
         return this.presignDisabled;
     }
 
     public boolean isHeartbeatStopped() {
-        return heartbeatManager.isStopped();
+        return !HeartbeatService.shared().isRegistered(this);
+    }
+
+    private void startHeartbeat(long resultTimeoutSecs) {
+        if (supportsHeartBeat()) {
+            HeartbeatService.shared().register(this, resultTimeoutSecs * 1000 / 4);
+        }
+    }
+
+    /**
+     * Sessions with equal keys send the heartbeats of their queries in one request.
+     */
+    String heartbeatKey() {
+        String warehouse = newAdditionalHeaders().get(QueryRequestConfig.DATABEND_WAREHOUSE_HEADER);
+        String principal = this.config.getPrincipal();
+        return ServerInfoCache.key(this.baseUri, this.config.getTenant(), warehouse) + "|" + (principal == null ? "" : principal);
+    }
+
+    /**
+     * @return the open result sets of the session whose server keeps them alive by heartbeats
+     */
+    List<QueryLiveness> activeQueries() {
+        List<QueryLiveness> activeQueries = new ArrayList<>();
+        for (QueryLiveness queryLiveness : queryLivenessSupplier.get()) {
+            if (queryLiveness != null && !queryLiveness.stopped && queryLiveness.serverSupportHeartBeat) {
+                activeQueries.add(queryLiveness);
+            }
+        }
+        return activeQueries;
+    }
+
+    Call newHeartbeatCall(String json) {
+        return this.httpClient.newCall(newRequest(HEARTBEAT_PATH, HttpMethod.POST, RequestBody.create(MEDIA_TYPE_JSON, json), null));
     }
 
     @Override
@@ -460,19 +1077,38 @@ public class DatabendSessionHandle implements Consumer<SessionState> {
                 .setSocketTimeout(this.config.getSocketTimeoutSecs())
                 .setQueryResultFormat(queryResultFormat)
                 .setPaginationOptions(getPaginationOptions())
+                .setRetryConfig(this.config.getRetryConfig())
+                .setPageHedging(this.config.getPageHedging())
+                .setRequestCompression(this.config.getQueryRequestCompression())
+                .setResponseCompression(this.config.getQueryResponseCompression())
                 .setAdditionalHeaders(additionalHeaders);
     }
 
     private boolean supportsArrowTransport() {
+        Future<?> login = this.pendingLogin;
+        if (login != null && !login.isDone()) {
+            // ask for arrow without waiting for the login, a server without it answers with JSON,
+            // and responses are decoded by their content type
+            return true;
+        }
+        awaitLogin();
         return this.serverMaxArrowResultVersion != null && this.serverMaxArrowResultVersion >= MIN_ARROW_RESULT_VERSION;
     }
 
+    private HttpRetryPolicy newRetryPolicy(boolean ignore404, boolean retry503) {
+        return newRetryPolicy(ignore404, retry503, true);
+    }
+
+    private HttpRetryPolicy newRetryPolicy(boolean ignore404, boolean retry503, boolean retryConnectFailure) {
+        return new HttpRetryPolicy(ignore404, retry503, retryConnectFailure, this.config.getRetryConfig());
+    }
+
     private void logout() throws SQLException {
         SessionState currentSession = this.session.get();
         if (currentSession == null || !currentSession.getNeedKeepAlive()) {
             return;
         }
-        HttpRetryPolicy retryPolicy = new HttpRetryPolicy(false, false);
+        HttpRetryPolicy retryPolicy = newRetryPolicy(false, false);
         RequestBody body = RequestBody.create(MEDIA_TYPE_JSON, "{}");
         requestHelper(LOGOUT_PATH, HttpMethod.POST, body, new HashMap<>(), retryPolicy);
     }
@@ -483,6 +1119,10 @@ public class DatabendSessionHandle implements Consumer<SessionState> {
             RequestBody body,
             Map<String, String> headers,
             HttpRetryPolicy retryPolicy) throws SQLException {
+        return retryPolicy.sendRequestWithRetry(this.httpClient, newRequest(path, method, body, headers));
+    }
+
+    private Request newRequest(String path, HttpMethod method, RequestBody body, Map<String, String> headers) {
         SessionState currentSession = this.session.get();
         HttpUrl url = buildUrl(path);
 
@@ -511,11 +1151,11 @@ public class DatabendSessionHandle implements Consumer<SessionState> {
                 builder = builder.get();
                 break;
         }
-        return retryPolicy.sendRequestWithRetry(this.httpClient, builder.build());
+        return builder.build();
     }
 
     private HttpUrl buildUrl(String path) {
-        HttpUrl url = HttpUrl.get(this.config.getBaseUri().toString());
+        HttpUrl url = HttpUrl.get(this.baseUri.toString());
         return url.newBuilder().encodedPath(path).build();
     }
 
@@ -623,64 +1263,6 @@ public class DatabendSessionHandle implements Consumer<SessionState> {
                 .build();
     }
 
-    private void sendHeartbeat(List<QueryLiveness> queryLivenesses) {
-        long now = System.currentTimeMillis();
-        Map<String, ArrayList<String>> nodeToQueryID = new HashMap<>();
-        Map<String, QueryLiveness> queries = new HashMap<>();
-
-        for (QueryLiveness ql : queryLivenesses) {
-            if (now - ql.lastRequestTime.get() >= ql.resultTimeoutSecs * 1000 / 2) {
-                nodeToQueryID.computeIfAbsent(ql.nodeID, key -> new ArrayList<>()).add(ql.queryID);
-                queries.put(ql.queryID, ql);
-            }
-        }
-        if (nodeToQueryID.isEmpty()) {
-            return;
-        }
-
-        Map<String, Object> requestBody = new HashMap<>();
-        requestBody.put("node_to_queries", nodeToQueryID);
-
-        String json;
-        try {
-            json = objectMapper.writeValueAsString(requestBody);
-        } catch (JsonProcessingException e) {
-            logger.warning("fail to encode heartbeat body: " + e);
-            return;
-        }
-
-        HttpRetryPolicy.ResponseWithBody response;
-        try {
-            HttpRetryPolicy retryPolicy = new HttpRetryPolicy(true, false);
-            response = requestHelper(
-                    HEARTBEAT_PATH,
-                    HttpMethod.POST,
-                    RequestBody.create(MEDIA_TYPE_JSON, json),
-                    null,
-                    retryPolicy);
-        } catch (SQLException e) {
-            logger.warning("fail to send heartbeat: " + e);
-            return;
-        }
-
-        try {
-            JsonNode toRemove = objectMapper.readTree(response.body).get("queries_to_remove");
-            if (toRemove != null && !toRemove.isNull() && !toRemove.isArray()) {
-                throw new IllegalArgumentException("queries_to_remove is not an array");
-            }
-            if (toRemove != null) {
-                for (JsonNode element : toRemove) {
-                    QueryLiveness query = queries.get(element.asText());
-                    if (query != null) {
-                        query.stopped = true;
-                    }
-                }
-            }
-        } catch (IOException | IllegalArgumentException e) {
-            logger.warning("fail to decode heartbeat response: " + e);
-        }
-    }
-
     private PresignedRequestContext getPresignedRequest(PresignMethod method, String stageName, String fileName)
             throws SQLException {
         String sql = buildPresignSql(method, stageName, fileName);
@@ -752,24 +1334,6 @@ public class DatabendSessionHandle implements Consumer<SessionState> {
         return Base64.getEncoder().encodeToString(uri.getBytes()) + "#";
     }
 
-    private static ScheduledExecutorService getScheduler() {
-        if (heartbeatScheduler == null) {
-            synchronized (DatabendSessionHandle.class) {
-                if (heartbeatScheduler == null) {
-                    heartbeatScheduler = Executors.newScheduledThreadPool(
-                            1,
-                            runnable -> {
-                                Thread thread = Executors.defaultThreadFactory().newThread(runnable);
-                                thread.setName("heartbeat (" + thread.getId() + ")");
-                                thread.setDaemon(true);
-                                return thread;
-                            });
-                }
-            }
-        }
-        return (ScheduledExecutorService) heartbeatScheduler;
-    }
-
     private enum HttpMethod {
         GET,
         POST,
@@ -786,11 +1350,11 @@ public class DatabendSessionHandle implements Consumer<SessionState> {
         public Map<String, String> settings;
     }
 
-    private static final class PresignedRequestContext {
-        private final Headers headers;
-        private final String url;
+    static final class PresignedRequestContext {
+        final Headers headers;
+        final String url;
 
-        private PresignedRequestContext(Headers headers, String url) {
+        PresignedRequestContext(Headers headers, String url) {
             this.headers = headers;
             this.url = url;
         }
@@ -809,6 +1373,17 @@ public class DatabendSessionHandle implements Consumer<SessionState> {
         }
     }
 
+    /**
+     * Upload prepared by {@link #prepareFileUpload(String, String, String)}.
+     */
+    public interface FileUpload {
+        void upload(Path file) throws SQLException;
+    }
+
+    private interface PresignedTransfer<T> {
+        T apply(PresignedRequestContext presigned) throws IOException;
+    }
+
     private static final class StageUploadRequestBody extends RequestBody {
         private final InputStream inputStream;
         private final long fileSize;
@@ -840,64 +1415,52 @@ public class DatabendSessionHandle implements Consumer<SessionState> {
         }
     }
 
-    private final class HeartbeatManager implements Runnable {
-        private ScheduledFuture<?> heartbeatFuture;
-        private long heartbeatIntervalMillis = 30000;
-        private long lastHeartbeatStartTimeMillis = 0;
-        private boolean closed;
+    /**
+     * Request body of unknown length that compresses the source while it is written, sent with
+     * chunked transfer encoding.
+     */
+    private static final class CompressingRequestBody extends RequestBody {
+        private final InputStream inputStream;
+        private final UploadCompression compression;
+        private final int threads;
 
-        private synchronized void onStartQuery(Long timeoutSecs) {
-            if (closed || !supportsHeartBeat()) {
-                return;
-            }
-            long candidateInterval = timeoutSecs * 1000 / 4;
-            if (candidateInterval < heartbeatIntervalMillis) {
-                heartbeatIntervalMillis = candidateInterval;
-                if (heartbeatFuture != null) {
-                    heartbeatFuture.cancel(false);
-                    heartbeatFuture = null;
-                }
-            }
-            if (heartbeatFuture == null) {
-                scheduleHeartbeat();
-            }
+        private CompressingRequestBody(InputStream inputStream, UploadCompression compression, int threads) {
+            this.inputStream = requireNonNull(inputStream, "inputStream is null");
+            this.compression = compression;
+            this.threads = threads;
         }
 
-        private synchronized void stop() {
-            closed = true;
-            if (heartbeatFuture != null) {
-                heartbeatFuture.cancel(false);
-                heartbeatFuture = null;
-            }
+        @Override
+        public MediaType contentType() {
+            return null;
         }
 
-        private synchronized boolean isStopped() {
-            return heartbeatFuture == null;
+        @Override
+        public long contentLength() {
+            return -1;
         }
 
-        private synchronized void scheduleHeartbeat() {
-            long delay = Math.max(heartbeatIntervalMillis - (System.currentTimeMillis() - lastHeartbeatStartTimeMillis), 0);
-            heartbeatFuture = getScheduler().schedule(this, delay, MILLISECONDS);
+        @Override
+        public boolean isOneShot() {
+            return true;
         }
 
         @Override
-        public void run() {
-            lastHeartbeatStartTimeMillis = System.currentTimeMillis();
-            List<QueryLiveness> queryLivenesses = queryLivenessSupplier.get();
-            List<QueryLiveness> activeQueries = new ArrayList<>();
-            for (QueryLiveness queryLiveness : queryLivenesses) {
-                if (queryLiveness != null && !queryLiveness.stopped && queryLiveness.serverSupportHeartBeat) {
-                    activeQueries.add(queryLiveness);
+        public void writeTo(BufferedSink sink) throws IOException {
+            // the sink belongs to the call, finishing the codec must not close it
+            OutputStream target = new FilterOutputStream(sink.outputStream()) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
                 }
-            }
 
-            sendHeartbeat(activeQueries);
-
-            synchronized (this) {
-                heartbeatFuture = null;
-                if (!closed && !activeQueries.isEmpty()) {
-                    scheduleHeartbeat();
+                @Override
+                public void close() throws IOException {
+                    flush();
                 }
+            };
+            try (OutputStream compressed = compression.wrap(target, threads)) {
+                copy(inputStream, compressed);
             }
         }
     }
@@ -0,0 +1,105 @@
+package com.databend.jdbc.internal.session;
+
+import com.databend.jdbc.UploadFile;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import static java.util.concurrent.Executors.newCachedThreadPool;
+
+/**
+ * Uploads a set of files to one stage directory with at most {@code parallelism} transfers in
+ * flight. The uploads are presigned up front on the calling thread; a file that fails, to presign or
+ * to upload, does not stop the others, its failure is reported in its slot of the result.
+ */
+final class FileSetUploader {
+    private static final Logger logger = Logger.getLogger(FileSetUploader.class.getPackage().getName());
+    private static final ExecutorService executorService = newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("Databend JDBC file set upload-%s").setDaemon(true).build());
+
+    private final DatabendSessionHandle handle;
+    private final int parallelism;
+
+    FileSetUploader(DatabendSessionHandle handle, int parallelism) {
+        this.handle = handle;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    List<SQLException> upload(String stageName, String directory, List<UploadFile> files) throws SQLException {
+        long start = System.nanoTime();
+        SQLException[] failures = new SQLException[files.size()];
+        // presigned here, one after another: the upload threads must not run statements of the session
+        DatabendSessionHandle.PresignedRequestContext[] presigned =
+                new DatabendSessionHandle.PresignedRequestContext[files.size()];
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            if (!handle.isPresignDisabled()) {
+                try {
+                    presigned[i] = handle.presignUpload(stageName, directory + files.get(i).getName());
+                } catch (SQLException e) {
+                    failures[i] = e;
+                    continue;
+                }
+            }
+            pending.add(i);
+        }
+
+        AtomicInteger nextPending = new AtomicInteger();
+        List<Future<Void>> workers = new ArrayList<>();
+        for (int i = 0; i < Math.min(parallelism, pending.size()); i++) {
+            workers.add(executorService.submit(() -> {
+                int next;
+                while ((next = nextPending.getAndIncrement()) < pending.size()) {
+                    int index = pending.get(next);
+                    try {
+                        uploadFile(stageName, directory, files.get(index), presigned[index]);
+                    } catch (SQLException e) {
+                        failures[index] = e;
+                    } catch (RuntimeException e) {
+                        failures[index] = new SQLException("Failed to upload " + files.get(index).getName(), e);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<Void> worker : workers) {
+            try {
+                worker.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                nextPending.set(pending.size());
+                throw new SQLException("Interrupted while uploading files to @" + stageName + "/" + directory, e);
+            } catch (ExecutionException e) {
+                // workers record failures per file
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        logger.fine(String.format("uploaded %d files to @%s/%s in %d ms",
+                files.size(), stageName, directory, (System.nanoTime() - start) / 1_000_000));
+        return Arrays.asList(failures);
+    }
+
+    private void uploadFile(String stageName, String directory, UploadFile file,
+            DatabendSessionHandle.PresignedRequestContext presigned) throws SQLException {
+        if (file.getPath() == null) {
+            handle.uploadStream(stageName, directory, file.getName(), file.getInputStream(), file.getSize(), presigned);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.getPath(), StandardOpenOption.READ)) {
+            handle.uploadFileRange(stageName, directory, file.getName(), channel, 0, channel.size(), presigned);
+        } catch (IOException e) {
+            throw new SQLException("Failed to read upload file " + file.getPath() + ": " + e.getMessage(), e);
+        }
+    }
+}
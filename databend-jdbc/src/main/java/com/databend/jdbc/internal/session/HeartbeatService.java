@@ -0,0 +1,310 @@
+package com.databend.jdbc.internal.session;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.logging.Logger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Keeps the result sets of all connections of the driver alive. Connections with open result sets
+ * register here; every interval the service collects the queries of all connections to the same
+ * endpoint with the same credentials and sends them to the server in one
+ * {@code /v1/session/heartbeat} request, which the server forwards to the nodes of the queries.
+ * <p>
+ * The request is sent asynchronously and cancelled at its deadline, so a slow or unreachable node
+ * never delays the heartbeats of other endpoints. While a heartbeat to an endpoint is in flight no
+ * new one is started for it; the queries are sent again in the next interval.
+ */
+final class HeartbeatService {
+    static final long MAX_INTERVAL_MILLIS = 30000;
+    private static final long MIN_INTERVAL_MILLIS = 100;
+    private static final long MAX_DEADLINE_MILLIS = 10000;
+    private static final Logger logger = Logger.getLogger(HeartbeatService.class.getPackage().getName());
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static volatile HeartbeatService shared;
+
+    private final ScheduledExecutorService scheduler;
+    private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    // the endpoint of every registered session
+    private final ConcurrentMap<DatabendSessionHandle, Endpoint> sessions = new ConcurrentHashMap<>();
+
+    HeartbeatService(String threadName) {
+        this.scheduler = Executors.newScheduledThreadPool(1,
+                new ThreadFactoryBuilder().setNameFormat(threadName).setDaemon(true).build());
+    }
+
+    static HeartbeatService shared() {
+        if (shared == null) {
+            synchronized (HeartbeatService.class) {
+                if (shared == null) {
+                    shared = new HeartbeatService("Databend JDBC heartbeat-%s");
+                }
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Sends heartbeats for the queries of {@code session} at least every {@code intervalMillis} until
+     * it has no open queries or is unregistered.
+     */
+    void register(DatabendSessionHandle session, long intervalMillis) {
+        long interval = Math.max(MIN_INTERVAL_MILLIS, Math.min(intervalMillis, MAX_INTERVAL_MILLIS));
+        String key = session.heartbeatKey();
+        while (true) {
+            Endpoint endpoint = endpoints.computeIfAbsent(key, Endpoint::new);
+            Endpoint previous;
+            synchronized (endpoint) {
+                if (endpoint.removed) {
+                    // the endpoint lost its last session meanwhile
+                    continue;
+                }
+                previous = sessions.put(session, endpoint);
+                Member member = endpoint.members.get(session);
+                endpoint.members.put(session, new Member(member == null ? interval : Math.min(member.intervalMillis, interval)));
+                endpoint.schedule();
+            }
+            if (previous != null && previous != endpoint) {
+                // the session moved to another node
+                previous.remove(session);
+            }
+            return;
+        }
+    }
+
+    void unregister(DatabendSessionHandle session) {
+        Endpoint endpoint = sessions.remove(session);
+        if (endpoint != null) {
+            endpoint.remove(session);
+        }
+    }
+
+    boolean isRegistered(DatabendSessionHandle session) {
+        return sessions.containsKey(session);
+    }
+
+    /**
+     * Sends one heartbeat for the due {@code queries} with the session and credentials of
+     * {@code sender}. The returned future completes when the response was applied or the request
+     * failed; failures are only logged, the queries stay alive until the next heartbeat.
+     */
+    static CompletableFuture<Void> send(DatabendSessionHandle sender, List<QueryLiveness> queries, long deadlineMillis) {
+        long now = System.currentTimeMillis();
+        Map<String, List<String>> nodeToQueries = new HashMap<>();
+        Map<String, QueryLiveness> byId = new HashMap<>();
+        for (QueryLiveness query : queries) {
+            if (now - query.lastRequestTime.get() >= query.resultTimeoutSecs * 1000 / 2) {
+                nodeToQueries.computeIfAbsent(query.nodeID, key -> new ArrayList<>()).add(query.queryID);
+                byId.put(query.queryID, query);
+            }
+        }
+        if (nodeToQueries.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        String json;
+        try {
+            json = objectMapper.writeValueAsString(Collections.singletonMap("node_to_queries", nodeToQueries));
+        } catch (JsonProcessingException e) {
+            logger.warning("fail to encode heartbeat body: " + e);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        Call call = sender.newHeartbeatCall(json);
+        call.timeout().timeout(deadlineMillis, MILLISECONDS);
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                logger.warning("fail to send heartbeat: " + e);
+                done.complete(null);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (ResponseBody body = response.body()) {
+                    if (!response.isSuccessful()) {
+                        logger.warning("fail to send heartbeat: " + response.code() + " " + response.message());
+                        return;
+                    }
+                    applyResponse(body == null ? "" : body.string(), byId);
+                } catch (IOException e) {
+                    logger.warning("fail to send heartbeat: " + e);
+                } finally {
+                    done.complete(null);
+                }
+            }
+        });
+        return done;
+    }
+
+    private static void applyResponse(String body, Map<String, QueryLiveness> queries) {
+        try {
+            JsonNode toRemove = objectMapper.readTree(body).get("queries_to_remove");
+            if (toRemove != null && !toRemove.isNull() && !toRemove.isArray()) {
+                throw new IllegalArgumentException("queries_to_remove is not an array");
+            }
+            if (toRemove != null) {
+                for (JsonNode element : toRemove) {
+                    QueryLiveness query = queries.get(element.asText());
+                    if (query != null) {
+                        query.stopped = true;
+                    }
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warning("fail to decode heartbeat response: " + e);
+        }
+    }
+
+    /**
+     * The sessions to one endpoint with the same credentials, which share one heartbeat request.
+     */
+    private final class Endpoint implements Runnable {
+        private final String key;
+        private final ConcurrentMap<DatabendSessionHandle, Member> members = new ConcurrentHashMap<>();
+        // guarded by this
+        private ScheduledFuture<?> future;
+        private long intervalMillis = MAX_INTERVAL_MILLIS;
+        private long lastStartMillis;
+        private boolean removed;
+        private CompletableFuture<Void> inFlight = CompletableFuture.completedFuture(null);
+
+        private Endpoint(String key) {
+            this.key = key;
+            // queries are only due half their result timeout after the last request, so the first
+            // heartbeat waits an interval and takes the sessions that register meanwhile along
+            this.lastStartMillis = System.currentTimeMillis();
+        }
+
+        // called with the lock held, after members changed
+        private void schedule() {
+            long interval = MAX_INTERVAL_MILLIS;
+            for (Member member : members.values()) {
+                interval = Math.min(interval, member.intervalMillis);
+            }
+            if (future != null && interval >= intervalMillis) {
+                intervalMillis = interval;
+                return;
+            }
+            intervalMillis = interval;
+            if (future != null) {
+                future.cancel(false);
+            }
+            long delay = Math.max(intervalMillis - (System.currentTimeMillis() - lastStartMillis), 0);
+            future = scheduler.schedule(this, delay, MILLISECONDS);
+        }
+
+        private synchronized void remove(DatabendSessionHandle session) {
+            members.remove(session);
+            if (members.isEmpty()) {
+                close();
+            }
+        }
+
+        // called with the lock held
+        private void close() {
+            removed = true;
+            endpoints.remove(key, this);
+            if (future != null) {
+                future.cancel(false);
+                future = null;
+            }
+        }
+
+        @Override
+        public void run() {
+            Map<DatabendSessionHandle, Member> snapshot;
+            synchronized (this) {
+                future = null;
+                if (removed) {
+                    return;
+                }
+                lastStartMillis = System.currentTimeMillis();
+                snapshot = new HashMap<>(members);
+            }
+            // outside of the lock, the connections lock their statements to list the queries
+            DatabendSessionHandle sender = null;
+            List<QueryLiveness> queries = new ArrayList<>();
+            List<Map.Entry<DatabendSessionHandle, Member>> idle = new ArrayList<>();
+            for (Map.Entry<DatabendSessionHandle, Member> entry : snapshot.entrySet()) {
+                List<QueryLiveness> active = entry.getKey().activeQueries();
+                if (active.isEmpty()) {
+                    idle.add(entry);
+                } else {
+                    queries.addAll(active);
+                    sender = entry.getKey();
+                }
+            }
+            long deadline;
+            synchronized (this) {
+                if (removed) {
+                    return;
+                }
+                for (Map.Entry<DatabendSessionHandle, Member> entry : idle) {
+                    // like a connection without result sets, the session registers again with its next query;
+                    // a session that registered again meanwhile has a new member and stays
+                    if (members.remove(entry.getKey(), entry.getValue())) {
+                        sessions.remove(entry.getKey(), this);
+                    }
+                }
+                if (members.isEmpty()) {
+                    close();
+                    return;
+                }
+                schedule();
+                if (sender == null) {
+                    return;
+                }
+                if (!inFlight.isDone()) {
+                    logger.fine("heartbeat of " + queries.size() + " queries skipped, the previous one is still in flight");
+                    return;
+                }
+                deadline = Math.min(intervalMillis, MAX_DEADLINE_MILLIS);
+                inFlight = new CompletableFuture<>();
+            }
+            CompletableFuture<Void> sent;
+            try {
+                sent = send(sender, queries, deadline);
+            } catch (RuntimeException e) {
+                logger.warning("fail to send heartbeat: " + e);
+                sent = CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> current;
+            synchronized (this) {
+                current = inFlight;
+                inFlight = sent;
+            }
+            current.complete(null);
+        }
+    }
+
+    private static final class Member {
+        // the interval the session asked for
+        private final long intervalMillis;
+
+        private Member(long intervalMillis) {
+            this.intervalMillis = intervalMillis;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.databend.jdbc.internal.session;
+
+import com.databend.jdbc.internal.http.HttpRetryPolicy;
+import com.databend.jdbc.internal.query.QueryResultPages;
+import com.databend.jdbc.internal.query.QueryResults;
+import com.databend.jdbc.internal.query.QueryRowField;
+import com.databend.jdbc.internal.query.ResultPage;
+import okhttp3.Request;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The pages of a query that holds a permit of a {@link QueryConcurrencyLimiter}. The permit is
+ * returned once the server reports the query finished, its last page was fetched, a page failed, or
+ * the pages were closed, whichever comes first. The remaining pages of a finished query are served
+ * from the buffer of the query node, so a result set that is read slowly or never closed does not
+ * keep other queries waiting.
+ */
+final class LimitedQueryResultPages implements QueryResultPages {
+    private final QueryResultPages pages;
+    private final QueryConcurrencyLimiter limiter;
+    private final ConcurrencyLimitConfig config;
+    // how long the first request took, what the adaptive limit follows
+    private final long latencyMillis;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    LimitedQueryResultPages(QueryResultPages pages, QueryConcurrencyLimiter limiter, ConcurrencyLimitConfig config, long latencyMillis) {
+        this.pages = pages;
+        this.limiter = limiter;
+        this.config = config;
+        this.latencyMillis = latencyMillis;
+        releaseIfFinished();
+    }
+
+    @Override
+    public String getQuery() {
+        return pages.getQuery();
+    }
+
+    @Override
+    public void close() {
+        try {
+            pages.close();
+        } finally {
+            release(latencyMillis, false);
+        }
+    }
+
+    @Override
+    public SessionState getSession() {
+        return pages.getSession();
+    }
+
+    @Override
+    public String getNodeID() {
+        return pages.getNodeID();
+    }
+
+    @Override
+    public QueryResults getResults() {
+        return pages.getResults();
+    }
+
+    @Override
+    public List<QueryRowField> getSchema() {
+        return pages.getSchema();
+    }
+
+    @Override
+    public ResultPage getPage() {
+        return pages.getPage();
+    }
+
+    @Override
+    public boolean execute(Request request) {
+        try {
+            boolean executed = pages.execute(request);
+            releaseIfFinished();
+            return executed;
+        } catch (RuntimeException e) {
+            release(-1, HttpRetryPolicy.isOverloadFailure(e));
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean advance() {
+        try {
+            boolean advanced = pages.advance();
+            releaseIfFinished();
+            return advanced;
+        } catch (RuntimeException e) {
+            release(-1, HttpRetryPolicy.isOverloadFailure(e));
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return pages.hasNext();
+    }
+
+    private void releaseIfFinished() {
+        QueryResults results = pages.getResults();
+        if (!pages.hasNext() || results == null || !results.hasMoreData() || isFinished(results.getState())) {
+            release(latencyMillis, false);
+        }
+    }
+
+    private static boolean isFinished(String state) {
+        return "Succeeded".equalsIgnoreCase(state) || "Failed".equalsIgnoreCase(state);
+    }
+
+    private void release(long latencyMillis, boolean overloaded) {
+        if (released.compareAndSet(false, true)) {
+            limiter.release(config, latencyMillis, overloaded);
+        }
+    }
+}
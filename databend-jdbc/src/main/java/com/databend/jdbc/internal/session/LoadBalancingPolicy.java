@@ -0,0 +1,23 @@
+package com.databend.jdbc.internal.session;
+
+import java.util.Locale;
+
+/**
+ * How a connection to a JDBC URL with several hosts picks the query node its session runs on.
+ */
+public enum LoadBalancingPolicy {
+    // the first healthy host in the order of the URL, the others are only used for failover
+    DISABLED,
+    ROUND_ROBIN,
+    // the healthy host with the fewest open sessions of this driver
+    LEAST_INFLIGHT,
+    RANDOM;
+
+    public static LoadBalancingPolicy fromValue(String value) {
+        return LoadBalancingPolicy.valueOf(value.trim().replace('-', '_').toUpperCase(Locale.ENGLISH));
+    }
+
+    public String value() {
+        return name().toLowerCase(Locale.ENGLISH);
+    }
+}
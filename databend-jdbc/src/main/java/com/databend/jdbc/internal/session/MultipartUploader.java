@@ -0,0 +1,328 @@
+package com.databend.jdbc.internal.session;
+
+import com.databend.jdbc.internal.http.NonRetryableHttpStatusException;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Uploads a large newline-delimited file as several part files that are transferred concurrently.
+ * <p>
+ * Stage uploads have no multipart protocol, so every part becomes a stage file of its own under
+ * {@code <prefix>/<name>/}, cut at a line break so each part holds whole records. For CSV the line
+ * break must lie outside of quotes, which keeps records with quoted multi-line fields together; TSV
+ * and NDJSON files are cut at any line break. Every part is loaded as a file of its own, so the file
+ * must not start with a header row: {@code skip_header} would drop the first record of every part.
+ * <p>
+ * The calling thread presigns every part right before handing it to an upload thread, so no more
+ * than {@code parallelism} URLs are waiting to be used and a part queued behind a long upload does
+ * not get a URL that expires before its turn. PRESIGN is a statement of the session, which must not
+ * run concurrently with itself or with the other statements of the connection, so the upload threads
+ * only transfer bytes. A failed part is sent again with the same URL unless that URL is about to
+ * expire, then it is presigned again first. Parts are read with positional reads from one
+ * {@link FileChannel}, which lets a failed part be sent again without touching the others. The
+ * upload commits only when every part succeeded; otherwise the parts that did reach the stage are
+ * removed, unless an {@link UploadCheckpoint} keeps track of them so the upload can be resumed.
+ */
+final class MultipartUploader {
+    private static final Logger logger = Logger.getLogger(MultipartUploader.class.getPackage().getName());
+    private static final int PART_ATTEMPTS = 3;
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+    // the default expiry of PRESIGN, used when the URL does not tell its own
+    private static final long DEFAULT_PRESIGN_EXPIRY_MILLIS = 3600_000;
+    // a part presigned this long before its URL expires is presigned again before it is sent
+    @VisibleForTesting
+    static final long PRESIGN_REFRESH_MARGIN_MILLIS = 5 * 60_000;
+    private static final ExecutorService executorService = newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("Databend JDBC multipart upload-%s").setDaemon(true).build());
+
+    private final DatabendSessionHandle handle;
+    private final long partSize;
+    private final int parallelism;
+    private final LongSupplier clock;
+
+    MultipartUploader(DatabendSessionHandle handle, long partSize, int parallelism) {
+        this(handle, partSize, parallelism, System::currentTimeMillis);
+    }
+
+    @VisibleForTesting
+    MultipartUploader(DatabendSessionHandle handle, long partSize, int parallelism, LongSupplier clock) {
+        this.handle = handle;
+        this.partSize = partSize;
+        this.parallelism = Math.max(1, parallelism);
+        this.clock = clock;
+    }
+
+    /**
+     * Uploads {@code file} and returns the stage location of the directory holding its parts.
+     *
+     * @param checkpoint file recording the uploaded parts, or {@code null}; with a checkpoint a failed
+     * upload keeps the parts that reached the stage and a later call with the same checkpoint only
+     * sends the missing ones
+     */
+    String upload(String stageName, String prefix, Path file, String fileName, Path checkpoint) throws SQLException {
+        String directory = (prefix.isEmpty() ? "" : prefix + "/") + fileName + "/";
+        String location = "@" + stageName + "/" + directory;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            List<long[]> parts = split(channel, partSize, hasQuotedFields(fileName));
+            warnAboutOversizedParts(file, channel.size(), parts);
+            UploadCheckpoint progress = checkpoint == null
+                    ? null
+                    : UploadCheckpoint.open(checkpoint, location, file, partSize, parts.size());
+            List<Integer> pending = new ArrayList<>();
+            for (int i = 0; i < parts.size(); i++) {
+                if (progress == null || !progress.isCompleted(i)) {
+                    pending.add(i);
+                }
+            }
+            long start = System.nanoTime();
+            uploadParts(channel, parts, pending, progress, stageName, directory, fileName, location);
+            if (progress != null) {
+                progress.delete();
+            }
+            logger.fine(String.format("uploaded %s (%d bytes) as %d parts (%d resumed) to %s in %d ms",
+                    file, channel.size(), parts.size(), parts.size() - pending.size(), location,
+                    (System.nanoTime() - start) / 1_000_000));
+            return location;
+        } catch (IOException e) {
+            throw new SQLException("Failed to read upload file " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void uploadParts(FileChannel channel, List<long[]> parts, List<Integer> pending, UploadCheckpoint progress,
+            String stageName, String directory, String fileName, String location) throws SQLException {
+        CompletionService<PartUpload> completion = new ExecutorCompletionService<>(executorService);
+        Deque<PartUpload> queued = new ArrayDeque<>();
+        for (int part : pending) {
+            queued.add(new PartUpload(channel, parts.get(part), stageName, directory, partName(part, fileName), part));
+        }
+        int running = 0;
+        Throwable failure = null;
+        while (running > 0 || (failure == null && !queued.isEmpty())) {
+            while (failure == null && running < parallelism && !queued.isEmpty()) {
+                PartUpload upload = queued.poll();
+                try {
+                    presignIfNeeded(upload);
+                } catch (SQLException e) {
+                    failure = e;
+                    break;
+                }
+                completion.submit(upload);
+                running++;
+            }
+            if (running == 0) {
+                break;
+            }
+            PartUpload done;
+            try {
+                done = completion.take().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = failure == null ? e : failure;
+                break;
+            } catch (ExecutionException e) {
+                running--;
+                failure = failure == null ? e.getCause() : failure;
+                continue;
+            }
+            running--;
+            if (done.failure == null) {
+                if (progress != null) {
+                    try {
+                        progress.complete(done.part);
+                    } catch (IOException e) {
+                        failure = failure == null ? e : failure;
+                    }
+                }
+            } else if (failure == null && done.attempt < PART_ATTEMPTS && isRetryable(done)) {
+                logger.info("retry upload of part " + directory + done.partName + " #" + done.attempt
+                        + " due to: " + done.failure);
+                done.attempt++;
+                queued.addFirst(done);
+            } else if (failure == null) {
+                failure = done.failure;
+            }
+        }
+        if (failure != null) {
+            if (progress != null) {
+                throw new SQLException(String.format("Failed to upload file parts to %s, %d of %d parts are done and "
+                                + "recorded in %s, upload again with the same checkpoint to resume: %s",
+                        location, progress.completedCount(), parts.size(), progress.getPath(), failure.getMessage()),
+                        failure);
+            }
+            handle.removeStageFiles(location);
+            if (failure instanceof SQLException) {
+                throw (SQLException) failure;
+            }
+            throw new SQLException("Failed to upload file parts to " + location + ": " + failure.getMessage(), failure);
+        }
+    }
+
+    /**
+     * Presigns {@code upload} on the calling thread unless it holds a URL that stays valid for a
+     * while; a retried part keeps its URL until it is about to expire.
+     */
+    private void presignIfNeeded(PartUpload upload) throws SQLException {
+        if (handle.isPresignDisabled() || (upload.presigned != null && !isExpiring(upload))) {
+            return;
+        }
+        long now = clock.getAsLong();
+        upload.presigned = handle.presignUpload(upload.stageName, upload.directory + upload.partName);
+        long urlExpiry = PresignCache.urlExpiryMillis(upload.presigned.url);
+        upload.expiresAtMillis = urlExpiry > 0 ? urlExpiry : now + DEFAULT_PRESIGN_EXPIRY_MILLIS;
+    }
+
+    private boolean isExpiring(PartUpload upload) {
+        return clock.getAsLong() >= upload.expiresAtMillis - PRESIGN_REFRESH_MARGIN_MILLIS;
+    }
+
+    /**
+     * Failures of the transfer are retried, rejected requests are not, except a 403 for a URL that
+     * expired on the way: the retry presigns the part again.
+     */
+    private boolean isRetryable(PartUpload upload) {
+        for (Throwable cause = upload.failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof NonRetryableHttpStatusException) {
+                return ((NonRetryableHttpStatusException) cause).getStatusCode() == 403
+                        && upload.presigned != null && isExpiring(upload);
+            }
+        }
+        return true;
+    }
+
+    private void warnAboutOversizedParts(Path file, long size, List<long[]> parts) {
+        long largest = 0;
+        for (long[] part : parts) {
+            largest = Math.max(largest, part[1] - part[0]);
+        }
+        if (largest > 2 * partSize || (parts.size() == 1 && size > partSize)) {
+            logger.warning(String.format("%s is uploaded with a part of %d bytes for a part size of %d: no record "
+                            + "ends there, a stray or backslash-escaped quote in a CSV file keeps the rest of the "
+                            + "file in one part", file, largest, partSize));
+        }
+    }
+
+    static String partName(int part, String fileName) {
+        return String.format("part_%05d_%s", part, fileName);
+    }
+
+    /**
+     * @return whether line breaks of {@code fileName} may be quoted: false for TSV and NDJSON, whose
+     * records always end at a line break, true for CSV and anything else
+     */
+    static boolean hasQuotedFields(String fileName) {
+        String name = fileName.toLowerCase(Locale.ENGLISH);
+        return !(name.endsWith(".tsv") || name.endsWith(".ndjson") || name.endsWith(".jsonl")
+                || name.endsWith(".json"));
+    }
+
+    /**
+     * Cuts the file into ranges {@code [start, end)} of at least {@code partSize} bytes, each ending
+     * right after a line break, except the last one which ends with the file.
+     * <p>
+     * With {@code quotedFields} line breaks inside double quotes are part of a CSV field, not the end
+     * of a record, so the file is scanned from its start to know whether a line break is quoted.
+     * Quotes escaped by doubling them toggle the state twice and keep it right; a stray quote, or one
+     * escaped with a backslash, leaves the rest of the file in one part.
+     */
+    static List<long[]> split(FileChannel channel, long partSize, boolean quotedFields) throws IOException {
+        long size = channel.size();
+        List<long[]> parts = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        long start = 0;
+        long position = 0;
+        boolean quoted = false;
+        while (position < size) {
+            buffer.clear();
+            int n = channel.read(buffer, position);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                byte b = buffer.get(i);
+                if (b == '"' && quotedFields) {
+                    quoted = !quoted;
+                } else if (b == '\n' && !quoted) {
+                    long end = position + i + 1;
+                    if (end - start >= partSize && end < size) {
+                        parts.add(new long[] {start, end});
+                        start = end;
+                    }
+                }
+            }
+            position += n;
+        }
+        parts.add(new long[] {start, size});
+        return parts;
+    }
+
+    /**
+     * One part on its way to the stage. The upload thread makes a single attempt and keeps its
+     * failure, retries are scheduled by the calling thread.
+     */
+    private final class PartUpload implements Callable<PartUpload> {
+        private final FileChannel channel;
+        private final long[] range;
+        private final String stageName;
+        private final String directory;
+        private final String partName;
+        private final int part;
+        private int attempt = 1;
+        private DatabendSessionHandle.PresignedRequestContext presigned;
+        private long expiresAtMillis;
+        private Exception failure;
+
+        private PartUpload(FileChannel channel, long[] range, String stageName, String directory, String partName,
+                int part) {
+            this.channel = channel;
+            this.range = range;
+            this.stageName = stageName;
+            this.directory = directory;
+            this.partName = partName;
+            this.part = part;
+        }
+
+        @Override
+        public PartUpload call() {
+            if (attempt > 1) {
+                try {
+                    MILLISECONDS.sleep(500L * (attempt - 1));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    // keeps the failure of the previous attempt, which is not retried again
+                    attempt = PART_ATTEMPTS;
+                    return this;
+                }
+            }
+            failure = null;
+            try {
+                handle.uploadFileRange(stageName, directory, partName, channel, range[0], range[1] - range[0],
+                        presigned);
+            } catch (SQLException | RuntimeException e) {
+                failure = e;
+            }
+            return this;
+        }
+    }
+}
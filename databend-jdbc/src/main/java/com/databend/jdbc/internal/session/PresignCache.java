@@ -0,0 +1,131 @@
+package com.databend.jdbc.internal.session;
+
+import okhttp3.HttpUrl;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Presigned download requests of one session, kept for a while so that repeated downloads of the
+ * same stage file skip the PRESIGN query.
+ * <p>
+ * An entry lives for the configured TTL, but never past the expiry signed into the URL itself
+ * (S3 and GCS {@code X-*-Date}/{@code X-*-Expires}, {@code Expires}, Azure {@code se}), minus a
+ * safety margin so that a transfer started from the cache does not outlive its URL.
+ */
+final class PresignCache {
+    static final long EXPIRY_MARGIN_MILLIS = 60_000;
+    private static final int MAX_ENTRIES = 1024;
+    private static final DateTimeFormatter SIGNATURE_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+
+    private final long ttlMillis;
+    private final LongSupplier clock;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    PresignCache(long ttlMillis, LongSupplier clock) {
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+    }
+
+    boolean isEnabled() {
+        return ttlMillis > 0;
+    }
+
+    DatabendSessionHandle.PresignedRequestContext get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAtMillis <= clock.getAsLong()) {
+            entries.remove(key, entry);
+            return null;
+        }
+        return entry.context;
+    }
+
+    void put(String key, DatabendSessionHandle.PresignedRequestContext context) {
+        if (!isEnabled()) {
+            return;
+        }
+        long now = clock.getAsLong();
+        long expiresAt = now + ttlMillis;
+        long urlExpiry = urlExpiryMillis(context.url);
+        if (urlExpiry > 0) {
+            expiresAt = Math.min(expiresAt, urlExpiry - EXPIRY_MARGIN_MILLIS);
+        }
+        if (expiresAt <= now) {
+            return;
+        }
+        if (entries.size() >= MAX_ENTRIES) {
+            evictExpired(now);
+            if (entries.size() >= MAX_ENTRIES) {
+                entries.clear();
+            }
+        }
+        entries.put(key, new Entry(context, expiresAt));
+    }
+
+    void invalidate(String key) {
+        entries.remove(key);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private void evictExpired(long now) {
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            if (it.next().expiresAtMillis <= now) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Expiry signed into a presigned URL in epoch milliseconds, or 0 when the URL does not tell.
+     */
+    static long urlExpiryMillis(String url) {
+        HttpUrl httpUrl = HttpUrl.parse(url);
+        if (httpUrl == null) {
+            return 0;
+        }
+        try {
+            for (String vendor : new String[] {"Amz", "Goog"}) {
+                String date = httpUrl.queryParameter("X-" + vendor + "-Date");
+                String expires = httpUrl.queryParameter("X-" + vendor + "-Expires");
+                if (date != null && expires != null) {
+                    long signedAt = LocalDateTime.parse(date, SIGNATURE_DATE).toInstant(ZoneOffset.UTC).toEpochMilli();
+                    return signedAt + Long.parseLong(expires) * 1000;
+                }
+            }
+            String expires = httpUrl.queryParameter("Expires");
+            if (expires != null) {
+                return Long.parseLong(expires) * 1000;
+            }
+            String azureExpiry = httpUrl.queryParameter("se");
+            if (azureExpiry != null) {
+                return Instant.parse(azureExpiry).toEpochMilli();
+            }
+        } catch (NumberFormatException | DateTimeParseException e) {
+            return 0;
+        }
+        return 0;
+    }
+
+    private static final class Entry {
+        private final DatabendSessionHandle.PresignedRequestContext context;
+        private final long expiresAtMillis;
+
+        private Entry(DatabendSessionHandle.PresignedRequestContext context, long expiresAtMillis) {
+            this.context = context;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.databend.jdbc.internal.session;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Admission control for the queries of all connections of the JVM to one endpoint and warehouse.
+ * A query takes a permit before its first request, which is the one a busy warehouse queues, and
+ * holds it until it reached a final state or its result set was closed; queries above the limit wait
+ * in a bounded queue, and fail with a {@link SQLTransientException} when the queue is full or their
+ * wait times out, instead of piling up threads behind the warehouse queue.
+ * <p>
+ * The limit is {@link ConcurrencyLimitConfig#getMaxConcurrentQueries()}, or with
+ * {@link ConcurrencyLimitConfig#isAdaptive()} an AIMD limit below it that follows the latency of the
+ * first requests, like TCP Vegas: while a request takes less than twice the lowest latency seen the
+ * limit grows by one per limit of starts, and once per round trip a slower request, a timeout or a
+ * 429 or 503 response shrinks it by a tenth.
+ */
+public final class QueryConcurrencyLimiter {
+    private static final Logger logger = Logger.getLogger(QueryConcurrencyLimiter.class.getPackage().getName());
+    private static final ConcurrentMap<String, QueryConcurrencyLimiter> limiters = new ConcurrentHashMap<>();
+    private static final double INITIAL_ADAPTIVE_LIMIT = 20;
+    private static final double BACKOFF_RATIO = 0.9;
+    // latencies up to this multiple of the lowest one count as not queued
+    private static final double LATENCY_TOLERANCE = 2.0;
+    // and so do the ones less than this above it, for the starts of quick queries
+    private static final long LATENCY_SLACK_MILLIS = 50;
+    // share of a sample the lowest latency moves towards, so that it follows a slower warehouse
+    private static final double BASELINE_DRIFT = 0.01;
+
+    private final String key;
+    private final Ticker ticker;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    // guarded by lock
+    private double adaptiveLimit = -1;
+    private double baselineMillis = -1;
+    private long lastDecreaseNanos;
+    private int inFlight;
+    private int waiting;
+    private long admitted;
+    private long queued;
+    private long rejected;
+    private long limitDecreases;
+
+    @VisibleForTesting
+    QueryConcurrencyLimiter(String key, Ticker ticker) {
+        this.key = key;
+        this.ticker = ticker;
+        this.lastDecreaseNanos = ticker.read();
+    }
+
+    static QueryConcurrencyLimiter of(String key) {
+        return limiters.computeIfAbsent(key, k -> new QueryConcurrencyLimiter(k, Ticker.systemTicker()));
+    }
+
+    /**
+     * @return the limiters of all endpoints and warehouses the JVM started queries on
+     */
+    public static Collection<QueryConcurrencyLimiter> limiters() {
+        return new ArrayList<>(limiters.values());
+    }
+
+    /**
+     * Takes a permit to start a query, waiting in the queue while the limit is reached.
+     *
+     * @throws SQLTransientException when the queue is full or the wait timed out
+     */
+    void acquire(ConcurrencyLimitConfig config) throws SQLException {
+        lock.lock();
+        try {
+            if (inFlight < limit(config)) {
+                inFlight++;
+                admitted++;
+                return;
+            }
+            if (waiting >= config.getQueueSize()) {
+                rejected++;
+                throw new SQLTransientException(String.format(
+                        "Too many concurrent queries to %s: %d running and %d waiting with a limit of %d",
+                        key, inFlight, waiting, limit(config)));
+            }
+            waiting++;
+            queued++;
+            try {
+                long remainingNanos = TimeUnit.MILLISECONDS.toNanos(config.getQueueTimeoutMillis());
+                while (inFlight >= limit(config)) {
+                    if (remainingNanos <= 0) {
+                        rejected++;
+                        throw new SQLTransientException(String.format(
+                                "Timed out after %d ms waiting to start a query on %s, %d running with a limit of %d",
+                                config.getQueueTimeoutMillis(), key, inFlight, limit(config)));
+                    }
+                    remainingNanos = available.awaitNanos(remainingNanos);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting to start a query on " + key, e);
+            } finally {
+                waiting--;
+            }
+            inFlight++;
+            admitted++;
+            if (inFlight < limit(config)) {
+                // the limit grew meanwhile, wake the next one as well
+                available.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the permit of a query that finished or was closed.
+     *
+     * @param latencyMillis how long the first request took when the query succeeded, -1 when it failed
+     * @param overloaded whether it failed because the warehouse is overloaded
+     */
+    void release(ConcurrencyLimitConfig config, long latencyMillis, boolean overloaded) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (config.isAdaptive()) {
+                if (overloaded) {
+                    decrease(config, TimeUnit.MILLISECONDS.toNanos((long) Math.max(baselineMillis, 0)));
+                } else if (latencyMillis >= 0) {
+                    onLatency(config, latencyMillis);
+                }
+            }
+            if (inFlight < limit(config)) {
+                available.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onLatency(ConcurrencyLimitConfig config, long latencyMillis) {
+        if (baselineMillis < 0 || latencyMillis < baselineMillis) {
+            baselineMillis = latencyMillis;
+        } else {
+            baselineMillis += (latencyMillis - baselineMillis) * BASELINE_DRIFT;
+        }
+        if (latencyMillis > Math.max(baselineMillis * LATENCY_TOLERANCE, baselineMillis + LATENCY_SLACK_MILLIS)) {
+            decrease(config, TimeUnit.MILLISECONDS.toNanos(latencyMillis));
+            return;
+        }
+        double limit = adaptiveLimit(config);
+        // a limit the queries do not use is no evidence the warehouse could take more
+        if (inFlight + 1 >= limit / 2) {
+            adaptiveLimit = Math.min(config.getMaxConcurrentQueries(), limit + 1 / limit);
+        }
+    }
+
+    // the slow starts of one round trip all tell of the same congestion, so they shrink the limit once
+    private void decrease(ConcurrencyLimitConfig config, long roundTripNanos) {
+        long now = ticker.read();
+        if (now - lastDecreaseNanos < roundTripNanos) {
+            return;
+        }
+        lastDecreaseNanos = now;
+        double limit = adaptiveLimit(config);
+        adaptiveLimit = Math.max(1, limit * BACKOFF_RATIO);
+        limitDecreases++;
+        logger.fine("concurrency limit of " + key + " lowered to " + (int) adaptiveLimit);
+    }
+
+    private double adaptiveLimit(ConcurrencyLimitConfig config) {
+        if (adaptiveLimit < 0) {
+            adaptiveLimit = Math.min(config.getMaxConcurrentQueries(), INITIAL_ADAPTIVE_LIMIT);
+        }
+        // connections with a lower maximum use the endpoint as well
+        return Math.min(adaptiveLimit, config.getMaxConcurrentQueries());
+    }
+
+    private int limit(ConcurrencyLimitConfig config) {
+        if (!config.isAdaptive()) {
+            return config.getMaxConcurrentQueries();
+        }
+        return Math.max(1, (int) adaptiveLimit(config));
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return the current adaptive limit, -1 before the first query with an adaptive limit
+     */
+    public int getAdaptiveLimit() {
+        lock.lock();
+        try {
+            return adaptiveLimit < 0 ? -1 : (int) adaptiveLimit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getWaiting() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getAdmitted() {
+        lock.lock();
+        try {
+            return admitted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the queries that had to wait for a permit
+     */
+    public long getQueued() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the queries that failed because the queue was full or their wait timed out
+     */
+    public long getRejected() {
+        lock.lock();
+        try {
+            return rejected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getLimitDecreases() {
+        lock.lock();
+        try {
+            return limitDecreases;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return key + "{inFlight=" + inFlight + ", waiting=" + waiting + ", adaptiveLimit=" + getAdaptiveLimit()
+                    + ", admitted=" + admitted + ", queued=" + queued + ", rejected=" + rejected + "}";
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package com.databend.jdbc.internal.session;
 
 import com.databend.jdbc.internal.QueryResultFormat;
+import com.databend.jdbc.internal.UploadCompression;
+import com.databend.jdbc.internal.http.RetryConfig;
+import com.databend.jdbc.internal.query.PageHedging;
 import com.databend.jdbc.internal.query.StageAttachment;
 
 import java.util.HashMap;
@@ -32,6 +35,11 @@ public class QueryRequestConfig {
     private final StageAttachment stageAttachment;
     private final Map<String, String> additionalHeaders;
     private final int retryAttempts;
+    private final boolean retryConnectFailure;
+    private final RetryConfig retryConfig;
+    private final PageHedging pageHedging;
+    private final UploadCompression requestCompression;
+    private final UploadCompression responseCompression;
 
     public QueryRequestConfig(String host) {
         this(host, SessionState.createDefault(), DEFAULT_QUERY_TIMEOUT, DEFAULT_CONNECTION_TIMEOUT, DEFAULT_SOCKET_TIMEOUT, QueryResultFormat.JSON, PaginationOptions.defaultPaginationOptions(), new HashMap<>(), null, DEFAULT_RETRY_ATTEMPTS);
@@ -49,9 +57,30 @@ public class QueryRequestConfig {
         this.additionalHeaders = new HashMap<>();
         this.stageAttachment = null;
         this.retryAttempts = DEFAULT_RETRY_ATTEMPTS;
+        this.retryConnectFailure = true;
+        this.retryConfig = RetryConfig.defaults();
+        this.pageHedging = PageHedging.disabled();
+        this.requestCompression = UploadCompression.NONE;
+        this.responseCompression = UploadCompression.GZIP;
     }
 
     public QueryRequestConfig(String host, SessionState session, Integer queryTimeoutSecs, Integer connectionTimeout, Integer socketTimeout, QueryResultFormat queryResultFormat, PaginationOptions paginationOptions, Map<String, String> additionalHeaders, StageAttachment stageAttachment, int retryAttempts) {
+        this(host, session, queryTimeoutSecs, connectionTimeout, socketTimeout, queryResultFormat, paginationOptions, additionalHeaders, stageAttachment, retryAttempts, true);
+    }
+
+    public QueryRequestConfig(String host, SessionState session, Integer queryTimeoutSecs, Integer connectionTimeout, Integer socketTimeout, QueryResultFormat queryResultFormat, PaginationOptions paginationOptions, Map<String, String> additionalHeaders, StageAttachment stageAttachment, int retryAttempts, boolean retryConnectFailure) {
+        this(host, session, queryTimeoutSecs, connectionTimeout, socketTimeout, queryResultFormat, paginationOptions, additionalHeaders, stageAttachment, retryAttempts, retryConnectFailure, RetryConfig.defaults());
+    }
+
+    public QueryRequestConfig(String host, SessionState session, Integer queryTimeoutSecs, Integer connectionTimeout, Integer socketTimeout, QueryResultFormat queryResultFormat, PaginationOptions paginationOptions, Map<String, String> additionalHeaders, StageAttachment stageAttachment, int retryAttempts, boolean retryConnectFailure, RetryConfig retryConfig) {
+        this(host, session, queryTimeoutSecs, connectionTimeout, socketTimeout, queryResultFormat, paginationOptions, additionalHeaders, stageAttachment, retryAttempts, retryConnectFailure, retryConfig, PageHedging.disabled());
+    }
+
+    public QueryRequestConfig(String host, SessionState session, Integer queryTimeoutSecs, Integer connectionTimeout, Integer socketTimeout, QueryResultFormat queryResultFormat, PaginationOptions paginationOptions, Map<String, String> additionalHeaders, StageAttachment stageAttachment, int retryAttempts, boolean retryConnectFailure, RetryConfig retryConfig, PageHedging pageHedging) {
+        this(host, session, queryTimeoutSecs, connectionTimeout, socketTimeout, queryResultFormat, paginationOptions, additionalHeaders, stageAttachment, retryAttempts, retryConnectFailure, retryConfig, pageHedging, UploadCompression.NONE, UploadCompression.GZIP);
+    }
+
+    public QueryRequestConfig(String host, SessionState session, Integer queryTimeoutSecs, Integer connectionTimeout, Integer socketTimeout, QueryResultFormat queryResultFormat, PaginationOptions paginationOptions, Map<String, String> additionalHeaders, StageAttachment stageAttachment, int retryAttempts, boolean retryConnectFailure, RetryConfig retryConfig, PageHedging pageHedging, UploadCompression requestCompression, UploadCompression responseCompression) {
         this.host = host;
         this.session = session;
         this.queryTimeoutSecs = queryTimeoutSecs;
@@ -62,6 +91,11 @@ public class QueryRequestConfig {
         this.additionalHeaders = additionalHeaders;
         this.stageAttachment = stageAttachment;
         this.retryAttempts = retryAttempts;
+        this.retryConnectFailure = retryConnectFailure;
+        this.retryConfig = retryConfig == null ? RetryConfig.defaults() : retryConfig;
+        this.pageHedging = pageHedging == null ? PageHedging.disabled() : pageHedging;
+        this.requestCompression = requestCompression == null ? UploadCompression.NONE : requestCompression;
+        this.responseCompression = responseCompression == null ? UploadCompression.GZIP : responseCompression;
     }
 
     public static Builder builder() {
@@ -108,6 +142,40 @@ public class QueryRequestConfig {
         return retryAttempts <= 0 ? DEFAULT_RETRY_ATTEMPTS : retryAttempts;
     }
 
+    /**
+     * Whether the first request of the query is retried when the node cannot be reached; false when
+     * the session fails over to another node instead.
+     */
+    public boolean isRetryConnectFailure() {
+        return retryConnectFailure;
+    }
+
+    public RetryConfig getRetryConfig() {
+        return retryConfig;
+    }
+
+    /**
+     * How the result pages of the query are fetched again when a request is slow; disabled when the
+     * server does not allow fetching a page twice.
+     */
+    public PageHedging getPageHedging() {
+        return pageHedging;
+    }
+
+    /**
+     * @return how the body of the first request of the query is compressed
+     */
+    public UploadCompression getRequestCompression() {
+        return requestCompression;
+    }
+
+    /**
+     * @return the compression the responses of the query are asked for in
+     */
+    public UploadCompression getResponseCompression() {
+        return responseCompression;
+    }
+
     public static class Builder {
         private SessionState session;
         private String host;
@@ -119,6 +187,11 @@ public class QueryRequestConfig {
         private StageAttachment stageAttachment;
         private Map<String, String> additionalHeaders;
         private int retryAttempts;
+        private boolean retryConnectFailure = true;
+        private RetryConfig retryConfig;
+        private PageHedging pageHedging;
+        private UploadCompression requestCompression;
+        private UploadCompression responseCompression;
 
         public Builder setSession(SessionState session) {
             this.session = session;
@@ -168,13 +241,38 @@ public class QueryRequestConfig {
             return this;
         }
 
+        public Builder setRetryConnectFailure(boolean retryConnectFailure) {
+            this.retryConnectFailure = retryConnectFailure;
+            return this;
+        }
+
+        public Builder setRetryConfig(RetryConfig retryConfig) {
+            this.retryConfig = retryConfig;
+            return this;
+        }
+
+        public Builder setPageHedging(PageHedging pageHedging) {
+            this.pageHedging = pageHedging;
+            return this;
+        }
+
+        public Builder setRequestCompression(UploadCompression requestCompression) {
+            this.requestCompression = requestCompression;
+            return this;
+        }
+
+        public Builder setResponseCompression(UploadCompression responseCompression) {
+            this.responseCompression = responseCompression;
+            return this;
+        }
+
         public Builder setStageAttachment(StageAttachment stageAttachment) {
             this.stageAttachment = stageAttachment;
             return this;
         }
 
         public QueryRequestConfig build() {
-            return new QueryRequestConfig(host, session, queryTimeoutSecs, connectionTimeout, socketTimeout, queryResultFormat, paginationOptions, additionalHeaders, stageAttachment, retryAttempts);
+            return new QueryRequestConfig(host, session, queryTimeoutSecs, connectionTimeout, socketTimeout, queryResultFormat, paginationOptions, additionalHeaders, stageAttachment, retryAttempts, retryConnectFailure, retryConfig, pageHedging, requestCompression, responseCompression);
         }
     }
 }
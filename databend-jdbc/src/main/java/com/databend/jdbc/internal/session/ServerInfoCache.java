@@ -0,0 +1,104 @@
+package com.databend.jdbc.internal.session;
+
+import com.vdurmont.semver4j.Semver;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the driver learned about the server behind an endpoint: the version and arrow result
+ * version from the login response, and whether presigned URLs work. Shared by the connections of
+ * the driver with the same credentials and database, so that connections with {@code lazy_login}
+ * do not log in again and connections with {@code presign=detect} do not probe again, while a
+ * connection with other credentials still logs in and probes for itself. Entries are dropped after
+ * {@link #TTL_MILLIS}, so an upgraded server is noticed.
+ */
+final class ServerInfoCache {
+    static final long TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final ConcurrentMap<String, ServerInfo> cache = new ConcurrentHashMap<>();
+
+    private ServerInfoCache() {
+    }
+
+    /**
+     * The endpoint of a node, the tenant and the warehouse, which a gateway may route to different servers.
+     */
+    static String key(URI baseUri, String tenant, String warehouse) {
+        return baseUri.getScheme() + "://" + baseUri.getAuthority() + "|" + nullToEmpty(tenant) + "|" + nullToEmpty(warehouse);
+    }
+
+    /**
+     * The key of what a login learned: besides the endpoint, the digest of the credentials and the
+     * database it logged in with, which decide whether the login succeeds and what presigns are allowed.
+     */
+    static String loginKey(URI baseUri, String tenant, String warehouse, String principal, String database) {
+        return key(baseUri, tenant, warehouse) + "|" + nullToEmpty(principal) + "|" + nullToEmpty(database);
+    }
+
+    /**
+     * @return the fresh entry of {@code key}, or {@code null}
+     */
+    static ServerInfo get(String key) {
+        ServerInfo info = cache.get(key);
+        if (info == null || System.currentTimeMillis() - info.createdMillis > TTL_MILLIS) {
+            return null;
+        }
+        return info;
+    }
+
+    static void putLogin(String key, Semver version, Integer maxArrowResultVersion) {
+        long now = System.currentTimeMillis();
+        cache.compute(key, (k, old) -> new ServerInfo(true, version, maxArrowResultVersion,
+                old == null || now - old.createdMillis > TTL_MILLIS ? null : old.presignDisabled, now));
+    }
+
+    static void putPresign(String key, boolean presignDisabled) {
+        long now = System.currentTimeMillis();
+        cache.compute(key, (k, old) -> old == null || now - old.createdMillis > TTL_MILLIS
+                ? new ServerInfo(false, null, null, presignDisabled, now)
+                : new ServerInfo(old.loggedIn, old.version, old.maxArrowResultVersion, presignDisabled, old.createdMillis));
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    static final class ServerInfo {
+        // whether version and maxArrowResultVersion come from a login, a server too old for the login API has neither
+        private final boolean loggedIn;
+        private final Semver version;
+        private final Integer maxArrowResultVersion;
+        private final Boolean presignDisabled;
+        private final long createdMillis;
+
+        private ServerInfo(boolean loggedIn, Semver version, Integer maxArrowResultVersion, Boolean presignDisabled,
+                long createdMillis) {
+            this.loggedIn = loggedIn;
+            this.version = version;
+            this.maxArrowResultVersion = maxArrowResultVersion;
+            this.presignDisabled = presignDisabled;
+            this.createdMillis = createdMillis;
+        }
+
+        boolean isLoggedIn() {
+            return loggedIn;
+        }
+
+        Semver getVersion() {
+            return version;
+        }
+
+        Integer getMaxArrowResultVersion() {
+            return maxArrowResultVersion;
+        }
+
+        /**
+         * @return the outcome of {@code presign=detect}, or {@code null} when it did not run yet
+         */
+        Boolean getPresignDisabled() {
+            return presignDisabled;
+        }
+    }
+}
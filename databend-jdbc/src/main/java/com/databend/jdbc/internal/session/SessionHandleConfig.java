@@ -1,8 +1,14 @@
 package com.databend.jdbc.internal.session;
 
 import com.databend.jdbc.internal.QueryResultFormat;
+import com.databend.jdbc.internal.UploadCompression;
+import com.databend.jdbc.internal.http.PresignClientConfig;
+import com.databend.jdbc.internal.http.RetryConfig;
+import com.databend.jdbc.internal.query.PageHedging;
 
 import java.net.URI;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 
 public final class SessionHandleConfig {
@@ -17,6 +23,27 @@ public final class SessionHandleConfig {
     private final String warehouse;
     private final String tenant;
     private final boolean debug;
+    private final PresignClientConfig presignClientConfig;
+    private final int uploadCompressionThreads;
+    private final int uploadPartSize;
+    private final int uploadParallelism;
+    private final int downloadParallelism;
+    private final int downloadRangeSize;
+    private final int presignCacheTtlSecs;
+    private final List<URI> nodes;
+    private final LoadBalancingPolicy loadBalancingPolicy;
+    private final int maxFailoverRetry;
+    private final int healthCheckIntervalSecs;
+    private final boolean autoDiscovery;
+    private final int nodeDiscoveryIntervalMillis;
+    private final boolean lazyLogin;
+    // a digest of the credentials, connections with equal ones may send heartbeats for each other
+    private final String principal;
+    private final RetryConfig retryConfig;
+    private final PageHedging pageHedging;
+    private final ConcurrencyLimitConfig concurrencyLimitConfig;
+    private final UploadCompression queryRequestCompression;
+    private final UploadCompression queryResponseCompression;
     private final SessionState initialSession;
 
     private SessionHandleConfig(Builder builder) {
@@ -31,6 +58,26 @@ public final class SessionHandleConfig {
         this.warehouse = builder.warehouse;
         this.tenant = builder.tenant;
         this.debug = builder.debug;
+        this.presignClientConfig = builder.presignClientConfig;
+        this.uploadCompressionThreads = builder.uploadCompressionThreads;
+        this.uploadPartSize = builder.uploadPartSize;
+        this.uploadParallelism = builder.uploadParallelism;
+        this.downloadParallelism = builder.downloadParallelism;
+        this.downloadRangeSize = builder.downloadRangeSize;
+        this.presignCacheTtlSecs = builder.presignCacheTtlSecs;
+        this.nodes = builder.nodes;
+        this.loadBalancingPolicy = builder.loadBalancingPolicy;
+        this.maxFailoverRetry = builder.maxFailoverRetry;
+        this.healthCheckIntervalSecs = builder.healthCheckIntervalSecs;
+        this.autoDiscovery = builder.autoDiscovery;
+        this.nodeDiscoveryIntervalMillis = builder.nodeDiscoveryIntervalMillis;
+        this.lazyLogin = builder.lazyLogin;
+        this.principal = builder.principal;
+        this.retryConfig = builder.retryConfig;
+        this.pageHedging = builder.pageHedging;
+        this.concurrencyLimitConfig = builder.concurrencyLimitConfig;
+        this.queryRequestCompression = builder.queryRequestCompression;
+        this.queryResponseCompression = builder.queryResponseCompression;
         this.initialSession = Objects.requireNonNull(builder.initialSession, "initialSession is null");
     }
 
@@ -82,6 +129,89 @@ public final class SessionHandleConfig {
         return debug;
     }
 
+    public PresignClientConfig getPresignClientConfig() {
+        return presignClientConfig;
+    }
+
+    public int getUploadCompressionThreads() {
+        return uploadCompressionThreads;
+    }
+
+    public int getUploadPartSize() {
+        return uploadPartSize;
+    }
+
+    public int getUploadParallelism() {
+        return uploadParallelism;
+    }
+
+    public int getDownloadParallelism() {
+        return downloadParallelism;
+    }
+
+    public int getDownloadRangeSize() {
+        return downloadRangeSize;
+    }
+
+    public int getPresignCacheTtlSecs() {
+        return presignCacheTtlSecs;
+    }
+
+    /**
+     * All query nodes of the JDBC URL, just the base uri unless it lists several hosts.
+     */
+    public List<URI> getNodes() {
+        return nodes.isEmpty() ? Collections.singletonList(baseUri) : nodes;
+    }
+
+    public LoadBalancingPolicy getLoadBalancingPolicy() {
+        return loadBalancingPolicy;
+    }
+
+    public int getMaxFailoverRetry() {
+        return maxFailoverRetry;
+    }
+
+    public int getHealthCheckIntervalSecs() {
+        return healthCheckIntervalSecs;
+    }
+
+    public boolean isAutoDiscovery() {
+        return autoDiscovery;
+    }
+
+    public int getNodeDiscoveryIntervalMillis() {
+        return nodeDiscoveryIntervalMillis;
+    }
+
+    public boolean isLazyLogin() {
+        return lazyLogin;
+    }
+
+    public String getPrincipal() {
+        return principal;
+    }
+
+    public RetryConfig getRetryConfig() {
+        return retryConfig;
+    }
+
+    public PageHedging getPageHedging() {
+        return pageHedging;
+    }
+
+    public ConcurrencyLimitConfig getConcurrencyLimitConfig() {
+        return concurrencyLimitConfig;
+    }
+
+    public UploadCompression getQueryRequestCompression() {
+        return queryRequestCompression;
+    }
+
+    public UploadCompression getQueryResponseCompression() {
+        return queryResponseCompression;
+    }
+
     public SessionState getInitialSession() {
         return initialSession;
     }
@@ -98,6 +228,26 @@ public final class SessionHandleConfig {
         private String warehouse;
         private String tenant;
         private boolean debug;
+        private PresignClientConfig presignClientConfig = PresignClientConfig.defaults();
+        private int uploadCompressionThreads = 1;
+        private int uploadPartSize = 64 << 20;
+        private int uploadParallelism = 4;
+        private int downloadParallelism = 1;
+        private int downloadRangeSize = 16 << 20;
+        private int presignCacheTtlSecs = 300;
+        private List<URI> nodes = Collections.emptyList();
+        private LoadBalancingPolicy loadBalancingPolicy = LoadBalancingPolicy.DISABLED;
+        private int maxFailoverRetry;
+        private int healthCheckIntervalSecs = 10;
+        private boolean autoDiscovery;
+        private int nodeDiscoveryIntervalMillis = 300000;
+        private boolean lazyLogin;
+        private String principal;
+        private RetryConfig retryConfig = RetryConfig.defaults();
+        private PageHedging pageHedging = PageHedging.disabled();
+        private ConcurrencyLimitConfig concurrencyLimitConfig = ConcurrencyLimitConfig.disabled();
+        private UploadCompression queryRequestCompression = UploadCompression.NONE;
+        private UploadCompression queryResponseCompression = UploadCompression.GZIP;
         private SessionState initialSession;
 
         public Builder setBaseUri(URI baseUri) {
@@ -155,6 +305,106 @@ public final class SessionHandleConfig {
             return this;
         }
 
+        public Builder setPresignClientConfig(PresignClientConfig presignClientConfig) {
+            this.presignClientConfig = presignClientConfig;
+            return this;
+        }
+
+        public Builder setUploadCompressionThreads(int uploadCompressionThreads) {
+            this.uploadCompressionThreads = uploadCompressionThreads;
+            return this;
+        }
+
+        public Builder setUploadPartSize(int uploadPartSize) {
+            this.uploadPartSize = uploadPartSize;
+            return this;
+        }
+
+        public Builder setUploadParallelism(int uploadParallelism) {
+            this.uploadParallelism = uploadParallelism;
+            return this;
+        }
+
+        public Builder setDownloadParallelism(int downloadParallelism) {
+            this.downloadParallelism = downloadParallelism;
+            return this;
+        }
+
+        public Builder setDownloadRangeSize(int downloadRangeSize) {
+            this.downloadRangeSize = downloadRangeSize;
+            return this;
+        }
+
+        public Builder setPresignCacheTtlSecs(int presignCacheTtlSecs) {
+            this.presignCacheTtlSecs = presignCacheTtlSecs;
+            return this;
+        }
+
+        public Builder setNodes(List<URI> nodes) {
+            this.nodes = nodes;
+            return this;
+        }
+
+        public Builder setLoadBalancingPolicy(LoadBalancingPolicy loadBalancingPolicy) {
+            this.loadBalancingPolicy = loadBalancingPolicy;
+            return this;
+        }
+
+        public Builder setMaxFailoverRetry(int maxFailoverRetry) {
+            this.maxFailoverRetry = maxFailoverRetry;
+            return this;
+        }
+
+        public Builder setHealthCheckIntervalSecs(int healthCheckIntervalSecs) {
+            this.healthCheckIntervalSecs = healthCheckIntervalSecs;
+            return this;
+        }
+
+        public Builder setAutoDiscovery(boolean autoDiscovery) {
+            this.autoDiscovery = autoDiscovery;
+            return this;
+        }
+
+        public Builder setNodeDiscoveryIntervalMillis(int nodeDiscoveryIntervalMillis) {
+            this.nodeDiscoveryIntervalMillis = nodeDiscoveryIntervalMillis;
+            return this;
+        }
+
+        public Builder setLazyLogin(boolean lazyLogin) {
+            this.lazyLogin = lazyLogin;
+            return this;
+        }
+
+        public Builder setPrincipal(String principal) {
+            this.principal = principal;
+            return this;
+        }
+
+        public Builder setRetryConfig(RetryConfig retryConfig) {
+            this.retryConfig = retryConfig;
+            return this;
+        }
+
+        public Builder setPageHedging(PageHedging pageHedging) {
+            this.pageHedging = pageHedging;
+            return this;
+        }
+
+        public Builder setConcurrencyLimitConfig(ConcurrencyLimitConfig concurrencyLimitConfig) {
+            this.concurrencyLimitConfig = concurrencyLimitConfig;
+            return this;
+        }
+
+        public Builder setQueryRequestCompression(UploadCompression queryRequestCompression) {
+            this.queryRequestCompression = queryRequestCompression;
+            return this;
+        }
+
+        public Builder setQueryResponseCompression(UploadCompression queryResponseCompression) {
+            this.queryResponseCompression = queryResponseCompression;
+            return this;
+        }
+
         public Builder setInitialSession(SessionState initialSession) {
             this.initialSession = initialSession;
             return this;
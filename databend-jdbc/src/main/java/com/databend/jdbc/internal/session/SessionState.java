@@ -42,6 +42,17 @@ public class SessionState {
         return new SessionState(DEFAULT_DATABASE, null, null, false, false);
     }
 
+    /**
+     * @return a copy with its own settings and additional properties, e.g. the role
+     */
+    public SessionState copy() {
+        SessionState copy = new SessionState(database, settings == null ? null : new HashMap<>(settings), txnState,
+                needSticky, needKeepAlive);
+        copy.autoCommit.set(autoCommit.get());
+        copy.additionalProperties = new HashMap<>(additionalProperties);
+        return copy;
+    }
+
     public static Builder builder() {
         return new Builder();
     }
@@ -0,0 +1,117 @@
+package com.databend.jdbc.internal.session;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Output stream that keeps up to {@code memoryLimit} bytes on the heap and moves everything to a
+ * temporary file once more is written. Used where the length of generated data must be known before
+ * it is sent, without holding all of it in memory.
+ */
+final class SpillOutputStream extends OutputStream {
+    private final int memoryLimit;
+    private ExposedByteArrayOutputStream memory = new ExposedByteArrayOutputStream();
+    private File file;
+    private OutputStream fileStream;
+    private long size;
+    private boolean closed;
+
+    SpillOutputStream(int memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (fileStream == null && memory.size() + len > memoryLimit) {
+            file = File.createTempFile("databend_upload_", ".tmp");
+            fileStream = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+            memory.writeTo(fileStream);
+            memory = null;
+        }
+        if (fileStream != null) {
+            fileStream.write(b, off, len);
+        } else {
+            memory.write(b, off, len);
+        }
+        size += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (fileStream != null) {
+            fileStream.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (fileStream != null) {
+            fileStream.close();
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * The temporary file holding the data, or null while everything fits in memory.
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Reads back everything written so far, the stream must be closed first.
+     */
+    InputStream newInputStream() throws IOException {
+        if (!closed) {
+            throw new IllegalStateException("SpillOutputStream is not closed");
+        }
+        if (file != null) {
+            return new FileInputStream(file);
+        }
+        return memory.toInputStream();
+    }
+
+    /**
+     * Releases the buffered data and deletes the temporary file, if any.
+     */
+    void delete() {
+        try {
+            close();
+        } catch (IOException ignored) {
+            // nothing left to read anyway
+        }
+        if (file != null) {
+            file.delete();
+        }
+        memory = null;
+    }
+
+    private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+        // reads the buffer without the copy made by toByteArray()
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+}
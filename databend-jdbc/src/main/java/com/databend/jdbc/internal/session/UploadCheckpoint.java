@@ -0,0 +1,120 @@
+package com.databend.jdbc.internal.session;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * On-disk record of the parts of a {@link MultipartUploader} upload that already reached the stage,
+ * so that an upload interrupted by a failure or a restart only sends the missing parts.
+ * <p>
+ * The record is tied to the target location, the part size, the way the file is split and the size
+ * and modification time of the source file; when any of them changed it is discarded and the upload
+ * starts over. It is rewritten through a temporary file after every part, so a crash leaves either
+ * the old or the new version behind.
+ */
+final class UploadCheckpoint {
+    private static final Logger logger = Logger.getLogger(UploadCheckpoint.class.getPackage().getName());
+    // version of the way MultipartUploader.split cuts the file into parts
+    private static final String SPLIT_VERSION = "2";
+
+    private final Path path;
+    private final Properties identity;
+    private final int parts;
+    private final BitSet completed;
+
+    private UploadCheckpoint(Path path, Properties identity, int parts, BitSet completed) {
+        this.path = path;
+        this.identity = identity;
+        this.parts = parts;
+        this.completed = completed;
+    }
+
+    static UploadCheckpoint open(Path path, String location, Path file, long partSize, int parts) throws IOException {
+        Properties identity = new Properties();
+        identity.setProperty("location", location);
+        identity.setProperty("file.size", String.valueOf(Files.size(file)));
+        identity.setProperty("file.modified", String.valueOf(Files.getLastModifiedTime(file).toMillis()));
+        identity.setProperty("part.size", String.valueOf(partSize));
+        identity.setProperty("parts", String.valueOf(parts));
+        // part boundaries of earlier versions could cut quoted fields, their parts must not be reused
+        identity.setProperty("split", SPLIT_VERSION);
+
+        BitSet completed = new BitSet(parts);
+        if (Files.exists(path)) {
+            Properties saved = new Properties();
+            try (InputStream in = Files.newInputStream(path)) {
+                saved.load(in);
+            }
+            if (matches(identity, saved)) {
+                for (String part : saved.getProperty("completed", "").split(",")) {
+                    if (!part.isEmpty()) {
+                        completed.set(Integer.parseInt(part));
+                    }
+                }
+                logger.info("resuming upload to " + location + ", " + completed.cardinality() + " of " + parts
+                        + " parts already uploaded");
+            } else {
+                logger.info("ignoring checkpoint " + path + ", it belongs to another upload or the file changed");
+            }
+        }
+        return new UploadCheckpoint(path, identity, parts, completed);
+    }
+
+    private static boolean matches(Properties identity, Properties saved) {
+        for (String key : identity.stringPropertyNames()) {
+            if (!identity.getProperty(key).equals(saved.getProperty(key))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    synchronized boolean isCompleted(int part) {
+        return completed.get(part);
+    }
+
+    synchronized int completedCount() {
+        return completed.cardinality();
+    }
+
+    synchronized void complete(int part) throws IOException {
+        completed.set(part);
+        Properties properties = new Properties();
+        properties.putAll(identity);
+        StringBuilder parts = new StringBuilder();
+        for (int i = completed.nextSetBit(0); i >= 0; i = completed.nextSetBit(i + 1)) {
+            parts.append(parts.length() == 0 ? "" : ",").append(i);
+        }
+        properties.setProperty("completed", parts.toString());
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            properties.store(out, "databend-jdbc upload checkpoint, " + completed.cardinality() + "/" + this.parts);
+        }
+        try {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    void delete() {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.warning("failed to delete upload checkpoint " + path + ": " + e);
+        }
+    }
+}
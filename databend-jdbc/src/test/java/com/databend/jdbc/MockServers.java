@@ -0,0 +1,85 @@
+package com.databend.jdbc;
+
+import com.databend.jdbc.internal.session.DatabendSessionHandle;
+import com.databend.jdbc.internal.session.QueryLiveness;
+import com.databend.jdbc.internal.session.SessionHandleConfig;
+import com.databend.jdbc.internal.session.SessionState;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.OkHttpClient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Helpers of the unit tests that run against an {@link HttpServer} in place of the query nodes.
+ */
+public final class MockServers {
+    private MockServers() {
+    }
+
+    public static URI uri(HttpServer server) {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    /**
+     * @return the settings of a session on {@code baseUri} with the defaults of a connection
+     */
+    public static SessionHandleConfig.Builder sessionHandleConfig(URI baseUri) {
+        return SessionHandleConfig.builder()
+                .setBaseUri(baseUri)
+                .setInitialSession(SessionState.createDefault())
+                .setQueryTimeoutSecs(30)
+                .setConnectionTimeoutSecs(30)
+                .setSocketTimeoutSecs(60)
+                .setWaitTimeSecs(10)
+                .setMaxRowsInBuffer(1000)
+                .setMaxRowsPerPage(1000);
+    }
+
+    public static DatabendSessionHandle createSessionHandle(URI baseUri) {
+        return createSessionHandle(sessionHandleConfig(baseUri), null);
+    }
+
+    public static DatabendSessionHandle createSessionHandle(SessionHandleConfig.Builder config,
+            Supplier<List<QueryLiveness>> queries) {
+        return new DatabendSessionHandle(new OkHttpClient.Builder().build(), config.build(), queries);
+    }
+
+    public static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            output.write(buffer, 0, n);
+        }
+        return output.toByteArray();
+    }
+
+    public static String readString(InputStream in) throws IOException {
+        return new String(readFully(in), StandardCharsets.UTF_8);
+    }
+
+    public static void respond(HttpExchange exchange, String body) throws IOException {
+        respond(exchange, 200, body);
+    }
+
+    /**
+     * Answers with {@code body} as JSON and closes the exchange.
+     */
+    public static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        try {
+            byte[] response = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, response.length);
+            exchange.getResponseBody().write(response);
+        } finally {
+            exchange.close();
+        }
+    }
+}
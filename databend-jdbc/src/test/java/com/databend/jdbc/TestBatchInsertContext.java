@@ -1,22 +1,44 @@
 package com.databend.jdbc;
 
+import com.databend.jdbc.internal.UploadCompression;
 import com.databend.jdbc.internal.binding.BatchInsertContext;
+import com.github.luben.zstd.ZstdInputStream;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
 public class TestBatchInsertContext {
     @Test(groups = "UNIT")
     public void testFiles() throws IOException {
-        List<String[]> data = new ArrayList<>();
-        data.add(new String[]{"1", "2", "{\"a\": 1, \"b\": \"2\"}", "hello, world 321"});
-        BatchInsertContext context = new BatchInsertContext("sq");
-        File f = context.saveBatchToCSV(data);
+        BatchInsertContext context = new BatchInsertContext("insert into t values (?, ?, ?, ?)");
+        context.setString(1, "1");
+        context.setString(2, "2");
+        context.setString(3, "{\"a\": 1, \"b\": \"2\"}");
+        context.setString(4, "hello, world 321");
+        context.addBatch();
+        File f = context.saveBatchToCSV();
         System.out.println(f.getAbsolutePath());
         try (FileReader fr = new FileReader(f)) {
             char[] buf = new char[1024];
@@ -36,4 +58,344 @@ public class TestBatchInsertContext {
         BatchInsertContext insertOverwrite = new BatchInsertContext("insert overwrite table t values (?)");
         Assert.assertFalse(insertOverwrite.isBatchInsert());
     }
+
+    @Test(groups = "UNIT")
+    public void testTypedBatchRows() throws IOException {
+        BatchInsertContext context = new BatchInsertContext("insert into t values (?, ?, ?, ?, ?, ?)");
+        for (int i = 0; i < 40; i++) {
+            context.setLong(1, i);
+            context.setBoolean(2, i % 2 == 0);
+            context.setDouble(3, i + 0.5);
+            if (i % 3 == 0) {
+                context.setNull(4);
+            } else {
+                context.setString(4, "it's " + i);
+            }
+            context.setDate(5, LocalDate.of(2024, 1, 1).plusDays(i).toEpochDay());
+            context.setTimestamp(6, Instant.ofEpochSecond(1700000000L + i, 123000000));
+            context.addBatch();
+        }
+        Assert.assertEquals(context.getBatchSize(), 40);
+        Assert.assertTrue(context.getProvideParams().isEmpty());
+
+        Map<Integer, String> row = context.getBatchParams(1);
+        Assert.assertEquals(row.get(1), "1");
+        Assert.assertEquals(row.get(2), "false");
+        Assert.assertEquals(row.get(3), "1.5");
+        Assert.assertEquals(row.get(4), "'it\\'s 1'");
+        Assert.assertEquals(row.get(5), "'2024-01-02'");
+        Assert.assertEquals(row.get(6), "'2023-11-14T22:13:21.123Z'");
+        Assert.assertEquals(context.getBatchParams(3).get(4), "null");
+
+        StringWriter out = new StringWriter();
+        context.writeBatchCSV(out);
+        String[] lines = out.toString().split("\n");
+        Assert.assertEquals(lines.length, 40);
+        Assert.assertEquals(lines[0], "0,true,0.5,\\N,2024-01-01,2023-11-14T22:13:20.123Z");
+        Assert.assertEquals(lines[1], "1,false,1.5,it's 1,2024-01-02,2023-11-14T22:13:21.123Z");
+
+        context.clearBatch();
+        Assert.assertEquals(context.getBatchSize(), 0);
+    }
+
+    @Test(groups = "UNIT")
+    public void testMixedAndMissingColumns() throws IOException {
+        BatchInsertContext context = new BatchInsertContext("insert into t values (?, ?)");
+        context.setLong(1, 7);
+        context.addBatch();
+        context.setRaw(1, "1.25");
+        context.setQuoted(2, "a'b");
+        Assert.assertEquals(context.getProvideParams().get(2), "'a'b'");
+        context.addBatch();
+        context.setFloat(1, 0.1f);
+        context.setString(2, "x");
+        context.addBatch();
+
+        Assert.assertEquals(context.getBatchParams(0).size(), 1);
+        Assert.assertEquals(context.getBatchParams(2).get(1), "0.1");
+
+        StringWriter out = new StringWriter();
+        context.writeBatchCSV(out);
+        Assert.assertEquals(out.toString(), "7\n1.25,a'b\n0.1,x\n");
+    }
+
+    @Test(groups = "UNIT")
+    public void testNullTextColumns() throws IOException {
+        BatchInsertContext context = new BatchInsertContext("insert into t values (?, ?, ?)");
+        context.setRaw(1, null);
+        context.setQuoted(2, null);
+        context.setString(3, null);
+        context.addBatch();
+        context.setRaw(1, "1.5");
+        context.setQuoted(2, "2024-01-01");
+        context.setString(3, "x");
+        context.addBatch();
+
+        Assert.assertEquals(context.getEstimatedBatchBytes(), 3L * (2 + 1) + 4 + 11 + 2);
+        Assert.assertEquals(context.getBatchParams(0).get(3), "null");
+        StringWriter out = new StringWriter();
+        context.writeBatchCSV(out);
+        Assert.assertEquals(out.toString(), "\\N,\\N,\\N\n1.5,2024-01-01,x\n");
+    }
+
+    @Test(groups = "UNIT")
+    public void testBatchCSVQuoting() throws IOException {
+        BatchInsertContext context = new BatchInsertContext("insert into t values (?, ?, ?)");
+        context.setString(1, "a,b");
+        context.setString(2, "say \"hi\"\nbye");
+        context.setString(3, "");
+        context.addBatch();
+        context.setNull(1);
+        context.setString(3, "plain");
+        context.addBatch();
+
+        StringWriter out = new StringWriter();
+        context.writeBatchCSV(out);
+        Assert.assertEquals(out.toString(), "\"a,b\",\"say \"\"hi\"\"\nbye\",\n\\N,,plain\n");
+    }
+
+    @Test(groups = "UNIT")
+    public void testCompressedBatchFiles() throws IOException {
+        BatchInsertContext context = new BatchInsertContext("insert into t values (?, ?)");
+        for (int i = 0; i < 1000; i++) {
+            context.setLong(1, i);
+            context.setString(2, "row " + i);
+            context.addBatch();
+        }
+        StringWriter expected = new StringWriter();
+        context.writeBatchCSV(expected, 10, 20);
+
+        File gzip = context.saveBatchToCSV(10, 20, UploadCompression.GZIP);
+        File zstd = context.saveBatchToCSV(10, 20, UploadCompression.ZSTD);
+        try {
+            Assert.assertTrue(gzip.getName().endsWith(".csv.gz"), gzip.getName());
+            Assert.assertTrue(zstd.getName().endsWith(".csv.zst"), zstd.getName());
+            Assert.assertEquals(readAll(new GZIPInputStream(new FileInputStream(gzip))), expected.toString());
+            Assert.assertEquals(readAll(new ZstdInputStream(new FileInputStream(zstd))), expected.toString());
+        } finally {
+            gzip.delete();
+            zstd.delete();
+        }
+    }
+
+    @Test(groups = "UNIT")
+    public void testParquetBatchFiles() throws IOException {
+        BatchInsertContext context = new BatchInsertContext("insert into t (id, Name, `Ts`, v) values (?, ?, ?, ?)");
+        Assert.assertEquals(context.getColumnNames().get(), Arrays.asList("id", "name", "Ts", "v"));
+        for (int i = 0; i < 20; i++) {
+            context.setLong(1, i);
+            if (i % 3 == 0) {
+                context.setNull(2);
+            } else {
+                context.setString(2, "row " + i);
+            }
+            context.setTimestamp(3, Instant.ofEpochSecond(1700000000L + i, 123456000));
+            if (i % 2 == 0) {
+                context.setDouble(4, i + 0.5);
+            } else {
+                context.setRaw(4, "1.25");
+            }
+            context.addBatch();
+        }
+
+        for (UploadCompression compression : UploadCompression.values()) {
+            File file = context.saveBatchToParquet(5, 15, compression);
+            try {
+                Assert.assertTrue(file.getName().endsWith(".parquet"), file.getName());
+                byte[] bytes = Files.readAllBytes(file.toPath());
+                Assert.assertEquals(new String(bytes, 0, 4, StandardCharsets.US_ASCII), "PAR1");
+                Assert.assertEquals(new String(bytes, bytes.length - 4, 4, StandardCharsets.US_ASCII), "PAR1");
+                ByteBuffer tail = ByteBuffer.wrap(bytes, bytes.length - 8, 4).order(ByteOrder.LITTLE_ENDIAN);
+                int footerLength = tail.getInt();
+                Map<Integer, Object> metadata = new CompactReader(bytes, bytes.length - 8 - footerLength).readStruct();
+                Assert.assertEquals(metadata.get(3), 10L);
+
+                List<?> schema = (List<?>) metadata.get(2);
+                Assert.assertEquals(schema.size(), 5);
+                Assert.assertEquals(field(schema.get(0), 5), 4L);
+                Assert.assertEquals(field(schema.get(1), 4), "id");
+                Assert.assertEquals(field(schema.get(1), 1), 2L);
+                Assert.assertEquals(field(schema.get(2), 4), "name");
+                Assert.assertEquals(field(schema.get(2), 1), 6L);
+                Assert.assertEquals(field(schema.get(2), 6), 0L);
+                Assert.assertEquals(field(schema.get(3), 4), "Ts");
+                Assert.assertEquals(field(schema.get(3), 6), 10L);
+                Assert.assertEquals(field(schema.get(4), 1), 6L);
+
+                List<?> rowGroups = (List<?>) metadata.get(4);
+                Assert.assertEquals(rowGroups.size(), 1);
+                List<?> chunks = (List<?>) field(rowGroups.get(0), 1);
+                Assert.assertEquals(chunks.size(), 4);
+                List<List<Object>> values = new ArrayList<>();
+                for (Object chunk : chunks) {
+                    values.add(readColumn(bytes, (Map<?, ?>) field(chunk, 3), compression));
+                }
+                for (int r = 0; r < 10; r++) {
+                    int i = r + 5;
+                    ByteBuffer id = (ByteBuffer) values.get(0).get(r);
+                    Assert.assertEquals(id.getLong(), (long) i);
+                    Object name = values.get(1).get(r);
+                    Assert.assertEquals(name == null ? null : utf8((ByteBuffer) name), i % 3 == 0 ? null : "row " + i);
+                    ByteBuffer ts = (ByteBuffer) values.get(2).get(r);
+                    Assert.assertEquals(ts.getLong(), (1700000000L + i) * 1_000_000L + 123456);
+                    Assert.assertEquals(utf8((ByteBuffer) values.get(3).get(r)), i % 2 == 0 ? String.valueOf(i + 0.5) : "1.25");
+                }
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    @Test(groups = "UNIT", expectedExceptions = IllegalStateException.class)
+    public void testParquetNeedsColumnNames() {
+        BatchInsertContext context = new BatchInsertContext("insert into t values (?)");
+        context.setLong(1, 1);
+        context.addBatch();
+        context.saveBatchToParquet(0, 1, UploadCompression.NONE);
+    }
+
+    private static Object field(Object struct, int id) {
+        return ((Map<?, ?>) struct).get(id);
+    }
+
+    private static String utf8(ByteBuffer value) {
+        byte[] bytes = new byte[value.remaining()];
+        value.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // decodes the single data page of a column chunk, one little endian value per row and null for nulls
+    private static List<Object> readColumn(byte[] file, Map<?, ?> meta, UploadCompression compression)
+            throws IOException {
+        int type = ((Long) meta.get(1)).intValue();
+        int rows = ((Long) meta.get(5)).intValue();
+        CompactReader reader = new CompactReader(file, ((Long) meta.get(9)).intValue());
+        Map<Integer, Object> header = reader.readStruct();
+        Assert.assertEquals(field(header.get(5), 1), (long) rows);
+        byte[] page = Arrays.copyOfRange(file, reader.pos, reader.pos + ((Long) header.get(3)).intValue());
+        if (compression == UploadCompression.GZIP) {
+            page = readBytes(new GZIPInputStream(new ByteArrayInputStream(page)));
+        } else if (compression == UploadCompression.ZSTD) {
+            page = readBytes(new ZstdInputStream(new ByteArrayInputStream(page)));
+        }
+        Assert.assertEquals(page.length, ((Long) header.get(2)).intValue());
+
+        ByteBuffer data = ByteBuffer.wrap(page).order(ByteOrder.LITTLE_ENDIAN);
+        int levelsLength = data.getInt();
+        int levelsStart = data.position();
+        Assert.assertEquals(page[levelsStart], (byte) ((((rows + 7) / 8) << 1) | 1));
+        data.position(levelsStart + levelsLength);
+        List<Object> values = new ArrayList<>();
+        for (int r = 0; r < rows; r++) {
+            if ((page[levelsStart + 1 + r / 8] & (1 << (r % 8))) == 0) {
+                values.add(null);
+                continue;
+            }
+            int length = type == 6 ? data.getInt() : 8;
+            ByteBuffer value = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+            value.limit(length);
+            data.position(data.position() + length);
+            values.add(value);
+        }
+        Assert.assertFalse(data.hasRemaining());
+        return values;
+    }
+
+    private static byte[] readBytes(InputStream in) throws IOException {
+        try (InputStream input = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[1024];
+            int n;
+            while ((n = input.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Reads Thrift compact protocol structs into maps keyed by field id, integers as Long.
+     */
+    private static final class CompactReader {
+        private final byte[] bytes;
+        private int pos;
+
+        private CompactReader(byte[] bytes, int pos) {
+            this.bytes = bytes;
+            this.pos = pos;
+        }
+
+        private Map<Integer, Object> readStruct() {
+            Map<Integer, Object> fields = new HashMap<>();
+            int lastId = 0;
+            while (true) {
+                int header = bytes[pos++] & 0xFF;
+                if (header == 0) {
+                    return fields;
+                }
+                int delta = header >>> 4;
+                int id = delta == 0 ? (int) zigzag(readVarint()) : lastId + delta;
+                lastId = id;
+                fields.put(id, readValue(header & 0x0F));
+            }
+        }
+
+        private Object readValue(int type) {
+            switch (type) {
+                case 1:
+                    return true;
+                case 2:
+                    return false;
+                case 5:
+                case 6:
+                    return zigzag(readVarint());
+                case 8:
+                    int length = (int) readVarint();
+                    String value = new String(bytes, pos, length, StandardCharsets.UTF_8);
+                    pos += length;
+                    return value;
+                case 9:
+                    int header = bytes[pos++] & 0xFF;
+                    int size = header >>> 4 == 15 ? (int) readVarint() : header >>> 4;
+                    List<Object> list = new ArrayList<>();
+                    for (int i = 0; i < size; i++) {
+                        list.add(readValue(header & 0x0F));
+                    }
+                    return list;
+                case 12:
+                    return readStruct();
+                default:
+                    throw new IllegalStateException("unexpected compact type " + type);
+            }
+        }
+
+        private long readVarint() {
+            long value = 0;
+            int shift = 0;
+            while (true) {
+                int b = bytes[pos++] & 0xFF;
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+                shift += 7;
+            }
+        }
+
+        private static long zigzag(long n) {
+            return (n >>> 1) ^ -(n & 1);
+        }
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            StringBuilder sb = new StringBuilder();
+            char[] buf = new char[1024];
+            int n;
+            while ((n = reader.read(buf)) != -1) {
+                sb.append(buf, 0, n);
+            }
+            return sb.toString();
+        }
+    }
 }
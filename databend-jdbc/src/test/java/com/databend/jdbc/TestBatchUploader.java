@@ -0,0 +1,317 @@
+package com.databend.jdbc;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.databend.jdbc.MockServers.readString;
+import static com.databend.jdbc.MockServers.respond;
+
+@Test(timeOut = 10000)
+public class TestBatchUploader {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Test(groups = {"UNIT"})
+    public void testAutoFlushUploadsChunksAndInsertsOnce() throws Exception {
+        MockServer server = new MockServer();
+        try (Connection conn = server.connect("batch_flush_rows=10");
+             PreparedStatement ps = conn.prepareStatement("insert into t values (?, ?)")) {
+            for (int i = 0; i < 25; i++) {
+                ps.setInt(1, i);
+                ps.setString(2, "v" + i);
+                ps.addBatch();
+            }
+            // two full chunks are flushed while rows are still being added
+            server.awaitUploads(2);
+            Assert.assertTrue(server.queries.isEmpty(), server.queries.toString());
+
+            int[] counts = ps.executeBatch();
+            Assert.assertEquals(counts.length, 25);
+            Assert.assertEquals(server.uploads.size(), 3);
+            Assert.assertEquals(server.uploadedRows(), 25);
+
+            Assert.assertEquals(server.attachments.size(), 1);
+            String location = server.attachments.get(0);
+            String directory = server.uploads.get(0).directory;
+            Assert.assertEquals(location, "@~/" + directory);
+            for (Upload upload : server.uploads) {
+                Assert.assertEquals(upload.directory, directory);
+            }
+            Assert.assertTrue(server.queries.contains("REMOVE " + location), server.queries.toString());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testSingleChunkKeepsFileLocation() throws Exception {
+        MockServer server = new MockServer();
+        try (Connection conn = server.connect("");
+             PreparedStatement ps = conn.prepareStatement("insert into t values (?)")) {
+            for (int i = 0; i < 5; i++) {
+                ps.setInt(1, i);
+                ps.addBatch();
+            }
+            Assert.assertTrue(server.uploads.isEmpty());
+            Assert.assertEquals(ps.executeBatch().length, 5);
+            Assert.assertEquals(server.uploads.size(), 1);
+            Upload upload = server.uploads.get(0);
+            Assert.assertEquals(server.attachments.get(0), "@~/" + upload.directory + upload.fileName);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testUploadFailureIsReportedAndBatchDiscarded() throws Exception {
+        MockServer server = new MockServer();
+        server.failUploads = true;
+        try (Connection conn = server.connect("batch_flush_rows=2");
+             PreparedStatement ps = conn.prepareStatement("insert into t values (?)")) {
+            ps.setInt(1, 1);
+            ps.addBatch();
+            ps.setInt(1, 2);
+            ps.addBatch();
+            ps.setInt(1, 3);
+            ps.addBatch();
+            Assert.expectThrows(SQLException.class, ps::executeBatch);
+            Assert.assertTrue(server.attachments.isEmpty());
+
+            server.failUploads = false;
+            Assert.assertEquals(ps.executeBatch().length, 0);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testUploadsRunInParallel() throws Exception {
+        MockServer server = new MockServer();
+        // every upload blocks until three of them are in flight at the same time
+        server.uploadBarrier = new CountDownLatch(3);
+        try (Connection conn = server.connect("batch_flush_rows=4&batch_upload_parallelism=3");
+             PreparedStatement ps = conn.prepareStatement("insert into t values (?)")) {
+            for (int i = 0; i < 12; i++) {
+                ps.setInt(1, i);
+                ps.addBatch();
+            }
+            Assert.assertEquals(ps.executeBatch().length, 12);
+            Assert.assertEquals(server.uploads.size(), 3);
+            Assert.assertEquals(server.uploadedRows(), 12);
+            Assert.assertEquals(server.attachments.get(0), "@~/" + server.uploads.get(0).directory);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testPresignRunsOnCallerThread() throws Exception {
+        MockServer server = new MockServer();
+        server.presign = "on";
+        // slow PRESIGN statements would overlap if the upload threads ran them
+        server.presignDelayMillis = 100;
+        server.uploadBarrier = new CountDownLatch(3);
+        try (Connection conn = server.connect("batch_flush_rows=4&batch_upload_parallelism=3");
+             PreparedStatement ps = conn.prepareStatement("insert into t values (?)")) {
+            for (int i = 0; i < 12; i++) {
+                ps.setInt(1, i);
+                ps.addBatch();
+            }
+            Assert.assertEquals(ps.executeBatch().length, 12);
+            Assert.assertEquals(server.uploads.size(), 3);
+            Assert.assertEquals(server.uploadedRows(), 12);
+            Assert.assertEquals(server.queries.stream().filter(sql -> sql.startsWith("PRESIGN")).count(), 3L);
+            Assert.assertEquals(server.maxConcurrentQueries.get(), 1);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testCompressedBatchUpload() throws Exception {
+        MockServer server = new MockServer();
+        try (Connection conn = server.connect("upload_compression=gzip");
+             PreparedStatement ps = conn.prepareStatement("insert into t values (?)")) {
+            ps.setInt(1, 1);
+            ps.addBatch();
+            Assert.assertEquals(ps.executeBatch().length, 1);
+            Assert.assertTrue(server.uploads.get(0).fileName.endsWith(".csv.gz"), server.uploads.get(0).fileName);
+            Assert.assertEquals(server.compressions.get(0), "GZIP");
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testSplitCount() {
+        BatchUploader serial = new BatchUploader(null, 1);
+        Assert.assertEquals(serial.splitCount(BatchUploader.MIN_SPLIT_BYTES * 10), 1);
+        BatchUploader parallel = new BatchUploader(null, 4);
+        Assert.assertEquals(parallel.splitCount(0), 1);
+        Assert.assertEquals(parallel.splitCount(BatchUploader.MIN_SPLIT_BYTES - 1), 1);
+        Assert.assertEquals(parallel.splitCount(BatchUploader.MIN_SPLIT_BYTES * 2), 2);
+        Assert.assertEquals(parallel.splitCount(BatchUploader.MIN_SPLIT_BYTES * 100), 4);
+    }
+
+    private static final class Upload {
+        final String directory;
+        final String fileName;
+        final String body;
+
+        Upload(String directory, String fileName, String body) {
+            this.directory = directory;
+            this.fileName = fileName;
+            this.body = body;
+        }
+    }
+
+    private static final class MockServer {
+        final HttpServer server;
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        final List<Upload> uploads = new CopyOnWriteArrayList<>();
+        final List<String> queries = new CopyOnWriteArrayList<>();
+        final List<String> attachments = new CopyOnWriteArrayList<>();
+        final List<String> compressions = new CopyOnWriteArrayList<>();
+        final AtomicInteger uploadCount = new AtomicInteger();
+        final CountDownLatch firstUploads = new CountDownLatch(2);
+        final AtomicInteger activeQueries = new AtomicInteger();
+        final AtomicInteger maxConcurrentQueries = new AtomicInteger();
+        volatile boolean failUploads;
+        volatile CountDownLatch uploadBarrier;
+        volatile String presign = "off";
+        volatile long presignDelayMillis;
+
+        MockServer() throws IOException {
+            server = HttpServer.create(new InetSocketAddress(0), 0);
+            server.setExecutor(executor);
+            server.createContext("/v1/session/login", exchange -> respond(exchange, 200, "{\"version\":\"1.2.700\"}"));
+            server.createContext("/presigned/", exchange -> {
+                String path = exchange.getRequestURI().getPath().substring("/presigned/".length());
+                String content = readString(exchange.getRequestBody());
+                if (awaitBarrier(exchange)) {
+                    uploads.add(new Upload(path.substring(0, path.lastIndexOf('/') + 1),
+                            path.substring(path.lastIndexOf('/') + 1), content));
+                    uploadCount.incrementAndGet();
+                    firstUploads.countDown();
+                    respond(exchange, 200, "");
+                }
+            });
+            server.createContext("/v1/upload_to_stage", exchange -> {
+                String body = readString(exchange.getRequestBody());
+                if (!awaitBarrier(exchange)) {
+                    return;
+                }
+                if (failUploads) {
+                    respond(exchange, 400, "bad request");
+                    return;
+                }
+                String fileName = body.substring(body.indexOf("filename=\"") + 10);
+                fileName = fileName.substring(0, fileName.indexOf('"'));
+                String content = body.substring(body.indexOf("\r\n\r\n") + 4);
+                content = content.substring(0, content.indexOf("\r\n--"));
+                uploads.add(new Upload(exchange.getRequestHeaders().getFirst("X-DATABEND-RELATIVE-PATH"), fileName, content));
+                uploadCount.incrementAndGet();
+                firstUploads.countDown();
+                respond(exchange, 200, "{}");
+            });
+            server.createContext("/v1/query", exchange -> {
+                JsonNode request = MAPPER.readTree(readString(exchange.getRequestBody()));
+                String sql = request.get("sql").asText();
+                queries.add(sql);
+                if (sql.startsWith("PRESIGN")) {
+                    maxConcurrentQueries.accumulateAndGet(activeQueries.incrementAndGet(), Math::max);
+                    try {
+                        Thread.sleep(presignDelayMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        activeQueries.decrementAndGet();
+                    }
+                    String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/presigned/"
+                            + sql.substring(sql.indexOf("@~/") + 3);
+                    respond(exchange, 200, "{\"id\":\"qid\",\"session\":{\"database\":\"default\"},"
+                            + "\"schema\":[{\"name\":\"headers\",\"type\":\"String\"},{\"name\":\"url\",\"type\":\"String\"}],"
+                            + "\"data\":[[\"{}\",\"" + url + "\"]],\"state\":\"Succeeded\",\"error\":null,\"stats\":null,"
+                            + "\"affect\":null,\"result_timeout_secs\":30,\"stats_uri\":null,\"final_uri\":null,"
+                            + "\"next_uri\":null,\"kill_uri\":null}");
+                    return;
+                }
+                JsonNode attachment = request.get("stage_attachment");
+                if (attachment != null && !attachment.isNull()) {
+                    attachments.add(attachment.get("location").asText());
+                    JsonNode compression = attachment.path("file_format_options").get("compression");
+                    compressions.add(compression == null ? "NONE" : compression.asText());
+                }
+                respond(exchange, 200, "{\"id\":\"qid\",\"session\":{\"database\":\"default\"},\"schema\":[],\"data\":[],"
+                        + "\"state\":\"Succeeded\",\"error\":null,"
+                        + "\"stats\":{\"running_time_ms\":1,\"scan_progress\":{\"rows\":0,\"bytes\":0},"
+                        + "\"write_progress\":{\"rows\":0,\"bytes\":0},\"result_progress\":{\"rows\":0,\"bytes\":0}},"
+                        + "\"affect\":null,\"result_timeout_secs\":30,\"stats_uri\":null,\"final_uri\":null,"
+                        + "\"next_uri\":null,\"kill_uri\":null}");
+            });
+            server.start();
+        }
+
+        Connection connect(String params) throws SQLException {
+            String url = "jdbc:databend://127.0.0.1:" + server.getAddress().getPort() + "/default?presign=" + presign
+                    + (params.isEmpty() ? "" : "&" + params);
+            Properties properties = new Properties();
+            properties.setProperty("user", "root");
+            properties.setProperty("password", "");
+            return new NonRegisteringDatabendDriver().connect(url, properties);
+        }
+
+        // every upload blocks until the barrier, if any, is reached by the uploads in flight
+        private boolean awaitBarrier(HttpExchange exchange) throws IOException {
+            CountDownLatch barrier = uploadBarrier;
+            if (barrier == null) {
+                return true;
+            }
+            barrier.countDown();
+            try {
+                if (!barrier.await(5, TimeUnit.SECONDS)) {
+                    respond(exchange, 400, "uploads were not concurrent");
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }
+
+        void awaitUploads(int count) throws InterruptedException {
+            Assert.assertTrue(firstUploads.await(5, TimeUnit.SECONDS));
+            Assert.assertTrue(uploadCount.get() >= count);
+        }
+
+        int uploadedRows() {
+            int rows = 0;
+            for (Upload upload : uploads) {
+                rows += upload.body.split("\n").length;
+            }
+            return rows;
+        }
+
+        void stop() {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+}
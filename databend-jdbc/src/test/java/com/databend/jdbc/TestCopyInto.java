@@ -20,4 +20,16 @@ public class TestCopyInto {
         sql = DatabendConnection.getCopyIntoSql(null, DatabendCopyParams.builder().setDatabendStage(s).setDatabaseTableName("tb1").build());
         assertEquals(sql.trim(), "COPY INTO tb1 FROM @~/a/b/c FILE_FORMAT = ( type = 'CSV' )");
     }
+
+    @Test(groups = {"UNIT"})
+    public void testBulkLoadSql() {
+        List<String> files = new ArrayList<>();
+        files.add("a.csv");
+        files.add("it's.csv");
+        String sql = DatabendConnection.bulkLoadSql(
+                "COPY INTO tb1 FROM @_databend_load FILE_FORMAT = (type = CSV) ON_ERROR = continue",
+                "@~/_databend_load/1/", files);
+        assertEquals(sql, "COPY INTO tb1 FROM @~/_databend_load/1/ FILES = ('a.csv', 'it\\'s.csv') "
+                + "FILE_FORMAT = (type = CSV) ON_ERROR = continue");
+    }
 }
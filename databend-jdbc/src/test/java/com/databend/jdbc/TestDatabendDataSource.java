@@ -0,0 +1,256 @@
+package com.databend.jdbc;
+
+import com.sun.net.httpserver.HttpServer;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.databend.jdbc.MockServers.readString;
+import static com.databend.jdbc.MockServers.respond;
+
+@Test(timeOut = 10000)
+public class TestDatabendDataSource {
+    private HttpServer server;
+    private final AtomicInteger logins = new AtomicInteger();
+    private volatile long loginDelayMillis;
+    private final List<String> queries = new CopyOnWriteArrayList<>();
+
+    @BeforeMethod(groups = {"UNIT"})
+    public void startServer() throws IOException {
+        logins.set(0);
+        loginDelayMillis = 0;
+        queries.clear();
+        server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.createContext("/v1/session/login", exchange -> {
+            logins.incrementAndGet();
+            try {
+                Thread.sleep(loginDelayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, "{\"version\":\"1.2.800\"}");
+        });
+        server.createContext("/v1/query", exchange -> {
+            String request = readString(exchange.getRequestBody());
+            queries.add(request);
+            // the session the client sent, changed by the statement
+            String database = request.contains("\"database\":\"db2\"") ? "db2" : "default";
+            String txnState = request.contains("\"txn_state\":\"Active\"") ? "Active" : "AutoCommit";
+            if (request.contains("\"sql\":\"use db2\"")) {
+                database = "db2";
+            } else if (request.contains("\"sql\":\"begin\"")) {
+                txnState = "Active";
+            } else if (request.contains("\"sql\":\"rollback\"")) {
+                txnState = "AutoCommit";
+            }
+            respond(exchange, "{\"id\":\"qid\",\"session\":{\"database\":\"" + database + "\",\"txn_state\":\""
+                    + txnState + "\"},\"schema\":[],\"data\":[],\"stats\":{\"running_time_ms\":1,"
+                    + "\"scan_progress\":{\"rows\":0,\"bytes\":0},\"write_progress\":{\"rows\":0,\"bytes\":0},"
+                    + "\"result_progress\":{\"rows\":0,\"bytes\":0}}}");
+        });
+        server.start();
+    }
+
+    @AfterMethod(groups = {"UNIT"}, alwaysRun = true)
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testReturnedSessionIsReusedWithoutLogin() throws Exception {
+        try (DatabendDataSource dataSource = createDataSource()) {
+            for (int i = 0; i < 5; i++) {
+                try (Connection connection = dataSource.getConnection()) {
+                    Assert.assertEquals(dataSource.getActiveConnections(), 1);
+                    connection.createStatement().execute("select 1");
+                }
+            }
+            Assert.assertEquals(logins.get(), 1);
+            Assert.assertEquals(dataSource.getBorrowCount(), 5L);
+            Assert.assertEquals(dataSource.getCreatedConnections(), 1L);
+            Assert.assertEquals(dataSource.getActiveConnections(), 0);
+            Assert.assertEquals(dataSource.getIdleConnections(), 1);
+            Assert.assertTrue(dataSource.unwrap(DatabendDataSource.class) == dataSource);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testReturnResetsSessionState() throws Exception {
+        try (DatabendDataSource dataSource = createDataSource()) {
+            Connection connection = dataSource.getConnection();
+            Statement statement = connection.createStatement();
+            statement.execute("use db2");
+            connection.setAutoCommit(false);
+            statement.execute("begin");
+            Assert.assertEquals(connection.getSchema(), "db2");
+            connection.close();
+
+            Assert.assertTrue(connection.isClosed());
+            Assert.assertTrue(queries.get(queries.size() - 1).contains("\"sql\":\"rollback\""));
+            Assert.expectThrows(java.sql.SQLException.class, connection::createStatement);
+
+            try (Connection reused = dataSource.getConnection()) {
+                Assert.assertEquals(reused.getSchema(), "default");
+                Assert.assertTrue(reused.getAutoCommit());
+                reused.createStatement().execute("select 1");
+                String request = queries.get(queries.size() - 1);
+                Assert.assertTrue(request.contains("\"database\":\"default\""), request);
+                Assert.assertFalse(request.contains("Active"), request);
+                Assert.assertNotNull(reused.unwrap(DatabendConnectionExtension.class));
+            }
+            Assert.assertEquals(logins.get(), 1);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testStatementCannotCloseThePooledSession() throws Exception {
+        try (DatabendDataSource dataSource = createDataSource()) {
+            try (Connection connection = dataSource.getConnection()) {
+                Statement statement = connection.createStatement();
+                Assert.assertSame(statement.getConnection(), connection);
+                Assert.assertSame(connection.getMetaData().getConnection(), connection);
+                Assert.assertFalse(connection.isWrapperFor(DatabendConnection.class));
+                Assert.expectThrows(SQLException.class, () -> connection.unwrap(DatabendConnection.class));
+
+                // closing what the statement returns only gives the session back
+                statement.getConnection().close();
+                Assert.assertTrue(connection.isClosed());
+            }
+            try (Connection reused = dataSource.getConnection()) {
+                reused.createStatement().execute("select 1");
+            }
+            Assert.assertEquals(logins.get(), 1);
+            Assert.assertEquals(dataSource.getCreatedConnections(), 1L);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testBorrowTimesOutWhenPoolIsExhausted() throws Exception {
+        try (DatabendDataSource dataSource = createDataSource()) {
+            dataSource.setMaxTotal(1);
+            dataSource.setMaxWaitMillis(100);
+            Connection first = dataSource.getConnection();
+            Assert.expectThrows(SQLTransientConnectionException.class, dataSource::getConnection);
+            Assert.assertEquals(dataSource.getAcquireTimeouts(), 1L);
+            first.close();
+            try (Connection second = dataSource.getConnection()) {
+                Assert.assertFalse(second.isClosed());
+            }
+            Assert.assertEquals(dataSource.getTotalConnections(), 1);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testMinIdleSessionsAreOpenedAndClosedSessionsReplaced() throws Exception {
+        try (DatabendDataSource dataSource = createDataSource()) {
+            dataSource.setMinIdle(2);
+            dataSource.setValidationIntervalMillis(0);
+            dataSource.setIdleTimeoutMillis(200);
+            Connection connection = dataSource.getConnection();
+            DatabendPooledConnection.of(connection).getPhysicalConnection().close();
+            connection.close();
+            while (dataSource.getIdleConnections() < 2) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(dataSource.getDestroyedConnections(), 1L);
+
+            // idle sessions are pinged before they are handed out
+            int before = queries.size();
+            try (Connection validated = dataSource.getConnection()) {
+                Assert.assertFalse(validated.isClosed());
+            }
+            Assert.assertEquals(queries.size(), before + 1);
+            Assert.assertTrue(queries.get(before).contains("\"sql\":\"select 1\""));
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testBorrowerWaitsForSessionOpenedByHousekeeping() throws Exception {
+        try (DatabendDataSource dataSource = createDataSource()) {
+            dataSource.setMaxTotal(1);
+            dataSource.setMinIdle(1);
+            dataSource.setIdleTimeoutMillis(200);
+            Connection connection = dataSource.getConnection();
+            // the only slot is freed, and the housekeeping opens a session in it slowly
+            loginDelayMillis = 1000;
+            DatabendPooledConnection.of(connection).getPhysicalConnection().close();
+            connection.close();
+            while (logins.get() < 2) {
+                Thread.sleep(10);
+            }
+
+            AtomicReference<Connection> borrowed = new AtomicReference<>();
+            Thread borrower = new Thread(() -> {
+                try {
+                    borrowed.set(dataSource.getConnection());
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            borrower.start();
+            // the borrower holds the permit and sleeps until the session is in the pool
+            while (borrower.getState() != Thread.State.TIMED_WAITING && borrower.isAlive()) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue(borrower.isAlive());
+            Assert.assertEquals(dataSource.getActiveConnections(), 1);
+            borrower.join();
+            Assert.assertFalse(borrowed.get().isClosed());
+            borrowed.get().close();
+            Assert.assertEquals(dataSource.getCreatedConnections(), 2L);
+            Assert.assertEquals(logins.get(), 2);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testPooledConnectionNotifiesListeners() throws Exception {
+        DatabendDataSource dataSource = createDataSource();
+        DatabendPooledConnection pooled = dataSource.getPooledConnection();
+        List<String> events = new CopyOnWriteArrayList<>();
+        pooled.addConnectionEventListener(new ConnectionEventListener() {
+            @Override
+            public void connectionClosed(ConnectionEvent event) {
+                events.add("closed");
+            }
+
+            @Override
+            public void connectionErrorOccurred(ConnectionEvent event) {
+                events.add("error");
+            }
+        });
+        try {
+            Connection first = pooled.getConnection();
+            first.close();
+            first.close();
+            Connection second = pooled.getConnection();
+            pooled.getPhysicalConnection().close();
+            second.close();
+            Assert.assertEquals(events.toString(), "[closed, error]");
+            Assert.assertEquals(logins.get(), 1);
+        } finally {
+            pooled.close();
+        }
+    }
+
+    private DatabendDataSource createDataSource() {
+        DatabendDataSource dataSource = new DatabendDataSource();
+        dataSource.setUrl("jdbc:databend://127.0.0.1:" + server.getAddress().getPort() + "/default?ssl=false");
+        dataSource.setUser("databend");
+        dataSource.setPassword("databend");
+        return dataSource;
+    }
+}
@@ -1,5 +1,10 @@
 package com.databend.jdbc;
 
+import com.databend.jdbc.internal.UploadCompression;
+import com.databend.jdbc.internal.http.RetryConfig;
+import com.databend.jdbc.internal.query.PageHedging;
+import com.databend.jdbc.internal.session.ConcurrencyLimitConfig;
+import com.databend.jdbc.internal.session.LoadBalancingPolicy;
 import com.databend.jdbc.internal.session.PaginationOptions;
 import com.databend.jdbc.internal.session.SessionHandleConfig;
 import org.testng.Assert;
@@ -59,8 +64,119 @@ public class TestDatabendDriverUri {
     }
 
     @Test(groups = {"UNIT"})
-    public void testMultiHostNotSupported() {
-        assertInvalid("jdbc:databend://localhost:8000,localhost:8001/default", "Multiple hosts in JDBC URL are not supported");
+    public void testMultiHost() throws SQLException {
+        DatabendDriverUri uri = createDriverUri(
+                "jdbc:databend://u1:p1@localhost:8001, 127.0.0.1:8002,node3/db1?load_balancing_policy=round-robin&max_failover_retry=2");
+        Assert.assertEquals(uri.getUri().getAuthority(), "localhost:8001");
+        Assert.assertEquals(uri.getNodes().size(), 3);
+        Assert.assertEquals(uri.getNodes().get(0), uri.getUri());
+        Assert.assertEquals(uri.getNodes().get(1).getAuthority(), "127.0.0.1:8002");
+        Assert.assertEquals(uri.getNodes().get(2).getAuthority(), "node3:8000");
+        Assert.assertEquals(uri.getNodes().get(2).getPath(), "/db1");
+        Assert.assertEquals(uri.getDatabase(), "db1");
+        Assert.assertEquals(uri.getProperties().get("user"), "u1");
+
+        SessionHandleConfig config = uri.toSessionHandleConfig();
+        Assert.assertEquals(config.getNodes(), uri.getNodes());
+        Assert.assertEquals(config.getLoadBalancingPolicy(), LoadBalancingPolicy.ROUND_ROBIN);
+        Assert.assertEquals(config.getMaxFailoverRetry(), 2);
+        Assert.assertEquals(config.getHealthCheckIntervalSecs(), 10);
+
+        DatabendDriverUri secure = createDriverUri("jdbc:databend://https://h1,h2:8443");
+        Assert.assertEquals(secure.getNodes().get(0).toString(), "https://h1:443");
+        Assert.assertEquals(secure.getNodes().get(1).toString(), "https://h2:8443");
+
+        Assert.assertEquals(createDriverUri("jdbc:databend://localhost:8000").getNodes().size(), 1);
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testAutoDiscovery() throws SQLException {
+        SessionHandleConfig config = createDriverUri(
+                "jdbc:databend://localhost:8000?auto_discovery=true&node_discovery_interval=5000").toSessionHandleConfig();
+        Assert.assertTrue(config.isAutoDiscovery());
+        Assert.assertEquals(config.getNodeDiscoveryIntervalMillis(), 5000);
+
+        Assert.assertFalse(createDriverUri("jdbc:databend://localhost:8000").toSessionHandleConfig().isAutoDiscovery());
+        assertInvalid("jdbc:databend://localhost:8000?auto_discovery=true&node_discovery_interval=0",
+                "node_discovery_interval must be positive");
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testDownloadRangeSizeIsBounded() throws SQLException {
+        Assert.assertEquals(createDriverUri("jdbc:databend://localhost:8000?download_range_size=1048576").getDownloadRangeSize(), 1048576);
+        assertInvalid("jdbc:databend://localhost:8000?download_range_size=0", "download_range_size must be between 1 and");
+        // each range of a stream is read into one array
+        assertInvalid("jdbc:databend://localhost:8000?download_range_size=2147483647", "download_range_size must be between 1 and");
+        assertInvalid("jdbc:databend://localhost:8000?download_range_size=4294967296",
+                "Connection property 'download_range_size' value is invalid");
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testRetrySettings() throws SQLException {
+        RetryConfig config = createDriverUri("jdbc:databend://localhost:8000?retry_max_attempts=5&retry_backoff=100"
+                + "&retry_budget=0&circuit_breaker_threshold=3&circuit_breaker_open_time=2000").toSessionHandleConfig().getRetryConfig();
+        Assert.assertEquals(config.getMaxAttempts(), 5);
+        Assert.assertEquals(config.getBackoffMillis(), 100);
+        Assert.assertEquals(config.getMaxBackoffMillis(), RetryConfig.DEFAULT_MAX_BACKOFF_MILLIS);
+        Assert.assertEquals(config.getRetryBudget(), 0);
+        Assert.assertEquals(config.getCircuitBreakerThreshold(), 3);
+        Assert.assertEquals(config.getCircuitBreakerOpenMillis(), 2000);
+
+        assertInvalid("jdbc:databend://localhost:8000?retry_max_attempts=0", "Invalid retry settings: maxAttempts must be positive");
+        assertInvalid("jdbc:databend://localhost:8000?retry_backoff=5000&retry_max_backoff=1000",
+                "Invalid retry settings: maxBackoffMillis must not be less than backoffMillis");
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testPageHedgingSettings() throws SQLException {
+        Assert.assertFalse(createDriverUri("jdbc:databend://localhost:8000").toSessionHandleConfig().getPageHedging().isEnabled());
+        PageHedging hedging = createDriverUri("jdbc:databend://localhost:8000?page_hedge_delay=200&page_hedge_percentile=95")
+                .toSessionHandleConfig().getPageHedging();
+        Assert.assertTrue(hedging.isEnabled());
+        Assert.assertEquals(hedging.getDelayMillis(), 200);
+        Assert.assertEquals(hedging.getPercentile(), 95);
+
+        assertInvalid("jdbc:databend://localhost:8000?page_hedge_percentile=100",
+                "Invalid page hedging settings: percentile must be between 0 and 99");
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testConcurrencyLimitSettings() throws SQLException {
+        Assert.assertFalse(createDriverUri("jdbc:databend://localhost:8000").toSessionHandleConfig().getConcurrencyLimitConfig().isEnabled());
+        ConcurrencyLimitConfig config = createDriverUri("jdbc:databend://localhost:8000?max_concurrent_queries=64"
+                + "&query_queue_size=10&query_queue_timeout=1000&adaptive_concurrency=true").toSessionHandleConfig().getConcurrencyLimitConfig();
+        Assert.assertEquals(config.getMaxConcurrentQueries(), 64);
+        Assert.assertEquals(config.getQueueSize(), 10);
+        Assert.assertEquals(config.getQueueTimeoutMillis(), 1000);
+        Assert.assertTrue(config.isAdaptive());
+
+        assertInvalid("jdbc:databend://localhost:8000?max_concurrent_queries=-1",
+                "Invalid concurrency limit settings: maxConcurrentQueries must not be negative");
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testQueryCompressionSettings() throws SQLException {
+        SessionHandleConfig defaults = createDriverUri("jdbc:databend://localhost:8000").toSessionHandleConfig();
+        Assert.assertEquals(defaults.getQueryRequestCompression(), UploadCompression.NONE);
+        Assert.assertEquals(defaults.getQueryResponseCompression(), UploadCompression.GZIP);
+        SessionHandleConfig config = createDriverUri("jdbc:databend://localhost:8000?query_request_compression=ZSTD"
+                + "&query_response_compression=zstd").toSessionHandleConfig();
+        Assert.assertEquals(config.getQueryRequestCompression(), UploadCompression.ZSTD);
+        Assert.assertEquals(config.getQueryResponseCompression(), UploadCompression.ZSTD);
+
+        assertInvalid("jdbc:databend://localhost:8000?query_response_compression=br",
+                "Connection property 'query_response_compression' value is invalid: br");
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testInvalidMultiHost() {
+        assertInvalid("jdbc:databend://localhost:8000,,localhost:8001/default", "Empty host in JDBC URL");
+        assertInvalid("jdbc:databend://localhost:8000,localhost:8001?load_balancing_policy=fastest",
+                "Connection property 'load_balancing_policy' value is invalid: fastest");
+        assertInvalid("jdbc:databend://localhost:8000,localhost:8001?max_failover_retry=-1",
+                "max_failover_retry must not be negative");
+        assertInvalid("jdbc:databend://localhost:8000,localhost:8001?health_check_interval=0",
+                "health_check_interval must be positive");
     }
 
     @Test(groups = {"UNIT"})
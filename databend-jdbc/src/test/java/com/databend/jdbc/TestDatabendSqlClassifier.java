@@ -4,6 +4,8 @@ import com.databend.jdbc.internal.binding.DatabendSqlClassifier;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.util.Arrays;
+
 import static com.databend.jdbc.internal.binding.DatabendSqlClassifier.StatementKind.INSERT_VALUES;
 import static com.databend.jdbc.internal.binding.DatabendSqlClassifier.StatementKind.OTHER;
 import static com.databend.jdbc.internal.binding.DatabendSqlClassifier.StatementKind.REPLACE_VALUES;
@@ -55,6 +57,19 @@ public class TestDatabendSqlClassifier {
                 .isPresent());
     }
 
+    @Test(groups = "UNIT")
+    public void testInsertTargetColumnNames() {
+        Assert.assertEquals(DatabendSqlClassifier.insertTargetColumnNames("insert into db.t (A, `b`, \"C\") values (?, ?, ?)")
+                .get(), Arrays.asList("a", "b", "C"));
+        Assert.assertEquals(DatabendSqlClassifier.insertTargetColumnNames(
+                        "replace into t (a, b) on (a) values (?, ?);")
+                .get(), Arrays.asList("a", "b"));
+        Assert.assertFalse(DatabendSqlClassifier.insertTargetColumnNames("insert into t values (?, ?)").isPresent());
+        Assert.assertFalse(DatabendSqlClassifier.insertTargetColumnNames("insert into t (a, b) values (?, 1)").isPresent());
+        Assert.assertFalse(DatabendSqlClassifier.insertTargetColumnNames("insert into t (a, b) values (?)").isPresent());
+        Assert.assertFalse(DatabendSqlClassifier.insertTargetColumnNames("insert into t (a, b) select * from s").isPresent());
+    }
+
     private static void assertKind(DatabendSqlClassifier.StatementKind expected, String sql) {
         Assert.assertEquals(DatabendSqlClassifier.classify(sql).getKind(), expected);
     }
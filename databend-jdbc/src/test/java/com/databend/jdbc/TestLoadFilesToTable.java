@@ -0,0 +1,136 @@
+package com.databend.jdbc;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.databend.jdbc.MockServers.readFully;
+import static com.databend.jdbc.MockServers.readString;
+import static com.databend.jdbc.MockServers.respond;
+
+@Test(timeOut = 10000)
+public class TestLoadFilesToTable {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Test(groups = {"UNIT"})
+    public void testStageDirectoryIsRemovedAfterTheLoad() throws Exception {
+        MockStage stage = new MockStage(false);
+        try (Connection connection = stage.connect()) {
+            BulkLoadResult result = connection.unwrap(DatabendConnection.class).loadFilesToTable(
+                    "COPY INTO t FROM @_databend_load FILE_FORMAT = (type = CSV)", files());
+
+            Assert.assertEquals(result.getFiles().size(), 2);
+            Assert.assertTrue(result.getFiles().get(0).isLoaded(), result.toString());
+            Assert.assertEquals(stage.uploads.size(), 2, stage.uploads.toString());
+            String last = stage.queries.get(stage.queries.size() - 1);
+            Assert.assertEquals(last, "REMOVE " + result.getLocation());
+        } finally {
+            stage.close();
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testStageDirectoryIsRemovedWhenTheCopyFails() throws Exception {
+        MockStage stage = new MockStage(true);
+        try (Connection connection = stage.connect()) {
+            Assert.expectThrows(SQLException.class, () -> connection.unwrap(DatabendConnection.class).loadFilesToTable(
+                    "COPY INTO t FROM @_databend_load FILE_FORMAT = (type = CSV)", files()));
+
+            String last = stage.queries.get(stage.queries.size() - 1);
+            Assert.assertTrue(last.matches("REMOVE @~/_databend_load/\\d+/"), stage.queries.toString());
+        } finally {
+            stage.close();
+        }
+    }
+
+    private static List<UploadFile> files() {
+        List<UploadFile> files = new ArrayList<>();
+        for (String name : new String[] {"a.csv", "b.csv"}) {
+            byte[] data = "1,a\n".getBytes(StandardCharsets.UTF_8);
+            files.add(UploadFile.of(name, new ByteArrayInputStream(data), data.length));
+        }
+        return files;
+    }
+
+    /**
+     * Stand-in for a query node that presigns uploads to itself and records the statements it runs.
+     */
+    private static final class MockStage {
+        private final HttpServer server;
+        private final boolean copyFails;
+        private final List<String> queries = new CopyOnWriteArrayList<>();
+        private final List<String> uploads = new CopyOnWriteArrayList<>();
+
+        MockStage(boolean copyFails) throws IOException {
+            this.copyFails = copyFails;
+            server = HttpServer.create(new InetSocketAddress(0), 0);
+            server.setExecutor(Executors.newCachedThreadPool());
+            server.createContext("/v1/session/login", exchange -> respond(exchange, "{\"version\":\"1.2.800\"}"));
+            server.createContext("/v1/session/logout", exchange -> respond(exchange, "{}"));
+            server.createContext("/v1/query", this::handle);
+            server.createContext("/upload", exchange -> {
+                readFully(exchange.getRequestBody());
+                uploads.add(exchange.getRequestURI().getPath());
+                respond(exchange, "");
+            });
+            server.start();
+        }
+
+        Connection connect() throws SQLException {
+            String url = MockServers.uri(server).toString().replace("http://", "jdbc:databend://")
+                    + "/default?ssl=false&presign=on";
+            Properties properties = new Properties();
+            properties.setProperty("user", "root");
+            properties.setProperty("password", "");
+            return new NonRegisteringDatabendDriver().connect(url, properties);
+        }
+
+        void close() {
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdownNow();
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            String sql = MAPPER.readTree(readString(exchange.getRequestBody())).get("sql").asText();
+            queries.add(sql);
+            if (sql.startsWith("PRESIGN")) {
+                String url = MockServers.uri(server) + "/upload/" + sql.substring(sql.indexOf('@') + 3);
+                respond(exchange, results("[{\"name\":\"headers\",\"type\":\"String\"},{\"name\":\"url\",\"type\":\"String\"}]",
+                        "[[\"{}\"," + MAPPER.writeValueAsString(url) + "]]", null));
+            } else if (sql.startsWith("COPY") && copyFails) {
+                respond(exchange, results("[]", "[]", "{\"code\":1046,\"message\":\"bad data\"}"));
+            } else if (sql.startsWith("COPY")) {
+                respond(exchange, results("[{\"name\":\"File\",\"type\":\"String\"},{\"name\":\"Rows_loaded\",\"type\":\"Int64\"},"
+                                + "{\"name\":\"Errors_seen\",\"type\":\"Int64\"},{\"name\":\"First_error\",\"type\":\"Nullable(String)\"}]",
+                        "[[\"_databend_load/1/a.csv\",\"1\",\"0\",null],[\"_databend_load/1/b.csv\",\"1\",\"0\",null]]", null));
+            } else {
+                respond(exchange, results("[]", "[]", null));
+            }
+        }
+
+        private static String results(String schema, String data, String error) {
+            return "{\"id\":\"qid\",\"node_id\":\"node\",\"session\":{\"database\":\"default\"},"
+                    + "\"schema\":" + schema + ",\"data\":" + data + ","
+                    + "\"state\":\"" + (error == null ? "Succeeded" : "Failed") + "\",\"error\":" + error + ","
+                    + "\"stats\":{\"running_time_ms\":1,\"scan_progress\":{\"rows\":0,\"bytes\":0},"
+                    + "\"write_progress\":{\"rows\":0,\"bytes\":0},\"result_progress\":{\"rows\":0,\"bytes\":0}},"
+                    + "\"affect\":null,\"result_timeout_secs\":30,\"stats_uri\":null,\"final_uri\":null,\"next_uri\":null,"
+                    + "\"kill_uri\":null}";
+        }
+    }
+}
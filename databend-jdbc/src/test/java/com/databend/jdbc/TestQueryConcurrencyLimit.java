@@ -0,0 +1,149 @@
+package com.databend.jdbc;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.databend.jdbc.MockServers.readString;
+import static com.databend.jdbc.MockServers.respond;
+
+@Test(timeOut = 10000)
+public class TestQueryConcurrencyLimit {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * A query the server reports finished gives its permit back while its result set still has pages
+     * to read, so a result set that is neither read to the end nor closed does not block the next
+     * queries.
+     */
+    @Test(groups = {"UNIT"})
+    public void testUnclosedResultSetDoesNotHoldThePermit() throws Exception {
+        MockWarehouse warehouse = new MockWarehouse();
+        try {
+            Connection first = warehouse.connect();
+            Statement statement = first.createStatement();
+            ResultSet unclosed = statement.executeQuery("select 1");
+            Assert.assertTrue(unclosed.next());
+            Assert.assertEquals(unclosed.getString(1), "1");
+
+            try (Connection second = warehouse.connect();
+                    Statement other = second.createStatement();
+                    ResultSet resultSet = other.executeQuery("select 2")) {
+                Assert.assertTrue(resultSet.next());
+                Assert.assertFalse(resultSet.next());
+            }
+        } finally {
+            warehouse.close();
+        }
+    }
+
+    /**
+     * commit() and rollback() read the pages of their statement to the end: they return once the
+     * transaction finished on the server, and they give their permit back.
+     */
+    @Test(groups = {"UNIT"})
+    public void testCommitAndRollbackWaitForTheTransaction() throws Exception {
+        MockWarehouse warehouse = new MockWarehouse();
+        try (Connection connection = warehouse.connect()) {
+            connection.setAutoCommit(false);
+            connection.commit();
+            Assert.assertTrue(warehouse.pages.contains("/v1/query/commit/page/1"), warehouse.pages.toString());
+            connection.rollback();
+            Assert.assertTrue(warehouse.pages.contains("/v1/query/rollback/page/1"), warehouse.pages.toString());
+
+            try (Statement statement = connection.createStatement();
+                    ResultSet resultSet = statement.executeQuery("select 2")) {
+                Assert.assertTrue(resultSet.next());
+            }
+        } finally {
+            warehouse.close();
+        }
+    }
+
+    /**
+     * Stand-in for a warehouse behind a limit of one query at a time. "select 1" finishes at once but
+     * its third page is only served when the warehouse is closed; commit and rollback are still
+     * running after their first request.
+     */
+    private static final class MockWarehouse {
+        private final HttpServer server;
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private final List<String> pages = new CopyOnWriteArrayList<>();
+
+        MockWarehouse() throws IOException {
+            server = HttpServer.create(new InetSocketAddress(0), 0);
+            server.setExecutor(Executors.newCachedThreadPool());
+            server.createContext("/v1/session/login", exchange -> respond(exchange, "{\"version\":\"1.2.800\"}"));
+            server.createContext("/v1/session/logout", exchange -> respond(exchange, "{}"));
+            server.createContext("/v1/query", this::handle);
+            server.start();
+        }
+
+        Connection connect() throws SQLException {
+            String url = MockServers.uri(server).toString().replace("http://", "jdbc:databend://")
+                    + "/default?ssl=false&max_concurrent_queries=1&query_queue_timeout=1000";
+            Properties properties = new Properties();
+            properties.setProperty("user", "root");
+            properties.setProperty("password", "");
+            return new NonRegisteringDatabendDriver().connect(url, properties);
+        }
+
+        void close() {
+            closed.countDown();
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdownNow();
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            if ("POST".equals(exchange.getRequestMethod())) {
+                String sql = MAPPER.readTree(readString(exchange.getRequestBody())).get("sql").asText();
+                if ("select 1".equals(sql)) {
+                    respond(exchange, results("select", "Succeeded", "[[\"1\"]]", "/v1/query/select/page/1"));
+                } else if ("commit".equals(sql) || "rollback".equals(sql)) {
+                    respond(exchange, results(sql, "Running", "[]", "/v1/query/" + sql + "/page/1"));
+                } else {
+                    respond(exchange, results("other", "Succeeded", "[[\"2\"]]", null));
+                }
+                return;
+            }
+            pages.add(path);
+            if ("/v1/query/select/page/1".equals(path)) {
+                respond(exchange, results("select", "Succeeded", "[[\"2\"]]", "/v1/query/select/page/2"));
+                return;
+            }
+            if ("/v1/query/select/page/2".equals(path)) {
+                try {
+                    closed.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            respond(exchange, results("page", "Succeeded", "[]", null));
+        }
+
+        private static String results(String id, String state, String data, String nextUri) {
+            return "{\"id\":\"" + id + "\",\"node_id\":\"node\",\"session\":{\"database\":\"default\"},"
+                    + "\"schema\":[{\"name\":\"c1\",\"type\":\"String\"}],\"data\":" + data + ","
+                    + "\"state\":\"" + state + "\",\"error\":null,\"stats\":null,\"affect\":null,"
+                    + "\"result_timeout_secs\":30,\"stats_uri\":null,\"final_uri\":null,"
+                    + "\"next_uri\":" + (nextUri == null ? "null" : "\"" + nextUri + "\"") + ",\"kill_uri\":null}";
+        }
+    }
+}
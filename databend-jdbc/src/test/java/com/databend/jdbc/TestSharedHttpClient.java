@@ -0,0 +1,139 @@
+package com.databend.jdbc;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+@Test(timeOut = 10000)
+public class TestSharedHttpClient {
+    private static final int THREADS = 16;
+    private static final int QUERIES_PER_THREAD = 30;
+
+    @Test(groups = {"UNIT"})
+    public void testEqualSettingsShareClient() throws SQLException {
+        NonRegisteringDatabendDriver driver = new NonRegisteringDatabendDriver();
+        try {
+            OkHttpClient first = sharedClient(driver, "jdbc:databend://host1:8000?http_max_idle_connections=32");
+            OkHttpClient second = sharedClient(driver, "jdbc:databend://host2:8000/db?http_max_idle_connections=32&user=u");
+            OkHttpClient other = sharedClient(driver, "jdbc:databend://host1:8000?http_max_idle_connections=32&http_keep_alive=60");
+            Assert.assertSame(first, second);
+            Assert.assertNotSame(first, other);
+            Assert.assertNotSame(first.connectionPool(), other.connectionPool());
+            Assert.assertNotSame(first.dispatcher(), other.dispatcher());
+            Assert.assertEquals(first.dispatcher().getMaxRequests(), 64);
+            Assert.assertEquals(first.dispatcher().getMaxRequestsPerHost(), 5);
+
+            OkHttpClient limited = sharedClient(driver,
+                    "jdbc:databend://host1:8000?http_max_requests=128&http_max_requests_per_host=20");
+            Assert.assertEquals(limited.dispatcher().getMaxRequests(), 128);
+            Assert.assertEquals(limited.dispatcher().getMaxRequestsPerHost(), 20);
+
+            Assert.assertEquals(sharedClient(driver, "jdbc:databend://host1:8000").protocols(),
+                    Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+            Assert.assertEquals(sharedClient(driver, "jdbc:databend://host1:8000?http_protocol=http1").protocols(),
+                    Collections.singletonList(Protocol.HTTP_1_1));
+            Assert.assertEquals(sharedClient(driver, "jdbc:databend://host1:8000?http_protocol=H2C").protocols(),
+                    Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+        } finally {
+            driver.close();
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testInvalidSettings() {
+        assertInvalid("jdbc:databend://host1:8000?http_protocol=h3", "Unsupported http protocol");
+        assertInvalid("jdbc:databend://host1:8000?http_max_idle_connections=-1", "maxIdleConnections must not be negative");
+        assertInvalid("jdbc:databend://host1:8000?http_keep_alive=0", "keepAliveSecs must be positive");
+        assertInvalid("jdbc:databend://host1:8000?http_max_requests=0", "maxRequests must be positive");
+        assertInvalid("jdbc:databend://host1:8000?http_max_requests_per_host=0", "maxRequestsPerHost must be positive");
+        assertInvalid("jdbc:databend://host1:443?ssl=true&http_protocol=h2c", "cannot be used with ssl");
+    }
+
+    /**
+     * Many connections querying at once: with a pool that keeps the sockets, the stand-in server only
+     * sees as many sockets as requests run at the same time; without one every request opens a socket.
+     */
+    @Test(groups = {"UNIT"})
+    public void testConcurrentConnectionsReuseSockets() throws Exception {
+        int pooledSockets = runLoad("http_max_idle_connections=" + THREADS);
+        int unpooledSockets = runLoad("http_max_idle_connections=0");
+
+        Assert.assertTrue(pooledSockets <= THREADS + 2, "sockets with pool: " + pooledSockets);
+        Assert.assertTrue(unpooledSockets >= THREADS * QUERIES_PER_THREAD, "sockets without pool: " + unpooledSockets);
+    }
+
+    private static int runLoad(String parameters) throws Exception {
+        Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+        HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.setExecutor(Executors.newFixedThreadPool(THREADS));
+        server.createContext("/v1/session/login", exchange -> respond(exchange, clientPorts, "{\"version\":\"1.2.800\"}"));
+        server.createContext("/v1/session/logout", exchange -> respond(exchange, clientPorts, "{}"));
+        server.createContext("/v1/query", exchange -> respond(exchange, clientPorts,
+                "{\"id\":\"qid\",\"session\":{\"database\":\"default\"},\"schema\":[],\"data\":[],"
+                        + "\"stats\":{\"running_time_ms\":1,\"scan_progress\":{\"rows\":0,\"bytes\":0},"
+                        + "\"write_progress\":{\"rows\":0,\"bytes\":0},\"result_progress\":{\"rows\":0,\"bytes\":0}}}"));
+        server.start();
+        NonRegisteringDatabendDriver driver = new NonRegisteringDatabendDriver();
+        ExecutorService clients = Executors.newFixedThreadPool(THREADS);
+        try {
+            String url = "jdbc:databend://127.0.0.1:" + server.getAddress().getPort() + "/default?ssl=false&" + parameters;
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(clients.submit(() -> {
+                    try (Connection connection = driver.connect(url, new Properties());
+                            Statement statement = connection.createStatement()) {
+                        for (int j = 0; j < QUERIES_PER_THREAD; j++) {
+                            statement.execute("select 1");
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            return clientPorts.size();
+        } finally {
+            clients.shutdownNow();
+            driver.close();
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdownNow();
+        }
+    }
+
+    private static OkHttpClient sharedClient(NonRegisteringDatabendDriver driver, String url) throws SQLException {
+        return driver.sharedClient(DatabendDriverUri.create(url, new Properties()).getHttpClientConfig());
+    }
+
+    private static void assertInvalid(String url, String message) {
+        SQLException exception = Assert.expectThrows(SQLException.class, () -> DatabendDriverUri.create(url, new Properties()));
+        String messages = exception.getMessage() + " " + exception.getCause();
+        Assert.assertTrue(messages.contains(message), messages);
+    }
+
+    private static void respond(HttpExchange exchange, Set<Integer> clientPorts, String body) throws IOException {
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+        // drain the request so that the socket can be reused
+        MockServers.readFully(exchange.getRequestBody());
+        MockServers.respond(exchange, body);
+    }
+}
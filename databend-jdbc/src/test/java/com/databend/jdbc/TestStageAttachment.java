@@ -3,6 +3,9 @@ package com.databend.jdbc;
 import com.databend.jdbc.internal.query.StageAttachment;
 import org.testng.annotations.Test;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import static org.testng.Assert.assertEquals;
 
 public class TestStageAttachment {
@@ -15,4 +18,15 @@ public class TestStageAttachment {
         StageAttachment attachment = new StageAttachment(stagePath, null, null);
         assertEquals("StageAttachment{location=@~/prefix/uuid/test, file_format_options={type=CSV}, copy_options=null}", attachment.toString());
     }
+
+    @Test(groups = {"UNIT"})
+    public void testExplicitFileFormatType() {
+        Map<String, String> fileFormatOptions = new HashMap<>();
+        fileFormatOptions.put("type", "PARQUET");
+        StageAttachment attachment = StageAttachment.builder()
+                .setLocation("@~/prefix/test")
+                .setFileFormatOptions(fileFormatOptions)
+                .build();
+        assertEquals(attachment.getFileFormatOptions().get("type"), "PARQUET");
+    }
 }
@@ -0,0 +1,169 @@
+package com.databend.jdbc;
+
+import com.databend.jdbc.internal.session.DatabendSessionHandle;
+import com.sun.net.httpserver.HttpServer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.databend.jdbc.MockServers.createSessionHandle;
+import static com.databend.jdbc.MockServers.readFully;
+import static com.databend.jdbc.MockServers.readString;
+import static com.databend.jdbc.MockServers.uri;
+
+@Test(timeOut = 10000)
+public class TestStreamingLoadWriter {
+    @Test(groups = {"UNIT"})
+    public void testRowsAreStreamedInChunkedBody() throws Exception {
+        List<String> bodies = new CopyOnWriteArrayList<>();
+        List<String> transferEncodings = new CopyOnWriteArrayList<>();
+        HttpServer server = streamingLoadServer(bodies, transferEncodings, new CountDownLatch(1), null);
+        try {
+            StreamingLoadWriter writer = new StreamingLoadWriter(createSessionHandle(uri(server)),
+                    "insert into t from @_databend_load file_format=(type=csv)");
+            writer.writeRow(1, "plain", null);
+            writer.writeRow(2, "a,b \"quoted\"", "x\ny");
+            // more than the pipe holds, written while the server reads
+            for (int i = 0; i < 100_000; i++) {
+                writer.writeRow(i + 3, "row", i);
+            }
+            Assert.assertEquals(writer.finish(), 100_002);
+
+            Assert.assertEquals(transferEncodings.get(0), "chunked");
+            String body = bodies.get(0);
+            Assert.assertTrue(body.contains("1,plain,\\N\n2,\"a,b \"\"quoted\"\"\",\"x\ny\"\n3,row,0\n"), body.substring(0, 200));
+            Assert.expectThrows(IOException.class, () -> writer.write('a'));
+        }
+        finally {
+            server.stop(0);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testCloseWithoutFinishAbortsLoad() throws Exception {
+        List<String> bodies = new CopyOnWriteArrayList<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch failed = new CountDownLatch(1);
+        HttpServer server = streamingLoadServer(bodies, new CopyOnWriteArrayList<>(), started, failed);
+        try {
+            StreamingLoadWriter writer = new StreamingLoadWriter(createSessionHandle(uri(server)),
+                    "insert into t from @_databend_load file_format=(type=csv)");
+            writer.writeRow(1, "a");
+            writer.flush();
+            // abort once the server is reading the body
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            writer.close();
+
+            Assert.assertTrue(failed.await(5, TimeUnit.SECONDS));
+            Assert.assertTrue(bodies.isEmpty(), bodies.toString());
+            Assert.expectThrows(SQLException.class, writer::finish);
+        }
+        finally {
+            server.stop(0);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testServerErrorFailsFinish() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.createContext("/v1/streaming_load", exchange -> {
+            try {
+                readFully(exchange.getRequestBody());
+                byte[] response = "{\"error\":{\"code\":1065,\"message\":\"bad load\"}}".getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+            }
+            finally {
+                exchange.close();
+            }
+        });
+        server.start();
+        try {
+            StreamingLoadWriter writer = new StreamingLoadWriter(createSessionHandle(uri(server)),
+                    "insert into t from @_databend_load file_format=(type=csv)");
+            writer.write("a\n".getBytes(StandardCharsets.UTF_8));
+            SQLException exception = Assert.expectThrows(SQLException.class, writer::finish);
+            Assert.assertTrue(exception.getMessage().contains("streaming load fail: code = 1065"), exception.getMessage());
+        }
+        finally {
+            server.stop(0);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testLoadDoesNotOverwriteSession() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.createContext("/v1/streaming_load", exchange -> {
+            try {
+                readFully(exchange.getRequestBody());
+                String session = Base64.getUrlEncoder().encodeToString(
+                        "{\"database\":\"stale\"}".getBytes(StandardCharsets.UTF_8));
+                byte[] response = "{\"id\":\"load\",\"stats\":{\"rows\":1,\"bytes\":2}}".getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.getResponseHeaders().add("X-DATABEND-QUERY-CONTEXT", session);
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+            }
+            finally {
+                exchange.close();
+            }
+        });
+        server.start();
+        try {
+            DatabendSessionHandle handle = createSessionHandle(uri(server));
+            StreamingLoadWriter writer = new StreamingLoadWriter(handle,
+                    "insert into t from @_databend_load file_format=(type=csv)");
+            writer.write("a\n".getBytes(StandardCharsets.UTF_8));
+            Assert.assertEquals(writer.finish(), 1);
+            // the state the load returns would roll back statements run while it was written
+            Assert.assertEquals(handle.getSession().getDatabase(), "default");
+        }
+        finally {
+            server.stop(0);
+        }
+    }
+
+    private static HttpServer streamingLoadServer(List<String> bodies, List<String> transferEncodings,
+            CountDownLatch started, CountDownLatch failed) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.createContext("/v1/streaming_load", exchange -> {
+            try {
+                transferEncodings.add(String.valueOf(exchange.getRequestHeaders().getFirst("Transfer-Encoding")));
+                started.countDown();
+                String multipart = readString(exchange.getRequestBody());
+                // the data part sits between the part headers and the closing boundary
+                int start = multipart.indexOf("\r\n\r\n") + 4;
+                int end = multipart.lastIndexOf("\r\n--");
+                String body = multipart.substring(start, end);
+                bodies.add(body);
+                int rows = body.isEmpty() ? 0 : body.split("\n(?=\\d)").length;
+                byte[] response = ("{\"id\":\"load\",\"stats\":{\"rows\":" + rows + ",\"bytes\":" + body.length() + "}}")
+                        .getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+            }
+            catch (IOException | RuntimeException e) {
+                // a truncated body either fails the read or ends without the closing boundary
+                if (failed != null) {
+                    failed.countDown();
+                }
+            }
+            finally {
+                exchange.close();
+            }
+        });
+        server.start();
+        return server;
+    }
+}
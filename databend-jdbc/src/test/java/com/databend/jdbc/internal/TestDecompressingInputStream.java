@@ -0,0 +1,129 @@
+package com.databend.jdbc.internal;
+
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorOutputStream;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@Test(timeOut = 10000)
+public class TestDecompressingInputStream {
+    @Test(groups = {"UNIT"})
+    public void testDetectsFormatByMagicBytes() throws Exception {
+        byte[] payload = payload(1_000_000);
+        for (UploadCompression compression : new UploadCompression[] {UploadCompression.GZIP, UploadCompression.ZSTD}) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (OutputStream out = compression.wrap(compressed, 2)) {
+                out.write(payload);
+            }
+            try (InputStream in = DecompressingInputStream.open(new ByteArrayInputStream(compressed.toByteArray()))) {
+                Assert.assertTrue(in instanceof DecompressingInputStream, compression.name());
+                Assert.assertEquals(readFully(in), payload, compression.name());
+            }
+        }
+
+        ByteArrayOutputStream lz4 = new ByteArrayOutputStream();
+        try (OutputStream out = new FramedLZ4CompressorOutputStream(lz4)) {
+            out.write(payload);
+        }
+        try (InputStream in = DecompressingInputStream.open(new ByteArrayInputStream(lz4.toByteArray()))) {
+            Assert.assertEquals(readFully(in), payload);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testConcatenatedGzipMembers() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        for (String part : new String[] {"1,a\n", "2,b\n"}) {
+            try (OutputStream out = UploadCompression.GZIP.wrap(new NonClosingOutputStream(compressed))) {
+                out.write(part.getBytes("UTF-8"));
+            }
+        }
+        try (InputStream in = DecompressingInputStream.open(new ByteArrayInputStream(compressed.toByteArray()))) {
+            Assert.assertEquals(new String(readFully(in), "UTF-8"), "1,a\n2,b\n");
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testUncompressedDataIsReturnedAsIs() throws Exception {
+        for (byte[] payload : new byte[][] {new byte[0], new byte[] {0x1f}, "id,name\n1,a\n".getBytes("UTF-8")}) {
+            try (InputStream in = DecompressingInputStream.open(new ByteArrayInputStream(payload))) {
+                Assert.assertFalse(in instanceof DecompressingInputStream);
+                Assert.assertEquals(readFully(in), payload);
+            }
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testCorruptDataRaisesIOException() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream out = UploadCompression.GZIP.wrap(compressed)) {
+            out.write(payload(100_000));
+        }
+        byte[] corrupt = Arrays.copyOf(compressed.toByteArray(), compressed.size() / 2);
+        InputStream in = DecompressingInputStream.open(new ByteArrayInputStream(corrupt));
+        IOException exception = Assert.expectThrows(IOException.class, () -> readFully(in));
+        Assert.assertTrue(exception.getMessage().startsWith("Failed to decompress stream"), exception.getMessage());
+        in.close();
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testCloseBeforeEndClosesSource() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream out = UploadCompression.ZSTD.wrap(compressed)) {
+            out.write(payload(4_000_000));
+        }
+        AtomicBoolean closed = new AtomicBoolean();
+        InputStream source = new FilterInputStream(new ByteArrayInputStream(compressed.toByteArray())) {
+            @Override
+            public void close() throws IOException {
+                closed.set(true);
+                super.close();
+            }
+        };
+        InputStream in = DecompressingInputStream.open(source);
+        Assert.assertTrue(in.read(new byte[10]) > 0);
+        in.close();
+        Assert.assertTrue(closed.get());
+        Assert.expectThrows(IOException.class, in::read);
+    }
+
+    private static byte[] payload(int size) {
+        byte[] bytes = new byte[size];
+        Random random = new Random(11);
+        for (int i = 0; i < size; i++) {
+            // compressible, but not trivially
+            bytes[i] = (byte) ('a' + random.nextInt(8));
+        }
+        return bytes;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[7919];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            output.write(buffer, 0, n);
+        }
+        return output.toByteArray();
+    }
+
+    private static final class NonClosingOutputStream extends java.io.FilterOutputStream {
+        private NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.databend.jdbc.internal;
+
+import com.github.luben.zstd.ZstdInputStream;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+@Test(timeOut = 10000)
+public class TestUploadCompression {
+    @Test(groups = {"UNIT"})
+    public void testParallelGzipIsSingleGzipStream() throws Exception {
+        byte[] payload = mixedPayload(ParallelGzipOutputStream.BLOCK_SIZE * 5 + 1234);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream out = UploadCompression.GZIP.wrap(compressed, 4)) {
+            Assert.assertTrue(out instanceof ParallelGzipOutputStream, out.getClass().getName());
+            // uneven writes cross block boundaries
+            int offset = 0;
+            int step = 1;
+            while (offset < payload.length) {
+                int n = Math.min(step, payload.length - offset);
+                out.write(payload, offset, n);
+                offset += n;
+                step = step * 3 + 1;
+            }
+        }
+
+        Assert.assertEquals(readFully(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))), payload);
+        Assert.assertTrue(compressed.size() < payload.length);
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testParallelGzipSmallAndEmptyInput() throws Exception {
+        for (byte[] payload : new byte[][] {new byte[0], "a,b\n".getBytes("UTF-8")}) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (OutputStream out = new ParallelGzipOutputStream(compressed, 2, 16)) {
+                out.write(payload);
+            }
+            Assert.assertEquals(readFully(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))), payload);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testMultiThreadedZstd() throws Exception {
+        byte[] payload = mixedPayload(3 << 20);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream out = UploadCompression.ZSTD.wrap(compressed, 3)) {
+            out.write(payload);
+        }
+        Assert.assertEquals(readFully(new ZstdInputStream(new ByteArrayInputStream(compressed.toByteArray()))), payload);
+    }
+
+    private static byte[] mixedPayload(int size) {
+        // repetitive rows with some noise, so matches also reach into the previous block
+        Random random = new Random(42);
+        byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) {
+            payload[i] = i % 64 < 48 ? (byte) ("1,databend,2024-01-01\n".charAt(i % 21)) : (byte) random.nextInt(256);
+        }
+        return payload;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                output.write(buffer, 0, n);
+            }
+            return output.toByteArray();
+        }
+        finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.databend.jdbc.internal.http;
+
+import com.databend.jdbc.internal.UploadCompression;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okio.Buffer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+@Test(timeOut = 10000)
+public class TestHttpCompression {
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    @Test(groups = {"UNIT"})
+    public void testLargeRequestBodiesAreCompressed() throws IOException {
+        String sql = sql(10000);
+        for (UploadCompression compression : new UploadCompression[] {UploadCompression.GZIP, UploadCompression.ZSTD}) {
+            Request request = HttpCompression.post(new Request.Builder().url("http://localhost/v1/query"), JSON, sql, compression).build();
+            Assert.assertEquals(request.header(HttpCompression.CONTENT_ENCODING), compression.value());
+            byte[] body = bodyOf(request);
+            Assert.assertTrue(body.length < sql.length() / 4, compression + ": " + body.length);
+            Assert.assertEquals(new String(HttpCompression.decode(compression.value(), body), StandardCharsets.UTF_8), sql);
+        }
+
+        // small bodies and disabled compression are sent as they are
+        String small = sql(1);
+        Request request = HttpCompression.post(new Request.Builder().url("http://localhost/v1/query"), JSON, small, UploadCompression.ZSTD).build();
+        Assert.assertNull(request.header(HttpCompression.CONTENT_ENCODING));
+        Assert.assertEquals(new String(bodyOf(request), StandardCharsets.UTF_8), small);
+        request = HttpCompression.post(new Request.Builder().url("http://localhost/v1/query"), JSON, sql, UploadCompression.NONE).build();
+        Assert.assertNull(request.header(HttpCompression.CONTENT_ENCODING));
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testAcceptEncoding() {
+        Assert.assertEquals(acceptEncoding(UploadCompression.ZSTD), "zstd, gzip");
+        Assert.assertEquals(acceptEncoding(UploadCompression.NONE), "identity");
+        // OkHttp asks for gzip itself
+        Assert.assertNull(acceptEncoding(UploadCompression.GZIP));
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testDecode() throws IOException {
+        byte[] plain = sql(100).getBytes(StandardCharsets.UTF_8);
+        Assert.assertEquals(HttpCompression.decode(null, plain), plain);
+        Assert.assertEquals(HttpCompression.decode("identity", plain), plain);
+        Assert.assertEquals(HttpCompression.decode("gzip", compress(UploadCompression.GZIP, plain)), plain);
+        Assert.assertEquals(HttpCompression.decode("ZSTD", compress(UploadCompression.ZSTD, plain)), plain);
+        Assert.expectThrows(IOException.class, () -> HttpCompression.decode("br", plain));
+    }
+
+    private static String acceptEncoding(UploadCompression compression) {
+        return HttpCompression.acceptEncoding(new Request.Builder().url("http://localhost/v1/query"), compression)
+                .build()
+                .header(HttpCompression.ACCEPT_ENCODING);
+    }
+
+    private static String sql(int rows) {
+        StringBuilder sql = new StringBuilder("INSERT INTO t VALUES ");
+        for (int i = 0; i < rows; i++) {
+            sql.append(i == 0 ? "" : ",").append("(").append(i).append(", 'name-").append(i).append("', 3.14)");
+        }
+        return sql.toString();
+    }
+
+    private static byte[] bodyOf(Request request) throws IOException {
+        Buffer buffer = new Buffer();
+        request.body().writeTo(buffer);
+        return buffer.readByteArray();
+    }
+
+    private static byte[] compress(UploadCompression compression, byte[] data) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream out = compression.wrap(compressed)) {
+            out.write(data);
+        }
+        return compressed.toByteArray();
+    }
+}
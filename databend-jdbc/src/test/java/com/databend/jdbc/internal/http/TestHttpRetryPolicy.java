@@ -1,15 +1,29 @@
 package com.databend.jdbc.internal.http;
 
+import com.google.common.base.Ticker;
+import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpServer;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
 import java.net.SocketTimeoutException;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Test(timeOut = 10000)
 public class TestHttpRetryPolicy {
@@ -143,12 +157,28 @@ public class TestHttpRetryPolicy {
 
             Assert.assertTrue(exception.getMessage().contains("status_code = 503"), exception.getMessage());
             Assert.assertEquals(attempts.get(), 3);
+            Assert.assertEquals(((RetryableHttpStatusException) exception.getCause()).getStatusCode(), 503);
+            Assert.assertTrue(HttpRetryPolicy.isOverloadFailure(exception));
         }
         finally {
             server.stop(0);
         }
     }
 
+    @Test(groups = {"UNIT"})
+    public void testOverloadFailureNeedsStatusCode() {
+        Assert.assertTrue(HttpRetryPolicy.isOverloadFailure(
+                new SQLException("failed", new RetryableHttpStatusException(429, "too many requests"))));
+        Assert.assertFalse(HttpRetryPolicy.isOverloadFailure(
+                new SQLException("failed", new RetryableHttpStatusException(502, "bad gateway"))));
+        Assert.assertFalse(HttpRetryPolicy.isOverloadFailure(
+                new SQLException("failed", new NonRetryableHttpStatusException(400, "status_code = 429"))));
+        // a message that only looks like a status is not one
+        Assert.assertFalse(HttpRetryPolicy.isOverloadFailure(new SQLException("body = status_code = 503")));
+        Assert.assertTrue(HttpRetryPolicy.isOverloadFailure(new SocketTimeoutException("timeout")));
+        Assert.assertFalse(HttpRetryPolicy.isOverloadFailure(new SocketTimeoutException("connect timed out")));
+    }
+
     @Test(groups = {"UNIT"})
     public void testGatewayTimeoutIsNotRetriedByGenericPolicy() throws Exception {
         AtomicInteger attempts = new AtomicInteger();
@@ -186,6 +216,30 @@ public class TestHttpRetryPolicy {
         Assert.assertTrue(HttpRetryPolicy.isRetryableIOException(new SocketTimeoutException("timed out")));
     }
 
+    @Test(groups = {"UNIT"})
+    public void testRetryableIOExceptionsAreToldByType() {
+        Assert.assertTrue(HttpRetryPolicy.isRetryableIOException(new ConnectException("Connection refused")));
+        Assert.assertTrue(HttpRetryPolicy.isRetryableIOException(
+                new IOException("unexpected end of stream on http://127.0.0.1/...", new EOFException("\\n not found"))));
+        // the message alone does not make a failure retryable
+        Assert.assertFalse(HttpRetryPolicy.isRetryableIOException(new IOException("timeout")));
+        Assert.assertFalse(HttpRetryPolicy.isRetryableIOException(new IOException("unexpected end of stream")));
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testIdleEndpointStatesAreDropped() {
+        HttpRetryPolicy policy = new HttpRetryPolicy(false, true, true, RetryConfig.defaults());
+        EndpointRetryState failing = policy.stateOf("evict-failing");
+        failing.onFailure(RetryConfig.defaults(), false);
+        for (int i = 0; i < HttpRetryPolicy.MAX_ENDPOINT_STATES; i++) {
+            policy.stateOf("evict-" + i).onSuccess(RetryConfig.defaults());
+        }
+
+        Assert.assertTrue(HttpRetryPolicy.endpointStates().size() <= HttpRetryPolicy.MAX_ENDPOINT_STATES);
+        Assert.assertTrue(HttpRetryPolicy.endpointStates().contains(failing));
+        Assert.assertSame(policy.stateOf("evict-failing"), failing);
+    }
+
     @Test(groups = {"UNIT"})
     public void testRetryableHttpStatusCodes() {
         Assert.assertTrue(HttpRetryPolicy.isRetryableHttpStatus(502));
@@ -213,6 +267,261 @@ public class TestHttpRetryPolicy {
                 new NonRetryableHttpStatusException("configuration error: 400 Bad Request, body=timeout")));
     }
 
+    @Test(groups = {"UNIT"})
+    public void testDecorrelatedJitterStaysWithinBounds() {
+        RetryConfig config = RetryConfig.builder().setBackoffMillis(100).setMaxBackoffMillis(2000).build();
+        Random random = new Random(42);
+        long previous = config.getBackoffMillis();
+        boolean varied = false;
+        for (int i = 0; i < 100; i++) {
+            long next = HttpRetryPolicy.nextBackoff(previous, config, random);
+            Assert.assertTrue(next >= 100 && next <= Math.min(2000, previous * 3), previous + " -> " + next);
+            varied |= next != previous;
+            previous = next;
+        }
+        Assert.assertTrue(varied);
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testRetryAfterHeaderValues() {
+        long now = System.currentTimeMillis();
+        String date = DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(60));
+        Assert.assertEquals(HttpRetryPolicy.retryAfterMillis("2", now), 2000L);
+        Assert.assertEquals(HttpRetryPolicy.retryAfterMillis(null, now), -1L);
+        Assert.assertEquals(HttpRetryPolicy.retryAfterMillis("soon", now), -1L);
+        long fromDate = HttpRetryPolicy.retryAfterMillis(date, now);
+        Assert.assertTrue(fromDate > 55000 && fromDate <= 61000, String.valueOf(fromDate));
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testRetryAfterIsHonored() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        HttpServer server = startServer("/throttled", exchange -> {
+            if (attempts.incrementAndGet() == 1) {
+                exchange.getResponseHeaders().add("Retry-After", "3");
+                respond(exchange, 429, "{\"error\":\"slow down\"}");
+            } else {
+                respond(exchange, 200, "{\"ok\":true}");
+            }
+        });
+        FakeTicker ticker = new FakeTicker();
+        List<Long> sleeps = new CopyOnWriteArrayList<>();
+        try {
+            HttpRetryPolicy retryPolicy = new HttpRetryPolicy(false, true, true, RetryConfig.defaults(), ticker, sleeps::add);
+            HttpRetryPolicy.ResponseWithBody response = retryPolicy.sendRequestWithRetry(
+                    new OkHttpClient(), new Request.Builder().url(serverUrl(server, "/throttled")).get().build());
+
+            Assert.assertEquals(response.statusCode, 200);
+            Assert.assertEquals(sleeps.size(), 1);
+            Assert.assertTrue(sleeps.get(0) >= 3000, sleeps.toString());
+
+            // a server that asks for a longer pause than the max backoff is not waited for
+            attempts.set(0);
+            RetryConfig shortBackoff = RetryConfig.builder().setMaxBackoffMillis(1000).build();
+            HttpRetryPolicy impatient = new HttpRetryPolicy(false, true, true, shortBackoff, ticker, sleeps::add);
+            SQLException exception = Assert.expectThrows(SQLException.class, () -> impatient.sendRequestWithRetry(
+                    new OkHttpClient(), new Request.Builder().url(serverUrl(server, "/throttled")).get().build()));
+            Assert.assertTrue(exception.getMessage().contains("Retry-After"), exception.getMessage());
+            Assert.assertEquals(attempts.get(), 1);
+        }
+        finally {
+            server.stop(0);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testCircuitBreakerFailsFastAndRecovers() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        AtomicInteger status = new AtomicInteger(502);
+        HttpServer server = startServer("/flaky", exchange -> {
+            attempts.incrementAndGet();
+            respond(exchange, status.get(), "{}");
+        });
+        FakeTicker ticker = new FakeTicker();
+        RetryConfig config = RetryConfig.builder()
+                .setCircuitBreakerThreshold(2)
+                .setCircuitBreakerOpenMillis(10000)
+                .build();
+        HttpRetryPolicy retryPolicy = new HttpRetryPolicy(false, true, true, config, ticker, ticker::advanceMillis);
+        Request request = new Request.Builder().url(serverUrl(server, "/flaky")).get().build();
+        try {
+            SQLException opened = Assert.expectThrows(SQLException.class,
+                    () -> retryPolicy.sendRequestWithRetry(new OkHttpClient(), request));
+            Assert.assertTrue(opened.getCause() instanceof CircuitBreakerOpenException, opened.getMessage());
+            Assert.assertTrue(HttpRetryPolicy.isConnectFailure(opened));
+            Assert.assertEquals(attempts.get(), 2);
+
+            EndpointRetryState state = stateOf(server);
+            Assert.assertEquals(state.getCircuitState(), EndpointRetryState.CircuitState.OPEN);
+            Assert.expectThrows(SQLException.class, () -> retryPolicy.sendRequestWithRetry(new OkHttpClient(), request));
+            Assert.assertEquals(attempts.get(), 2);
+            Assert.assertEquals(state.getRejectedRequests(), 2L);
+
+            // after the open time one request probes; it fails, so the breaker opens again
+            ticker.advanceMillis(10000);
+            Assert.expectThrows(SQLException.class, () -> retryPolicy.sendRequestWithRetry(new OkHttpClient(), request));
+            Assert.assertEquals(attempts.get(), 3);
+            Assert.assertEquals(state.getCircuitOpenings(), 2L);
+
+            status.set(200);
+            ticker.advanceMillis(10000);
+            Assert.assertEquals(retryPolicy.sendRequestWithRetry(new OkHttpClient(), request).statusCode, 200);
+            Assert.assertEquals(state.getCircuitState(), EndpointRetryState.CircuitState.CLOSED);
+            Assert.assertEquals(retryPolicy.sendRequestWithRetry(new OkHttpClient(), request).statusCode, 200);
+            Assert.assertEquals(attempts.get(), 5);
+        }
+        finally {
+            server.stop(0);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testBusyWarehouseDoesNotOpenCircuitBreaker() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        HttpServer server = startServer("/busy", exchange -> {
+            attempts.incrementAndGet();
+            respond(exchange, 503, "{}");
+        });
+        FakeTicker ticker = new FakeTicker();
+        RetryConfig config = RetryConfig.builder()
+                .setRetryBudget(0)
+                .setCircuitBreakerThreshold(2)
+                .build();
+        HttpRetryPolicy retryPolicy = new HttpRetryPolicy(false, true, true, config, ticker, ticker::advanceMillis);
+        Request request = new Request.Builder().url(serverUrl(server, "/busy"))
+                .header("X-DATABEND-WAREHOUSE", "busy-warehouse")
+                .get()
+                .build();
+        try {
+            for (int i = 0; i < 2; i++) {
+                SQLException e = Assert.expectThrows(SQLException.class,
+                        () -> retryPolicy.sendRequestWithRetry(new OkHttpClient(), request));
+                Assert.assertFalse(e.getCause() instanceof CircuitBreakerOpenException, e.getMessage());
+            }
+            Assert.assertEquals(attempts.get(), 6);
+
+            String endpoint = "http://127.0.0.1:" + server.getAddress().getPort() + " warehouse=busy-warehouse";
+            EndpointRetryState state = HttpRetryPolicy.endpointStates().stream()
+                    .filter(s -> s.getEndpoint().equals(endpoint))
+                    .findFirst()
+                    .get();
+            Assert.assertEquals(state.getCircuitState(), EndpointRetryState.CircuitState.CLOSED);
+            Assert.assertEquals(state.getRejectedRequests(), 0L);
+        }
+        finally {
+            server.stop(0);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testCircuitBreakerDefaultsAndLongProbe() {
+        Assert.assertEquals(RetryConfig.defaults().getCircuitBreakerThreshold(), 0);
+        RetryConfig config = RetryConfig.builder()
+                .setCircuitBreakerThreshold(1)
+                .setCircuitBreakerOpenMillis(1000)
+                .build();
+        Assert.assertEquals(config.withoutCircuitBreaker().getCircuitBreakerThreshold(), 0);
+        Assert.assertEquals(config.withoutCircuitBreaker().getMaxAttempts(), config.getMaxAttempts());
+
+        FakeTicker ticker = new FakeTicker();
+        EndpointRetryState state = new EndpointRetryState("test", ticker);
+        state.onFailure(config, true);
+        Assert.assertEquals(state.getCircuitState(), EndpointRetryState.CircuitState.OPEN);
+        Assert.assertFalse(state.tryAcquire(config));
+        Assert.assertTrue(state.tryAcquire(config.withoutCircuitBreaker()));
+
+        ticker.advanceMillis(1000);
+        Assert.assertTrue(state.tryAcquire(config));
+        // the probe is still in flight
+        Assert.assertFalse(state.tryAcquire(config));
+        ticker.advanceMillis(1000);
+        Assert.assertTrue(state.tryAcquire(config));
+
+        // an answer closes the breaker, even a 503 of a busy warehouse
+        state.onFailure(config, false);
+        Assert.assertEquals(state.getCircuitState(), EndpointRetryState.CircuitState.CLOSED);
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testRetryBudgetLimitsRetriesOfEndpoint() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        HttpServer server = startServer("/down", exchange -> {
+            attempts.incrementAndGet();
+            respond(exchange, 503, "{}");
+        });
+        FakeTicker ticker = new FakeTicker();
+        RetryConfig config = RetryConfig.builder()
+                .setRetryBudget(4)
+                .setCircuitBreakerThreshold(0)
+                .build();
+        HttpRetryPolicy retryPolicy = new HttpRetryPolicy(false, true, true, config, ticker, ticker::advanceMillis);
+        Request request = new Request.Builder().url(serverUrl(server, "/down")).get().build();
+        try {
+            // retries while more than half of the 4 tokens are left
+            SQLException first = Assert.expectThrows(SQLException.class,
+                    () -> retryPolicy.sendRequestWithRetry(new OkHttpClient(), request));
+            Assert.assertTrue(first.getMessage().contains("retry budget"), first.getMessage());
+            Assert.assertEquals(attempts.get(), 2);
+            Assert.expectThrows(SQLException.class, () -> retryPolicy.sendRequestWithRetry(new OkHttpClient(), request));
+            Assert.assertEquals(attempts.get(), 3);
+
+            EndpointRetryState state = stateOf(server);
+            Assert.assertEquals(state.getRetries(), 1L);
+            Assert.assertEquals(state.getThrottledRetries(), 2L);
+            Assert.assertEquals(state.getRetryTokens(), 1.0);
+        }
+        finally {
+            server.stop(0);
+        }
+    }
+
+    private static EndpointRetryState stateOf(HttpServer server) {
+        String endpoint = "http://127.0.0.1:" + server.getAddress().getPort();
+        return HttpRetryPolicy.endpointStates().stream()
+                .filter(state -> state.getEndpoint().equals(endpoint))
+                .findFirst()
+                .get();
+    }
+
+    private static HttpServer startServer(String path, Handler handler) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.createContext(path, exchange -> {
+            try {
+                handler.handle(exchange);
+            }
+            finally {
+                exchange.close();
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] payload = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, payload.length);
+        exchange.getResponseBody().write(payload);
+    }
+
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+
+    private static final class FakeTicker extends Ticker {
+        private final AtomicLong nanos = new AtomicLong();
+
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+
+        void advanceMillis(long millis) {
+            nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+    }
+
     private static String serverUrl(HttpServer server, String path) {
         return "http://127.0.0.1:" + server.getAddress().getPort() + path;
     }
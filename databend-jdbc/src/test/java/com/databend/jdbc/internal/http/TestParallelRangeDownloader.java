@@ -0,0 +1,284 @@
+package com.databend.jdbc.internal.http;
+
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.Headers;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+@Test(timeOut = 10000)
+public class TestParallelRangeDownloader {
+    @Test(groups = {"UNIT"})
+    public void testDownloadToChannelWritesAllRanges() throws Exception {
+        byte[] object = randomBytes(1_000_000);
+        ObjectStore store = new ObjectStore(object, true);
+        Path file = Files.createTempFile("databend-range-", ".bin");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(java.nio.ByteBuffer.wrap(new byte[] {1, 2, 3}));
+            long size = downloader(store, 64 * 1024, 4).downloadTo(channel);
+
+            Assert.assertEquals(size, (long) object.length);
+            Assert.assertEquals(channel.position(), object.length + 3L);
+            byte[] written = Files.readAllBytes(file);
+            Assert.assertEquals(java.util.Arrays.copyOfRange(written, 3, written.length), object);
+            // 16 ranges, one of them requested twice after it broke off
+            Assert.assertEquals(store.ranges.size(), 17, store.ranges.toString());
+        }
+        finally {
+            Files.deleteIfExists(file);
+            store.stop();
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testOpenStreamReturnsRangesInOrder() throws Exception {
+        byte[] object = randomBytes(300_000);
+        ObjectStore store = new ObjectStore(object, true);
+        try (InputStream in = downloader(store, 10_000, 3).openStream()) {
+            Assert.assertEquals(readFully(in), object);
+            Assert.assertEquals(store.ranges.size(), 31, store.ranges.toString());
+        }
+        finally {
+            store.stop();
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testFallsBackWhenRangesAreNotSupported() throws Exception {
+        byte[] object = randomBytes(50_000);
+        ObjectStore store = new ObjectStore(object, false);
+        Path file = Files.createTempFile("databend-range-", ".bin");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            Assert.assertEquals(downloader(store, 1000, 4).downloadTo(channel), (long) object.length);
+            Assert.assertEquals(Files.readAllBytes(file), object);
+            try (InputStream in = downloader(store, 1000, 4).openStream()) {
+                Assert.assertEquals(readFully(in), object);
+            }
+            Assert.assertEquals(store.ranges.size(), 2);
+        }
+        finally {
+            Files.deleteIfExists(file);
+            store.stop();
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testEmptyObject() throws Exception {
+        ObjectStore store = new ObjectStore(new byte[0], true);
+        try (InputStream in = downloader(store, 1000, 2).openStream()) {
+            Assert.assertEquals(in.read(), -1);
+        }
+        finally {
+            store.stop();
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testObjectReplacedDuringDownloadFails() throws Exception {
+        byte[] object = randomBytes(100_000);
+        ObjectStore store = new ObjectStore(object, true);
+        store.etag = "\"v1\"";
+        // the object is replaced once the first range was served
+        store.afterFirstRange = () -> store.etag = "\"v2\"";
+        Path file = Files.createTempFile("databend-range-", ".bin");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            IOException failure = Assert.expectThrows(IOException.class, () -> downloader(store, 10_000, 2).downloadTo(channel));
+            Assert.assertTrue(failure instanceof NonRetryableHttpStatusException, failure.toString());
+            Assert.assertTrue(failure.getMessage().contains("object changed during the download"), failure.getMessage());
+            Assert.assertEquals(store.ifMatch.get(), "\"v1\"");
+        }
+        finally {
+            Files.deleteIfExists(file);
+            store.stop();
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testFailedRangeCancelsReadAhead() throws Exception {
+        byte[] object = randomBytes(100_000);
+        ObjectStore store = new ObjectStore(object, true);
+        store.missingRangeStart = 1000;
+        try (InputStream in = downloader(store, 1000, 4).openStream()) {
+            byte[] buffer = new byte[1000];
+            Assert.assertEquals(in.read(buffer), 1000);
+            Assert.expectThrows(NonRetryableHttpStatusException.class, () -> in.read(buffer));
+            // the stream stays failed and asks for no more ranges
+            Assert.expectThrows(NonRetryableHttpStatusException.class, () -> in.read(buffer));
+            Thread.sleep(100);
+            int requested = store.ranges.size();
+            Thread.sleep(500);
+            Assert.assertEquals(store.ranges.size(), requested);
+            Assert.assertTrue(requested <= 6, store.ranges.toString());
+        }
+        finally {
+            store.stop();
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testStreamRangesAreCapped() throws Exception {
+        byte[] object = randomBytes(ParallelRangeDownloader.MAX_STREAM_RANGE_SIZE * 2 + 1000);
+        ObjectStore store = new ObjectStore(object, true);
+        try (InputStream in = downloader(store, 16 << 20, 2).openStream()) {
+            Assert.assertEquals(readFully(in), object);
+            // 3 ranges, one of them requested twice after it broke off
+            Assert.assertEquals(store.ranges.size(), 4, store.ranges.toString());
+            for (String range : store.ranges) {
+                String[] bounds = range.substring("bytes=".length()).split("-");
+                long length = Long.parseLong(bounds[1]) - Long.parseLong(bounds[0]) + 1;
+                Assert.assertTrue(length <= ParallelRangeDownloader.MAX_STREAM_RANGE_SIZE, range);
+            }
+        }
+        finally {
+            store.stop();
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testFailingRangeIsRetriedInOneLayer() throws Exception {
+        byte[] object = randomBytes(10_000);
+        ObjectStore store = new ObjectStore(object, true);
+        store.unavailableRangeStart = 5000;
+        Path file = Files.createTempFile("databend-range-", ".bin");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            IOException failure = Assert.expectThrows(IOException.class, () -> downloader(store, 5000, 2).downloadTo(channel));
+            Assert.assertTrue(failure instanceof RetryableHttpStatusException, failure.toString());
+            long attempts = store.ranges.stream().filter(range -> range.startsWith("bytes=5000-")).count();
+            Assert.assertEquals(attempts, 3L, store.ranges.toString());
+        }
+        finally {
+            Files.deleteIfExists(file);
+            store.stop();
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testRangeSizeMustFitAnArray() {
+        PresignClient client = PresignClient.shared(PresignClientConfig.defaults());
+        Headers headers = new Headers.Builder().build();
+        Assert.expectThrows(IllegalArgumentException.class,
+                () -> new ParallelRangeDownloader(client, headers, "http://127.0.0.1/object", 0, 1));
+        new ParallelRangeDownloader(client, headers, "http://127.0.0.1/object", ParallelRangeDownloader.MAX_RANGE_SIZE, 1);
+    }
+
+    private static ParallelRangeDownloader downloader(ObjectStore store, int rangeSize, int parallelism) {
+        return new ParallelRangeDownloader(PresignClient.shared(PresignClientConfig.defaults()),
+                new Headers.Builder().build(), store.url(), rangeSize, parallelism);
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(7).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            output.write(buffer, 0, n);
+        }
+        return output.toByteArray();
+    }
+
+    private static final class ObjectStore {
+        final HttpServer server;
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        final List<String> ranges = new CopyOnWriteArrayList<>();
+        final AtomicBoolean brokeOff = new AtomicBoolean();
+        final AtomicReference<String> ifMatch = new AtomicReference<>();
+        volatile String etag;
+        volatile Runnable afterFirstRange = () -> { };
+        volatile int missingRangeStart = -1;
+        volatile int unavailableRangeStart = -1;
+
+        ObjectStore(byte[] object, boolean supportsRanges) throws IOException {
+            server = HttpServer.create(new InetSocketAddress(0), 0);
+            server.setExecutor(executor);
+            server.createContext("/object", exchange -> {
+                try {
+                    String range = exchange.getRequestHeaders().getFirst("Range");
+                    ranges.add(String.valueOf(range));
+                    if (!supportsRanges || range == null) {
+                        exchange.sendResponseHeaders(200, object.length == 0 ? -1 : object.length);
+                        exchange.getResponseBody().write(object);
+                        return;
+                    }
+                    String[] bounds = range.substring("bytes=".length()).split("-");
+                    int start = Integer.parseInt(bounds[0]);
+                    if (start >= object.length) {
+                        exchange.sendResponseHeaders(416, -1);
+                        return;
+                    }
+                    String expected = exchange.getRequestHeaders().getFirst("If-Match");
+                    if (expected != null) {
+                        ifMatch.set(expected);
+                        if (!expected.equals(etag)) {
+                            exchange.sendResponseHeaders(412, -1);
+                            return;
+                        }
+                    }
+                    if (start == missingRangeStart) {
+                        exchange.sendResponseHeaders(404, -1);
+                        return;
+                    }
+                    if (start == unavailableRangeStart) {
+                        exchange.sendResponseHeaders(503, -1);
+                        return;
+                    }
+                    int end = Math.min(Integer.parseInt(bounds[1]), object.length - 1);
+                    int length = end - start + 1;
+                    exchange.getResponseHeaders().add("Content-Range",
+                            "bytes " + start + "-" + end + "/" + object.length);
+                    if (etag != null) {
+                        exchange.getResponseHeaders().add("ETag", etag);
+                    }
+                    exchange.sendResponseHeaders(206, length);
+                    if (start == 0) {
+                        exchange.getResponseBody().write(object, start, length);
+                        afterFirstRange.run();
+                        return;
+                    }
+                    // the second range breaks off halfway through once
+                    if (start > 0 && !brokeOff.getAndSet(true)) {
+                        exchange.getResponseBody().write(object, start, length / 2);
+                        return;
+                    }
+                    exchange.getResponseBody().write(object, start, length);
+                }
+                catch (IOException ignored) {
+                    // client went away
+                }
+                finally {
+                    exchange.close();
+                }
+            });
+            server.start();
+        }
+
+        String url() {
+            return "http://127.0.0.1:" + server.getAddress().getPort() + "/object";
+        }
+
+        void stop() {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+}
@@ -3,16 +3,23 @@ package com.databend.jdbc.internal.http;
 import com.sun.net.httpserver.HttpServer;
 import okhttp3.Headers;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Test(timeOut = 10000)
 public class TestPresignClient {
@@ -307,6 +314,82 @@ public class TestPresignClient {
         }
     }
 
+    @Test(groups = {"UNIT"})
+    public void testSequentialUploadsReusePooledConnections() throws Exception {
+        Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+        AtomicInteger uploads = new AtomicInteger();
+        AtomicLong uploadedBytes = new AtomicLong();
+        HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.createContext("/bucket", exchange -> {
+            try {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = exchange.getRequestBody().read(buffer)) != -1) {
+                    uploadedBytes.addAndGet(n);
+                }
+                uploads.incrementAndGet();
+                exchange.sendResponseHeaders(200, -1);
+            }
+            finally {
+                exchange.close();
+            }
+        });
+        server.start();
+
+        try {
+            PresignClient client = PresignClient.shared(PresignClientConfig.builder().setMaxIdleConnections(2).build());
+            byte[] payload = new byte[16 * 1024];
+            for (int i = 0; i < 50; i++) {
+                client.presignUpload(null, new ByteArrayInputStream(payload), emptyHeaders(),
+                        serverUrl(server, "/bucket/part-" + i), payload.length, true);
+            }
+
+            Assert.assertEquals(uploads.get(), 50);
+            Assert.assertEquals(uploadedBytes.get(), 50L * payload.length);
+            Assert.assertEquals(clientPorts.size(), 1, clientPorts.toString());
+        }
+        finally {
+            server.stop(0);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testSharedClientPerConfig() {
+        PresignClientConfig config = PresignClientConfig.builder()
+                .setMaxIdleConnections(4)
+                .setKeepAliveSecs(60)
+                .setHttp2(true)
+                .setConnectTimeoutSecs(5)
+                .setSocketTimeoutSecs(120)
+                .build();
+        PresignClient client = PresignClient.shared(config);
+        Assert.assertSame(PresignClient.shared(PresignClientConfig.builder()
+                .setMaxIdleConnections(4)
+                .setKeepAliveSecs(60)
+                .setHttp2(true)
+                .setConnectTimeoutSecs(5)
+                .setSocketTimeoutSecs(120)
+                .build()), client);
+        Assert.assertNotSame(PresignClient.shared(PresignClientConfig.defaults()), client);
+
+        OkHttpClient httpClient = client.getHttpClient();
+        Assert.assertEquals(httpClient.connectTimeoutMillis(), 5000);
+        Assert.assertEquals(httpClient.readTimeoutMillis(), 120000);
+        Assert.assertEquals(httpClient.writeTimeoutMillis(), 120000);
+        Assert.assertEquals(httpClient.protocols(), Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+        Assert.assertEquals(PresignClient.shared(PresignClientConfig.defaults()).getHttpClient().protocols(),
+                Collections.singletonList(Protocol.HTTP_1_1));
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testInvalidConfigIsRejected() {
+        Assert.expectThrows(IllegalArgumentException.class,
+                () -> PresignClientConfig.builder().setMaxIdleConnections(-1).build());
+        Assert.expectThrows(IllegalArgumentException.class,
+                () -> PresignClientConfig.builder().setKeepAliveSecs(0).build());
+    }
+
     @Test(groups = {"UNIT"})
     public void testRetryablePresignStatusCodes() {
         Assert.assertTrue(PresignClient.isRetryablePresignStatus(502));
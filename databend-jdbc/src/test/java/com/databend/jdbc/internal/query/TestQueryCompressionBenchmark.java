@@ -0,0 +1,162 @@
+package com.databend.jdbc.internal.query;
+
+import com.databend.jdbc.internal.UploadCompression;
+import com.databend.jdbc.internal.http.HttpCompression;
+import com.databend.jdbc.internal.session.PaginationOptions;
+import com.databend.jdbc.internal.session.QueryRequestConfig;
+import com.databend.jdbc.internal.session.SessionState;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okio.Buffer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Compares the compression of query requests and responses on a large generated INSERT and a wide
+ * JSON result page. Not part of the unit tests, run it with {@code mvn test -Pbenchmarks}.
+ */
+@Test(timeOut = 300000)
+public class TestQueryCompressionBenchmark {
+    private static final int WARMUP = 3;
+    private static final int ITERATIONS = 10;
+
+    @Test(groups = {"BENCHMARK"})
+    public void benchmarkLargeSql() throws IOException {
+        StringBuilder sql = new StringBuilder("INSERT INTO t VALUES ");
+        for (int i = 0; i < 50000; i++) {
+            sql.append(i == 0 ? "" : ",")
+                    .append("(").append(i).append(", 'customer-").append(i % 997)
+                    .append("', '2024-01-").append(10 + i % 20).append(" 12:00:00', ").append(i * 0.25).append(")");
+        }
+        String content = sql.toString();
+        System.out.printf("large SQL, %d bytes%n", content.length());
+        for (UploadCompression compression : UploadCompression.values()) {
+            long bytes = 0;
+            long nanos = 0;
+            for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+                long start = System.nanoTime();
+                Request request = HttpCompression.post(new Request.Builder().url("http://localhost/v1/query"),
+                        RestQueryResultPages.MEDIA_TYPE_JSON, content, compression).build();
+                Buffer body = new Buffer();
+                request.body().writeTo(body);
+                if (i >= WARMUP) {
+                    nanos += System.nanoTime() - start;
+                    bytes = body.size();
+                }
+            }
+            System.out.printf("  %-5s %10d bytes %8.2f ms%n", compression.value(), bytes, nanos / 1e6 / ITERATIONS);
+        }
+    }
+
+    @Test(groups = {"BENCHMARK"})
+    public void benchmarkWideJsonPage() throws IOException {
+        byte[] page = widePage(1000, 100).getBytes(StandardCharsets.UTF_8);
+        AtomicLong sentBytes = new AtomicLong();
+        HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.createContext("/v1/query", exchange -> {
+            try {
+                String accepted = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                UploadCompression compression = UploadCompression.NONE;
+                if (accepted != null && accepted.contains("zstd")) {
+                    compression = UploadCompression.ZSTD;
+                } else if (accepted != null && accepted.contains("gzip")) {
+                    compression = UploadCompression.GZIP;
+                }
+                byte[] payload = encode(compression, page);
+                sentBytes.set(payload.length);
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                if (compression != UploadCompression.NONE) {
+                    exchange.getResponseHeaders().add("Content-Encoding", compression.value());
+                }
+                exchange.sendResponseHeaders(200, payload.length);
+                exchange.getResponseBody().write(payload);
+            }
+            finally {
+                exchange.close();
+            }
+        });
+        server.start();
+
+        try {
+            OkHttpClient client = new OkHttpClient();
+            Map<UploadCompression, String> results = new EnumMap<>(UploadCompression.class);
+            System.out.printf("wide JSON page, %d bytes%n", page.length);
+            for (UploadCompression compression : UploadCompression.values()) {
+                QueryRequestConfig config = QueryRequestConfig.builder()
+                        .setHost("http://127.0.0.1:" + server.getAddress().getPort())
+                        .setSession(SessionState.createDefault())
+                        .setQueryTimeoutSecs(QueryRequestConfig.DEFAULT_QUERY_TIMEOUT)
+                        .setPaginationOptions(PaginationOptions.defaultPaginationOptions())
+                        .setAdditionalHeaders(new HashMap<String, String>())
+                        .setResponseCompression(compression)
+                        .build();
+                long nanos = 0;
+                for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+                    long start = System.nanoTime();
+                    RestQueryResultPages pages = new RestQueryResultPages(client, "select * from wide", config, null, new AtomicReference<>());
+                    if (i >= WARMUP) {
+                        nanos += System.nanoTime() - start;
+                    }
+                    results.put(compression, pages.getResults().getDataRaw().get(999).get(99));
+                }
+                System.out.printf("  %-5s %10d bytes %8.2f ms%n", compression.value(), sentBytes.get(), nanos / 1e6 / ITERATIONS);
+            }
+            Assert.assertEquals(results.size(), UploadCompression.values().length);
+            Assert.assertEquals(results.values().stream().distinct().count(), 1L);
+        }
+        finally {
+            server.stop(0);
+        }
+    }
+
+    private static String widePage(int rows, int columns) {
+        StringBuilder schema = new StringBuilder("[");
+        for (int c = 0; c < columns; c++) {
+            schema.append(c == 0 ? "" : ",").append("{\"name\":\"column_").append(c).append("\",\"type\":\"String\"}");
+        }
+        StringBuilder data = new StringBuilder("[");
+        for (int r = 0; r < rows; r++) {
+            data.append(r == 0 ? "[" : ",[");
+            for (int c = 0; c < columns; c++) {
+                data.append(c == 0 ? "" : ",").append("\"value-").append(r * 31 + c).append("\"");
+            }
+            data.append("]");
+        }
+        return "{"
+                + "\"id\":\"qid-wide\","
+                + "\"node_id\":\"node\","
+                + "\"session\":{\"database\":\"default\"},"
+                + "\"schema\":" + schema + "],"
+                + "\"data\":" + data + "],"
+                + "\"state\":\"Succeeded\","
+                + "\"error\":null,"
+                + "\"stats\":null,"
+                + "\"affect\":null,"
+                + "\"result_timeout_secs\":30,"
+                + "\"stats_uri\":null,"
+                + "\"final_uri\":null,"
+                + "\"next_uri\":null,"
+                + "\"kill_uri\":null"
+                + "}";
+    }
+
+    private static byte[] encode(UploadCompression compression, byte[] data) throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        try (OutputStream out = compression.wrap(encoded)) {
+            out.write(data);
+        }
+        return encoded.toByteArray();
+    }
+}
@@ -1,23 +1,37 @@
 package com.databend.jdbc.internal.query;
 
 import com.databend.jdbc.internal.QueryResultFormat;
+import com.databend.jdbc.internal.UploadCompression;
 import com.databend.jdbc.internal.exception.DatabendQueryException;
+import com.databend.jdbc.internal.http.EndpointRetryState;
+import com.databend.jdbc.internal.http.HttpRetryPolicy;
+import com.databend.jdbc.internal.http.RetryConfig;
 import com.databend.jdbc.internal.session.PaginationOptions;
 import com.databend.jdbc.internal.session.QueryRequestConfig;
 import com.databend.jdbc.internal.session.SessionState;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
 import com.sun.net.httpserver.HttpServer;
 import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntPredicate;
 
 @Test(timeOut = 10000)
 public class TestRestQueryResultPages {
@@ -275,7 +289,7 @@ public class TestRestQueryResultPages {
                     .addInterceptor((Interceptor) chain -> {
                         if ("/v1/query/next-retry".equals(chain.request().url().encodedPath())
                                 && nextPageAttempts.incrementAndGet() == 1) {
-                            throw new IOException("unexpected end of stream");
+                            throw new IOException("unexpected end of stream", new EOFException("\\n not found"));
                         }
                         return chain.proceed(chain.request());
                     })
@@ -390,6 +404,273 @@ public class TestRestQueryResultPages {
                 exception.getCause().getMessage());
     }
 
+    @Test(groups = {"UNIT"})
+    public void testSlowPageOfFinishedQueryIsHedged() throws Exception {
+        AtomicInteger pageRequests = new AtomicInteger();
+        HttpServer server = startPageServer("Succeeded", pageRequests);
+        long hedgedFetches = PageHedging.getHedgedFetches();
+        long hedgeWins = PageHedging.getHedgeWins();
+        try {
+            RestQueryResultPages pages = new RestQueryResultPages(
+                    new OkHttpClient(),
+                    "select 1",
+                    requestConfig(serverBaseUrl(server), new PageHedging(50, 0)),
+                    null,
+                    new AtomicReference<>());
+
+            long start = System.currentTimeMillis();
+            Assert.assertTrue(pages.advance());
+            Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+            Assert.assertEquals(pages.getResults().getDataRaw().get(0).get(0), "v2");
+            Assert.assertEquals(pageRequests.get(), 2);
+            Assert.assertEquals(PageHedging.getHedgedFetches(), hedgedFetches + 1);
+            Assert.assertEquals(PageHedging.getHedgeWins(), hedgeWins + 1);
+        }
+        finally {
+            stopServer(server);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testHedgedPageFetchesTakeRetryBudget() throws Exception {
+        AtomicInteger pageRequests = new AtomicInteger();
+        // the first request of each page is slow
+        HttpServer server = startPageServer("Succeeded", pageRequests, request -> request % 2 == 1);
+        RetryConfig retryConfig = RetryConfig.builder().setRetryBudget(1).build();
+        try {
+            for (int i = 0; i < 2; i++) {
+                QueryRequestConfig config = QueryRequestConfig.builder()
+                        .setHost(serverBaseUrl(server))
+                        .setSession(SessionState.createDefault())
+                        .setQueryTimeoutSecs(QueryRequestConfig.DEFAULT_QUERY_TIMEOUT)
+                        .setPaginationOptions(PaginationOptions.defaultPaginationOptions())
+                        .setAdditionalHeaders(new HashMap<String, String>())
+                        .setRetryConfig(retryConfig)
+                        .setPageHedging(new PageHedging(50, 0))
+                        .build();
+                RestQueryResultPages pages = new RestQueryResultPages(
+                        new OkHttpClient(), "select 1", config, null, new AtomicReference<>());
+                Assert.assertTrue(pages.advance());
+                Assert.assertEquals(pages.getResults().getDataRaw().get(0).get(0), "v2");
+            }
+
+            // the first page spent the budget, the second one waited for its first request
+            Assert.assertEquals(pageRequests.get(), 3);
+            String endpoint = serverBaseUrl(server);
+            EndpointRetryState state = HttpRetryPolicy.endpointStates().stream()
+                    .filter(s -> s.getEndpoint().equals(endpoint))
+                    .findFirst()
+                    .get();
+            Assert.assertEquals(state.getHedges(), 1L);
+            Assert.assertEquals(state.getThrottledHedges(), 1L);
+        }
+        finally {
+            stopServer(server);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testFailedPageFetchGoesOnWithTheRetryAttempts() throws Exception {
+        AtomicInteger pageRequests = new AtomicInteger();
+        // the first request fails before the hedge delay
+        HttpServer server = startPageServer("Succeeded", pageRequests, request -> false, request -> true);
+        try {
+            RestQueryResultPages pages = new RestQueryResultPages(
+                    new OkHttpClient(),
+                    "select 1",
+                    requestConfig(serverBaseUrl(server), new PageHedging(500, 0)),
+                    null,
+                    new AtomicReference<>());
+
+            DatabendQueryException exception = Assert.expectThrows(DatabendQueryException.class, pages::advance);
+            // the request before the hedge delay is the first of the 3 attempts
+            Assert.assertEquals(pageRequests.get(), 3);
+            Assert.assertTrue(exception.getCause().getMessage().contains("status_code = 503"),
+                    exception.getCause().getMessage());
+        }
+        finally {
+            stopServer(server);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testFailedHedgeCountsAsRetryAttempt() throws Exception {
+        AtomicInteger pageRequests = new AtomicInteger();
+        // the first request is slow and fails, the duplicate and the retries fail at once
+        HttpServer server = startPageServer("Succeeded", pageRequests, request -> request == 1, request -> true);
+        try {
+            RestQueryResultPages pages = new RestQueryResultPages(
+                    new OkHttpClient(),
+                    "select 1",
+                    requestConfig(serverBaseUrl(server), new PageHedging(50, 0)),
+                    null,
+                    new AtomicReference<>());
+
+            Assert.expectThrows(DatabendQueryException.class, pages::advance);
+            // the first request and the duplicate are the first 2 of the 3 attempts
+            Assert.assertEquals(pageRequests.get(), 3);
+        }
+        finally {
+            stopServer(server);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testPageOfRunningQueryIsNotHedged() throws Exception {
+        AtomicInteger pageRequests = new AtomicInteger();
+        HttpServer server = startPageServer("Running", pageRequests);
+        long hedgedFetches = PageHedging.getHedgedFetches();
+        try {
+            RestQueryResultPages pages = new RestQueryResultPages(
+                    new OkHttpClient(),
+                    "select 1",
+                    requestConfig(serverBaseUrl(server), new PageHedging(50, 0)),
+                    null,
+                    new AtomicReference<>());
+
+            Assert.assertTrue(pages.advance());
+            Assert.assertEquals(pages.getResults().getDataRaw().get(0).get(0), "v2");
+            Assert.assertEquals(pageRequests.get(), 1);
+            Assert.assertEquals(PageHedging.getHedgedFetches(), hedgedFetches);
+        }
+        finally {
+            stopServer(server);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testPageHedgingSettings() {
+        Assert.assertFalse(PageHedging.disabled().isEnabled());
+        Assert.assertTrue(new PageHedging(0, 95).isEnabled());
+        Assert.assertEquals(new PageHedging(0, 95).hedgeDelayMillis("http://no-fetches-yet"), 0L);
+        Assert.assertEquals(new PageHedging(30, 95).hedgeDelayMillis("http://no-fetches-yet"), 30L);
+        Assert.expectThrows(IllegalArgumentException.class, () -> new PageHedging(-1, 0));
+        Assert.expectThrows(IllegalArgumentException.class, () -> new PageHedging(0, 100));
+
+        String host = "http://percentile-test";
+        for (int i = 1; i <= 100; i++) {
+            PageHedging.recordFetch(host, i, false, false);
+        }
+        Assert.assertEquals(new PageHedging(0, 90).hedgeDelayMillis(host), 90L);
+        Assert.assertEquals(new PageHedging(200, 90).hedgeDelayMillis(host), 200L);
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testCompressedQueryRequestAndResponse() throws Exception {
+        AtomicReference<String> requestEncoding = new AtomicReference<>();
+        AtomicReference<String> acceptEncoding = new AtomicReference<>();
+        AtomicReference<String> receivedSql = new AtomicReference<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.createContext("/v1/query", exchange -> {
+            try {
+                requestEncoding.set(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+                acceptEncoding.set(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+                try (InputStream body = new ZstdInputStream(exchange.getRequestBody())) {
+                    receivedSql.set(new ObjectMapper().readTree(body).get("sql").asText());
+                }
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                try (OutputStream out = new ZstdOutputStream(compressed)) {
+                    out.write(queryResponse("qid-zstd", null, "v1").getBytes(StandardCharsets.UTF_8));
+                }
+                byte[] payload = compressed.toByteArray();
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.getResponseHeaders().add("Content-Encoding", "zstd");
+                exchange.sendResponseHeaders(200, payload.length);
+                exchange.getResponseBody().write(payload);
+            }
+            finally {
+                exchange.close();
+            }
+        });
+        server.start();
+
+        StringBuilder sql = new StringBuilder("INSERT INTO t VALUES ");
+        for (int i = 0; i < 1000; i++) {
+            sql.append(i == 0 ? "" : ",").append("(").append(i).append(", 'name-").append(i).append("')");
+        }
+        try {
+            QueryRequestConfig config = QueryRequestConfig.builder()
+                    .setHost(serverBaseUrl(server))
+                    .setSession(SessionState.createDefault())
+                    .setQueryTimeoutSecs(QueryRequestConfig.DEFAULT_QUERY_TIMEOUT)
+                    .setPaginationOptions(PaginationOptions.defaultPaginationOptions())
+                    .setAdditionalHeaders(new HashMap<String, String>())
+                    .setRequestCompression(UploadCompression.ZSTD)
+                    .setResponseCompression(UploadCompression.ZSTD)
+                    .build();
+            RestQueryResultPages pages = new RestQueryResultPages(
+                    new OkHttpClient(),
+                    sql.toString(),
+                    config,
+                    null,
+                    new AtomicReference<>());
+
+            Assert.assertEquals(requestEncoding.get(), "zstd");
+            Assert.assertEquals(acceptEncoding.get(), "zstd, gzip");
+            Assert.assertEquals(receivedSql.get(), sql.toString());
+            Assert.assertEquals(pages.getResults().getDataRaw().get(0).get(0), "v1");
+        }
+        finally {
+            server.stop(0);
+        }
+    }
+
+    // the first request of the page takes 3 seconds, the ones after it return at once
+    private static HttpServer startPageServer(String state, AtomicInteger pageRequests) throws IOException {
+        return startPageServer(state, pageRequests, request -> request == 1);
+    }
+
+    private static HttpServer startPageServer(String state, AtomicInteger pageRequests, IntPredicate slowRequest)
+            throws IOException {
+        return startPageServer(state, pageRequests, slowRequest, request -> false);
+    }
+
+    // the failing requests of the page are answered with 503
+    private static HttpServer startPageServer(String state, AtomicInteger pageRequests, IntPredicate slowRequest,
+            IntPredicate failingRequest) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/v1/query", exchange -> {
+            try {
+                String response;
+                int status = 200;
+                if ("POST".equals(exchange.getRequestMethod())) {
+                    response = queryResponse("qid-hedge", "/v1/query/page-1", "v1", state);
+                }
+                else {
+                    int request = pageRequests.incrementAndGet();
+                    if (slowRequest.test(request)) {
+                        Thread.sleep(3000);
+                    }
+                    if (failingRequest.test(request)) {
+                        status = 503;
+                        response = "{\"error\":\"temporary\"}";
+                    }
+                    else {
+                        response = queryResponse("qid-hedge", null, "v2", state);
+                    }
+                }
+                byte[] payload = response.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(status, payload.length);
+                exchange.getResponseBody().write(payload);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                exchange.close();
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private static void stopServer(HttpServer server) {
+        server.stop(0);
+        ((ExecutorService) server.getExecutor()).shutdownNow();
+    }
+
     private static QueryRequestConfig requestConfig(String host) {
         return new QueryRequestConfig(
                 host,
@@ -404,11 +685,28 @@ public class TestRestQueryResultPages {
                 QueryRequestConfig.DEFAULT_RETRY_ATTEMPTS);
     }
 
+    private static QueryRequestConfig requestConfig(String host, PageHedging pageHedging) {
+        return QueryRequestConfig.builder()
+                .setHost(host)
+                .setSession(SessionState.createDefault())
+                .setQueryTimeoutSecs(QueryRequestConfig.DEFAULT_QUERY_TIMEOUT)
+                .setConnectionTimeout(QueryRequestConfig.DEFAULT_CONNECTION_TIMEOUT)
+                .setSocketTimeout(QueryRequestConfig.DEFAULT_SOCKET_TIMEOUT)
+                .setPaginationOptions(PaginationOptions.defaultPaginationOptions())
+                .setAdditionalHeaders(new HashMap<String, String>())
+                .setPageHedging(pageHedging)
+                .build();
+    }
+
     private static String serverBaseUrl(HttpServer server) {
         return "http://127.0.0.1:" + server.getAddress().getPort();
     }
 
     private static String queryResponse(String queryId, String nextUri, String value) {
+        return queryResponse(queryId, nextUri, value, "Running");
+    }
+
+    private static String queryResponse(String queryId, String nextUri, String value, String state) {
         String schema = value == null ? "[]" : "[{\"name\":\"c1\",\"type\":\"String\"}]";
         String data = value == null ? "[]" : "[[\"" + value + "\"]]";
         String nextUriJson = nextUri == null ? "null" : "\"" + nextUri + "\"";
@@ -418,7 +716,7 @@ public class TestRestQueryResultPages {
                 + "\"session\":{\"database\":\"default\"},"
                 + "\"schema\":" + schema + ","
                 + "\"data\":" + data + ","
-                + "\"state\":\"Running\","
+                + "\"state\":\"" + state + "\","
                 + "\"error\":null,"
                 + "\"stats\":null,"
                 + "\"affect\":null,"
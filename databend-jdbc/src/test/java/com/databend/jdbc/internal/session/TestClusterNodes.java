@@ -0,0 +1,333 @@
+package com.databend.jdbc.internal.session;
+
+import com.databend.jdbc.MockServers;
+import com.databend.jdbc.internal.exception.DatabendQueryException;
+import com.databend.jdbc.internal.query.QueryResultPages;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.OkHttpClient;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.databend.jdbc.MockServers.respond;
+import static com.databend.jdbc.MockServers.sessionHandleConfig;
+import static com.databend.jdbc.MockServers.uri;
+
+@Test(timeOut = 10000)
+public class TestClusterNodes {
+    private static final long DISCOVERY_INTERVAL_MILLIS = 60_000;
+
+    @Test(groups = {"UNIT"})
+    public void testRoundRobinSpreadsSessions() throws Exception {
+        List<MockNode> nodes = startNodes(3);
+        List<DatabendSessionHandle> handles = new ArrayList<>();
+        try {
+            for (int i = 0; i < 6; i++) {
+                DatabendSessionHandle handle = createSessionHandle(nodes, LoadBalancingPolicy.ROUND_ROBIN, 0);
+                handle.login();
+                handles.add(handle);
+            }
+            for (MockNode node : nodes) {
+                Assert.assertEquals(node.logins.get(), 2, node.uri.toString());
+            }
+        } finally {
+            closeAll(handles);
+            stopAll(nodes);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testLeastInflightPicksNodeWithFewestSessions() throws Exception {
+        List<MockNode> nodes = startNodes(2);
+        try {
+            DatabendSessionHandle first = createSessionHandle(nodes, LoadBalancingPolicy.LEAST_INFLIGHT, 0);
+            first.login();
+            DatabendSessionHandle second = createSessionHandle(nodes, LoadBalancingPolicy.LEAST_INFLIGHT, 0);
+            second.login();
+            Assert.assertEquals(first.getBaseUri(), nodes.get(0).uri);
+            Assert.assertEquals(second.getBaseUri(), nodes.get(1).uri);
+
+            first.close();
+            DatabendSessionHandle third = createSessionHandle(nodes, LoadBalancingPolicy.LEAST_INFLIGHT, 0);
+            third.login();
+            Assert.assertEquals(third.getBaseUri(), nodes.get(0).uri);
+            closeAll(Arrays.asList(second, third));
+        } finally {
+            stopAll(nodes);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testLoginFailsOverAndEjectsNode() throws Exception {
+        List<MockNode> nodes = startNodes(3);
+        nodes.get(0).server.stop(0);
+        List<DatabendSessionHandle> handles = new ArrayList<>();
+        try {
+            DatabendSessionHandle handle = createSessionHandle(nodes, LoadBalancingPolicy.DISABLED, 2);
+            handle.login();
+            handles.add(handle);
+            Assert.assertEquals(handle.getBaseUri(), nodes.get(1).uri);
+
+            // the failed node is skipped by the next sessions
+            DatabendSessionHandle next = createSessionHandle(nodes, LoadBalancingPolicy.DISABLED, 0);
+            next.login();
+            handles.add(next);
+            Assert.assertEquals(next.getBaseUri(), nodes.get(1).uri);
+            Assert.assertEquals(nodes.get(1).logins.get(), 2);
+        } finally {
+            closeAll(handles);
+            stopAll(nodes);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testLoginWithoutFailoverRetriesFails() throws Exception {
+        List<MockNode> nodes = startNodes(2);
+        nodes.get(0).server.stop(0);
+        try {
+            DatabendSessionHandle handle = createSessionHandle(nodes, LoadBalancingPolicy.DISABLED, 0);
+            Assert.expectThrows(java.sql.SQLException.class, handle::login);
+            Assert.assertEquals(nodes.get(1).logins.get(), 0);
+            handle.close();
+        } finally {
+            stopAll(nodes);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testHealthCheckEjectsAndReadmitsNode() throws Exception {
+        List<MockNode> nodes = startNodes(2);
+        List<URI> uris = Arrays.asList(nodes.get(0).uri, nodes.get(1).uri);
+        ClusterNodes cluster = ClusterNodes.acquire(uris, LoadBalancingPolicy.DISABLED, 60, new OkHttpClient());
+        try {
+            nodes.get(0).healthy.set(false);
+            cluster.checkHealth();
+            Assert.assertFalse(cluster.getNodes().get(0).isHealthy());
+            Assert.assertEquals(cluster.select(Collections.emptyList()).getUri(), nodes.get(1).uri);
+
+            nodes.get(0).healthy.set(true);
+            cluster.checkHealth();
+            Assert.assertTrue(cluster.getNodes().get(0).isHealthy());
+            Assert.assertEquals(cluster.select(Collections.emptyList()).getUri(), nodes.get(0).uri);
+
+            // with every node ejected a node is still picked
+            nodes.get(0).healthy.set(false);
+            nodes.get(1).healthy.set(false);
+            cluster.checkHealth();
+            Assert.assertEquals(cluster.select(Collections.emptyList()).getUri(), nodes.get(0).uri);
+            Assert.assertNull(cluster.select(cluster.getNodes()));
+        } finally {
+            cluster.release();
+            stopAll(nodes);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testHealthChecksProbeNodesInParallel() throws Exception {
+        List<MockNode> nodes = startNodes(3);
+        List<URI> uris = new ArrayList<>();
+        for (MockNode node : nodes) {
+            node.healthDelayMillis.set(1000);
+            uris.add(node.uri);
+        }
+        ClusterNodes cluster = ClusterNodes.acquire(uris, LoadBalancingPolicy.DISABLED, 60, new OkHttpClient());
+        try {
+            long start = System.nanoTime();
+            cluster.checkHealth();
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            Assert.assertTrue(elapsedMillis < 2500, "health check took " + elapsedMillis + " ms");
+            for (ClusterNodes.Node node : cluster.getNodes()) {
+                Assert.assertTrue(node.isHealthy(), node.toString());
+            }
+        } finally {
+            cluster.release();
+            stopAll(nodes);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testNodesAreSharedByConnectionsWithTheSameCredentials() throws Exception {
+        List<MockNode> nodes = startNodes(2);
+        List<URI> uris = Arrays.asList(nodes.get(0).uri, nodes.get(1).uri);
+        OkHttpClient client = new OkHttpClient();
+        ClusterNodes alice = ClusterNodes.acquire(uris, LoadBalancingPolicy.DISABLED, 60, 0, "alice", client);
+        ClusterNodes aliceAgain = ClusterNodes.acquire(uris, LoadBalancingPolicy.DISABLED, 60, 0, "alice", client);
+        ClusterNodes bob = ClusterNodes.acquire(uris, LoadBalancingPolicy.DISABLED, 60, 0, "bob", client);
+        try {
+            Assert.assertSame(aliceAgain, alice);
+            // bob's health checks must not go out with the client, and the credentials, of alice
+            Assert.assertNotSame(bob, alice);
+        } finally {
+            alice.release();
+            aliceAgain.release();
+            bob.release();
+            stopAll(nodes);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testFirstQueryFailsOverToAnotherNode() throws Exception {
+        List<MockNode> nodes = startNodes(2);
+        try {
+            DatabendSessionHandle handle = createSessionHandle(nodes, LoadBalancingPolicy.DISABLED, 1);
+            handle.login();
+            Assert.assertEquals(handle.getBaseUri(), nodes.get(0).uri);
+
+            nodes.get(0).server.stop(0);
+            QueryResultPages pages = handle.startQuery("select 1");
+            pages.close();
+            Assert.assertEquals(handle.getBaseUri(), nodes.get(1).uri);
+            Assert.assertEquals(nodes.get(1).queries.get(), 1);
+            handle.close();
+        } finally {
+            stopAll(nodes);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testSessionInTransactionStaysOnItsNode() throws Exception {
+        List<MockNode> nodes = startNodes(2);
+        nodes.get(0).transaction.set(true);
+        try {
+            DatabendSessionHandle handle = createSessionHandle(nodes, LoadBalancingPolicy.DISABLED, 1);
+            handle.login();
+            handle.startQuery("begin").close();
+            Assert.assertTrue(handle.getSession().inActiveTransaction());
+
+            nodes.get(0).server.stop(0);
+            Assert.expectThrows(DatabendQueryException.class, () -> handle.startQuery("select 1"));
+            Assert.assertEquals(handle.getBaseUri(), nodes.get(0).uri);
+            Assert.assertEquals(nodes.get(1).queries.get(), 0);
+            handle.close();
+        } finally {
+            stopAll(nodes);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testDiscoveryAddsAndRemovesNodes() throws Exception {
+        List<MockNode> nodes = startNodes(2);
+        MockNode seed = nodes.get(0);
+        seed.discovered.set("[{\"address\":\"" + seed.uri.getAuthority() + "\"},{\"address\":\"" + nodes.get(1).uri.getAuthority() + "\"}]");
+        List<MockNode> seedOnly = Collections.singletonList(seed);
+        DatabendSessionHandle first = createSessionHandle(seedOnly, LoadBalancingPolicy.LEAST_INFLIGHT, 0, true);
+        ClusterNodes cluster = ClusterNodes.acquire(Collections.singletonList(seed.uri), LoadBalancingPolicy.LEAST_INFLIGHT,
+                10, DISCOVERY_INTERVAL_MILLIS, null, new OkHttpClient());
+        try {
+            cluster.discover();
+            Assert.assertEquals(cluster.getNodes().size(), 2);
+            first.login();
+            DatabendSessionHandle second = createSessionHandle(seedOnly, LoadBalancingPolicy.LEAST_INFLIGHT, 0, true);
+            second.login();
+            Assert.assertEquals(first.getBaseUri(), seed.uri);
+            Assert.assertEquals(second.getBaseUri(), nodes.get(1).uri);
+            second.close();
+
+            // the seed leaves the cluster, its session moves at the next query
+            seed.discovered.set("{\"nodes\":[{\"address\":\"" + nodes.get(1).uri.getAuthority() + "\"}]}");
+            cluster.discover();
+            Assert.assertEquals(cluster.getNodes().size(), 1);
+            first.startQuery("select 1").close();
+            Assert.assertEquals(first.getBaseUri(), nodes.get(1).uri);
+            Assert.assertEquals(seed.queries.get(), 0);
+            Assert.assertEquals(nodes.get(1).queries.get(), 1);
+
+            // failed refreshes keep the nodes
+            seed.discovered.set(null);
+            cluster.discover();
+            Assert.assertEquals(cluster.getNodes().get(0).getUri(), nodes.get(1).uri);
+            first.close();
+        } finally {
+            cluster.release();
+            stopAll(nodes);
+        }
+    }
+
+    private static DatabendSessionHandle createSessionHandle(List<MockNode> nodes, LoadBalancingPolicy policy,
+            int maxFailoverRetry) {
+        return createSessionHandle(nodes, policy, maxFailoverRetry, false);
+    }
+
+    private static DatabendSessionHandle createSessionHandle(List<MockNode> nodes, LoadBalancingPolicy policy,
+            int maxFailoverRetry, boolean autoDiscovery) {
+        List<URI> uris = new ArrayList<>();
+        for (MockNode node : nodes) {
+            uris.add(node.uri);
+        }
+        return MockServers.createSessionHandle(sessionHandleConfig(uris.get(0))
+                .setNodes(uris)
+                .setLoadBalancingPolicy(policy)
+                .setMaxFailoverRetry(maxFailoverRetry)
+                .setAutoDiscovery(autoDiscovery)
+                .setNodeDiscoveryIntervalMillis((int) DISCOVERY_INTERVAL_MILLIS), null);
+    }
+
+    private static List<MockNode> startNodes(int count) throws IOException {
+        List<MockNode> nodes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            nodes.add(new MockNode("node-" + i));
+        }
+        return nodes;
+    }
+
+    private static void closeAll(List<DatabendSessionHandle> handles) throws Exception {
+        for (DatabendSessionHandle handle : handles) {
+            handle.close();
+        }
+    }
+
+    private static void stopAll(List<MockNode> nodes) {
+        for (MockNode node : nodes) {
+            node.server.stop(0);
+        }
+    }
+
+    private static final class MockNode {
+        private final HttpServer server;
+        private final URI uri;
+        private final AtomicInteger logins = new AtomicInteger();
+        private final AtomicInteger queries = new AtomicInteger();
+        private final AtomicBoolean healthy = new AtomicBoolean(true);
+        private final AtomicInteger healthDelayMillis = new AtomicInteger();
+        private final AtomicBoolean transaction = new AtomicBoolean();
+        private final AtomicReference<String> discovered = new AtomicReference<>();
+
+        private MockNode(String name) throws IOException {
+            server = HttpServer.create(new InetSocketAddress(0), 0);
+            server.createContext("/v1/session/login", exchange -> {
+                logins.incrementAndGet();
+                respond(exchange, 200, "{\"version\":\"1.2.800\"}");
+            });
+            server.createContext("/v1/query", exchange -> {
+                queries.incrementAndGet();
+                String txnState = transaction.get() ? "Active" : "AutoCommit";
+                respond(exchange, 200, "{\"id\":\"qid\",\"node_id\":\"" + name + "\",\"session\":{\"database\":\"default\","
+                        + "\"txn_state\":\"" + txnState + "\"},\"schema\":[],\"data\":[]}");
+            });
+            server.createContext(ClusterNodes.DISCOVERY_PATH, exchange -> {
+                String body = discovered.get();
+                respond(exchange, body == null ? 500 : 200, body == null ? "{}" : body);
+            });
+            server.createContext(ClusterNodes.HEALTH_PATH, exchange -> {
+                try {
+                    Thread.sleep(healthDelayMillis.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                respond(exchange, healthy.get() ? 200 : 503, "{}");
+            });
+            server.start();
+            uri = uri(server);
+        }
+    }
+}
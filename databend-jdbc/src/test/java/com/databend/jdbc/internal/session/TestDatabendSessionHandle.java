@@ -34,6 +34,9 @@ import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -883,6 +886,656 @@ public class TestDatabendSessionHandle {
         }
     }
 
+    @Test(groups = {"UNIT"})
+    public void testUploadStreamCompressesIntoChunkedStageUpload() throws Exception {
+        AtomicReference<String> transferEncoding = new AtomicReference<>();
+        AtomicReference<byte[]> body = new AtomicReference<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.createContext("/v1/upload_to_stage", exchange -> {
+            try {
+                transferEncoding.set(exchange.getRequestHeaders().getFirst("Transfer-Encoding"));
+                body.set(readAllBytes(exchange));
+                exchange.sendResponseHeaders(200, -1);
+            }
+            finally {
+                exchange.close();
+            }
+        });
+        server.start();
+
+        try {
+            DatabendSessionHandle handle = createSessionHandle(
+                    URI.create("http://127.0.0.1:" + server.getAddress().getPort()));
+            handle.initializePresign("off", false);
+
+            byte[] payload = repeatedPayload(300_000);
+            handle.uploadStream("~", "dir", new ByteArrayInputStream(payload), "f.csv.gz", payload.length, true);
+
+            Assert.assertEquals(transferEncoding.get(), "chunked");
+            Assert.assertEquals(gunzip(multipartContent(body.get())), payload);
+        }
+        finally {
+            server.stop(0);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testUploadStreamCompressedPresignedUploadSendsCompressedLength() throws Exception {
+        AtomicReference<String> contentLength = new AtomicReference<>();
+        AtomicReference<byte[]> body = new AtomicReference<>();
+        HttpServer queryServer = HttpServer.create(new InetSocketAddress(0), 0);
+        HttpServer uploadServer = HttpServer.create(new InetSocketAddress(0), 0);
+        uploadServer.createContext("/upload", exchange -> {
+            try {
+                contentLength.set(exchange.getRequestHeaders().getFirst("Content-Length"));
+                body.set(readAllBytes(exchange));
+                exchange.sendResponseHeaders(200, -1);
+            }
+            finally {
+                exchange.close();
+            }
+        });
+        queryServer.createContext("/v1/query", exchange -> {
+            try {
+                byte[] response = presignQueryResponse("{}",
+                        "http://127.0.0.1:" + uploadServer.getAddress().getPort() + "/upload")
+                        .getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+            }
+            finally {
+                exchange.close();
+            }
+        });
+        uploadServer.start();
+        queryServer.start();
+
+        try {
+            DatabendSessionHandle handle = createSessionHandle(
+                    URI.create("http://127.0.0.1:" + queryServer.getAddress().getPort()));
+            handle.initializePresign("on", false);
+
+            byte[] payload = repeatedPayload(300_000);
+            handle.uploadStream("~", "dir", new ByteArrayInputStream(payload), "f.csv.gz", payload.length, true);
+
+            Assert.assertEquals(contentLength.get(), String.valueOf(body.get().length));
+            Assert.assertTrue(body.get().length < payload.length);
+            Assert.assertEquals(gunzip(body.get()), payload);
+        }
+        finally {
+            queryServer.stop(0);
+            uploadServer.stop(0);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testMultipartUploaderSplitsAtLineBreaks() throws Exception {
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("databend-parts-", ".csv");
+        try {
+            java.nio.file.Files.write(file, "aaaa\nbb\ncccccc\nd\ne".getBytes(StandardCharsets.UTF_8));
+            try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(file)) {
+                List<long[]> parts = MultipartUploader.split(channel, 4, true);
+                Assert.assertEquals(parts.size(), 3);
+                Assert.assertEquals(parts.get(0), new long[] {0, 5});
+                Assert.assertEquals(parts.get(1), new long[] {5, 15});
+                Assert.assertEquals(parts.get(2), new long[] {15, 18});
+
+                Assert.assertEquals(MultipartUploader.split(channel, 100, true).size(), 1);
+            }
+            java.nio.file.Files.write(file, new byte[0]);
+            try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(file)) {
+                Assert.assertEquals(MultipartUploader.split(channel, 4, true).get(0), new long[] {0, 0});
+            }
+        }
+        finally {
+            java.nio.file.Files.deleteIfExists(file);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testMultipartUploaderKeepsQuotedLineBreaks() throws Exception {
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("databend-parts-", ".csv");
+        try {
+            // the line breaks of the quoted fields do not end a record, "" is an escaped quote
+            String content = "1,\"a\nb\"\n2,\"x \"\"q\"\"\ny\nz\"\n3,c\n4,d\n";
+            java.nio.file.Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+            try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(file)) {
+                List<long[]> parts = MultipartUploader.split(channel, 2, true);
+                Assert.assertEquals(parts.size(), 4);
+                Assert.assertEquals(parts.get(0), new long[] {0, 8});
+                Assert.assertEquals(parts.get(1), new long[] {8, 24});
+                Assert.assertEquals(parts.get(2), new long[] {24, 28});
+                Assert.assertEquals(parts.get(3), new long[] {28, 32});
+            }
+        }
+        finally {
+            java.nio.file.Files.deleteIfExists(file);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testMultipartUploaderSplitsUnquotedFormatsAtEveryLineBreak() throws Exception {
+        Assert.assertFalse(MultipartUploader.hasQuotedFields("data.TSV"));
+        Assert.assertFalse(MultipartUploader.hasQuotedFields("data.ndjson"));
+        Assert.assertTrue(MultipartUploader.hasQuotedFields("data.csv"));
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("databend-parts-", ".tsv");
+        try {
+            // a quote in a TSV field or a JSON string does not start a quoted field
+            String content = "1\t\"a\n2\tb\n{\"c\":\"\\\"\"}\n4\td\n";
+            java.nio.file.Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+            try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(file)) {
+                List<long[]> parts = MultipartUploader.split(channel, 2, false);
+                Assert.assertEquals(parts.size(), 4);
+                Assert.assertEquals(parts.get(0), new long[] {0, 5});
+                Assert.assertEquals(parts.get(1), new long[] {5, 9});
+                Assert.assertEquals(parts.get(2), new long[] {9, 20});
+                Assert.assertEquals(parts.get(3), new long[] {20, 24});
+
+                Assert.assertEquals(MultipartUploader.split(channel, 2, true).size(), 2);
+            }
+        }
+        finally {
+            java.nio.file.Files.deleteIfExists(file);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testUploadFileRetriesPresignedUpload() throws Exception {
+        Map<String, byte[]> objects = new ConcurrentHashMap<>();
+        AtomicInteger attempts = new AtomicInteger();
+        HttpServer queryServer = HttpServer.create(new InetSocketAddress(0), 0);
+        HttpServer uploadServer = HttpServer.create(new InetSocketAddress(0), 0);
+        uploadServer.createContext("/", exchange -> {
+            try {
+                byte[] body = readAllBytes(exchange);
+                if (attempts.incrementAndGet() == 1) {
+                    exchange.sendResponseHeaders(503, -1);
+                    return;
+                }
+                objects.put(exchange.getRequestURI().getPath(), body);
+                exchange.sendResponseHeaders(200, -1);
+            }
+            finally {
+                exchange.close();
+            }
+        });
+        servePresign(queryServer, uploadServer, new java.util.concurrent.CopyOnWriteArrayList<>());
+        uploadServer.start();
+        queryServer.start();
+
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("databend-upload-", ".csv");
+        try {
+            byte[] content = repeatedPayload(100_000);
+            java.nio.file.Files.write(file, content);
+
+            DatabendSessionHandle handle = createMultipartSessionHandle(queryServer, 500, 1);
+            handle.initializePresign("on", false);
+            handle.uploadFile("~", "/dir/", file, "data.csv", false);
+
+            // the first attempt is answered with 503, the file is sent again
+            Assert.assertEquals(attempts.get(), 2);
+            Assert.assertEquals(objects.get("/dir/data.csv"), content);
+        }
+        finally {
+            java.nio.file.Files.deleteIfExists(file);
+            queryServer.stop(0);
+            uploadServer.stop(0);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testUploadFilesReportsFailurePerFile() throws Exception {
+        Map<String, byte[]> objects = new ConcurrentHashMap<>();
+        List<String> queries = new java.util.concurrent.CopyOnWriteArrayList<>();
+        HttpServer queryServer = HttpServer.create(new InetSocketAddress(0), 0);
+        HttpServer uploadServer = HttpServer.create(new InetSocketAddress(0), 0);
+        uploadServer.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+        uploadServer.createContext("/", exchange -> {
+            try {
+                String path = exchange.getRequestURI().getPath();
+                byte[] body = readAllBytes(exchange);
+                if (path.endsWith("/bad.csv")) {
+                    exchange.sendResponseHeaders(400, -1);
+                    return;
+                }
+                objects.put(path, body);
+                exchange.sendResponseHeaders(200, -1);
+            }
+            finally {
+                exchange.close();
+            }
+        });
+        servePresign(queryServer, uploadServer, queries);
+        uploadServer.start();
+        queryServer.start();
+
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("databend-files-", ".csv");
+        try {
+            java.nio.file.Files.write(file, "1,a\n".getBytes(StandardCharsets.UTF_8));
+            List<com.databend.jdbc.UploadFile> files = new java.util.ArrayList<>();
+            files.add(com.databend.jdbc.UploadFile.of(file, "local.csv"));
+            for (int i = 0; i < 5; i++) {
+                byte[] data = (i + ",b\n").getBytes(StandardCharsets.UTF_8);
+                files.add(com.databend.jdbc.UploadFile.of("s" + i + ".csv", new ByteArrayInputStream(data), data.length));
+            }
+            files.add(com.databend.jdbc.UploadFile.of("bad.csv", new ByteArrayInputStream(new byte[1]), 1));
+
+            DatabendSessionHandle handle = createMultipartSessionHandle(queryServer, 500, 3);
+            handle.initializePresign("on", false);
+            List<SQLException> failures = handle.uploadFiles("~", "/load/", files);
+
+            Assert.assertEquals(failures.size(), 7);
+            for (int i = 0; i < 6; i++) {
+                Assert.assertNull(failures.get(i), String.valueOf(failures.get(i)));
+            }
+            Assert.assertNotNull(failures.get(6));
+            Assert.assertEquals(objects.get("/load/local.csv"), "1,a\n".getBytes(StandardCharsets.UTF_8));
+            Assert.assertEquals(objects.get("/load/s4.csv"), "4,b\n".getBytes(StandardCharsets.UTF_8));
+            Assert.assertEquals(objects.size(), 6);
+            // presigned once per file in the batch, the failure is not retried
+            Assert.assertEquals(queries.size(), 7, queries.toString());
+        }
+        finally {
+            java.nio.file.Files.deleteIfExists(file);
+            queryServer.stop(0);
+            uploadServer.stop(0);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testUploadFileInPartsPresignsOneAfterAnother() throws Exception {
+        AtomicInteger activeQueries = new AtomicInteger();
+        AtomicInteger maxActiveQueries = new AtomicInteger();
+        List<String> queries = new java.util.concurrent.CopyOnWriteArrayList<>();
+        HttpServer queryServer = HttpServer.create(new InetSocketAddress(0), 0);
+        queryServer.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+        HttpServer uploadServer = HttpServer.create(new InetSocketAddress(0), 0);
+        uploadServer.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+        uploadServer.createContext("/", exchange -> {
+            try {
+                readAllBytes(exchange);
+                exchange.sendResponseHeaders(200, -1);
+            }
+            finally {
+                exchange.close();
+            }
+        });
+        servePresign(queryServer, uploadServer, queries).getFilters().add(new com.sun.net.httpserver.Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                maxActiveQueries.accumulateAndGet(activeQueries.incrementAndGet(), Math::max);
+                try {
+                    // PRESIGN statements running at the same time would overlap here
+                    Thread.sleep(20);
+                    chain.doFilter(exchange);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    activeQueries.decrementAndGet();
+                }
+            }
+
+            @Override
+            public String description() {
+                return "concurrent queries";
+            }
+        });
+        uploadServer.start();
+        queryServer.start();
+
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("databend-parts-", ".csv");
+        try {
+            StringBuilder content = new StringBuilder();
+            for (int i = 0; i < 200; i++) {
+                content.append(i).append(",row-").append(i).append('\n');
+            }
+            java.nio.file.Files.write(file, content.toString().getBytes(StandardCharsets.UTF_8));
+
+            DatabendSessionHandle handle = createMultipartSessionHandle(queryServer, 500, 4);
+            handle.initializePresign("on", false);
+            handle.uploadFileInParts("~", "/dir/", file, "data.csv");
+
+            Assert.assertTrue(queries.size() > 3, queries.toString());
+            Assert.assertEquals(maxActiveQueries.get(), 1);
+        }
+        finally {
+            java.nio.file.Files.deleteIfExists(file);
+            queryServer.stop(0);
+            uploadServer.stop(0);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testUploadFileInPartsRetriesFailedPart() throws Exception {
+        Map<String, byte[]> objects = new ConcurrentHashMap<>();
+        AtomicInteger failures = new AtomicInteger();
+        HttpServer queryServer = HttpServer.create(new InetSocketAddress(0), 0);
+        HttpServer uploadServer = HttpServer.create(new InetSocketAddress(0), 0);
+        uploadServer.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+        uploadServer.createContext("/", exchange -> {
+            try {
+                String path = exchange.getRequestURI().getPath();
+                byte[] body = readAllBytes(exchange);
+                if (path.contains("part_00001_") && failures.getAndIncrement() == 0) {
+                    exchange.sendResponseHeaders(503, -1);
+                    return;
+                }
+                objects.put(path, body);
+                exchange.sendResponseHeaders(200, -1);
+            }
+            finally {
+                exchange.close();
+            }
+        });
+        servePresign(queryServer, uploadServer, new java.util.concurrent.CopyOnWriteArrayList<>());
+        uploadServer.start();
+        queryServer.start();
+
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("databend-parts-", ".csv");
+        try {
+            StringBuilder content = new StringBuilder();
+            for (int i = 0; i < 200; i++) {
+                content.append(i).append(",row-").append(i).append('\n');
+            }
+            java.nio.file.Files.write(file, content.toString().getBytes(StandardCharsets.UTF_8));
+
+            DatabendSessionHandle handle = createMultipartSessionHandle(queryServer, 500, 3);
+            handle.initializePresign("on", false);
+            String location = handle.uploadFileInParts("~", "/dir/", file, "data.csv");
+
+            Assert.assertEquals(location, "@~/dir/data.csv/");
+            Assert.assertEquals(failures.get(), 2);
+            Assert.assertTrue(objects.size() > 3, objects.keySet().toString());
+            ByteArrayOutputStream joined = new ByteArrayOutputStream();
+            for (int i = 0; i < objects.size(); i++) {
+                byte[] part = objects.get("/dir/data.csv/part_" + String.format("%05d", i) + "_data.csv");
+                Assert.assertNotNull(part, objects.keySet().toString());
+                Assert.assertEquals(part[part.length - 1], (byte) '\n');
+                joined.write(part);
+            }
+            Assert.assertEquals(new String(joined.toByteArray(), StandardCharsets.UTF_8), content.toString());
+        }
+        finally {
+            java.nio.file.Files.deleteIfExists(file);
+            queryServer.stop(0);
+            uploadServer.stop(0);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testUploadFileInPartsRemovesPartsOnFailure() throws Exception {
+        List<String> queries = new java.util.concurrent.CopyOnWriteArrayList<>();
+        HttpServer queryServer = HttpServer.create(new InetSocketAddress(0), 0);
+        HttpServer uploadServer = HttpServer.create(new InetSocketAddress(0), 0);
+        uploadServer.createContext("/", exchange -> {
+            try {
+                readAllBytes(exchange);
+                exchange.sendResponseHeaders(exchange.getRequestURI().getPath().contains("part_00002_") ? 400 : 200, -1);
+            }
+            finally {
+                exchange.close();
+            }
+        });
+        servePresign(queryServer, uploadServer, queries);
+        uploadServer.start();
+        queryServer.start();
+
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("databend-parts-", ".csv");
+        try {
+            java.nio.file.Files.write(file, "1\n2\n3\n4\n5\n6\n".getBytes(StandardCharsets.UTF_8));
+
+            DatabendSessionHandle handle = createMultipartSessionHandle(queryServer, 2, 1);
+            handle.initializePresign("on", false);
+            SQLException exception = Assert.expectThrows(SQLException.class,
+                    () -> handle.uploadFileInParts("~", "dir", file, "data.csv"));
+
+            Assert.assertTrue(exception.getCause() instanceof DatabendPresignException, String.valueOf(exception.getCause()));
+            Assert.assertEquals(queries.get(queries.size() - 1), "REMOVE @~/dir/data.csv/");
+            // parts are presigned right before they are sent, the three after the failed one are not
+            Assert.assertEquals(queries.size(), 4, queries.toString());
+        }
+        finally {
+            java.nio.file.Files.deleteIfExists(file);
+            queryServer.stop(0);
+            uploadServer.stop(0);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testUploadFileInPartsPresignsExpiredPartAgain() throws Exception {
+        List<String> queries = new java.util.concurrent.CopyOnWriteArrayList<>();
+        List<String> uploads = new java.util.concurrent.CopyOnWriteArrayList<>();
+        AtomicLong clock = new AtomicLong();
+        HttpServer queryServer = HttpServer.create(new InetSocketAddress(0), 0);
+        HttpServer uploadServer = HttpServer.create(new InetSocketAddress(0), 0);
+        uploadServer.createContext("/", exchange -> {
+            try {
+                String path = exchange.getRequestURI().getPath();
+                readAllBytes(exchange);
+                if (path.contains("part_00001_") && !uploads.contains(path) && clock.get() == 0) {
+                    // the part took longer than its URL was valid
+                    clock.set(3600_000);
+                    exchange.sendResponseHeaders(403, -1);
+                    return;
+                }
+                uploads.add(path);
+                exchange.sendResponseHeaders(200, -1);
+            }
+            finally {
+                exchange.close();
+            }
+        });
+        servePresign(queryServer, uploadServer, queries);
+        uploadServer.start();
+        queryServer.start();
+
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("databend-parts-", ".csv");
+        try {
+            java.nio.file.Files.write(file, "1\n2\n3\n".getBytes(StandardCharsets.UTF_8));
+
+            DatabendSessionHandle handle = createMultipartSessionHandle(queryServer, 2, 1);
+            handle.initializePresign("on", false);
+            MultipartUploader uploader = new MultipartUploader(handle, 2, 1, clock::get);
+            Assert.assertEquals(uploader.upload("~", "dir", file, "data.csv", null), "@~/dir/data.csv/");
+
+            Assert.assertEquals(uploads.size(), 3, uploads.toString());
+            Assert.assertEquals(queries, java.util.Arrays.asList(
+                    "PRESIGN UPLOAD @~/dir/data.csv/part_00000_data.csv",
+                    "PRESIGN UPLOAD @~/dir/data.csv/part_00001_data.csv",
+                    "PRESIGN UPLOAD @~/dir/data.csv/part_00001_data.csv",
+                    "PRESIGN UPLOAD @~/dir/data.csv/part_00002_data.csv"));
+        }
+        finally {
+            java.nio.file.Files.deleteIfExists(file);
+            queryServer.stop(0);
+            uploadServer.stop(0);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testUploadFileInPartsResumesFromCheckpoint() throws Exception {
+        List<String> queries = new java.util.concurrent.CopyOnWriteArrayList<>();
+        List<String> uploads = new java.util.concurrent.CopyOnWriteArrayList<>();
+        AtomicBoolean rejectPart = new AtomicBoolean(true);
+        HttpServer queryServer = HttpServer.create(new InetSocketAddress(0), 0);
+        HttpServer uploadServer = HttpServer.create(new InetSocketAddress(0), 0);
+        uploadServer.createContext("/", exchange -> {
+            try {
+                String path = exchange.getRequestURI().getPath();
+                readAllBytes(exchange);
+                if (path.contains("part_00002_") && rejectPart.get()) {
+                    exchange.sendResponseHeaders(400, -1);
+                    return;
+                }
+                uploads.add(path.substring(path.lastIndexOf('/') + 1));
+                exchange.sendResponseHeaders(200, -1);
+            }
+            finally {
+                exchange.close();
+            }
+        });
+        servePresign(queryServer, uploadServer, queries);
+        uploadServer.start();
+        queryServer.start();
+
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("databend-parts-", ".csv");
+        java.nio.file.Path checkpoint = java.nio.file.Files.createTempFile("databend-parts-", ".checkpoint");
+        java.nio.file.Files.delete(checkpoint);
+        try {
+            java.nio.file.Files.write(file, "1\n2\n3\n4\n5\n6\n".getBytes(StandardCharsets.UTF_8));
+
+            DatabendSessionHandle handle = createMultipartSessionHandle(queryServer, 2, 1);
+            handle.initializePresign("on", false);
+            SQLException exception = Assert.expectThrows(SQLException.class,
+                    () -> handle.uploadFileInParts("~", "dir", file, "data.csv", checkpoint));
+            Assert.assertTrue(exception.getMessage().contains("2 of 6 parts are done"), exception.getMessage());
+            Assert.assertTrue(java.nio.file.Files.exists(checkpoint));
+            // the uploaded parts are kept for the next attempt
+            for (String query : queries) {
+                Assert.assertFalse(query.startsWith("REMOVE"), queries.toString());
+            }
+            Assert.assertEquals(uploads.size(), 2, uploads.toString());
+
+            queries.clear();
+            uploads.clear();
+            rejectPart.set(false);
+            Assert.assertEquals(handle.uploadFileInParts("~", "dir", file, "data.csv", checkpoint), "@~/dir/data.csv/");
+            Assert.assertEquals(uploads.size(), 4, uploads.toString());
+            Assert.assertFalse(uploads.contains("part_00000_data.csv"), uploads.toString());
+            Assert.assertFalse(uploads.contains("part_00001_data.csv"), uploads.toString());
+            Assert.assertEquals(queries.size(), 4, queries.toString());
+            Assert.assertFalse(java.nio.file.Files.exists(checkpoint));
+        }
+        finally {
+            java.nio.file.Files.deleteIfExists(file);
+            java.nio.file.Files.deleteIfExists(checkpoint);
+            queryServer.stop(0);
+            uploadServer.stop(0);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testCheckpointOfEarlierSplitIsDiscarded() throws Exception {
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("databend-parts-", ".csv");
+        java.nio.file.Path checkpoint = java.nio.file.Files.createTempFile("databend-parts-", ".checkpoint");
+        try {
+            java.nio.file.Files.write(file, "1\n2\n".getBytes(StandardCharsets.UTF_8));
+            UploadCheckpoint.open(checkpoint, "@~/dir/data.csv/", file, 2, 2).complete(0);
+            Assert.assertTrue(UploadCheckpoint.open(checkpoint, "@~/dir/data.csv/", file, 2, 2).isCompleted(0));
+
+            // written by a version whose parts could end inside a quoted field
+            List<String> lines = new java.util.ArrayList<>();
+            for (String line : java.nio.file.Files.readAllLines(checkpoint, StandardCharsets.ISO_8859_1)) {
+                if (!line.startsWith("split=")) {
+                    lines.add(line);
+                }
+            }
+            java.nio.file.Files.write(checkpoint, lines, StandardCharsets.ISO_8859_1);
+            Assert.assertFalse(UploadCheckpoint.open(checkpoint, "@~/dir/data.csv/", file, 2, 2).isCompleted(0));
+        }
+        finally {
+            java.nio.file.Files.deleteIfExists(file);
+            java.nio.file.Files.deleteIfExists(checkpoint);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testSpillOutputStreamMovesLargeDataToFile() throws Exception {
+        SpillOutputStream small = new SpillOutputStream(16);
+        small.write("0123456789".getBytes(StandardCharsets.UTF_8));
+        small.close();
+        Assert.assertNull(small.getFile());
+        Assert.assertEquals(small.size(), 10L);
+        Assert.assertEquals(readFully(small.newInputStream()), "0123456789".getBytes(StandardCharsets.UTF_8));
+        small.delete();
+
+        SpillOutputStream large = new SpillOutputStream(16);
+        large.write("0123456789".getBytes(StandardCharsets.UTF_8));
+        large.write("abcdefghij".getBytes(StandardCharsets.UTF_8));
+        large.close();
+        java.io.File file = large.getFile();
+        Assert.assertNotNull(file);
+        Assert.assertEquals(large.size(), 20L);
+        Assert.assertEquals(file.length(), 20L);
+        Assert.assertEquals(readFully(large.newInputStream()), "0123456789abcdefghij".getBytes(StandardCharsets.UTF_8));
+        large.delete();
+        Assert.assertFalse(file.exists());
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testPresignCacheExpiresWithTtlAndSignedUrl() {
+        AtomicLong now = new AtomicLong(1_700_000_000_000L);
+        PresignCache cache = new PresignCache(300_000, now::get);
+        DatabendSessionHandle.PresignedRequestContext plain = new DatabendSessionHandle.PresignedRequestContext(
+                okhttp3.Headers.of(), "http://127.0.0.1/file");
+        cache.put("plain", plain);
+        now.addAndGet(299_000);
+        Assert.assertSame(cache.get("plain"), plain);
+        now.addAndGet(1_000);
+        Assert.assertNull(cache.get("plain"));
+
+        // signed at 2023-11-14T22:13:20Z for 120 seconds: kept for 60 seconds, short of the margin
+        now.set(1_700_000_000_000L);
+        String signed = "http://127.0.0.1/file?X-Amz-Date=20231114T221320Z&X-Amz-Expires=120&X-Amz-Signature=x";
+        Assert.assertEquals(PresignCache.urlExpiryMillis(signed), 1_700_000_120_000L);
+        cache.put("signed", new DatabendSessionHandle.PresignedRequestContext(okhttp3.Headers.of(), signed));
+        now.addAndGet(59_000);
+        Assert.assertNotNull(cache.get("signed"));
+        now.addAndGet(1_000);
+        Assert.assertNull(cache.get("signed"));
+        Assert.assertEquals(PresignCache.urlExpiryMillis("http://127.0.0.1/file?se=2023-11-14T22:15:20Z"),
+                1_700_000_120_000L);
+
+        PresignCache disabled = new PresignCache(0, now::get);
+        disabled.put("plain", plain);
+        Assert.assertNull(disabled.get("plain"));
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testDownloadStreamReusesCachedPresignedRequest() throws Exception {
+        HttpServer queryServer = HttpServer.create(new InetSocketAddress(0), 0);
+        HttpServer downloadServer = HttpServer.create(new InetSocketAddress(0), 0);
+        List<String> queries = new java.util.concurrent.CopyOnWriteArrayList<>();
+        AtomicInteger downloads = new AtomicInteger();
+        AtomicInteger rejections = new AtomicInteger();
+        downloadServer.createContext("/", exchange -> {
+            try {
+                // the URL handed out by the first PRESIGN is revoked after two downloads
+                if (downloads.incrementAndGet() == 3) {
+                    rejections.incrementAndGet();
+                    exchange.sendResponseHeaders(403, -1);
+                    return;
+                }
+                byte[] payload = "payload".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, payload.length);
+                exchange.getResponseBody().write(payload);
+            }
+            finally {
+                exchange.close();
+            }
+        });
+        servePresign(queryServer, downloadServer, queries);
+        downloadServer.start();
+        queryServer.start();
+
+        try {
+            DatabendSessionHandle handle = createSessionHandle(
+                    URI.create("http://127.0.0.1:" + queryServer.getAddress().getPort()));
+            for (int i = 0; i < 3; i++) {
+                Assert.assertEquals(readFully(handle.downloadStream("~", "path/file.txt")),
+                        "payload".getBytes(StandardCharsets.UTF_8));
+            }
+            Assert.assertEquals(rejections.get(), 1);
+            Assert.assertEquals(queries.size(), 2, queries.toString());
+            Assert.assertTrue(queries.get(0).startsWith("PRESIGN DOWNLOAD"), queries.get(0));
+        }
+        finally {
+            queryServer.stop(0);
+            downloadServer.stop(0);
+        }
+    }
+
     @Test(groups = {"UNIT"})
     public void testUploadStreamPresignedServiceUnavailableRaisesSQLExceptionWithPresignCause() throws Exception {
         HttpServer queryServer = HttpServer.create(new InetSocketAddress(0), 0);
@@ -1333,6 +1986,80 @@ public class TestDatabendSessionHandle {
         return output.toByteArray();
     }
 
+    private static byte[] repeatedPayload(int size) {
+        byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) {
+            payload[i] = (byte) ('a' + (i % 7) + (i / 4096) % 3);
+        }
+        return payload;
+    }
+
+    private static byte[] multipartContent(byte[] body) {
+        String text = new String(body, StandardCharsets.ISO_8859_1);
+        int start = text.indexOf("\r\n\r\n") + 4;
+        int end = text.lastIndexOf("\r\n--");
+        return java.util.Arrays.copyOfRange(body, start, end);
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        return readFully(new java.util.zip.GZIPInputStream(new ByteArrayInputStream(data)));
+    }
+
+    private static byte[] readFully(java.io.InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                output.write(buffer, 0, n);
+            }
+            return output.toByteArray();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static com.sun.net.httpserver.HttpContext servePresign(HttpServer queryServer, HttpServer uploadServer,
+            List<String> queries) {
+        return queryServer.createContext("/v1/query", exchange -> {
+            try {
+                String sql = new com.fasterxml.jackson.databind.ObjectMapper()
+                        .readTree(readAllBytes(exchange)).get("sql").asText();
+                queries.add(sql);
+                String path = sql.substring(sql.indexOf('@') + 2);
+                byte[] response = (sql.startsWith("PRESIGN")
+                        ? presignQueryResponse("{}", "http://127.0.0.1:" + uploadServer.getAddress().getPort() + path)
+                        : presignQueryResponseWithoutRows())
+                        .getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+            }
+            finally {
+                exchange.close();
+            }
+        });
+    }
+
+    private static DatabendSessionHandle createMultipartSessionHandle(HttpServer server, int partSize, int parallelism) {
+        return new DatabendSessionHandle(
+                new OkHttpClient.Builder().build(),
+                SessionHandleConfig.builder()
+                        .setBaseUri(URI.create("http://127.0.0.1:" + server.getAddress().getPort()))
+                        .setInitialSession(SessionState.createDefault())
+                        .setQueryTimeoutSecs(30)
+                        .setConnectionTimeoutSecs(30)
+                        .setSocketTimeoutSecs(60)
+                        .setWaitTimeSecs(10)
+                        .setMaxRowsInBuffer(1000)
+                        .setMaxRowsPerPage(1000)
+                        .setUploadPartSize(partSize)
+                        .setUploadParallelism(parallelism)
+                        .build(),
+                null);
+    }
+
     private static DatabendSessionHandle createSessionHandle(URI baseUri) {
         return new DatabendSessionHandle(
                 new OkHttpClient.Builder()
@@ -1351,6 +2078,40 @@ public class TestDatabendSessionHandle {
                 null);
     }
 
+    @Test(groups = {"UNIT"})
+    public void testResetSessionRestoresTheOpenedState() throws Exception {
+        SessionState initial = SessionState.builder().setDatabase("db1").build();
+        initial.setAdditionalProperty("role", "analyst");
+        DatabendSessionHandle handle = new DatabendSessionHandle(
+                new OkHttpClient.Builder().build(),
+                SessionHandleConfig.builder()
+                        .setBaseUri(URI.create("http://127.0.0.1:1"))
+                        .setLazyLogin(true)
+                        .setInitialSession(initial)
+                        .build(),
+                null);
+        try {
+            handle.open();
+            SessionState changed = SessionState.builder().setDatabase("db2").setTxnState("Active").build();
+            changed.setAdditionalProperty("role", "admin");
+            changed.setAdditionalProperty("secondary_roles", Collections.singletonList("writer"));
+            handle.accept(changed);
+
+            handle.resetSession();
+            SessionState reset = handle.getSession();
+            Assert.assertEquals(reset.getDatabase(), "db1");
+            Assert.assertFalse(reset.inActiveTransaction());
+            Assert.assertEquals(reset.getAdditionalProperties(), Collections.singletonMap("role", "analyst"));
+
+            // the snapshot is a copy, changing the reset session does not change the next reset
+            reset.setAdditionalProperty("role", "admin");
+            handle.resetSession();
+            Assert.assertEquals(handle.getSession().getAdditionalProperties().get("role"), "analyst");
+        } finally {
+            handle.close();
+        }
+    }
+
     private static QueryLiveness createHeartbeatQuery(String queryId) {
         return new QueryLiveness(
                 queryId,
@@ -1361,9 +2122,7 @@ public class TestDatabendSessionHandle {
     }
 
     private static void invokeSendHeartbeat(DatabendSessionHandle handle, List<QueryLiveness> queryLivenesses) throws Exception {
-        Method method = DatabendSessionHandle.class.getDeclaredMethod("sendHeartbeat", List.class);
-        method.setAccessible(true);
-        method.invoke(handle, queryLivenesses);
+        HeartbeatService.send(handle, queryLivenesses, 10000).get();
     }
 
     private static void invokeExecuteStageUpload(DatabendSessionHandle handle, Request request) throws Exception {
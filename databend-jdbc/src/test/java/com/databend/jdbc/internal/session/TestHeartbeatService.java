@@ -0,0 +1,136 @@
+package com.databend.jdbc.internal.session;
+
+import com.databend.jdbc.MockServers;
+import com.sun.net.httpserver.HttpServer;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.databend.jdbc.MockServers.readString;
+import static com.databend.jdbc.MockServers.respond;
+import static com.databend.jdbc.MockServers.sessionHandleConfig;
+
+@Test(timeOut = 10000)
+public class TestHeartbeatService {
+    private final List<HttpServer> servers = new ArrayList<>();
+    private HeartbeatService service;
+
+    @BeforeMethod(groups = {"UNIT"})
+    public void setUp() {
+        service = new HeartbeatService("test heartbeat-%s");
+    }
+
+    @AfterMethod(groups = {"UNIT"}, alwaysRun = true)
+    public void tearDown() {
+        for (HttpServer server : servers) {
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdownNow();
+        }
+        servers.clear();
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testQueriesOfConnectionsShareOneRequest() throws Exception {
+        List<String> requests = new CopyOnWriteArrayList<>();
+        URI uri = startServer(requests, 0, "{\"queries_to_remove\":[\"q1\"]}");
+        QueryLiveness q1 = createQuery("q1");
+        QueryLiveness q2 = createQuery("q2");
+        DatabendSessionHandle first = createSessionHandle(uri, "user1", Collections.singletonList(q1));
+        DatabendSessionHandle second = createSessionHandle(uri, "user1", Collections.singletonList(q2));
+        DatabendSessionHandle otherUser = createSessionHandle(uri, "user2", Collections.singletonList(createQuery("q3")));
+
+        service.register(first, 200);
+        service.register(second, 200);
+        service.register(otherUser, 200);
+        while (!q1.stopped) {
+            Thread.sleep(10);
+        }
+        String shared = requests.stream().filter(r -> r.contains("q1")).findFirst().get();
+        Assert.assertTrue(shared.contains("\"node\":[") && shared.contains("q2"), shared);
+        Assert.assertFalse(shared.contains("q3"), shared);
+        Assert.assertFalse(q2.stopped);
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testSlowEndpointDoesNotDelayOthers() throws Exception {
+        List<String> slowRequests = new CopyOnWriteArrayList<>();
+        List<String> fastRequests = new CopyOnWriteArrayList<>();
+        DatabendSessionHandle slow = createSessionHandle(startServer(slowRequests, 5000, "{}"), "user1",
+                Collections.singletonList(createQuery("slow")));
+        DatabendSessionHandle fast = createSessionHandle(startServer(fastRequests, 0, "{}"), "user1",
+                Collections.singletonList(createQuery("fast")));
+
+        service.register(slow, 100);
+        service.register(fast, 100);
+        long start = System.currentTimeMillis();
+        while (fastRequests.size() < 5) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start < 3000);
+        Assert.assertFalse(slowRequests.isEmpty());
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testSessionWithoutOpenQueriesIsUnregistered() throws Exception {
+        List<QueryLiveness> queries = new CopyOnWriteArrayList<>();
+        queries.add(createQuery("q1"));
+        List<String> requests = new CopyOnWriteArrayList<>();
+        DatabendSessionHandle handle = createSessionHandle(startServer(requests, 0, "{}"), "user1", queries);
+
+        service.register(handle, 100);
+        while (requests.isEmpty()) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(service.isRegistered(handle));
+        queries.clear();
+        while (service.isRegistered(handle)) {
+            Thread.sleep(10);
+        }
+
+        // a new query registers again
+        queries.add(createQuery("q2"));
+        service.register(handle, 100);
+        while (requests.stream().noneMatch(r -> r.contains("q2"))) {
+            Thread.sleep(10);
+        }
+        service.unregister(handle);
+        Assert.assertFalse(service.isRegistered(handle));
+    }
+
+    private URI startServer(List<String> requests, long delayMillis, String response) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/v1/session/heartbeat", exchange -> {
+            requests.add(readString(exchange.getRequestBody()));
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, response);
+        });
+        server.start();
+        servers.add(server);
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    private static QueryLiveness createQuery(String queryId) {
+        return new QueryLiveness(queryId, "node", new AtomicLong(System.currentTimeMillis() - 20_000), 1L, true);
+    }
+
+    private static DatabendSessionHandle createSessionHandle(URI uri, String principal, List<QueryLiveness> queries) {
+        return MockServers.createSessionHandle(sessionHandleConfig(uri).setPrincipal(principal), () -> queries);
+    }
+}
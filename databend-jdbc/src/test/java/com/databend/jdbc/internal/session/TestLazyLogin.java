@@ -0,0 +1,175 @@
+package com.databend.jdbc.internal.session;
+
+import com.databend.jdbc.MockServers;
+import com.databend.jdbc.internal.QueryResultFormat;
+import com.databend.jdbc.internal.query.QueryResultPages;
+import com.sun.net.httpserver.HttpServer;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.databend.jdbc.MockServers.readString;
+import static com.databend.jdbc.MockServers.respond;
+import static com.databend.jdbc.MockServers.sessionHandleConfig;
+
+@Test(timeOut = 10000)
+public class TestLazyLogin {
+    private HttpServer server;
+    private URI uri;
+    private final AtomicInteger logins = new AtomicInteger();
+    private final AtomicInteger queries = new AtomicInteger();
+    private volatile String queryAccept;
+    private volatile CountDownLatch loginReleased;
+
+    @BeforeMethod(groups = {"UNIT"})
+    public void startServer() throws IOException {
+        logins.set(0);
+        queries.set(0);
+        loginReleased = new CountDownLatch(0);
+        server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/v1/session/login", exchange -> {
+            logins.incrementAndGet();
+            try {
+                loginReleased.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, "{\"version\":\"1.2.800\",\"server_max_arrow_result_version\":3}");
+        });
+        server.createContext("/v1/query", exchange -> {
+            queries.incrementAndGet();
+            queryAccept = exchange.getRequestHeaders().getFirst("Accept");
+            String request = readString(exchange.getRequestBody());
+            // the presign probe fails like on a server without presigned URLs
+            String error = request.contains("PRESIGN")
+                    ? ",\"error\":{\"code\":1001,\"message\":\"presign is not supported\"}" : "";
+            respond(exchange, "{\"id\":\"qid\",\"session\":{\"database\":\"default\"},\"schema\":[],\"data\":[]" + error + "}");
+        });
+        server.start();
+        uri = URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    @AfterMethod(groups = {"UNIT"}, alwaysRun = true)
+    public void stopServer() {
+        server.stop(0);
+        ((ExecutorService) server.getExecutor()).shutdownNow();
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testFirstQueryDoesNotWaitForLogin() throws Exception {
+        loginReleased = new CountDownLatch(1);
+        DatabendSessionHandle handle = createSessionHandle(true);
+        try {
+            handle.open();
+            QueryResultPages pages = handle.startQuery("select 1");
+            Assert.assertNotNull(pages.getResults());
+            Assert.assertEquals(queries.get(), 1);
+
+            loginReleased.countDown();
+            Assert.assertEquals(handle.getServerVersion().getValue(), "1.2.800");
+            Assert.assertTrue(handle.supportsStreamingLoad());
+            Assert.assertEquals(logins.get(), 1);
+        } finally {
+            loginReleased.countDown();
+            handle.close();
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testServerInfoOfEarlierLoginIsReused() throws Exception {
+        DatabendSessionHandle first = createSessionHandle(false);
+        first.open();
+        Assert.assertEquals(logins.get(), 1);
+
+        DatabendSessionHandle lazy = createSessionHandle(true);
+        lazy.open();
+        Assert.assertEquals(lazy.getServerVersion().getValue(), "1.2.800");
+        Assert.assertEquals(logins.get(), 1);
+
+        // without lazy_login every connection still checks its credentials
+        DatabendSessionHandle eager = createSessionHandle(false);
+        eager.open();
+        Assert.assertEquals(logins.get(), 2);
+        first.close();
+        lazy.close();
+        eager.close();
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testPresignDetectionIsDeferredAndShared() throws Exception {
+        DatabendSessionHandle lazy = createSessionHandle(true);
+        lazy.open();
+        lazy.initializePresign("detect", false);
+        Assert.assertEquals(queries.get(), 0);
+        Assert.assertTrue(lazy.isPresignDisabled());
+        Assert.assertEquals(queries.get(), 1);
+        Assert.assertTrue(lazy.isPresignDisabled());
+
+        DatabendSessionHandle eager = createSessionHandle(false);
+        eager.open();
+        eager.initializePresign("detect", false);
+        Assert.assertTrue(eager.isPresignDisabled());
+        Assert.assertEquals(queries.get(), 1);
+        lazy.close();
+        eager.close();
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testOtherCredentialsLogInAndProbeAgain() throws Exception {
+        DatabendSessionHandle first = createSessionHandle(false, "alice", QueryResultFormat.JSON);
+        first.open();
+        first.initializePresign("detect", false);
+        Assert.assertEquals(logins.get(), 1);
+        Assert.assertEquals(queries.get(), 1);
+
+        // a login of alice says nothing about the password of bob
+        DatabendSessionHandle other = createSessionHandle(true, "bob", QueryResultFormat.JSON);
+        other.open();
+        Assert.assertEquals(other.getServerVersion().getValue(), "1.2.800");
+        Assert.assertEquals(logins.get(), 2);
+        other.initializePresign("detect", false);
+        Assert.assertTrue(other.isPresignDisabled());
+        Assert.assertEquals(queries.get(), 2);
+        first.close();
+        other.close();
+    }
+
+    // the login is held for 5 seconds
+    @Test(groups = {"UNIT"}, timeOut = 3000)
+    public void testFirstArrowQueryDoesNotWaitForLogin() throws Exception {
+        loginReleased = new CountDownLatch(1);
+        DatabendSessionHandle handle = createSessionHandle(true, null, QueryResultFormat.ARROW);
+        try {
+            handle.open();
+            // arrow is asked for, the JSON answer is decoded as JSON
+            QueryResultPages pages = handle.startQuery("select 1");
+            Assert.assertNotNull(pages.getResults());
+            Assert.assertEquals(queryAccept, "application/vnd.apache.arrow.stream");
+        } finally {
+            loginReleased.countDown();
+            handle.close();
+        }
+    }
+
+    private DatabendSessionHandle createSessionHandle(boolean lazyLogin) {
+        return createSessionHandle(lazyLogin, null, QueryResultFormat.JSON);
+    }
+
+    private DatabendSessionHandle createSessionHandle(boolean lazyLogin, String principal, QueryResultFormat queryResultFormat) {
+        return MockServers.createSessionHandle(sessionHandleConfig(uri)
+                .setLazyLogin(lazyLogin)
+                .setPrincipal(principal)
+                .setQueryResultFormat(queryResultFormat), null);
+    }
+}
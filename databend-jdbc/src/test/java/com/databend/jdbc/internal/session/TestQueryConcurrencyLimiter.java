@@ -0,0 +1,183 @@
+package com.databend.jdbc.internal.session;
+
+import com.databend.jdbc.internal.query.QueryResultPages;
+import com.databend.jdbc.internal.query.RestQueryResultPages;
+import com.google.common.base.Ticker;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.OkHttpClient;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLTransientException;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+@Test(timeOut = 10000)
+public class TestQueryConcurrencyLimiter {
+    @Test(groups = {"UNIT"})
+    public void testQueueOfStaticLimit() throws Exception {
+        QueryConcurrencyLimiter limiter = new QueryConcurrencyLimiter("test", Ticker.systemTicker());
+        ConcurrencyLimitConfig config = ConcurrencyLimitConfig.builder()
+                .setMaxConcurrentQueries(1)
+                .setQueueSize(1)
+                .setQueueTimeoutMillis(5000)
+                .build();
+        limiter.acquire(config);
+
+        CompletableFuture<Void> queued = CompletableFuture.runAsync(() -> {
+            try {
+                limiter.acquire(config);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        while (limiter.getWaiting() == 0) {
+            Thread.sleep(10);
+        }
+        // the queue is full
+        SQLTransientException rejected = Assert.expectThrows(SQLTransientException.class, () -> limiter.acquire(config));
+        Assert.assertTrue(rejected.getMessage().startsWith("Too many concurrent queries to test"), rejected.getMessage());
+
+        limiter.release(config, 10, false);
+        queued.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(limiter.getInFlight(), 1);
+        Assert.assertEquals(limiter.getQueued(), 1L);
+
+        ConcurrencyLimitConfig shortWait = ConcurrencyLimitConfig.builder()
+                .setMaxConcurrentQueries(1)
+                .setQueueTimeoutMillis(50)
+                .build();
+        SQLTransientException timedOut = Assert.expectThrows(SQLTransientException.class, () -> limiter.acquire(shortWait));
+        Assert.assertTrue(timedOut.getMessage().startsWith("Timed out after 50 ms"), timedOut.getMessage());
+        Assert.assertEquals(limiter.getRejected(), 2L);
+        Assert.assertEquals(limiter.getAdmitted(), 2L);
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testAdaptiveLimitFollowsLatency() throws Exception {
+        FakeTicker ticker = new FakeTicker();
+        QueryConcurrencyLimiter limiter = new QueryConcurrencyLimiter("test", ticker);
+        ConcurrencyLimitConfig config = ConcurrencyLimitConfig.builder()
+                .setMaxConcurrentQueries(100)
+                .setQueueSize(0)
+                .setAdaptive(true)
+                .build();
+        for (int i = 0; i < 20; i++) {
+            limiter.acquire(config);
+        }
+        Assert.assertEquals(limiter.getAdaptiveLimit(), 20);
+        Assert.expectThrows(SQLTransientException.class, () -> limiter.acquire(config));
+
+        // fast starts with the limit in use raise it
+        for (int i = 0; i < 60; i++) {
+            limiter.release(config, 100, false);
+            limiter.acquire(config);
+        }
+        int raised = limiter.getAdaptiveLimit();
+        Assert.assertTrue(raised > 20, String.valueOf(raised));
+
+        // a slow start lowers it once per round trip
+        ticker.advanceMillis(1000);
+        limiter.release(config, 1000, false);
+        limiter.release(config, 1000, false);
+        Assert.assertTrue(limiter.getAdaptiveLimit() < raised);
+        Assert.assertEquals(limiter.getLimitDecreases(), 1L);
+
+        ticker.advanceMillis(1000);
+        limiter.release(config, -1, true);
+        Assert.assertEquals(limiter.getLimitDecreases(), 2L);
+
+        // never above the maximum of the connection
+        ConcurrencyLimitConfig lower = ConcurrencyLimitConfig.builder()
+                .setMaxConcurrentQueries(limiter.getInFlight())
+                .setQueueSize(0)
+                .setAdaptive(true)
+                .build();
+        Assert.expectThrows(SQLTransientException.class, () -> limiter.acquire(lower));
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testPermitIsHeldUntilQueryFinished() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.createContext("/v1/query", exchange -> {
+            try {
+                // the first page is followed by a second one, which is the last
+                boolean first = "POST".equals(exchange.getRequestMethod());
+                String nextUri = first ? "\"/v1/query/qid/page/1\"" : "null";
+                byte[] payload = ("{\"id\":\"qid\",\"node_id\":\"node\",\"session\":{},\"schema\":[],\"data\":[],"
+                        + "\"state\":\"" + (first ? "Running" : "Succeeded") + "\",\"error\":null,"
+                        + "\"next_uri\":" + nextUri + ",\"final_uri\":\"/v1/query/qid/final\"}")
+                        .getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, payload.length);
+                exchange.getResponseBody().write(payload);
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+        try {
+            QueryRequestConfig requestConfig = QueryRequestConfig.builder()
+                    .setHost("http://127.0.0.1:" + server.getAddress().getPort())
+                    .setSession(SessionState.createDefault())
+                    .setQueryTimeoutSecs(QueryRequestConfig.DEFAULT_QUERY_TIMEOUT)
+                    .setPaginationOptions(PaginationOptions.defaultPaginationOptions())
+                    .setAdditionalHeaders(new HashMap<String, String>())
+                    .build();
+            QueryConcurrencyLimiter limiter = new QueryConcurrencyLimiter("test", Ticker.systemTicker());
+            ConcurrencyLimitConfig config = ConcurrencyLimitConfig.builder()
+                    .setMaxConcurrentQueries(2)
+                    .build();
+
+            limiter.acquire(config);
+            QueryResultPages read = new LimitedQueryResultPages(
+                    new RestQueryResultPages(new OkHttpClient(), "select 1", requestConfig, null, new AtomicReference<>()),
+                    limiter, config, 10);
+            limiter.acquire(config);
+            QueryResultPages closed = new LimitedQueryResultPages(
+                    new RestQueryResultPages(new OkHttpClient(), "select 2", requestConfig, null, new AtomicReference<>()),
+                    limiter, config, 10);
+            Assert.assertEquals(limiter.getInFlight(), 2);
+
+            // the last page returns the permit
+            Assert.assertTrue(read.advance());
+            Assert.assertEquals(limiter.getInFlight(), 1);
+            read.close();
+            Assert.assertEquals(limiter.getInFlight(), 1);
+
+            // and so does closing the pages before it
+            closed.close();
+            closed.close();
+            Assert.assertEquals(limiter.getInFlight(), 0);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test(groups = {"UNIT"})
+    public void testInvalidSettings() {
+        Assert.assertFalse(ConcurrencyLimitConfig.disabled().isEnabled());
+        Assert.expectThrows(IllegalArgumentException.class,
+                () -> ConcurrencyLimitConfig.builder().setMaxConcurrentQueries(-1).build());
+        Assert.expectThrows(IllegalArgumentException.class,
+                () -> ConcurrencyLimitConfig.builder().setQueueSize(-1).build());
+    }
+
+    private static final class FakeTicker extends Ticker {
+        private final AtomicLong nanos = new AtomicLong();
+
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+
+        void advanceMillis(long millis) {
+            nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+    }
+}